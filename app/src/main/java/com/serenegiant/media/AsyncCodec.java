@@ -0,0 +1,55 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: AsyncCodec.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encoder that reports its buffers with callbacks like asynchronous mode of MediaCodec.
+ * MediaEncoder talks to MediaCodec through this in asynchronous mode,
+ * so the asynchronous pipeline can also be driven by a fake codec without hardware.
+ */
+public interface AsyncCodec {
+	/**
+	 * callback methods are called on one thread that the codec decides
+	 */
+	public interface Callback {
+		public void onInputBufferAvailable(int index);
+		public void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info);
+		public void onOutputFormatChanged(MediaFormat format);
+		public void onError(Exception e);
+	}
+
+	/**
+	 * set callback, this should be called before the codec is configured
+	 * @param callback
+	 */
+	public void setCallback(Callback callback);
+	public ByteBuffer getInputBuffer(int index);
+	public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+	public ByteBuffer getOutputBuffer(int index);
+	public void releaseOutputBuffer(int index);
+}
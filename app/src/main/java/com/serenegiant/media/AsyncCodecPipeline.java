@@ -0,0 +1,254 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: AsyncCodecPipeline.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receives callbacks of AsyncCodec and pushes encoded data to Output as soon as the codec produces them.
+ * Indexes of available input buffers are queued for the thread that fills input data.
+ * Any error of the codec or exception thrown while handling output is reported once with Output#onFailed
+ * instead of crashing the callback thread, and #awaitEndOfStream returns immediately after that.
+ * Output can be held with #holdOutput(e.g. until the muxer starts) without blocking the callback thread,
+ * held buffers are kept in the codec and passed to Output in order on #releaseOutput.
+ */
+public class AsyncCodecPipeline implements AsyncCodec.Callback {
+
+	/**
+	 * receiver of encoded data, methods are called on callback thread of the codec
+	 */
+	public interface Output {
+		public void onFormatChanged(MediaFormat format);
+		/**
+		 * encoded data is available, the buffer is returned to the codec after this returned
+		 * @param encodedData
+		 * @param info
+		 */
+		public void onSample(ByteBuffer encodedData, MediaCodec.BufferInfo info);
+		/**
+		 * output with BUFFER_FLAG_END_OF_STREAM was handled and returned to the codec
+		 */
+		public void onEndOfStream();
+		/**
+		 * the codec failed, no more output comes after this
+		 * @param e
+		 */
+		public void onFailed(Exception e);
+	}
+
+	/**
+	 * same value as MediaCodec.INFO_TRY_AGAIN_LATER
+	 */
+	public static final int INFO_TRY_AGAIN_LATER = -1;
+
+	private final AsyncCodec mCodec;
+	private final Output mOutput;
+	private final LinkedBlockingQueue<Integer> mInputIndices = new LinkedBlockingQueue<Integer>();
+	private final Object mSync = new Object();
+	private boolean mEndOfStream;
+	private volatile Exception mError;
+	// following fields are only accessed on callback thread
+	private boolean mHoldOutput;
+	/**
+	 * indices of output buffers that are held and not passed to Output yet
+	 */
+	private final List<Integer> mHeldIndices = new ArrayList<Integer>();
+	/**
+	 * BufferInfo of each held output buffer, these are valid until the buffer is released
+	 */
+	private final List<MediaCodec.BufferInfo> mHeldInfos = new ArrayList<MediaCodec.BufferInfo>();
+
+	/**
+	 * Constructor, this sets callback of the codec
+	 * @param codec
+	 * @param output
+	 */
+	public AsyncCodecPipeline(final AsyncCodec codec, final Output output) {
+		mCodec = codec;
+		mOutput = output;
+		codec.setCallback(this);
+	}
+
+	/**
+	 * get index of available input buffer
+	 * @param timeoutUs
+	 * @return INFO_TRY_AGAIN_LATER if no input buffer is available or the codec failed
+	 */
+	public int dequeueInputBuffer(final long timeoutUs) {
+		if (mError != null) return INFO_TRY_AGAIN_LATER;
+		try {
+			final Integer ix = mInputIndices.poll(timeoutUs, TimeUnit.MICROSECONDS);
+			return ix != null ? ix : INFO_TRY_AGAIN_LATER;
+		} catch (final InterruptedException e) {
+			return INFO_TRY_AGAIN_LATER;
+		}
+	}
+
+	public ByteBuffer getInputBuffer(final int index) {
+		return mCodec.getInputBuffer(index);
+	}
+
+	public void queueInputBuffer(final int index, final int size, final long presentationTimeUs, final int flags) {
+		mCodec.queueInputBuffer(index, 0, size, presentationTimeUs, flags);
+	}
+
+	/**
+	 * number of input buffers that are available and not dequeued yet
+	 * @return
+	 */
+	public int getAvailableInputCount() {
+		return mInputIndices.size();
+	}
+
+	/**
+	 * wait until output with BUFFER_FLAG_END_OF_STREAM was handled
+	 * @param timeoutMs
+	 * @return true if end of stream came, false on timeout, interruption or failure of the codec
+	 */
+	public boolean awaitEndOfStream(final long timeoutMs) {
+		synchronized (mSync) {
+			final long limit = System.currentTimeMillis() + timeoutMs;
+			while (!mEndOfStream && (mError == null)) {
+				final long t = limit - System.currentTimeMillis();
+				if (t <= 0) break;
+				try {
+					mSync.wait(t);
+				} catch (final InterruptedException e) {
+					break;
+				}
+			}
+			return mEndOfStream;
+		}
+	}
+
+	/**
+	 * keep output buffers in the codec instead of passing them to Output,
+	 * this should be called on callback thread, e.g. from Output#onFormatChanged
+	 */
+	public void holdOutput() {
+		mHoldOutput = true;
+	}
+
+	/**
+	 * pass held output buffers to Output and stop holding,
+	 * this should be called on callback thread
+	 */
+	public void releaseOutput() {
+		mHoldOutput = false;
+		final int n = mHeldIndices.size();
+		for (int i = 0; (i < n) && (mError == null); i++) {
+			handleOutput(mHeldIndices.get(i), mHeldInfos.get(i));
+		}
+		mHeldIndices.clear();
+		mHeldInfos.clear();
+	}
+
+	/**
+	 * number of output buffers that are held
+	 * @return
+	 */
+	public int getHeldOutputCount() {
+		return mHeldIndices.size();
+	}
+
+	public boolean isFailed() {
+		return mError != null;
+	}
+
+	/**
+	 * first error of the codec
+	 * @return null if the codec has not failed
+	 */
+	public Exception getError() {
+		return mError;
+	}
+
+	@Override
+	public void onInputBufferAvailable(final int index) {
+		mInputIndices.offer(index);
+	}
+
+	@Override
+	public void onOutputBufferAvailable(final int index, final MediaCodec.BufferInfo info) {
+		if (mError != null) return;
+		if (mHoldOutput) {
+			mHeldIndices.add(index);
+			mHeldInfos.add(info);
+			return;
+		}
+		handleOutput(index, info);
+	}
+
+	private void handleOutput(final int index, final MediaCodec.BufferInfo info) {
+		try {
+			final ByteBuffer encodedData = mCodec.getOutputBuffer(index);
+			if (encodedData == null) {
+				throw new IllegalStateException("encoderOutputBuffer " + index + " was null");
+			}
+			mOutput.onSample(encodedData, info);
+			mCodec.releaseOutputBuffer(index);
+		} catch (final RuntimeException e) {
+			fail(e);
+			return;
+		}
+		if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+			synchronized (mSync) {
+				mEndOfStream = true;
+				mSync.notifyAll();
+			}
+			mOutput.onEndOfStream();
+		}
+	}
+
+	@Override
+	public void onOutputFormatChanged(final MediaFormat format) {
+		if (mError != null) return;
+		try {
+			mOutput.onFormatChanged(format);
+		} catch (final RuntimeException e) {
+			fail(e);
+		}
+	}
+
+	@Override
+	public void onError(final Exception e) {
+		fail(e);
+	}
+
+	private void fail(final Exception e) {
+		synchronized (mSync) {
+			if (mError != null) return;
+			mError = e;
+			mSync.notifyAll();
+		}
+		mInputIndices.clear();
+		mOutput.onFailed(e);
+	}
+}
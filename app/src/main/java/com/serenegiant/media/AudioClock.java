@@ -0,0 +1,134 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: AudioClock.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+/**
+ * Presentation time of captured audio derived from the number of captured frames.
+ * The clock is anchored once to SessionClock(same time base as video frames, pausing is removed)
+ * when the first chunk is captured, and is slewed slowly to follow SessionClock
+ * so that the audio timeline does not drift from the video timeline on long recording.
+ * Returned timestamps are always monotonic.
+ * This class is not thread safe and should be used from the audio capturing task.
+ */
+public class AudioClock {
+	/**
+	 * interval to compare the clock with SessionClock
+	 */
+	private static final long CORRECTION_INTERVAL_US = 1000000L;
+	/**
+	 * maximum adjustment on each correction(0.1% of CORRECTION_INTERVAL_US)
+	 */
+	private static final long MAX_SLEW_US = 1000L;
+	/**
+	 * the clock jumps forward when it falls behind more than this(e.g. samples were lost)
+	 */
+	private static final long RESYNC_THRESHOLD_US = 100000L;
+
+	private final int mSampleRate;
+	private final SessionClock mClock;
+	private long mAnchorUs = -1;
+	private long mFrames;
+	private long mNextCorrectionFrames;
+	private long mCorrectionUs;
+	private long mPrevPtsUs = -1;
+
+	/**
+	 * Constructor
+	 * @param sampleRate
+	 * @param clock clock of the recording session that is shared with video tracks
+	 */
+	public AudioClock(final int sampleRate, final SessionClock clock) {
+		mSampleRate = sampleRate;
+		mClock = clock;
+	}
+
+	/**
+	 * get presentation time of the first frame of captured chunk and advance the clock.
+	 * this should be called just after the chunk was captured.
+	 * @param frames number of frames(samples per channel) in the chunk
+	 * @return presentationTimeUs
+	 */
+	public long advance(final int frames) {
+		if (mAnchorUs < 0) {
+			// first chunk was captured just now
+			mAnchorUs = mClock.nowUs() - framesToUs(frames);
+			mNextCorrectionFrames = mSampleRate;
+		}
+		long pts = mAnchorUs + mCorrectionUs + framesToUs(mFrames);
+		mFrames += frames;
+		if (mFrames >= mNextCorrectionFrames) {
+			mNextCorrectionFrames = mFrames + mSampleRate * CORRECTION_INTERVAL_US / 1000000L;
+			correct();
+		}
+		if (pts <= mPrevPtsUs) {
+			pts = mPrevPtsUs + 1;
+		}
+		mPrevPtsUs = pts;
+		return pts;
+	}
+
+	/**
+	 * get presentationTimeUs that follows the captured chunks without advancing the clock,
+	 * e.g. for end of stream without audio data
+	 * @return end of the last captured chunk, or current session time if nothing was captured
+	 * 		since the clock was reset
+	 */
+	public long nextUs() {
+		long pts = mAnchorUs >= 0
+			? mAnchorUs + mCorrectionUs + framesToUs(mFrames) : mClock.nowUs();
+		if (pts <= mPrevPtsUs) {
+			pts = mPrevPtsUs + 1;
+		}
+		return pts;
+	}
+
+	/**
+	 * total correction applied to the clock so far
+	 * @return
+	 */
+	public long getCorrectionUs() {
+		return mCorrectionUs;
+	}
+
+	public void reset() {
+		mAnchorUs = -1;
+		mFrames = 0;
+		mCorrectionUs = 0;
+		mPrevPtsUs = -1;
+	}
+
+	private void correct() {
+		// positive error means the clock is behind SessionClock
+		final long error = mClock.nowUs() - (mAnchorUs + mCorrectionUs + framesToUs(mFrames));
+		if (error > RESYNC_THRESHOLD_US) {
+			mCorrectionUs += error;
+		} else {
+			final long slew = error / 8;
+			mCorrectionUs += Math.max(-MAX_SLEW_US, Math.min(MAX_SLEW_US, slew));
+		}
+	}
+
+	private long framesToUs(final long frames) {
+		return frames * 1000000L / mSampleRate;
+	}
+}
@@ -0,0 +1,308 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: AudioMixer.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Software mixer of several 16bit mono PCM sources(e.g. mic and app audio) into one track.
+ * Each input has its own jitter buffer(lock-free single-producer/single-consumer ring),
+ * sample rate conversion to the output rate with linear interpolation and gain.
+ * Mixed samples are saturated to 16bit instead of wrapping around.
+ * Nothing is allocated after construction and the inner loops are simple counted loops
+ * over primitive arrays so that JIT can vectorize them.
+ * Each Input#write should be called from one producer thread
+ * and #mix from one consumer thread(e.g. audio encoder thread).
+ * Linear interpolation has no anti-aliasing filter, it is intended for voice and system sounds.
+ */
+public class AudioMixer {
+	private static final float SHORT_TO_FLOAT = 1.0f / 32768f;
+	/**
+	 * read position of input is kept in 32.32 fixed point
+	 */
+	private static final int FRAC_BITS = 32;
+	private static final long FRAC_ONE = 1L << FRAC_BITS;
+	private static final long FRAC_MASK = FRAC_ONE - 1;
+	private static final float FRAC_TO_FLOAT = 1.0f / FRAC_ONE;
+
+	/**
+	 * PCM source of the mixer
+	 */
+	public static final class Input {
+		private final int mSampleRate;
+		/**
+		 * input samples per output sample in 32.32 fixed point
+		 */
+		private final long mStep;
+		/**
+		 * number of samples that should be buffered before mixing starts or restarts after underrun
+		 */
+		private final int mPrefill;
+		private final float[] mRing;
+		private final int mMask;
+		/**
+		 * sequence number of next sample to write, only updated by producer
+		 */
+		private final AtomicLong mHead = new AtomicLong();
+		/**
+		 * sequence number of next sample to read, only updated by consumer
+		 */
+		private final AtomicLong mTail = new AtomicLong();
+		private volatile float mGain = 1.0f;
+		// following fields are only updated by consumer
+		private long mFrac;
+		private boolean mPrimed;
+		private volatile long mUnderruns;
+		// only updated by producer
+		private volatile long mOverflows;
+
+		private Input(final int sampleRate, final int outputSampleRate,
+			final int capacity, final int prefill) {
+
+			int n = 1;
+			while (n < capacity) n <<= 1;
+			mRing = new float[n];
+			mMask = n - 1;
+			mSampleRate = sampleRate;
+			mStep = ((long)sampleRate << FRAC_BITS) / outputSampleRate;
+			mPrefill = Math.min(prefill, n);
+		}
+
+		public int getSampleRate() {
+			return mSampleRate;
+		}
+
+		/**
+		 * set linear gain of this input, this can be called from any thread
+		 * @param gain 1.0 is unity gain
+		 */
+		public void setGain(final float gain) {
+			mGain = gain;
+		}
+
+		public float getGain() {
+			return mGain;
+		}
+
+		/**
+		 * number of samples waiting to be mixed
+		 * @return
+		 */
+		public int getBufferedSamples() {
+			return (int)(mHead.get() - mTail.get());
+		}
+
+		/**
+		 * number of times that the input did not have enough samples and was re-buffered
+		 * @return
+		 */
+		public long getUnderruns() {
+			return mUnderruns;
+		}
+
+		/**
+		 * number of samples that were discarded because the jitter buffer was full
+		 * @return
+		 */
+		public long getOverflows() {
+			return mOverflows;
+		}
+
+		/**
+		 * write captured samples into jitter buffer, this never blocks.
+		 * samples that do not fit into the buffer are discarded.
+		 * @param pcm 16bit mono PCM
+		 * @param offset
+		 * @param samples
+		 * @return number of samples that were written
+		 */
+		public int write(final short[] pcm, final int offset, final int samples) {
+			final long head = mHead.get();
+			final int free = mRing.length - (int)(head - mTail.get());
+			final int n = Math.min(samples, free);
+			if (n < samples) {
+				mOverflows += samples - n;
+			}
+			// copy in at most two contiguous segments
+			final int ix = (int)(head & mMask);
+			final int first = Math.min(n, mRing.length - ix);
+			toFloat(pcm, offset, mRing, ix, first);
+			toFloat(pcm, offset + first, mRing, 0, n - first);
+			mHead.lazySet(head + n);
+			return n;
+		}
+
+		/**
+		 * read samples converted to output sample rate, this is called on consumer thread
+		 * @param dst
+		 * @param samples number of output samples
+		 * @return false if this input is buffering and has nothing to mix
+		 */
+		private boolean read(final float[] dst, final int samples) {
+			final long tail = mTail.get();
+			final int available = (int)(mHead.get() - tail);
+			if (!mPrimed) {
+				if (available < mPrefill) return false;
+				mPrimed = true;
+			}
+			final long step = mStep;
+			if ((step == FRAC_ONE) && (mFrac == 0)) {
+				// same sample rate
+				if (available < samples) {
+					onUnderrun();
+					return false;
+				}
+				final int ix = (int)(tail & mMask);
+				final int first = Math.min(samples, mRing.length - ix);
+				System.arraycopy(mRing, ix, dst, 0, first);
+				System.arraycopy(mRing, 0, dst, first, samples - first);
+				mTail.lazySet(tail + samples);
+				return true;
+			}
+			// the last output sample interpolates between input samples at end and end + 1
+			final long end = mFrac + (samples - 1) * step;
+			if (available < (int)(end >>> FRAC_BITS) + 2) {
+				onUnderrun();
+				return false;
+			}
+			final float[] ring = mRing;
+			final int mask = mMask;
+			long pos = mFrac;
+			for (int i = 0; i < samples; i++) {
+				final int ix = (int)((tail + (pos >>> FRAC_BITS)) & mask);
+				final float a = ring[ix];
+				final float b = ring[(ix + 1) & mask];
+				dst[i] = a + (b - a) * ((pos & FRAC_MASK) * FRAC_TO_FLOAT);
+				pos += step;
+			}
+			mTail.lazySet(tail + (pos >>> FRAC_BITS));
+			mFrac = pos & FRAC_MASK;
+			return true;
+		}
+
+		private void onUnderrun() {
+			mUnderruns++;
+			// buffer again not to click on every following read
+			mPrimed = false;
+		}
+	}
+
+	private final int mSampleRate;
+	private final int mMaxSamples;
+	private final float[] mMix;
+	private final float[] mWork;
+	/**
+	 * copy-on-write
+	 */
+	private volatile Input[] mInputs = new Input[0];
+
+	/**
+	 * Constructor
+	 * @param sampleRate output sample rate
+	 * @param maxSamples maximum number of samples of each #mix call
+	 */
+	public AudioMixer(final int sampleRate, final int maxSamples) {
+		mSampleRate = sampleRate;
+		mMaxSamples = maxSamples;
+		mMix = new float[maxSamples];
+		mWork = new float[maxSamples];
+	}
+
+	public int getSampleRate() {
+		return mSampleRate;
+	}
+
+	/**
+	 * add PCM source
+	 * @param sampleRate sample rate of the source
+	 * @param bufferMs capacity of jitter buffer
+	 * @param prefillMs samples of this duration are buffered before they are mixed,
+	 * 			larger value tolerates larger jitter of the source with longer latency
+	 * @return
+	 */
+	public synchronized Input addInput(final int sampleRate, final int bufferMs, final int prefillMs) {
+		if ((sampleRate <= 0) || (bufferMs <= 0) || (prefillMs < 0) || (prefillMs > bufferMs))
+			throw new IllegalArgumentException("invalid parameter");
+		final Input input = new Input(sampleRate, mSampleRate,
+			(int)((long)sampleRate * bufferMs / 1000),
+			(int)((long)sampleRate * prefillMs / 1000));
+		final Input[] inputs = Arrays.copyOf(mInputs, mInputs.length + 1);
+		inputs[inputs.length - 1] = input;
+		mInputs = inputs;
+		return input;
+	}
+
+	public synchronized void removeInput(final Input input) {
+		final Input[] inputs = mInputs;
+		for (int i = 0; i < inputs.length; i++) {
+			if (inputs[i] == input) {
+				final Input[] newInputs = new Input[inputs.length - 1];
+				System.arraycopy(inputs, 0, newInputs, 0, i);
+				System.arraycopy(inputs, i + 1, newInputs, i, inputs.length - i - 1);
+				mInputs = newInputs;
+				break;
+			}
+		}
+	}
+
+	/**
+	 * mix all inputs into 16bit mono PCM at output sample rate.
+	 * inputs that are buffering contribute silence.
+	 * @param out
+	 * @param offset
+	 * @param samples should not be larger than maxSamples of constructor
+	 * @return number of inputs that were mixed
+	 */
+	public int mix(final short[] out, final int offset, final int samples) {
+		if (samples > mMaxSamples)
+			throw new IllegalArgumentException("too many samples:" + samples);
+		if (samples <= 0) return 0;
+		final float[] mix = mMix;
+		final float[] work = mWork;
+		Arrays.fill(mix, 0, samples, 0.0f);
+		int mixed = 0;
+		for (final Input input: mInputs) {
+			if (input.read(work, samples)) {
+				final float gain = input.mGain;
+				for (int i = 0; i < samples; i++) {
+					mix[i] += work[i] * gain;
+				}
+				mixed++;
+			}
+		}
+		// saturate instead of wrapping around
+		for (int i = 0; i < samples; i++) {
+			out[offset + i] = (short)Math.max(-32768.0f, Math.min(32767.0f, mix[i] * 32768.0f));
+		}
+		return mixed;
+	}
+
+	private static void toFloat(final short[] src, final int srcOffset,
+		final float[] dst, final int dstOffset, final int samples) {
+
+		for (int i = 0; i < samples; i++) {
+			dst[dstOffset + i] = src[srcOffset + i] * SHORT_TO_FLOAT;
+		}
+	}
+}
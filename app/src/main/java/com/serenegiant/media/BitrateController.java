@@ -0,0 +1,126 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: BitrateController.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+/**
+ * Bitrate/frame rate controller driven by back-pressure of encoder and storage.
+ * This uses AIMD(additive increase/multiplicative decrease):
+ * bitrate is decreased quickly while encoded samples are piled up in the muxer queue
+ * or writing to storage is slow, and is increased slowly while the pipeline is healthy.
+ * Frame rate is halved only when bitrate already reached its lower bound.
+ * This class does not depend on Android framework so the control loop can be tuned
+ * by replaying recorded traces on JVM.
+ */
+public class BitrateController {
+
+	/** muxer queue depth that is regarded as congestion */
+	public static final int HIGH_QUEUE_DEPTH = 16;
+	/** muxer queue depth that is regarded as healthy */
+	public static final int LOW_QUEUE_DEPTH = 4;
+	/** write latency that is regarded as congestion */
+	public static final long HIGH_LATENCY_US = 200000L;
+	/** write latency that is regarded as healthy */
+	public static final long LOW_LATENCY_US = 50000L;
+
+	private static final float DECREASE_FACTOR = 0.75f;
+	private static final float INCREASE_RATIO = 0.05f;
+	private static final long DECREASE_INTERVAL_MS = 1000L;
+	private static final long STABLE_PERIOD_MS = 5000L;
+
+	private final int mMinBitrate, mMaxBitrate;
+	private final int mMinFps, mMaxFps;
+	private int mBitrate;
+	private int mFps;
+	private long mLastDecreaseMs = Long.MIN_VALUE / 2;
+	private long mStableSinceMs = -1;
+
+	/**
+	 * Constructor
+	 * @param minBitrate
+	 * @param maxBitrate
+	 * @param initialBitrate
+	 * @param minFps
+	 * @param maxFps initial frame rate
+	 */
+	public BitrateController(final int minBitrate, final int maxBitrate, final int initialBitrate,
+		final int minFps, final int maxFps) {
+
+		if ((minBitrate <= 0) || (minBitrate > maxBitrate))
+			throw new IllegalArgumentException("invalid bitrate range");
+		if ((minFps <= 0) || (minFps > maxFps))
+			throw new IllegalArgumentException("invalid frame rate range");
+		mMinBitrate = minBitrate;
+		mMaxBitrate = maxBitrate;
+		mBitrate = Math.max(minBitrate, Math.min(maxBitrate, initialBitrate));
+		mMinFps = minFps;
+		mMaxFps = maxFps;
+		mFps = maxFps;
+	}
+
+	public int getBitrate() {
+		return mBitrate;
+	}
+
+	public int getFps() {
+		return mFps;
+	}
+
+	/**
+	 * update the controller with recent back-pressure values
+	 * @param nowMs current time
+	 * @param queueDepth maximum number of encoded samples waiting to be written since last update
+	 * @param writeLatencyUs maximum latency of writing to muxer since last update
+	 * @return true if bitrate or frame rate was changed
+	 */
+	public boolean update(final long nowMs, final int queueDepth, final long writeLatencyUs) {
+		final int bitrate = mBitrate;
+		final int fps = mFps;
+		if ((queueDepth >= HIGH_QUEUE_DEPTH) || (writeLatencyUs >= HIGH_LATENCY_US)) {
+			mStableSinceMs = -1;
+			if (nowMs - mLastDecreaseMs >= DECREASE_INTERVAL_MS) {
+				mLastDecreaseMs = nowMs;
+				if (mBitrate > mMinBitrate) {
+					mBitrate = Math.max(mMinBitrate, (int)(mBitrate * DECREASE_FACTOR));
+				} else if (mFps > mMinFps) {
+					mFps = Math.max(mMinFps, mFps / 2);
+				}
+			}
+		} else if ((queueDepth <= LOW_QUEUE_DEPTH) && (writeLatencyUs <= LOW_LATENCY_US)) {
+			if (mStableSinceMs < 0) {
+				mStableSinceMs = nowMs;
+			} else if (nowMs - mStableSinceMs >= STABLE_PERIOD_MS) {
+				// restore frame rate first, then bitrate
+				if (mFps < mMaxFps) {
+					mFps = Math.min(mMaxFps, mFps * 2);
+				} else {
+					mBitrate = Math.min(mMaxBitrate, mBitrate + (int)(mMaxBitrate * INCREASE_RATIO));
+				}
+				mStableSinceMs = nowMs;
+			}
+		} else {
+			// keep current values
+			mStableSinceMs = -1;
+		}
+		return (bitrate != mBitrate) || (fps != mFps);
+	}
+}
@@ -0,0 +1,266 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: CaptureRegion.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+/**
+ * Crop rectangle and output size of screen capturing.
+ * The crop rectangle is in pixels of the captured frame(top-left origin) and
+ * the output size is the size of encoder input, which is the crop size multiplied by the output scale.
+ * Cropping and scaling are done while drawing the captured texture into the encoder input surface
+ * by multiplying the texture matrix with #getTexMatrix and setting the viewport of #getViewportX etc.
+ * The crop rectangle can be changed later with #withCrop without changing the output size,
+ * the new crop rectangle is fitted into the output with black bars when its aspect ratio differs.
+ * This class is immutable and has no GL/Android dependency.
+ */
+public final class CaptureRegion {
+	/**
+	 * viewport is regarded as same as output when the difference is within this,
+	 * to avoid 1 pixel bars caused by rounding of output size
+	 */
+	private static final int VIEWPORT_TOLERANCE = 2;
+
+	private final int mSourceWidth, mSourceHeight;
+	private final int mLeft, mTop, mRight, mBottom;
+	private final int mOutputWidth, mOutputHeight;
+	private final int mViewportX, mViewportY, mViewportWidth, mViewportHeight;
+	/** column-major matrix that maps texture coordinates of whole frame into the crop rectangle */
+	private final float[] mCropMatrix = new float[16];
+
+	/**
+	 * Constructor to capture whole frame without scaling
+	 * @param sourceWidth
+	 * @param sourceHeight
+	 */
+	public CaptureRegion(final int sourceWidth, final int sourceHeight) {
+		this(sourceWidth, sourceHeight, 0, 0, sourceWidth, sourceHeight, 1.0f);
+	}
+
+	/**
+	 * Constructor
+	 * @param sourceWidth width of captured frame
+	 * @param sourceHeight height of captured frame
+	 * @param left crop rectangle, this is clipped with the frame
+	 * @param top
+	 * @param right
+	 * @param bottom
+	 * @param scale output scale, (0, 1]
+	 * @throws IllegalArgumentException when the crop rectangle is empty or the scale is out of range
+	 */
+	public CaptureRegion(final int sourceWidth, final int sourceHeight,
+		final int left, final int top, final int right, final int bottom, final float scale) {
+
+		this(sourceWidth, sourceHeight, left, top, right, bottom,
+			outputSize(clip(right, sourceWidth) - clip(left, sourceWidth), scale),
+			outputSize(clip(bottom, sourceHeight) - clip(top, sourceHeight), scale));
+	}
+
+	private CaptureRegion(final int sourceWidth, final int sourceHeight,
+		final int left, final int top, final int right, final int bottom,
+		final int outputWidth, final int outputHeight) {
+
+		if ((sourceWidth <= 0) || (sourceHeight <= 0))
+			throw new IllegalArgumentException("invalid source size");
+		mSourceWidth = sourceWidth;
+		mSourceHeight = sourceHeight;
+		mLeft = clip(left, sourceWidth);
+		mTop = clip(top, sourceHeight);
+		mRight = clip(right, sourceWidth);
+		mBottom = clip(bottom, sourceHeight);
+		final int cropWidth = mRight - mLeft;
+		final int cropHeight = mBottom - mTop;
+		if ((cropWidth < 2) || (cropHeight < 2))
+			throw new IllegalArgumentException("empty crop rectangle");
+		mOutputWidth = outputWidth;
+		mOutputHeight = outputHeight;
+		// fit the crop rectangle into the output keeping its aspect ratio
+		int vw = outputWidth, vh = outputHeight;
+		if ((long)cropWidth * outputHeight > (long)cropHeight * outputWidth) {
+			vh = (int)(((long)outputWidth * cropHeight + cropWidth / 2) / cropWidth);
+		} else {
+			vw = (int)(((long)outputHeight * cropWidth + cropHeight / 2) / cropHeight);
+		}
+		if (outputWidth - vw <= VIEWPORT_TOLERANCE) vw = outputWidth;
+		if (outputHeight - vh <= VIEWPORT_TOLERANCE) vh = outputHeight;
+		mViewportWidth = vw;
+		mViewportHeight = vh;
+		mViewportX = (outputWidth - vw) / 2;
+		mViewportY = (outputHeight - vh) / 2;
+		// texture coordinates are bottom-up
+		mCropMatrix[0] = cropWidth / (float)sourceWidth;
+		mCropMatrix[5] = cropHeight / (float)sourceHeight;
+		mCropMatrix[10] = 1.0f;
+		mCropMatrix[12] = mLeft / (float)sourceWidth;
+		mCropMatrix[13] = (sourceHeight - mBottom) / (float)sourceHeight;
+		mCropMatrix[15] = 1.0f;
+	}
+
+	/**
+	 * get new region with another crop rectangle and same output size,
+	 * so this can be applied without re-configuring the encoder
+	 * @param left
+	 * @param top
+	 * @param right
+	 * @param bottom
+	 * @return
+	 * @throws IllegalArgumentException when the crop rectangle is empty
+	 */
+	public CaptureRegion withCrop(final int left, final int top, final int right, final int bottom) {
+		return new CaptureRegion(mSourceWidth, mSourceHeight, left, top, right, bottom,
+			mOutputWidth, mOutputHeight);
+	}
+
+	public int getSourceWidth() {
+		return mSourceWidth;
+	}
+
+	public int getSourceHeight() {
+		return mSourceHeight;
+	}
+
+	public int getLeft() {
+		return mLeft;
+	}
+
+	public int getTop() {
+		return mTop;
+	}
+
+	public int getRight() {
+		return mRight;
+	}
+
+	public int getBottom() {
+		return mBottom;
+	}
+
+	/**
+	 * width of encoder input
+	 * @return
+	 */
+	public int getOutputWidth() {
+		return mOutputWidth;
+	}
+
+	/**
+	 * height of encoder input
+	 * @return
+	 */
+	public int getOutputHeight() {
+		return mOutputHeight;
+	}
+
+	public int getViewportX() {
+		return mViewportX;
+	}
+
+	/**
+	 * y of viewport, this is bottom-up same as glViewport
+	 * @return
+	 */
+	public int getViewportY() {
+		return mViewportY;
+	}
+
+	public int getViewportWidth() {
+		return mViewportWidth;
+	}
+
+	public int getViewportHeight() {
+		return mViewportHeight;
+	}
+
+	/**
+	 * whether the viewport covers whole output, otherwise the output should be cleared before drawing
+	 * @return
+	 */
+	public boolean isFullViewport() {
+		return (mViewportWidth == mOutputWidth) && (mViewportHeight == mOutputHeight);
+	}
+
+	/**
+	 * whether whole frame is drawn without cropping
+	 * @return
+	 */
+	public boolean isFullFrame() {
+		return (mLeft == 0) && (mTop == 0) && (mRight == mSourceWidth) && (mBottom == mSourceHeight);
+	}
+
+	/**
+	 * ratio of pixels of the output to pixels of the captured frame
+	 * @return
+	 */
+	public float getPixelRatio() {
+		return (mOutputWidth * (float)mOutputHeight) / (mSourceWidth * (float)mSourceHeight);
+	}
+
+	/**
+	 * multiply texture matrix of SurfaceTexture with the crop matrix
+	 * @param texMatrix column-major 4x4 matrix from SurfaceTexture#getTransformMatrix
+	 * @param texOffset
+	 * @param result column-major 4x4 matrix to draw with, this should not be same array as texMatrix
+	 * @param resultOffset
+	 */
+	public void getTexMatrix(final float[] texMatrix, final int texOffset,
+		final float[] result, final int resultOffset) {
+
+		multiplyMM(result, resultOffset, texMatrix, texOffset, mCropMatrix, 0);
+	}
+
+	/**
+	 * same as android.opengl.Matrix#multiplyMM, result = lhs x rhs
+	 */
+	/*package*/ static void multiplyMM(final float[] result, final int resultOffset,
+		final float[] lhs, final int lhsOffset, final float[] rhs, final int rhsOffset) {
+
+		for (int col = 0; col < 4; col++) {
+			for (int row = 0; row < 4; row++) {
+				float sum = 0;
+				for (int k = 0; k < 4; k++) {
+					sum += lhs[lhsOffset + k * 4 + row] * rhs[rhsOffset + col * 4 + k];
+				}
+				result[resultOffset + col * 4 + row] = sum;
+			}
+		}
+	}
+
+	private static int clip(final int value, final int max) {
+		return Math.max(0, Math.min(max, value));
+	}
+
+	/**
+	 * scaled size rounded to even number, most of encoders do not accept odd size
+	 */
+	private static int outputSize(final int cropSize, final float scale) {
+		if (!(scale > 0) || (scale > 1.0f))
+			throw new IllegalArgumentException("invalid scale:" + scale);
+		return Math.max(2, Math.round(cropSize * scale) & ~1);
+	}
+
+	@Override
+	public String toString() {
+		return "CaptureRegion{source=" + mSourceWidth + "x" + mSourceHeight
+			+ ",crop=(" + mLeft + "," + mTop + ")-(" + mRight + "," + mBottom + ")"
+			+ ",output=" + mOutputWidth + "x" + mOutputHeight
+			+ ",viewport=(" + mViewportX + "," + mViewportY + "," + mViewportWidth + "," + mViewportHeight + ")}";
+	}
+}
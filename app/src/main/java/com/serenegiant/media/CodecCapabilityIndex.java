@@ -0,0 +1,409 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: CodecCapabilityIndex.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Index of encoder capabilities that ranks video encoders for each MIME type,
+ * hardware encoder first, then higher profile/level, then larger resolution x frame rate.
+ * Profiles are compared in the order of their capability, not by their values
+ * that are bit flags(e.g. ConstrainedBaseline is larger than High).
+ * Encoders of same rank keep their order in MediaCodecList(vendor preference).
+ * Audio encoders are not ranked, the first one in MediaCodecList is selected
+ * same as MediaCodec#createEncoderByType.
+ * The index can be written to and read from a text file so that MediaCodecList
+ * does not need to be scanned on every recording, the file is valid only for the build
+ * with the same fingerprint.
+ * This class does not depend on Android framework, see CodecIndexLoader for building it on device.
+ */
+public class CodecCapabilityIndex {
+
+	private static final String HEADER = "CodecCapabilityIndex";
+	private static final int VERSION = 2;
+	private static final String SEPARATOR = "\t";
+	private static final int NUM_FIELDS = 9;
+
+	/**
+	 * AVC profiles of MediaCodecInfo.CodecProfileLevel from lower to higher
+	 */
+	private static final int[] AVC_PROFILE_ORDER = {
+		0x10000,	// AVCProfileConstrainedBaseline
+		0x01,		// AVCProfileBaseline
+		0x04,		// AVCProfileExtended
+		0x02,		// AVCProfileMain
+		0x80000,	// AVCProfileConstrainedHigh
+		0x08,		// AVCProfileHigh
+		0x10,		// AVCProfileHigh10
+		0x20,		// AVCProfileHigh422
+		0x40,		// AVCProfileHigh444
+	};
+	/**
+	 * HEVC profiles of MediaCodecInfo.CodecProfileLevel from lower to higher
+	 */
+	private static final int[] HEVC_PROFILE_ORDER = {
+		0x04,		// HEVCProfileMainStill
+		0x01,		// HEVCProfileMain
+		0x02,		// HEVCProfileMain10
+		0x1000,		// HEVCProfileMain10HDR10
+		0x2000,		// HEVCProfileMain10HDR10Plus
+	};
+
+	/**
+	 * capabilities of one encoder for one MIME type
+	 */
+	public static class Entry {
+		public final String name;
+		public final String mime;
+		public final boolean hardware;
+		/** whether the encoder accepts input from Surface(video only) */
+		public final boolean surfaceInput;
+		/** bit mask of supported profiles(video only), 0 if unknown */
+		public final int profiles;
+		/** largest level value, 0 if unknown */
+		public final int maxLevel;
+		/** 0 if unknown or audio */
+		public final int maxWidth;
+		public final int maxHeight;
+		public final int maxFps;
+		private final int mProfileRank;
+
+		public Entry(final String name, final String mime,
+			final boolean hardware, final boolean surfaceInput,
+			final int profiles, final int maxLevel,
+			final int maxWidth, final int maxHeight, final int maxFps) {
+
+			this.name = name;
+			this.mime = mime;
+			this.hardware = hardware;
+			this.surfaceInput = surfaceInput;
+			this.profiles = profiles;
+			this.maxLevel = maxLevel;
+			this.maxWidth = maxWidth;
+			this.maxHeight = maxHeight;
+			this.maxFps = maxFps;
+			mProfileRank = profileRank(mime, profiles);
+		}
+
+		/**
+		 * whether this encoder supports specific profile, unknown profiles are not checked
+		 * @param profile value of MediaCodecInfo.CodecProfileLevel, 0 to skip check
+		 * @return
+		 */
+		public boolean supportsProfile(final int profile) {
+			return (profile == 0) || (profiles == 0) || ((profiles & profile) != 0);
+		}
+
+		/**
+		 * whether this encoder can encode specific size and frame rate.
+		 * unknown limit and 0 argument are not checked.
+		 * width and height are also checked swapped because most encoders accept portrait size.
+		 * @param width
+		 * @param height
+		 * @param fps
+		 * @return
+		 */
+		public boolean supports(final int width, final int height, final int fps) {
+			if ((fps > 0) && (maxFps > 0) && (fps > maxFps)) {
+				return false;
+			}
+			if ((maxWidth <= 0) || (maxHeight <= 0) || (width <= 0) || (height <= 0)) {
+				return true;
+			}
+			return ((width <= maxWidth) && (height <= maxHeight))
+				|| ((height <= maxWidth) && (width <= maxHeight));
+		}
+
+		private long pixelRate() {
+			return (long)maxWidth * maxHeight * maxFps;
+		}
+
+		@Override
+		public String toString() {
+			return name + SEPARATOR + mime + SEPARATOR + (hardware ? 1 : 0) + SEPARATOR + (surfaceInput ? 1 : 0)
+				+ SEPARATOR + profiles + SEPARATOR + maxLevel
+				+ SEPARATOR + maxWidth + SEPARATOR + maxHeight + SEPARATOR + maxFps;
+		}
+
+		private static Entry parse(final String line) {
+			final String[] v = line.split(SEPARATOR);
+			if (v.length != NUM_FIELDS) {
+				throw new IllegalArgumentException("invalid entry:" + line);
+			}
+			return new Entry(v[0], v[1], "1".equals(v[2]), "1".equals(v[3]),
+				Integer.parseInt(v[4]), Integer.parseInt(v[5]),
+				Integer.parseInt(v[6]), Integer.parseInt(v[7]), Integer.parseInt(v[8]));
+		}
+	}
+
+	/**
+	 * better encoder comes first, Collections#sort is stable so equal encoders keep their order
+	 */
+	private static final Comparator<Entry> RANK = new Comparator<Entry>() {
+		@Override
+		public int compare(final Entry a, final Entry b) {
+			if (a.hardware != b.hardware) {
+				return a.hardware ? -1 : 1;
+			}
+			if (a.mProfileRank != b.mProfileRank) {
+				return a.mProfileRank > b.mProfileRank ? -1 : 1;
+			}
+			if (a.maxLevel != b.maxLevel) {
+				return a.maxLevel > b.maxLevel ? -1 : 1;
+			}
+			final long ra = a.pixelRate(), rb = b.pixelRate();
+			return ra > rb ? -1 : (ra < rb ? 1 : 0);
+		}
+	};
+
+	/**
+	 * rank of the highest supported profile
+	 * @param mime
+	 * @param profiles bit mask of profiles
+	 * @return 0 if the MIME type has no known profile order or no known profile is supported
+	 */
+	/*package*/ static int profileRank(final String mime, final int profiles) {
+		final int[] order;
+		if ("video/avc".equalsIgnoreCase(mime)) {
+			order = AVC_PROFILE_ORDER;
+		} else if ("video/hevc".equalsIgnoreCase(mime)) {
+			order = HEVC_PROFILE_ORDER;
+		} else {
+			return 0;
+		}
+		for (int i = order.length - 1; i >= 0; i--) {
+			if ((profiles & order[i]) != 0) {
+				return i + 1;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * name prefixes of software codecs for devices that can not tell it (before API 29)
+	 */
+	private static final String[] SOFTWARE_PREFIXES = {
+		"OMX.google.", "c2.android.", "c2.google.", "OMX.ffmpeg.", "c2.ffmpeg.",
+	};
+
+	/**
+	 * guess whether the codec is hardware accelerated from its name
+	 * @param name
+	 * @return
+	 */
+	public static boolean isHardwareCodecName(final String name) {
+		for (final String prefix: SOFTWARE_PREFIXES) {
+			if (name.regionMatches(true, 0, prefix, 0, prefix.length())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private final String mFingerprint;
+	/**
+	 * entries in order of MediaCodecList
+	 */
+	private final List<Entry> mListOrder;
+	/**
+	 * entries in order of rank
+	 */
+	private final List<Entry> mEntries;
+
+	/**
+	 * Constructor
+	 * @param fingerprint build fingerprint that the capabilities were taken on
+	 * @param entries in order of MediaCodecList
+	 */
+	public CodecCapabilityIndex(final String fingerprint, final List<Entry> entries) {
+		mFingerprint = fingerprint != null ? fingerprint : "";
+		mListOrder = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+		final List<Entry> sorted = new ArrayList<Entry>(entries);
+		Collections.sort(sorted, RANK);
+		mEntries = Collections.unmodifiableList(sorted);
+	}
+
+	public String getFingerprint() {
+		return mFingerprint;
+	}
+
+	/**
+	 * all entries in order of rank
+	 * @return
+	 */
+	public List<Entry> getEntries() {
+		return mEntries;
+	}
+
+	/**
+	 * select the best video encoder that accepts Surface input and supports specific size and frame rate
+	 * @param mime
+	 * @param width 0 to skip size check
+	 * @param height 0 to skip size check
+	 * @param fps 0 to skip frame rate check
+	 * @return null if no encoder matched
+	 */
+	public Entry selectVideoEncoder(final String mime, final int width, final int height, final int fps) {
+		return selectVideoEncoder(mime, width, height, fps, 0);
+	}
+
+	/**
+	 * select the best video encoder that accepts Surface input and supports specific size, frame rate and profile
+	 * @param mime
+	 * @param width 0 to skip size check
+	 * @param height 0 to skip size check
+	 * @param fps 0 to skip frame rate check
+	 * @param profile value of MediaCodecInfo.CodecProfileLevel, 0 to skip profile check
+	 * @return null if no encoder matched
+	 */
+	public Entry selectVideoEncoder(final String mime, final int width, final int height, final int fps,
+		final int profile) {
+
+		for (final Entry entry: mEntries) {
+			if (entry.surfaceInput && entry.mime.equalsIgnoreCase(mime)
+				&& entry.supports(width, height, fps) && entry.supportsProfile(profile)) {
+
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * select the first audio encoder for specific MIME type in order of MediaCodecList,
+	 * same as MediaCodec#createEncoderByType
+	 * @param mime
+	 * @return null if no encoder matched
+	 */
+	public Entry selectAudioEncoder(final String mime) {
+		for (final Entry entry: mListOrder) {
+			if (entry.mime.equalsIgnoreCase(mime)) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * write the index as text
+	 * @param writer this is not closed
+	 * @throws IOException
+	 */
+	public void write(final Writer writer) throws IOException {
+		writer.write(HEADER + SEPARATOR + VERSION + SEPARATOR + mFingerprint + "\n");
+		// order of MediaCodecList is kept, entries are ranked again when the index is read
+		for (final Entry entry: mListOrder) {
+			writer.write(entry.toString());
+			writer.write('\n');
+		}
+		writer.flush();
+	}
+
+	/**
+	 * write the index to a file, the file is replaced at once
+	 * so that a reader never see partially written index
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(final File file) throws IOException {
+		final File tmp = new File(file.getPath() + ".tmp");
+		final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+		try {
+			write(writer);
+		} finally {
+			writer.close();
+		}
+		if (!tmp.renameTo(file)) {
+			//noinspection ResultOfMethodCallIgnored
+			tmp.delete();
+			throw new IOException("failed to rename " + tmp);
+		}
+	}
+
+	/**
+	 * read the index written by #write
+	 * @param reader this is not closed
+	 * @param fingerprint fingerprint of current build
+	 * @return null if the index was taken on other build or has other version
+	 * @throws IOException
+	 * @throws IllegalArgumentException the index is corrupted
+	 */
+	public static CodecCapabilityIndex read(final Reader reader, final String fingerprint)
+		throws IOException, IllegalArgumentException {
+
+		final BufferedReader in = reader instanceof BufferedReader
+			? (BufferedReader)reader : new BufferedReader(reader);
+		final String header = in.readLine();
+		final String expected = HEADER + SEPARATOR + VERSION + SEPARATOR + (fingerprint != null ? fingerprint : "");
+		if (!expected.equals(header)) {
+			return null;
+		}
+		final List<Entry> entries = new ArrayList<Entry>();
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.length() > 0) {
+				try {
+					entries.add(Entry.parse(line));
+				} catch (final NumberFormatException e) {
+					throw new IllegalArgumentException("invalid entry:" + line, e);
+				}
+			}
+		}
+		return new CodecCapabilityIndex(fingerprint, entries);
+	}
+
+	/**
+	 * read the index from a file
+	 * @param file
+	 * @param fingerprint fingerprint of current build
+	 * @return null if the file does not exist, is corrupted or was written on other build
+	 */
+	public static CodecCapabilityIndex read(final File file, final String fingerprint) {
+		if (!file.isFile()) return null;
+		try {
+			final Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+			try {
+				return read(reader, fingerprint);
+			} finally {
+				reader.close();
+			}
+		} catch (final IOException e) {
+			return null;
+		} catch (final IllegalArgumentException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: CodecIndexLoader.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.content.Context;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Build CodecCapabilityIndex from MediaCodecList and keep it in memory and in cache directory,
+ * so MediaCodecList is scanned only once for each system build.
+ * #init should be called early(e.g. Service#onCreate) to load the index in background,
+ * encoders get it with #getIndex. #getIndex builds the index in memory if #init was not called.
+ */
+public class CodecIndexLoader {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = CodecIndexLoader.class.getSimpleName();
+
+	private static final String CACHE_FILE_NAME = "codec_index.txt";
+
+	private static final Object sSync = new Object();
+	private static File sCacheFile;
+	private static CodecCapabilityIndex sIndex;
+
+	private CodecIndexLoader() {
+		// never be instantiated
+	}
+
+	/**
+	 * set cache directory and start loading the index in background
+	 * @param context
+	 */
+	public static void init(final Context context) {
+		synchronized (sSync) {
+			if (sCacheFile == null) {
+				sCacheFile = new File(context.getCacheDir(), CACHE_FILE_NAME);
+			}
+			if (sIndex != null) return;
+		}
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				getIndex();
+			}
+		}, TAG).start();
+	}
+
+	/**
+	 * get the index, this loads or builds the index if it is not ready yet
+	 * @return
+	 */
+	public static CodecCapabilityIndex getIndex() {
+		synchronized (sSync) {
+			if (sIndex == null) {
+				final long start = System.nanoTime();
+				final String fingerprint = Build.FINGERPRINT;
+				CodecCapabilityIndex index = sCacheFile != null
+					? CodecCapabilityIndex.read(sCacheFile, fingerprint) : null;
+				if (index == null) {
+					index = build(fingerprint);
+					if (sCacheFile != null) {
+						try {
+							index.write(sCacheFile);
+						} catch (final IOException e) {
+							Log.w(TAG, "failed to write codec index", e);
+						}
+					}
+				}
+				sIndex = index;
+				if (DEBUG) Log.v(TAG, "getIndex:" + index.getEntries().size() + " encoders,"
+					+ (System.nanoTime() - start) / 1000 + "us");
+			}
+			return sIndex;
+		}
+	}
+
+	/**
+	 * scan MediaCodecList for encoders
+	 * @param fingerprint
+	 * @return
+	 */
+	/*package*/ static CodecCapabilityIndex build(final String fingerprint) {
+		final List<CodecCapabilityIndex.Entry> entries = new ArrayList<CodecCapabilityIndex.Entry>();
+		final MediaCodecInfo[] infos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+		for (final MediaCodecInfo info: infos) {
+			if (!info.isEncoder()) continue;
+			final String name = info.getName();
+			final boolean hardware = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+				? info.isHardwareAccelerated() : CodecCapabilityIndex.isHardwareCodecName(name);
+			for (final String mime: info.getSupportedTypes()) {
+				final MediaCodecInfo.CodecCapabilities caps;
+				try {
+					caps = info.getCapabilitiesForType(mime);
+				} catch (final IllegalArgumentException e) {
+					Log.w(TAG, "failed to get capabilities of " + name + "/" + mime, e);
+					continue;
+				}
+				entries.add(createEntry(name, mime, hardware, caps));
+			}
+		}
+		return new CodecCapabilityIndex(fingerprint, entries);
+	}
+
+	private static CodecCapabilityIndex.Entry createEntry(final String name, final String mime,
+		final boolean hardware, final MediaCodecInfo.CodecCapabilities caps) {
+
+		boolean surfaceInput = false;
+		if (caps.colorFormats != null) {
+			for (final int colorFormat: caps.colorFormats) {
+				if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface) {
+					surfaceInput = true;
+					break;
+				}
+			}
+		}
+		int profiles = 0, maxLevel = 0;
+		int maxWidth = 0, maxHeight = 0, maxFps = 0;
+		final MediaCodecInfo.VideoCapabilities video = caps.getVideoCapabilities();
+		if (video != null) {
+			// video profiles are bit flags, audio profiles(e.g. AAC object types) are not
+			if (caps.profileLevels != null) {
+				for (final MediaCodecInfo.CodecProfileLevel pl: caps.profileLevels) {
+					profiles |= pl.profile;
+					maxLevel = Math.max(maxLevel, pl.level);
+				}
+			}
+			maxWidth = upper(video.getSupportedWidths());
+			maxHeight = upper(video.getSupportedHeights());
+			maxFps = upper(video.getSupportedFrameRates());
+		}
+		if (DEBUG) Log.v(TAG, "createEntry:" + name + "," + mime + ",hw=" + hardware
+			+ ",surface=" + surfaceInput + "," + maxWidth + "x" + maxHeight + "@" + maxFps);
+		return new CodecCapabilityIndex.Entry(name, mime, hardware, surfaceInput,
+			profiles, maxLevel, maxWidth, maxHeight, maxFps);
+	}
+
+	private static int upper(final Range<Integer> range) {
+		return (range != null) && (range.getUpper() != null) ? range.getUpper() : 0;
+	}
+}
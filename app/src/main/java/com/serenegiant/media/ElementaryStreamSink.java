@@ -0,0 +1,167 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: ElementaryStreamSink.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * MediaSink that writes one track as raw elementary stream,
+ * H.264 as Annex-B byte stream(SPS/PPS are repeated before each key frame)
+ * or AAC with ADTS header, so the output can be played without container.
+ */
+public abstract class ElementaryStreamSink extends MediaSink {
+
+	private static final int ADTS_HEADER_SIZE = 7;
+
+	private final boolean mVideo;
+	private int mTrackIndex = -1;
+	private volatile WritableByteChannel mChannel;
+	private ByteBuffer mCsd0, mCsd1;
+	private final ByteBuffer mAdtsHeader = ByteBuffer.allocate(ADTS_HEADER_SIZE);
+	private int mAacProfile, mFreqIndex, mChannelConfig;
+
+	/**
+	 * Constructor
+	 * @param name
+	 * @param video true: write first video track, false: write first audio track
+	 * @param queueCapacity
+	 */
+	protected ElementaryStreamSink(final String name, final boolean video, final int queueCapacity) {
+		super(name, queueCapacity);
+		mVideo = video;
+	}
+
+	/**
+	 * open output channel, this is called on sink thread
+	 * @return
+	 * @throws IOException
+	 */
+	protected abstract WritableByteChannel openChannel() throws IOException;
+
+	@Override
+	protected void onStart(final MediaFormat[] formats) throws IOException {
+		final String prefix = mVideo ? "video/" : "audio/";
+		for (int i = 0; i < formats.length; i++) {
+			final String mime = getMime(formats[i]);
+			if ((mime != null) && mime.startsWith(prefix)) {
+				mTrackIndex = i;
+				if (mVideo) {
+					if (!MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime))
+						throw new IOException("unsupported format:" + mime);
+					// duplicate not to change position of buffers that other sinks may use
+					mCsd0 = duplicate(getCodecSpecificData(formats[i], "csd-0"));
+					mCsd1 = duplicate(getCodecSpecificData(formats[i], "csd-1"));
+				} else {
+					if (!mime.startsWith("audio/mp4a"))
+						throw new IOException("unsupported format:" + mime);
+					parseAudioSpecificConfig(getCodecSpecificData(formats[i], "csd-0"));
+				}
+				break;
+			}
+		}
+		if (mTrackIndex < 0)
+			throw new IOException("no " + prefix + " track");
+		mChannel = openChannel();
+	}
+
+	@Override
+	protected void onSample(final int trackIndex, final ByteBuffer buf, final int size,
+		final long presentationTimeUs, final int flags) throws IOException {
+
+		if ((trackIndex != mTrackIndex) || (size <= 0)) return;
+		if (mVideo) {
+			if ((flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+				// repeat parameter sets so that receiver can start decoding from any key frame
+				writeFully(mCsd0);
+				writeFully(mCsd1);
+			}
+		} else {
+			final int frameLength = size + ADTS_HEADER_SIZE;
+			mAdtsHeader.clear();
+			mAdtsHeader.put((byte)0xff);
+			mAdtsHeader.put((byte)0xf1);	// MPEG-4, layer 0, no CRC
+			mAdtsHeader.put((byte)(((mAacProfile - 1) << 6) | (mFreqIndex << 2) | (mChannelConfig >> 2)));
+			mAdtsHeader.put((byte)(((mChannelConfig & 3) << 6) | (frameLength >> 11)));
+			mAdtsHeader.put((byte)((frameLength >> 3) & 0xff));
+			mAdtsHeader.put((byte)(((frameLength & 7) << 5) | 0x1f));
+			mAdtsHeader.put((byte)0xfc);
+			mAdtsHeader.flip();
+			writeFully(mAdtsHeader);
+		}
+		writeFully(buf);
+	}
+
+	@Override
+	protected void onStop() {
+		closeChannel();
+	}
+
+	@Override
+	protected boolean onAbort() {
+		closeChannel();
+		return false;
+	}
+
+	private synchronized void closeChannel() {
+		if (mChannel != null) {
+			try {
+				mChannel.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private void writeFully(final ByteBuffer buf) throws IOException {
+		if (buf == null) return;
+		buf.rewind();
+		while (buf.hasRemaining()) {
+			mChannel.write(buf);
+		}
+	}
+
+	private static ByteBuffer duplicate(final ByteBuffer buf) {
+		return buf != null ? buf.duplicate() : null;
+	}
+
+	/**
+	 * get parameters of ADTS header from AudioSpecificConfig
+	 * @param asc
+	 * @throws IOException
+	 */
+	private void parseAudioSpecificConfig(final ByteBuffer asc) throws IOException {
+		if ((asc == null) || (asc.limit() < 2))
+			throw new IOException("no AudioSpecificConfig");
+		final int b0 = asc.get(0) & 0xff;
+		final int b1 = asc.get(1) & 0xff;
+		mAacProfile = b0 >> 3;
+		mFreqIndex = ((b0 & 0x07) << 1) | (b1 >> 7);
+		mChannelConfig = (b1 >> 3) & 0x0f;
+	}
+}
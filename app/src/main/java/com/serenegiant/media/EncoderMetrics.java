@@ -0,0 +1,375 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: EncoderMetrics.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics of encoding pipeline of a recording session.
+ * All record methods are lock-free and allocation-free so they can be called on every frame.
+ * Values are read with #snapshot and optionally dumped periodically to logcat or a file.
+ */
+public class EncoderMetrics {
+	private static final String TAG = EncoderMetrics.class.getSimpleName();
+
+	/**
+	 * maximum number of tracks that per-track values are recorded
+	 */
+	public static final int MAX_TRACKS = 8;
+
+	// latency stages
+	/** frame available on SurfaceTexture -> drawn to encoder input surface */
+	public static final int STAGE_DRAW = 0;
+	/** input to MediaCodec -> encoded output */
+	public static final int STAGE_ENCODE = 1;
+	/** encoded output queued -> written to muxer */
+	public static final int STAGE_WRITE = 2;
+	private static final int NUM_STAGES = 3;
+	private static final String[] STAGE_NAMES = {"draw", "encode", "write"};
+
+	/**
+	 * latency histogram with power of 2 buckets in micro seconds
+	 */
+	public static final class Histogram {
+		private static final int NUM_BUCKETS = 32;
+		private final AtomicLongArray mBuckets = new AtomicLongArray(NUM_BUCKETS);
+		private final AtomicLong mCount = new AtomicLong();
+		private final AtomicLong mSum = new AtomicLong();
+		private final AtomicLong mMax = new AtomicLong();
+
+		public void record(final long valueUs) {
+			final long v = valueUs > 0 ? valueUs : 0;
+			final int ix = Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(v));
+			mBuckets.incrementAndGet(ix);
+			mCount.incrementAndGet();
+			mSum.addAndGet(v);
+			long max;
+			while ((max = mMax.get()) < v) {
+				if (mMax.compareAndSet(max, v)) break;
+			}
+		}
+
+		public long count() {
+			return mCount.get();
+		}
+
+		public long mean() {
+			final long n = mCount.get();
+			return n > 0 ? mSum.get() / n : 0;
+		}
+
+		public long max() {
+			return mMax.get();
+		}
+
+		/**
+		 * estimate percentile as upper bound of bucket
+		 * @param percent [0, 100]
+		 * @return
+		 */
+		public long percentile(final double percent) {
+			final long n = mCount.get();
+			if (n <= 0) return 0;
+			final long target = (long)Math.ceil(n * percent / 100.0);
+			long acc = 0;
+			for (int i = 0; i < NUM_BUCKETS; i++) {
+				acc += mBuckets.get(i);
+				if (acc >= target) {
+					return Math.min(i > 0 ? (1L << i) - 1 : 0, mMax.get());
+				}
+			}
+			return mMax.get();
+		}
+
+		public void reset() {
+			for (int i = 0; i < NUM_BUCKETS; i++) {
+				mBuckets.set(i, 0);
+			}
+			mCount.set(0);
+			mSum.set(0);
+			mMax.set(0);
+		}
+	}
+
+	/**
+	 * copy of metrics at a moment
+	 */
+	public static final class Snapshot {
+		public long timeMs;
+		public final long[] latencyCount = new long[NUM_STAGES];
+		public final long[] latencyMeanUs = new long[NUM_STAGES];
+		public final long[] latencyP50Us = new long[NUM_STAGES];
+		public final long[] latencyP99Us = new long[NUM_STAGES];
+		public final long[] latencyMaxUs = new long[NUM_STAGES];
+		public final long[] queueDepth = new long[MAX_TRACKS];
+		public final long[] maxQueueDepth = new long[MAX_TRACKS];
+		public final long[] inputDepth = new long[MAX_TRACKS];
+		public final long[] droppedWhilePaused = new long[MAX_TRACKS];
+		public final long[] droppedOnOverflow = new long[MAX_TRACKS];
+		public final long[] timeToFirstSampleUs = new long[MAX_TRACKS];
+		public long bytesWritten;
+		public long bytesPerSecond;
+
+		@Override
+		public String toString() {
+			final StringBuilder sb = new StringBuilder();
+			sb.append(String.format(Locale.US, "bytes=%d(%d bytes/s)", bytesWritten, bytesPerSecond));
+			for (int i = 0; i < NUM_STAGES; i++) {
+				sb.append(String.format(Locale.US, ",%s[n=%d,mean=%d,p50=%d,p99=%d,max=%d us]",
+					STAGE_NAMES[i], latencyCount[i], latencyMeanUs[i],
+					latencyP50Us[i], latencyP99Us[i], latencyMaxUs[i]));
+			}
+			for (int i = 0; i < MAX_TRACKS; i++) {
+				if ((maxQueueDepth[i] > 0) || (inputDepth[i] > 0) || (droppedWhilePaused[i] > 0)
+					|| (droppedOnOverflow[i] > 0) || (timeToFirstSampleUs[i] > 0)) {
+
+					sb.append(String.format(Locale.US, ",track%d[queue=%d,maxQueue=%d,input=%d,dropped=%d,overflow=%d,first=%d us]",
+						i, queueDepth[i], maxQueueDepth[i], inputDepth[i], droppedWhilePaused[i],
+						droppedOnOverflow[i], timeToFirstSampleUs[i]));
+				}
+			}
+			return sb.toString();
+		}
+	}
+
+	private final Histogram[] mLatencies = new Histogram[NUM_STAGES];
+	private final AtomicLongArray mQueueDepth = new AtomicLongArray(MAX_TRACKS);
+	private final AtomicLongArray mMaxQueueDepth = new AtomicLongArray(MAX_TRACKS);
+	private final AtomicLongArray mInputDepth = new AtomicLongArray(MAX_TRACKS);
+	private final AtomicLongArray mDropped = new AtomicLongArray(MAX_TRACKS);
+	private final AtomicLongArray mOverflow = new AtomicLongArray(MAX_TRACKS);
+	private final AtomicLong mBytesWritten = new AtomicLong();
+	private final AtomicLongArray mWindowMaxLatency = new AtomicLongArray(NUM_STAGES);
+	private final AtomicLong mWindowMaxQueueDepth = new AtomicLong();
+	private final AtomicLong mStartTimeNs = new AtomicLong();
+	private final AtomicLongArray mFirstSampleUs = new AtomicLongArray(MAX_TRACKS);
+	private long mPrevBytes, mPrevTimeMs;
+	private Thread mDumpThread;
+
+	public EncoderMetrics() {
+		for (int i = 0; i < NUM_STAGES; i++) {
+			mLatencies[i] = new Histogram();
+		}
+	}
+
+	public void recordLatency(final int stage, final long latencyUs) {
+		mLatencies[stage].record(latencyUs);
+		long max;
+		while ((max = mWindowMaxLatency.get(stage)) < latencyUs) {
+			if (mWindowMaxLatency.compareAndSet(stage, max, latencyUs)) break;
+		}
+	}
+
+	public Histogram getLatency(final int stage) {
+		return mLatencies[stage];
+	}
+
+	/**
+	 * record number of encoded samples waiting to be written
+	 * @param track
+	 * @param depth
+	 */
+	public void recordQueueDepth(final int track, final int depth) {
+		if ((track < 0) || (track >= MAX_TRACKS)) return;
+		mQueueDepth.set(track, depth);
+		long max;
+		while ((max = mMaxQueueDepth.get(track)) < depth) {
+			if (mMaxQueueDepth.compareAndSet(track, max, depth)) break;
+		}
+		while ((max = mWindowMaxQueueDepth.get()) < depth) {
+			if (mWindowMaxQueueDepth.compareAndSet(max, depth)) break;
+		}
+	}
+
+	/**
+	 * get maximum latency of specific stage since previous call and reset it
+	 * @param stage
+	 * @return
+	 */
+	public long takeWindowMaxLatency(final int stage) {
+		return mWindowMaxLatency.getAndSet(stage, 0);
+	}
+
+	/**
+	 * get maximum queue depth of all tracks since previous call and reset it
+	 * @return
+	 */
+	public int takeWindowMaxQueueDepth() {
+		return (int)mWindowMaxQueueDepth.getAndSet(0);
+	}
+
+	/**
+	 * record number of input buffers that are available to the encoder
+	 * @param track
+	 * @param depth
+	 */
+	public void recordInputDepth(final int track, final int depth) {
+		if ((track < 0) || (track >= MAX_TRACKS)) return;
+		mInputDepth.set(track, depth);
+	}
+
+	/**
+	 * count encoded frame that was discarded while pausing
+	 * @param track
+	 */
+	public void recordDropped(final int track) {
+		if ((track < 0) || (track >= MAX_TRACKS)) return;
+		mDropped.incrementAndGet(track);
+	}
+
+	/**
+	 * count encoded sample that was discarded because the writer could not keep up with the encoder
+	 * @param track
+	 */
+	public void recordOverflow(final int track) {
+		if ((track < 0) || (track >= MAX_TRACKS)) return;
+		mOverflow.incrementAndGet(track);
+	}
+
+	/**
+	 * mark the time that recording was requested,
+	 * time to the first sample of each track is measured from this
+	 * @param startTimeNs System.nanoTime when recording was requested
+	 */
+	public void markStart(final long startTimeNs) {
+		for (int i = 0; i < MAX_TRACKS; i++) {
+			mFirstSampleUs.set(i, 0);
+		}
+		mStartTimeNs.set(startTimeNs);
+	}
+
+	/**
+	 * record the first sample of specific track after #markStart, this is cheap for following samples
+	 * @param track
+	 * @return time from #markStart to the first sample in micro seconds, -1 if this is not the first sample
+	 */
+	public long recordFirstSample(final int track) {
+		if ((track < 0) || (track >= MAX_TRACKS) || (mFirstSampleUs.get(track) != 0)) return -1;
+		final long start = mStartTimeNs.get();
+		if (start == 0) return -1;
+		final long us = Math.max(1, (System.nanoTime() - start) / 1000L);
+		return mFirstSampleUs.compareAndSet(track, 0, us) ? us : -1;
+	}
+
+	/**
+	 * time from #markStart to the first sample of specific track
+	 * @param track
+	 * @return 0 if no sample was written yet
+	 */
+	public long getTimeToFirstSampleUs(final int track) {
+		if ((track < 0) || (track >= MAX_TRACKS)) return 0;
+		return mFirstSampleUs.get(track);
+	}
+
+	public void recordBytesWritten(final int bytes) {
+		mBytesWritten.addAndGet(bytes);
+	}
+
+	/**
+	 * get copy of current metrics, bytes per second is calculated from previous snapshot
+	 * @return
+	 */
+	public synchronized Snapshot snapshot() {
+		final Snapshot result = new Snapshot();
+		result.timeMs = System.currentTimeMillis();
+		for (int i = 0; i < NUM_STAGES; i++) {
+			final Histogram h = mLatencies[i];
+			result.latencyCount[i] = h.count();
+			result.latencyMeanUs[i] = h.mean();
+			result.latencyP50Us[i] = h.percentile(50);
+			result.latencyP99Us[i] = h.percentile(99);
+			result.latencyMaxUs[i] = h.max();
+		}
+		for (int i = 0; i < MAX_TRACKS; i++) {
+			result.queueDepth[i] = mQueueDepth.get(i);
+			result.maxQueueDepth[i] = mMaxQueueDepth.get(i);
+			result.inputDepth[i] = mInputDepth.get(i);
+			result.droppedWhilePaused[i] = mDropped.get(i);
+			result.droppedOnOverflow[i] = mOverflow.get(i);
+			result.timeToFirstSampleUs[i] = mFirstSampleUs.get(i);
+		}
+		result.bytesWritten = mBytesWritten.get();
+		if (mPrevTimeMs > 0 && result.timeMs > mPrevTimeMs) {
+			result.bytesPerSecond = (result.bytesWritten - mPrevBytes) * 1000 / (result.timeMs - mPrevTimeMs);
+		}
+		mPrevBytes = result.bytesWritten;
+		mPrevTimeMs = result.timeMs;
+		return result;
+	}
+
+	/**
+	 * start dumping snapshot periodically
+	 * @param intervalMs
+	 * @param file snapshot is appended to this file, dump to logcat if null
+	 */
+	public synchronized void startDump(final long intervalMs, final File file) {
+		stopDump();
+		mDumpThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for ( ; ; ) {
+					try {
+						Thread.sleep(intervalMs);
+					} catch (final InterruptedException e) {
+						break;
+					}
+					dump(file);
+				}
+			}
+		}, "EncoderMetricsDump");
+		mDumpThread.setDaemon(true);
+		mDumpThread.start();
+	}
+
+	public synchronized void stopDump() {
+		if (mDumpThread != null) {
+			mDumpThread.interrupt();
+			mDumpThread = null;
+		}
+	}
+
+	private void dump(final File file) {
+		final String text = snapshot().toString();
+		if (file == null) {
+			Log.i(TAG, text);
+			return;
+		}
+		try {
+			final FileWriter writer = new FileWriter(file, true);
+			try {
+				writer.write(System.currentTimeMillis() + "," + text + "\n");
+			} finally {
+				writer.close();
+			}
+		} catch (final IOException e) {
+			Log.w(TAG, "failed to dump metrics", e);
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: EncoderScheduler.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of worker threads shared by encoders instead of a dedicated thread for each encoder.
+ * Workers are created on demand and exit after being idle for a while,
+ * so they are reused while recording is started and stopped repeatedly.
+ * Work of each encoder is run as a SerialTask, that is never run on two workers at the same time
+ * and merges signals that come while it is running, so signalling costs only an atomic increment
+ * while the task is already queued or running.
+ * Tasks should not block waiting for other tasks, they should return and be signalled again instead.
+ * Callbacks of MediaCodec in asynchronous mode are also received on one shared thread(#getCallbackLooper)
+ * instead of a thread for each encoder, so they should not block either.
+ * #shutdown does not interrupt anything, it waits until all SerialTasks are closed
+ * (i.e. all encoders were released) and then terminates the workers and the callback thread.
+ */
+public class EncoderScheduler {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = EncoderScheduler.class.getSimpleName();
+
+	private static final long KEEP_ALIVE_SECONDS = 30;
+
+	private static EncoderScheduler sDefault;
+
+	/**
+	 * get shared instance, new instance is created when previous one was shut down
+	 * @return
+	 */
+	public static synchronized EncoderScheduler getDefault() {
+		if ((sDefault == null) || sDefault.isShutdown()) {
+			final int n = Math.max(4, Math.min(8, Runtime.getRuntime().availableProcessors()));
+			sDefault = new EncoderScheduler("EncoderWorker", n);
+		}
+		return sDefault;
+	}
+
+	/**
+	 * shut down shared instance if it exists, workers terminate after running encoders were released
+	 */
+	public static synchronized void shutdownDefault() {
+		if (sDefault != null) {
+			sDefault.shutdown();
+			sDefault = null;
+		}
+	}
+
+	/**
+	 * task that is run on a worker each time #signal is called,
+	 * signals that came while it is running are merged into one more run
+	 */
+	public final class SerialTask {
+		private final Runnable mBody;
+		/** number of signals that are not handled yet, the task is queued or running while this is not zero */
+		private final AtomicInteger mSignals = new AtomicInteger();
+		private volatile boolean mIsClosed;
+
+		private SerialTask(final Runnable body) {
+			mBody = body;
+		}
+
+		/**
+		 * request to run the task, this never blocks
+		 * @return false if the task is already closed
+		 */
+		public boolean signal() {
+			if (mIsClosed) return false;
+			if (mSignals.getAndIncrement() == 0) {
+				try {
+					mExecutor.execute(mRunner);
+				} catch (final RejectedExecutionException e) {
+					// only when the pool was terminated unexpectedly
+					Log.w(TAG, "signal:", e);
+					mSignals.set(0);
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * the task is never run after this, this can be called from the task itself.
+		 * EncoderScheduler is terminated when all tasks were closed after #shutdown
+		 */
+		public void close() {
+			if (!mIsClosed) {
+				mIsClosed = true;
+				onTaskClosed();
+			}
+		}
+
+		private final Runnable mRunner = new Runnable() {
+			@Override
+			public void run() {
+				for ( ; ; ) {
+					final int signals = mSignals.get();
+					if (!mIsClosed) {
+						try {
+							mBody.run();
+						} catch (final RuntimeException e) {
+							// the worker should keep running other tasks
+							Log.w(TAG, "SerialTask:", e);
+						}
+					}
+					if (mSignals.addAndGet(-signals) == 0) {
+						break;
+					}
+				}
+			}
+		};
+	}
+
+	private final String mName;
+	private final ThreadPoolExecutor mExecutor;
+	private final AtomicInteger mOpenTasks = new AtomicInteger();
+	private volatile boolean mRequestShutdown;
+	/**
+	 * thread to receive MediaCodec.Callback of all encoders, this is created on demand
+	 */
+	private HandlerThread mCallbackThread;
+
+	/**
+	 * Constructor
+	 * @param name prefix of worker thread name
+	 * @param maxThreads maximum number of workers
+	 */
+	public EncoderScheduler(final String name, final int maxThreads) {
+		mName = name;
+		mExecutor = new ThreadPoolExecutor(maxThreads, maxThreads,
+			KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), mThreadFactory);
+		mExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * create new SerialTask
+	 * @param body
+	 * @return
+	 * @throws IllegalStateException when this was shut down
+	 */
+	public synchronized SerialTask newSerialTask(final Runnable body) {
+		if (body == null) throw new NullPointerException("body is null");
+		if (mRequestShutdown) throw new IllegalStateException("already shut down");
+		mOpenTasks.incrementAndGet();
+		return new SerialTask(body);
+	}
+
+	/**
+	 * get Looper of the thread that receives MediaCodec.Callback of encoders,
+	 * this is shared by all encoders so callbacks should not block
+	 * @return
+	 * @throws IllegalStateException when this was shut down
+	 */
+	public synchronized Looper getCallbackLooper() {
+		if (mRequestShutdown) throw new IllegalStateException("already shut down");
+		if (mCallbackThread == null) {
+			mCallbackThread = new HandlerThread(mName + "-Callback");
+			mCallbackThread.start();
+		}
+		return mCallbackThread.getLooper();
+	}
+
+	/**
+	 * run a task once on a worker, e.g. preparing encoders in parallel
+	 * @param task
+	 * @return false if this was shut down, the caller should run the task by itself
+	 */
+	public boolean execute(final Runnable task) {
+		if (mRequestShutdown) return false;
+		try {
+			mExecutor.execute(task);
+			return true;
+		} catch (final RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * reject new tasks and terminate workers after all SerialTasks were closed, this never blocks
+	 */
+	public synchronized void shutdown() {
+		if (DEBUG) Log.v(TAG, mName + ":shutdown:openTasks=" + mOpenTasks.get());
+		mRequestShutdown = true;
+		if (mOpenTasks.get() == 0) {
+			terminate();
+		}
+	}
+
+	public boolean isShutdown() {
+		return mRequestShutdown;
+	}
+
+	/**
+	 * wait until all workers terminated after #shutdown
+	 * @param timeoutMs
+	 * @return false if timeout
+	 * @throws InterruptedException
+	 */
+	public boolean awaitTermination(final long timeoutMs) throws InterruptedException {
+		return mExecutor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+	}
+
+	private void onTaskClosed() {
+		if ((mOpenTasks.decrementAndGet() == 0) && mRequestShutdown) {
+			if (DEBUG) Log.v(TAG, mName + ":all tasks closed, terminate workers");
+			terminate();
+		}
+	}
+
+	private synchronized void terminate() {
+		mExecutor.shutdown();
+		if (mCallbackThread != null) {
+			// callbacks that were already posted are handled before quitting
+			mCallbackThread.quitSafely();
+			mCallbackThread = null;
+		}
+	}
+
+	private final ThreadFactory mThreadFactory = new ThreadFactory() {
+		private final AtomicInteger mCount = new AtomicInteger();
+
+		@Override
+		public Thread newThread(final Runnable r) {
+			final Thread thread = new Thread(r, mName + "-" + mCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+}
@@ -0,0 +1,56 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: FileStreamSink.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * ElementaryStreamSink that writes to a file or a named pipe
+ */
+public class FileStreamSink extends ElementaryStreamSink {
+	private static final String TAG = FileStreamSink.class.getSimpleName();
+
+	private final String mPath;
+
+	/**
+	 * Constructor
+	 * @param path e.g. "*.h264" for video, "*.aac" for audio
+	 * @param video
+	 */
+	public FileStreamSink(final String path, final boolean video) {
+		this(path, video, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	public FileStreamSink(final String path, final boolean video, final int queueCapacity) {
+		super(TAG, video, queueCapacity);
+		mPath = path;
+	}
+
+	@Override
+	protected WritableByteChannel openChannel() throws IOException {
+		return new FileOutputStream(mPath).getChannel();
+	}
+}
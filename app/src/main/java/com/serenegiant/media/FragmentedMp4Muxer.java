@@ -0,0 +1,160 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: FragmentedMp4Muxer.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * IMuxer implementation that writes fragmented MP4 with FragmentedMp4Writer.
+ * Every fragment is flushed to storage and recorded in RecordingJournal,
+ * the journal is deleted when recording stopped normally.
+ */
+public class FragmentedMp4Muxer implements MediaMuxerWrapper.IMuxer {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = FragmentedMp4Muxer.class.getSimpleName();
+
+	private final FileOutputStream mOutputStream;
+	private final FileChannel mChannel;
+	private final FragmentedMp4Writer mWriter;
+	private final RecordingJournal mJournal;
+
+	/**
+	 * Constructor
+	 * @param outputPath
+	 * @param fragmentDurationMs duration of each moof/mdat fragment
+	 * @throws IOException
+	 */
+	public FragmentedMp4Muxer(final String outputPath, final long fragmentDurationMs) throws IOException {
+		mOutputStream = new FileOutputStream(outputPath);
+		try {
+			mChannel = mOutputStream.getChannel();
+			mWriter = new FragmentedMp4Writer(mChannel, fragmentDurationMs * 1000L);
+			mJournal = new RecordingJournal(RecordingJournal.getJournalFile(outputPath));
+		} catch (final IOException e) {
+			// output file is not released by the caller when this throws
+			mOutputStream.close();
+			throw e;
+		} catch (final RuntimeException e) {
+			mOutputStream.close();
+			throw e;
+		}
+		mWriter.setFragmentListener(mFragmentListener);
+	}
+
+	private final FragmentedMp4Writer.FragmentListener mFragmentListener
+		= new FragmentedMp4Writer.FragmentListener() {
+		@Override
+		public void onFragmentWritten(final int sequenceNumber, final long endOffset, final long endTimeUs) throws IOException {
+			// journal record should not precede the fragment data on storage
+			mChannel.force(false);
+			mJournal.append(sequenceNumber, endOffset, endTimeUs);
+		}
+	};
+
+	/**
+	 * recover unfinished recordings in specific directory
+	 * @param dir
+	 * @return number of recovered files
+	 */
+	public static int recover(final File dir) {
+		final int result = RecordingJournal.recoverAll(dir);
+		if (DEBUG) Log.v(TAG, "recover:" + result + " files recovered");
+		return result;
+	}
+
+	@Override
+	public int addTrack(final MediaFormat format) {
+		if (DEBUG) Log.v(TAG, "addTrack:" + format);
+		final String mime = format.getString(MediaFormat.KEY_MIME);
+		if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime)) {
+			return mWriter.addVideoTrack(
+				format.getInteger(MediaFormat.KEY_WIDTH),
+				format.getInteger(MediaFormat.KEY_HEIGHT),
+				toArray(format.getByteBuffer("csd-0")),
+				toArray(format.getByteBuffer("csd-1")));
+		} else if ((mime != null) && mime.startsWith("audio/mp4a")) {
+			return mWriter.addAudioTrack(
+				format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+				format.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+				toArray(format.getByteBuffer("csd-0")));
+		}
+		throw new IllegalArgumentException("unsupported format:" + mime);
+	}
+
+	@Override
+	public void start() {
+		try {
+			mWriter.start();
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public void stop() {
+		try {
+			mWriter.stop();
+			mJournal.delete();
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public void release() {
+		try {
+			mOutputStream.close();
+		} catch (final IOException e) {
+			Log.w(TAG, e);
+		}
+		mJournal.close();
+	}
+
+	@Override
+	public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+		try {
+			mWriter.writeSample(trackIndex, byteBuf, bufferInfo.offset, bufferInfo.size,
+				bufferInfo.presentationTimeUs,
+				(bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] toArray(final ByteBuffer buf) {
+		if (buf == null) return null;
+		final ByteBuffer dup = buf.duplicate();
+		dup.rewind();
+		final byte[] result = new byte[dup.remaining()];
+		dup.get(result);
+		return result;
+	}
+}
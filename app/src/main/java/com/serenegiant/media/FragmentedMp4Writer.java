@@ -0,0 +1,642 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: FragmentedMp4Writer.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming writer of fragmented MP4(ISO BMFF, ftyp/moov followed by moof/mdat pairs)
+ * for H.264 video and AAC audio. This class does not depend on Android framework.
+ * ftyp and moov(without any sample table) are written on #start
+ * and every fragment is appended to the FileChannel when it is flushed,
+ * so the file is playable up to the last flushed fragment even if the process dies.
+ * All methods should be called from the same thread.
+ */
+public class FragmentedMp4Writer {
+
+	private static final int TYPE_VIDEO = 1;
+	private static final int TYPE_AUDIO = 2;
+	private static final int VIDEO_TIMESCALE = 90000;
+	/**
+	 * fragment is flushed regardless of keyframe when pending data exceed this size
+	 */
+	private static final int MAX_FRAGMENT_BYTES = 8 * 1024 * 1024;
+
+	private static final int SAMPLE_FLAGS_SYNC = 0x02000000;		// sample_depends_on=2
+	private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;	// sample_depends_on=1, sample_is_non_sync_sample=1
+
+	/**
+	 * listener to be notified when a fragment is completely written to the FileChannel
+	 */
+	public interface FragmentListener {
+		/**
+		 * @param sequenceNumber sequence number of the fragment
+		 * @param endOffset file offset just after the fragment
+		 * @param endTimeUs presentation time of the last sample in the fragment
+		 * @throws IOException
+		 */
+		public void onFragmentWritten(int sequenceNumber, long endOffset, long endTimeUs) throws IOException;
+	}
+
+	private static final class Track {
+		private final int type;
+		private final int trackId;
+		private final int timescale;
+		private final int width, height;
+		private final int sampleRate, channelCount;
+		private final byte[] sps, pps, audioSpecificConfig;
+		private final long defaultDuration;
+		// samples of current fragment
+		private ByteBuffer payload = ByteBuffer.allocateDirect(64 * 1024);
+		private int sampleCount;
+		private int[] sizes = new int[64];
+		private int[] flags = new int[64];
+		private long[] times = new long[64];
+		private long lastDuration;
+		/**
+		 * decode time of next sample that is written, i.e. sum of durations of all written samples.
+		 * baseMediaDecodeTime of tfdt is this value so that the timeline has no gap or overlap
+		 * even if presentation times jump, e.g. when a sample was dropped.
+		 */
+		private long decodeTime = -1;
+		/**
+		 * time of the sample that follows current fragment if it is already known, otherwise -1
+		 */
+		private long nextTime = -1;
+		/**
+		 * durations of samples of current fragment, calculated on flush
+		 */
+		private int[] durations = new int[64];
+
+		private Track(final int type, final int trackId, final int timescale,
+			final int width, final int height,
+			final int sampleRate, final int channelCount,
+			final byte[] sps, final byte[] pps, final byte[] asc, final long defaultDuration) {
+
+			this.type = type;
+			this.trackId = trackId;
+			this.timescale = timescale;
+			this.width = width;
+			this.height = height;
+			this.sampleRate = sampleRate;
+			this.channelCount = channelCount;
+			this.sps = sps;
+			this.pps = pps;
+			this.audioSpecificConfig = asc;
+			this.defaultDuration = defaultDuration;
+			lastDuration = defaultDuration;
+		}
+
+		private void ensureCapacity(final int bytes) {
+			if (payload.remaining() < bytes) {
+				final ByteBuffer buf = ByteBuffer.allocateDirect(
+					Math.max(payload.capacity() * 2, payload.position() + bytes));
+				payload.flip();
+				buf.put(payload);
+				payload = buf;
+			}
+			if (sampleCount >= sizes.length) {
+				final int n = sizes.length * 2;
+				final int[] _sizes = new int[n];
+				final int[] _flags = new int[n];
+				final long[] _times = new long[n];
+				System.arraycopy(sizes, 0, _sizes, 0, sampleCount);
+				System.arraycopy(flags, 0, _flags, 0, sampleCount);
+				System.arraycopy(times, 0, _times, 0, sampleCount);
+				sizes = _sizes;
+				flags = _flags;
+				times = _times;
+				durations = new int[n];
+			}
+		}
+
+		/**
+		 * calculate durations of samples in current fragment and advance decode time.
+		 * each sample starts at the end of previous one, and its duration reaches to the time of next sample,
+		 * so the error of estimated duration of the last sample is absorbed by the first sample of next fragment.
+		 * @return baseMediaDecodeTime of current fragment
+		 */
+		private long advanceDecodeTime() {
+			if (decodeTime < 0) {
+				decodeTime = Math.max(0, times[0]);
+			}
+			final long base = decodeTime;
+			long t = base;
+			for (int i = 0; i < sampleCount; i++) {
+				final long next;
+				if (i + 1 < sampleCount) {
+					next = times[i + 1];
+					lastDuration = Math.max(1, next - times[i]);
+				} else if (nextTime >= 0) {
+					next = nextTime;
+				} else {
+					// AAC frames have constant duration, video uses previous frame interval
+					next = t + (type == TYPE_AUDIO ? defaultDuration : lastDuration);
+				}
+				final long duration = Math.max(1, next - t);
+				durations[i] = (int)duration;
+				t += duration;
+			}
+			decodeTime = t;
+			return base;
+		}
+
+		private void reset() {
+			payload.clear();
+			sampleCount = 0;
+			nextTime = -1;
+		}
+	}
+
+	private final FileChannel mChannel;
+	private final long mFragmentDurationUs;
+	private final List<Track> mTracks = new ArrayList<Track>();
+	private boolean mIsStarted;
+	private boolean mHasVideo;
+	private int mSequenceNumber;
+	private long mBaseTimeUs = -1;
+	private long mFragmentStartUs = -1;
+	private long mLastTimeUs;
+	private int mPendingBytes;
+	private FragmentListener mListener;
+	private ByteBuffer mHeader = ByteBuffer.allocate(4096);
+
+	/**
+	 * Constructor
+	 * @param channel output channel, this class does not close it
+	 * @param fragmentDurationUs duration of each fragment in micro seconds
+	 */
+	public FragmentedMp4Writer(final FileChannel channel, final long fragmentDurationUs) {
+		mChannel = channel;
+		mFragmentDurationUs = fragmentDurationUs;
+	}
+
+	public void setFragmentListener(final FragmentListener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * add H.264 video track
+	 * @param width
+	 * @param height
+	 * @param sps sequence parameter set with or without start code
+	 * @param pps picture parameter set with or without start code
+	 * @return track index
+	 */
+	public int addVideoTrack(final int width, final int height, final byte[] sps, final byte[] pps) {
+		if (mIsStarted) throw new IllegalStateException("already started");
+		final int ix = mTracks.size();
+		mTracks.add(new Track(TYPE_VIDEO, ix + 1, VIDEO_TIMESCALE, width, height, 0, 0,
+			stripStartCode(sps), stripStartCode(pps), null, VIDEO_TIMESCALE / 30));
+		mHasVideo = true;
+		return ix;
+	}
+
+	/**
+	 * add AAC audio track
+	 * @param sampleRate
+	 * @param channelCount
+	 * @param audioSpecificConfig
+	 * @return track index
+	 */
+	public int addAudioTrack(final int sampleRate, final int channelCount, final byte[] audioSpecificConfig) {
+		if (mIsStarted) throw new IllegalStateException("already started");
+		final int ix = mTracks.size();
+		mTracks.add(new Track(TYPE_AUDIO, ix + 1, sampleRate, 0, 0, sampleRate, channelCount,
+			null, null, audioSpecificConfig, 1024));
+		return ix;
+	}
+
+	/**
+	 * write ftyp and moov boxes
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		if (mIsStarted) throw new IllegalStateException("already started");
+		final ByteBuffer buf = ByteBuffer.allocate(4096);
+		writeFtyp(buf);
+		writeMoov(buf);
+		buf.flip();
+		write(buf);
+		mIsStarted = true;
+	}
+
+	/**
+	 * append a sample to current fragment, fragment is flushed when its duration exceeds
+	 * fragmentDurationUs on next video keyframe(or next sample if there is no video track)
+	 * @param trackIndex
+	 * @param src encoded data, H.264 samples may be in Annex-B or length-prefixed form
+	 * @param offset
+	 * @param size
+	 * @param presentationTimeUs
+	 * @param isSync
+	 * @throws IOException
+	 */
+	public void writeSample(final int trackIndex, final ByteBuffer src, final int offset, final int size,
+		final long presentationTimeUs, final boolean isSync) throws IOException {
+
+		if (!mIsStarted) throw new IllegalStateException("not started");
+		final Track track = mTracks.get(trackIndex);
+		if (mBaseTimeUs < 0) {
+			mBaseTimeUs = presentationTimeUs;
+		}
+		if (mFragmentStartUs < 0) {
+			mFragmentStartUs = presentationTimeUs;
+		}
+		final boolean canCut = !mHasVideo || ((track.type == TYPE_VIDEO) && isSync);
+		final long time = (presentationTimeUs - mBaseTimeUs) * track.timescale / 1000000L;
+		if ((mPendingBytes > 0)
+			&& ((canCut && (presentationTimeUs - mFragmentStartUs >= mFragmentDurationUs))
+				|| (mPendingBytes >= MAX_FRAGMENT_BYTES))) {
+
+			// duration of the last sample of this track is known from this sample
+			track.nextTime = time;
+			flush();
+			mFragmentStartUs = presentationTimeUs;
+		}
+		// NAL length prefix may need 1 byte per start code more than the original
+		track.ensureCapacity(size + size / 3 + 4);
+		final int start = track.payload.position();
+		if (track.type == TYPE_VIDEO) {
+			writeAvcSample(src, offset, size, track.payload);
+		} else {
+			final ByteBuffer dup = src.duplicate();
+			dup.limit(offset + size).position(offset);
+			track.payload.put(dup);
+		}
+		final int written = track.payload.position() - start;
+		final int n = track.sampleCount++;
+		track.sizes[n] = written;
+		track.flags[n] = isSync || (track.type != TYPE_VIDEO) ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC;
+		track.times[n] = time;
+		mPendingBytes += written;
+		if (presentationTimeUs > mLastTimeUs) {
+			mLastTimeUs = presentationTimeUs;
+		}
+	}
+
+	/**
+	 * write pending samples as a moof/mdat fragment
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		if (!mIsStarted || (mPendingBytes <= 0)) return;
+		int samples = 0;
+		for (final Track track: mTracks) {
+			samples += track.sampleCount;
+		}
+		final int required = 256 + mTracks.size() * 128 + samples * 12;
+		if (mHeader.capacity() < required) {
+			mHeader = ByteBuffer.allocate(required);
+		}
+		final ByteBuffer buf = mHeader;
+		buf.clear();
+		final int moof = beginBox(buf, "moof");
+		final int mfhd = beginFullBox(buf, "mfhd", 0, 0);
+		buf.putInt(++mSequenceNumber);
+		endBox(buf, mfhd);
+		final int[] dataOffsetPos = new int[mTracks.size()];
+		for (int i = 0; i < mTracks.size(); i++) {
+			final Track track = mTracks.get(i);
+			dataOffsetPos[i] = -1;
+			if (track.sampleCount == 0) continue;
+			final int traf = beginBox(buf, "traf");
+			final int tfhd = beginFullBox(buf, "tfhd", 0, 0x020000);	// default-base-is-moof
+			buf.putInt(track.trackId);
+			endBox(buf, tfhd);
+			final int tfdt = beginFullBox(buf, "tfdt", 1, 0);
+			buf.putLong(track.advanceDecodeTime());
+			endBox(buf, tfdt);
+			// data-offset, sample-duration, sample-size and sample-flags are present
+			final int trun = beginFullBox(buf, "trun", 0, 0x000701);
+			buf.putInt(track.sampleCount);
+			dataOffsetPos[i] = buf.position();
+			buf.putInt(0);
+			for (int j = 0; j < track.sampleCount; j++) {
+				buf.putInt(track.durations[j]);
+				buf.putInt(track.sizes[j]);
+				buf.putInt(track.flags[j]);
+			}
+			endBox(buf, trun);
+			endBox(buf, traf);
+		}
+		endBox(buf, moof);
+		// data offsets are relative to the start of moof
+		int dataOffset = buf.position() - moof + 8;
+		for (int i = 0; i < mTracks.size(); i++) {
+			if (dataOffsetPos[i] >= 0) {
+				buf.putInt(dataOffsetPos[i], dataOffset);
+				dataOffset += mTracks.get(i).payload.position();
+			}
+		}
+		buf.putInt(mPendingBytes + 8);
+		putType(buf, "mdat");
+		buf.flip();
+		write(buf);
+		for (final Track track: mTracks) {
+			if (track.sampleCount > 0) {
+				track.payload.flip();
+				write(track.payload);
+			}
+			track.reset();
+		}
+		mPendingBytes = 0;
+		if (mListener != null) {
+			mListener.onFragmentWritten(mSequenceNumber, mChannel.position(), mLastTimeUs);
+		}
+	}
+
+	/**
+	 * flush pending samples, the FileChannel is not closed
+	 * @throws IOException
+	 */
+	public void stop() throws IOException {
+		flush();
+		mIsStarted = false;
+	}
+
+	public boolean isStarted() {
+		return mIsStarted;
+	}
+
+	private void write(final ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			mChannel.write(buf);
+		}
+	}
+
+//********************************************************************************
+// box writing helpers
+//********************************************************************************
+	private static void putType(final ByteBuffer buf, final String type) {
+		for (int i = 0; i < 4; i++) {
+			buf.put((byte)type.charAt(i));
+		}
+	}
+
+	private static int beginBox(final ByteBuffer buf, final String type) {
+		final int pos = buf.position();
+		buf.putInt(0);
+		putType(buf, type);
+		return pos;
+	}
+
+	private static int beginFullBox(final ByteBuffer buf, final String type, final int version, final int flags) {
+		final int pos = beginBox(buf, type);
+		buf.putInt((version << 24) | (flags & 0xffffff));
+		return pos;
+	}
+
+	private static void endBox(final ByteBuffer buf, final int pos) {
+		buf.putInt(pos, buf.position() - pos);
+	}
+
+	private static void putMatrix(final ByteBuffer buf) {
+		buf.putInt(0x00010000).putInt(0).putInt(0);
+		buf.putInt(0).putInt(0x00010000).putInt(0);
+		buf.putInt(0).putInt(0).putInt(0x40000000);
+	}
+
+	private static void writeFtyp(final ByteBuffer buf) {
+		final int ftyp = beginBox(buf, "ftyp");
+		putType(buf, "iso6");
+		buf.putInt(0);
+		putType(buf, "iso6");
+		putType(buf, "isom");
+		putType(buf, "avc1");
+		putType(buf, "mp41");
+		endBox(buf, ftyp);
+	}
+
+	private void writeMoov(final ByteBuffer buf) {
+		final int moov = beginBox(buf, "moov");
+		final int mvhd = beginFullBox(buf, "mvhd", 0, 0);
+		buf.putInt(0).putInt(0);			// creation/modification time
+		buf.putInt(1000).putInt(0);		// timescale, duration
+		buf.putInt(0x00010000);			// rate
+		buf.putShort((short)0x0100);	// volume
+		buf.putShort((short)0).putInt(0).putInt(0);
+		putMatrix(buf);
+		for (int i = 0; i < 6; i++) buf.putInt(0);
+		buf.putInt(mTracks.size() + 1);	// next_track_ID
+		endBox(buf, mvhd);
+		for (final Track track: mTracks) {
+			writeTrak(buf, track);
+		}
+		final int mvex = beginBox(buf, "mvex");
+		for (final Track track: mTracks) {
+			final int trex = beginFullBox(buf, "trex", 0, 0);
+			buf.putInt(track.trackId).putInt(1).putInt(0).putInt(0).putInt(0);
+			endBox(buf, trex);
+		}
+		endBox(buf, mvex);
+		endBox(buf, moov);
+	}
+
+	private static void writeTrak(final ByteBuffer buf, final Track track) {
+		final boolean isVideo = track.type == TYPE_VIDEO;
+		final int trak = beginBox(buf, "trak");
+		final int tkhd = beginFullBox(buf, "tkhd", 0, 0x000003);	// enabled, in movie
+		buf.putInt(0).putInt(0);			// creation/modification time
+		buf.putInt(track.trackId).putInt(0);
+		buf.putInt(0);						// duration
+		buf.putInt(0).putInt(0);
+		buf.putShort((short)0).putShort((short)0);	// layer, alternate_group
+		buf.putShort((short)(isVideo ? 0 : 0x0100)).putShort((short)0);
+		putMatrix(buf);
+		buf.putInt(track.width << 16).putInt(track.height << 16);
+		endBox(buf, tkhd);
+
+		final int mdia = beginBox(buf, "mdia");
+		final int mdhd = beginFullBox(buf, "mdhd", 0, 0);
+		buf.putInt(0).putInt(0);
+		buf.putInt(track.timescale).putInt(0);
+		buf.putShort((short)0x55c4).putShort((short)0);	// 'und'
+		endBox(buf, mdhd);
+		final int hdlr = beginFullBox(buf, "hdlr", 0, 0);
+		buf.putInt(0);
+		putType(buf, isVideo ? "vide" : "soun");
+		buf.putInt(0).putInt(0).putInt(0);
+		final String name = isVideo ? "VideoHandler" : "SoundHandler";
+		for (int i = 0; i < name.length(); i++) buf.put((byte)name.charAt(i));
+		buf.put((byte)0);
+		endBox(buf, hdlr);
+
+		final int minf = beginBox(buf, "minf");
+		if (isVideo) {
+			final int vmhd = beginFullBox(buf, "vmhd", 0, 1);
+			buf.putShort((short)0).putShort((short)0).putShort((short)0).putShort((short)0);
+			endBox(buf, vmhd);
+		} else {
+			final int smhd = beginFullBox(buf, "smhd", 0, 0);
+			buf.putShort((short)0).putShort((short)0);
+			endBox(buf, smhd);
+		}
+		final int dinf = beginBox(buf, "dinf");
+		final int dref = beginFullBox(buf, "dref", 0, 0);
+		buf.putInt(1);
+		final int url = beginFullBox(buf, "url ", 0, 1);	// self-contained
+		endBox(buf, url);
+		endBox(buf, dref);
+		endBox(buf, dinf);
+
+		final int stbl = beginBox(buf, "stbl");
+		final int stsd = beginFullBox(buf, "stsd", 0, 0);
+		buf.putInt(1);
+		if (isVideo) {
+			writeAvc1(buf, track);
+		} else {
+			writeMp4a(buf, track);
+		}
+		endBox(buf, stsd);
+		final int stts = beginFullBox(buf, "stts", 0, 0);
+		buf.putInt(0);
+		endBox(buf, stts);
+		final int stsc = beginFullBox(buf, "stsc", 0, 0);
+		buf.putInt(0);
+		endBox(buf, stsc);
+		final int stsz = beginFullBox(buf, "stsz", 0, 0);
+		buf.putInt(0).putInt(0);
+		endBox(buf, stsz);
+		final int stco = beginFullBox(buf, "stco", 0, 0);
+		buf.putInt(0);
+		endBox(buf, stco);
+		endBox(buf, stbl);
+		endBox(buf, minf);
+		endBox(buf, mdia);
+		endBox(buf, trak);
+	}
+
+	private static void writeAvc1(final ByteBuffer buf, final Track track) {
+		final int avc1 = beginBox(buf, "avc1");
+		buf.putInt(0).putShort((short)0).putShort((short)1);	// reserved, data_reference_index
+		buf.putShort((short)0).putShort((short)0);
+		buf.putInt(0).putInt(0).putInt(0);
+		buf.putShort((short)track.width).putShort((short)track.height);
+		buf.putInt(0x00480000).putInt(0x00480000);	// 72dpi
+		buf.putInt(0);
+		buf.putShort((short)1);						// frame_count
+		for (int i = 0; i < 32; i++) buf.put((byte)0);	// compressorname
+		buf.putShort((short)0x0018).putShort((short)-1);
+		final int avcC = beginBox(buf, "avcC");
+		final byte[] sps = track.sps;
+		buf.put((byte)1);
+		buf.put(sps.length > 3 ? sps[1] : 0);	// profile
+		buf.put(sps.length > 3 ? sps[2] : 0);	// compatibility
+		buf.put(sps.length > 3 ? sps[3] : 0);	// level
+		buf.put((byte)0xff);					// 4 bytes NAL length
+		buf.put((byte)0xe1);					// 1 SPS
+		buf.putShort((short)sps.length).put(sps);
+		buf.put((byte)1);						// 1 PPS
+		buf.putShort((short)track.pps.length).put(track.pps);
+		endBox(buf, avcC);
+		endBox(buf, avc1);
+	}
+
+	private static void writeMp4a(final ByteBuffer buf, final Track track) {
+		final int mp4a = beginBox(buf, "mp4a");
+		buf.putInt(0).putShort((short)0).putShort((short)1);	// reserved, data_reference_index
+		buf.putInt(0).putInt(0);
+		buf.putShort((short)track.channelCount).putShort((short)16);
+		buf.putShort((short)0).putShort((short)0);
+		buf.putInt(track.sampleRate << 16);
+		final byte[] asc = track.audioSpecificConfig != null ? track.audioSpecificConfig : new byte[0];
+		final int esds = beginFullBox(buf, "esds", 0, 0);
+		// ES_Descriptor
+		buf.put((byte)0x03).put((byte)(23 + asc.length));
+		buf.putShort((short)0).put((byte)0);
+		// DecoderConfigDescriptor
+		buf.put((byte)0x04).put((byte)(15 + asc.length));
+		buf.put((byte)0x40);					// MPEG-4 audio
+		buf.put((byte)0x15);					// audio stream
+		buf.put((byte)0).putShort((short)0);	// bufferSizeDB
+		buf.putInt(0).putInt(0);				// max/avg bitrate
+		// DecoderSpecificInfo
+		buf.put((byte)0x05).put((byte)asc.length).put(asc);
+		// SLConfigDescriptor
+		buf.put((byte)0x06).put((byte)1).put((byte)0x02);
+		endBox(buf, esds);
+		endBox(buf, mp4a);
+	}
+
+//********************************************************************************
+// H.264 helpers
+//********************************************************************************
+	/**
+	 * search 3 bytes start code(00 00 01)
+	 * @return position of start code, -1 if not found
+	 */
+	private static int findStartCode(final ByteBuffer buf, final int from, final int end) {
+		for (int i = from; i + 2 < end; i++) {
+			if ((buf.get(i) == 0) && (buf.get(i + 1) == 0) && (buf.get(i + 2) == 1)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * convert Annex-B byte stream to 4 bytes length-prefixed NAL units
+	 */
+	private static void writeAvcSample(final ByteBuffer src, final int offset, final int size, final ByteBuffer dst) {
+		final int end = offset + size;
+		int sc = findStartCode(src, offset, end);
+		if (sc < 0) {
+			// already length-prefixed
+			final ByteBuffer dup = src.duplicate();
+			dup.limit(end).position(offset);
+			dst.put(dup);
+			return;
+		}
+		final ByteBuffer dup = src.duplicate();
+		while (sc >= 0) {
+			final int nalStart = sc + 3;
+			final int next = findStartCode(src, nalStart, end);
+			int nalEnd = next < 0 ? end : next;
+			// remove leading zero of 4 bytes start code and trailing zeros
+			while ((nalEnd > nalStart) && (src.get(nalEnd - 1) == 0)) {
+				nalEnd--;
+			}
+			if (nalEnd > nalStart) {
+				dst.putInt(nalEnd - nalStart);
+				dup.limit(nalEnd).position(nalStart);
+				dst.put(dup);
+			}
+			sc = next;
+		}
+	}
+
+	private static byte[] stripStartCode(final byte[] nal) {
+		if (nal == null) return new byte[0];
+		final ByteBuffer buf = ByteBuffer.wrap(nal);
+		final int sc = findStartCode(buf, 0, nal.length);
+		if ((sc < 0) || (sc > 1)) return nal;
+		final byte[] result = new byte[nal.length - sc - 3];
+		System.arraycopy(nal, sc + 3, result, 0, result.length);
+		return result;
+	}
+}
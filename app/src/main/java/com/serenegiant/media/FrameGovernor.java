@@ -0,0 +1,139 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: FrameGovernor.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+/**
+ * Decide whether the drawing loop should draw a new frame, draw the previous frame again
+ * or skip drawing. New frames are drawn on the slots of FrameScheduler(no faster than its interval)
+ * and the previous frame is drawn again only when nothing was drawn for maximum interval,
+ * so unchanged screen content is not encoded at full frame rate.
+ * This class has no GL/Android dependency, time is taken from the clock of FrameScheduler.
+ * #setMinIntervalNs can be called from any thread, other methods should be called
+ * from the drawing thread.
+ */
+public class FrameGovernor {
+	/** nothing should be drawn now */
+	public static final int SKIP = 0;
+	/** new frame should be drawn */
+	public static final int DRAW = 1;
+	/** previous frame should be drawn again to keep timing */
+	public static final int DRAW_DUPLICATE = 2;
+
+	private final FrameScheduler mScheduler;
+	private final long mMaxIntervalNs;
+	private long mDrawn, mDuplicated;
+
+	/**
+	 * Constructor
+	 * @param scheduler interval of the scheduler is minimum interval of output frames
+	 * @param maxIntervalNs maximum interval of output frames, duplicate frame is drawn after this
+	 */
+	public FrameGovernor(final FrameScheduler scheduler, final long maxIntervalNs) {
+		if (scheduler.getIntervalNs() > maxIntervalNs)
+			throw new IllegalArgumentException("invalid interval");
+		mScheduler = scheduler;
+		mMaxIntervalNs = maxIntervalNs;
+	}
+
+	public FrameScheduler getScheduler() {
+		return mScheduler;
+	}
+
+	/**
+	 * set minimum interval of output frames(inverse of maximum frame rate)
+	 * @param minIntervalNs
+	 */
+	public void setMinIntervalNs(final long minIntervalNs) {
+		mScheduler.setIntervalNs(Math.min(minIntervalNs, mMaxIntervalNs));
+	}
+
+	public long getMinIntervalNs() {
+		return mScheduler.getIntervalNs();
+	}
+
+	public long getMaxIntervalNs() {
+		return mMaxIntervalNs;
+	}
+
+	/**
+	 * time to wait until next action
+	 * @param hasNewFrame whether new frame is available
+	 * @return time to wait in nanoseconds, 0 if #next should be called immediately
+	 */
+	public long getWaitNs(final boolean hasNewFrame) {
+		if (!mScheduler.isStarted()) {
+			// nothing was drawn yet, wait for first frame
+			return hasNewFrame ? 0 : mMaxIntervalNs;
+		}
+		return mScheduler.getWaitNs(deadline(hasNewFrame));
+	}
+
+	/**
+	 * decide what should be done now
+	 * @param hasNewFrame whether new frame is available
+	 * @return one of SKIP, DRAW, DRAW_DUPLICATE
+	 */
+	public int next(final boolean hasNewFrame) {
+		if (!mScheduler.isStarted()) {
+			return hasNewFrame ? DRAW : SKIP;
+		}
+		if (mScheduler.isDue(deadline(hasNewFrame))) {
+			return hasNewFrame ? DRAW : DRAW_DUPLICATE;
+		}
+		return SKIP;
+	}
+
+	/**
+	 * notify that the frame decided by #next was drawn
+	 * @param duplicated
+	 */
+	public void onDrawn(final boolean duplicated) {
+		mScheduler.onFrame();
+		mDrawn++;
+		if (duplicated) {
+			mDuplicated++;
+		}
+	}
+
+	/**
+	 * number of drawn frames including duplicated frames
+	 * @return
+	 */
+	public long getDrawnFrames() {
+		return mDrawn;
+	}
+
+	public long getDuplicatedFrames() {
+		return mDuplicated;
+	}
+
+	public void reset() {
+		mScheduler.reset();
+		mDrawn = mDuplicated = 0;
+	}
+
+	private long deadline(final boolean hasNewFrame) {
+		return hasNewFrame ? mScheduler.getDeadlineNs()
+			: mScheduler.alignToSlot(mScheduler.getLastFrameNs() + mMaxIntervalNs);
+	}
+}
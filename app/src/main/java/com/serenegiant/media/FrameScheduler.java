@@ -0,0 +1,286 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: FrameScheduler.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+/**
+ * Deadline based frame pacing in nanoseconds.
+ * Frame slots are kept on an absolute time grid(phase is decided by the first frame)
+ * so rounding of the interval and late wakeups do not accumulate drift.
+ * Waiting is shortened by the average oversleep of previous waits
+ * and jitter of frames against their slots is collected.
+ * #setIntervalNs can be called from any thread, other methods should be called
+ * from the pacing thread.
+ */
+public class FrameScheduler {
+
+	/**
+	 * time source, this can be replaced for testing
+	 */
+	public interface Clock {
+		public long nanoTime();
+	}
+
+	public static final Clock SYSTEM_CLOCK = new Clock() {
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+	};
+
+	/**
+	 * frame is regarded as on time when it is earlier than its slot within this
+	 */
+	private static final long SLACK_NS = 500000L;
+
+	private final Clock mClock;
+	private volatile long mIntervalNs;
+	/** next frame slot, negative until first frame */
+	private long mDeadlineNs = -1;
+	/** slot of last frame */
+	private long mLastFrameNs = -1;
+	/** average oversleep of timed wait */
+	private long mWakeupMarginNs;
+	/** deadline of last #getWaitNs call */
+	private long mTargetNs;
+	/** whether last wait ended by timeout(not by notify) */
+	private boolean mWokeByDeadline;
+	// jitter statistics of frames that were woken by deadline
+	private long mScheduledFrames;
+	private long mMissedSlots;
+	private long mSumJitterNs;
+	private double mSumSqJitter;
+	private long mMaxJitterNs;
+
+	/**
+	 * Constructor
+	 * @param clock
+	 * @param intervalNs
+	 */
+	public FrameScheduler(final Clock clock, final long intervalNs) {
+		if (intervalNs <= 0) throw new IllegalArgumentException("invalid interval");
+		mClock = clock != null ? clock : SYSTEM_CLOCK;
+		mIntervalNs = intervalNs;
+	}
+
+	public long now() {
+		return mClock.nanoTime();
+	}
+
+	public void setIntervalNs(final long intervalNs) {
+		if (intervalNs > 0) {
+			mIntervalNs = intervalNs;
+		}
+	}
+
+	public long getIntervalNs() {
+		return mIntervalNs;
+	}
+
+	public boolean isStarted() {
+		return mDeadlineNs >= 0;
+	}
+
+	/**
+	 * time of next frame slot
+	 * @return
+	 */
+	public long getDeadlineNs() {
+		return mDeadlineNs;
+	}
+
+	/**
+	 * time of slot that last frame was assigned to
+	 * @return
+	 */
+	public long getLastFrameNs() {
+		return mLastFrameNs;
+	}
+
+	/**
+	 * get first frame slot that is not earlier than specific time
+	 * @param timeNs
+	 * @return
+	 */
+	public long alignToSlot(final long timeNs) {
+		if ((mDeadlineNs < 0) || (timeNs <= mDeadlineNs)) {
+			return mDeadlineNs < 0 ? timeNs : mDeadlineNs;
+		}
+		final long interval = mIntervalNs;
+		final long n = (timeNs - mDeadlineNs + interval - 1) / interval;
+		return mDeadlineNs + n * interval;
+	}
+
+	/**
+	 * whether specific deadline has come
+	 * @param deadlineNs
+	 * @return
+	 */
+	public boolean isDue(final long deadlineNs) {
+		return now() >= deadlineNs - SLACK_NS;
+	}
+
+	/**
+	 * time to wait for specific deadline, compensated with average oversleep
+	 * @param deadlineNs
+	 * @return 0 if the deadline has come(same as #isDue)
+	 */
+	public long getWaitNs(final long deadlineNs) {
+		mTargetNs = deadlineNs;
+		final long remaining = deadlineNs - now();
+		if (remaining <= SLACK_NS) {
+			return 0;
+		}
+		final long wait = remaining - mWakeupMarginNs;
+		// should not return 0 before the deadline not to spin
+		return wait > 0 ? wait : remaining - SLACK_NS;
+	}
+
+	/**
+	 * wait on the monitor of sync object, the caller should hold the monitor.
+	 * this returns early when the object is notified.
+	 * @param sync
+	 * @param waitNs
+	 * @throws InterruptedException
+	 */
+	public void await(final Object sync, final long waitNs) throws InterruptedException {
+		if (waitNs <= 0) {
+			mWokeByDeadline = false;
+			return;
+		}
+		final long wakeupNs = now() + waitNs;
+		sync.wait(waitNs / 1000000L, (int)(waitNs % 1000000L));
+		onWakeup(wakeupNs);
+	}
+
+	/**
+	 * update oversleep estimation after waiting
+	 * @param requestedWakeupNs time that the wait should have ended by timeout
+	 */
+	public void onWakeup(final long requestedWakeupNs) {
+		final long oversleep = now() - requestedWakeupNs;
+		mWokeByDeadline = oversleep >= 0;
+		if (mWokeByDeadline) {
+			long margin = mWakeupMarginNs + (oversleep - mWakeupMarginNs) / 8;
+			margin = Math.max(0, Math.min(mIntervalNs / 2, margin));
+			mWakeupMarginNs = margin;
+		}
+	}
+
+	/**
+	 * notify that a frame was submitted now, this assigns the frame to a slot
+	 * and advances deadline to the next slot
+	 */
+	public void onFrame() {
+		final long now = now();
+		final long interval = mIntervalNs;
+		if (mDeadlineNs < 0) {
+			// first frame decides phase of slots
+			mLastFrameNs = now;
+			mDeadlineNs = now + interval;
+			mWokeByDeadline = false;
+			return;
+		}
+		final long slot;
+		if (now >= mDeadlineNs - SLACK_NS) {
+			slot = mDeadlineNs + (Math.max(0, now + SLACK_NS - mDeadlineNs) / interval) * interval;
+		} else {
+			// earlier than deadline, e.g. interval was shortened
+			slot = now;
+		}
+		if (mWokeByDeadline) {
+			// only frames paced by this scheduler are counted
+			final long jitter = now - mTargetNs;
+			final long abs = Math.abs(jitter);
+			mScheduledFrames++;
+			if (jitter >= interval) {
+				mMissedSlots += jitter / interval;
+			}
+			mSumJitterNs += abs;
+			mSumSqJitter += (double)jitter * jitter;
+			if (abs > mMaxJitterNs) {
+				mMaxJitterNs = abs;
+			}
+		}
+		mWokeByDeadline = false;
+		mLastFrameNs = slot;
+		mDeadlineNs = slot + interval;
+	}
+
+	public long getWakeupMarginNs() {
+		return mWakeupMarginNs;
+	}
+
+	/**
+	 * number of frames that jitter was measured
+	 * @return
+	 */
+	public long getScheduledFrames() {
+		return mScheduledFrames;
+	}
+
+	/**
+	 * number of slots passed over because frames were later than their deadline by whole interval
+	 * @return
+	 */
+	public long getMissedSlots() {
+		return mMissedSlots;
+	}
+
+	/**
+	 * mean of absolute jitter
+	 * @return
+	 */
+	public long getMeanJitterNs() {
+		return mScheduledFrames > 0 ? mSumJitterNs / mScheduledFrames : 0;
+	}
+
+	public long getMaxJitterNs() {
+		return mMaxJitterNs;
+	}
+
+	/**
+	 * root mean square of jitter
+	 * @return
+	 */
+	public long getRmsJitterNs() {
+		return mScheduledFrames > 0 ? (long)Math.sqrt(mSumSqJitter / mScheduledFrames) : 0;
+	}
+
+	public void reset() {
+		mDeadlineNs = mLastFrameNs = -1;
+		mWakeupMarginNs = 0;
+		mWokeByDeadline = false;
+		mScheduledFrames = mMissedSlots = mSumJitterNs = mMaxJitterNs = 0;
+		mSumSqJitter = 0;
+	}
+
+	@Override
+	public String toString() {
+		return "FrameScheduler{frames=" + mScheduledFrames
+			+ ",missed=" + mMissedSlots
+			+ ",meanJitter=" + getMeanJitterNs()
+			+ ",rmsJitter=" + getRmsJitterNs()
+			+ ",maxJitter=" + mMaxJitterNs
+			+ ",wakeupMargin=" + mWakeupMarginNs + " ns}";
+	}
+}
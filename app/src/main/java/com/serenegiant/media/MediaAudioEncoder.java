@@ -26,13 +26,14 @@ import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
+import android.os.Build;
 import android.util.Log;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MediaAudioEncoder extends MediaEncoder {
 	private static final boolean DEBUG = false;	// TODO set false on release
@@ -40,14 +41,39 @@ public class MediaAudioEncoder extends MediaEncoder {
 
 	private static final String MIME_TYPE = "audio/mp4a-latm";
     private static final int SAMPLE_RATE = 44100;	// 44.1[KHz] is only setting guaranteed to be available on all devices.
-    private static final int BIT_RATE = 64000;
+    public static final int BIT_RATE = 64000;
 	public static final int SAMPLES_PER_FRAME = 1024;	// AAC, bytes/frame/channel
 	public static final int FRAMES_PER_BUFFER = 25; 	// AAC, frame/buffer/sec
+	/**
+	 * maximum bytes that are read from AudioRecord into a codec input buffer at once,
+	 * 4 AAC frames(1024 samples/frame) of 16bit mono PCM
+	 */
+	private static final int MAX_INPUT_SIZE = 1024 * 2 * 4;
 
-    private AudioThread mAudioThread = null;
+	/**
+	 * interval of notification from AudioRecord in frames, 1 AAC frame
+	 */
+	private static final int NOTIFICATION_PERIOD = SAMPLES_PER_FRAME;
+
+	/**
+	 * reads audio data and queues them to the codec on the workers shared with other encoders
+	 */
+	private final EncoderScheduler.SerialTask mCaptureTask;
+	private final AudioClock mAudioClock;
+	// following fields are only accessed in mCaptureTask
+	private boolean mInputOpened;
+	private AudioInput mAudioInput;
+	private boolean mInputPaused;
+	/**
+	 * index of input buffer that was dequeued but not filled yet
+	 */
+	private int mInputIndex = -1;
+	private long mInputPtsUs;
 
 	public MediaAudioEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener) {
 		super(muxer, listener);
+		mAudioClock = new AudioClock(SAMPLE_RATE, muxer.getClock());
+		mCaptureTask = newSerialTask(mCaptureRunnable);
 	}
 
 	@Override
@@ -56,23 +82,23 @@ public class MediaAudioEncoder extends MediaEncoder {
         mTrackIndex = -1;
         mMuxerStarted = mIsEOS = false;
         // prepare MediaCodec for AAC encoding of audio data from inernal mic.
-        final MediaCodecInfo audioCodecInfo = selectAudioCodec(MIME_TYPE);
-        if (audioCodecInfo == null) {
+        final CodecCapabilityIndex.Entry audioCodec = CodecIndexLoader.getIndex().selectAudioEncoder(MIME_TYPE);
+        if (audioCodec == null) {
             Log.e(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
             return;
         }
-		if (DEBUG) Log.i(TAG, "selected codec: " + audioCodecInfo.getName());
+		if (DEBUG) Log.i(TAG, "selected codec: " + audioCodec.name);
 
         final MediaFormat audioFormat = MediaFormat.createAudioFormat(MIME_TYPE, SAMPLE_RATE, 1);
 		audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
 		audioFormat.setInteger(MediaFormat.KEY_CHANNEL_MASK, AudioFormat.CHANNEL_IN_MONO);
 		audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
 		audioFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
-//		audioFormat.setLong(MediaFormat.KEY_MAX_INPUT_SIZE, inputFile.length());
+		audioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, MAX_INPUT_SIZE);
 //      audioFormat.setLong(MediaFormat.KEY_DURATION, (long)durationInMs );
 		if (DEBUG) Log.i(TAG, "format: " + audioFormat);
-        mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
-        mMediaCodec.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mMediaCodec = MediaCodec.createByCodecName(audioCodec.name);
+        configureEncoder(audioFormat);
         mMediaCodec.start();
         if (DEBUG) Log.i(TAG, "prepare finishing");
         if (mListener != null) {
@@ -87,19 +113,71 @@ public class MediaAudioEncoder extends MediaEncoder {
     @Override
 	protected void startRecording() {
 		super.startRecording();
-		// create and execute audio capturing thread using internal mic
-		if (mAudioThread == null) {
-	        mAudioThread = new AudioThread();
-			mAudioThread.start();
-		}
+		// AudioRecord is opened and started on mCaptureTask
+		mCaptureTask.signal();
+	}
+
+	@Override
+	void stopRecording() {
+		super.stopRecording();
+		// read remaining audio data and queue EOS
+		mCaptureTask.signal();
+	}
+
+	@Override
+	void pauseRecording() {
+		super.pauseRecording();
+		mCaptureTask.signal();
+	}
+
+	@Override
+	void resumeRecording() {
+		super.resumeRecording();
+		mCaptureTask.signal();
+	}
+
+	/**
+	 * keep sample accurate presentationTimeUs of input data,
+	 * they are stamped by AudioClock in session time that pausing is already removed
+	 */
+	@Override
+	protected long getOutputPTSUs(final MediaCodec.BufferInfo info) {
+		return stampOutputPTSUs(info.presentationTimeUs);
+	}
+
+	/**
+	 * EOS is queued by mCaptureTask on its last input buffer after it finished capturing,
+	 * so no PCM data can be queued after EOS. this just requests it and returns,
+	 * mCaptureTask signals the stop sequence again after EOS was queued.
+	 */
+	@Override
+	protected void signalEndOfInputStream() {
+		mCaptureTask.signal();
 	}
 
 	@Override
     protected void release() {
-		mAudioThread = null;
 		super.release();
+		// mCaptureTask releases AudioRecord and closes itself as the encoder is not capturing anymore
+		mCaptureTask.signal();
     }
 
+	/**
+	 * source of PCM data, this is only replaced for testing
+	 */
+	/*package*/ interface AudioInput {
+		public void startRecording();
+		public void stop();
+		/**
+		 * read PCM data that are already available into the buffer, this never blocks
+		 * @param buf
+		 * @param size
+		 * @return number of bytes read, zero if no data is available or negative error code
+		 */
+		public int read(final ByteBuffer buf, final int size);
+		public void release();
+	}
+
 	private static final int[] AUDIO_SOURCES = new int[] {
 		MediaRecorder.AudioSource.CAMCORDER,
 		MediaRecorder.AudioSource.MIC,
@@ -109,104 +187,261 @@ public class MediaAudioEncoder extends MediaEncoder {
 	};
 
 	/**
-	 * Thread to capture audio data from internal mic as uncompressed 16bit PCM data
-	 * and write them to the MediaCodec encoder
+	 * open AudioRecord of the first available source, this is called on mCaptureTask.
+	 * mCaptureTask is signalled on the shared callback thread each time NOTIFICATION_PERIOD frames were captured.
+	 * @return null if no source is available
+	 */
+	/*package*/ AudioInput openAudioInput() {
+		final int min_buffer_size = AudioRecord.getMinBufferSize(
+			SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO,
+			AudioFormat.ENCODING_PCM_16BIT);
+		int buffer_size = SAMPLES_PER_FRAME * FRAMES_PER_BUFFER;
+		if (buffer_size < min_buffer_size)
+			buffer_size = ((min_buffer_size / SAMPLES_PER_FRAME) + 1) * SAMPLES_PER_FRAME * 2;
+
+		for (final int source : AUDIO_SOURCES) {
+			AudioRecord audioRecord;
+			try {
+				audioRecord = new AudioRecord(
+					source, SAMPLE_RATE,
+					AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, buffer_size);
+				if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+					audioRecord.release();
+					audioRecord = null;
+				}
+			} catch (final Exception e) {
+				audioRecord = null;
+			}
+			if (audioRecord != null) {
+				final AudioRecord record = audioRecord;
+				// bytes that were captured and not read yet, this is only used before API 23
+				final AtomicInteger available = new AtomicInteger();
+				record.setPositionNotificationPeriod(NOTIFICATION_PERIOD);
+				record.setRecordPositionUpdateListener(new AudioRecord.OnRecordPositionUpdateListener() {
+					@Override
+					public void onMarkerReached(final AudioRecord recorder) {
+					}
+
+					@Override
+					public void onPeriodicNotification(final AudioRecord recorder) {
+						available.addAndGet(NOTIFICATION_PERIOD * 2);
+						mCaptureTask.signal();
+					}
+				}, mCallbackHandler);
+				return new AudioInput() {
+					@Override
+					public void startRecording() {
+						available.set(0);
+						record.startRecording();
+					}
+
+					@Override
+					public void stop() {
+						record.stop();
+					}
+
+					@Override
+					public int read(final ByteBuffer buf, final int size) {
+						if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+							return record.read(buf, size, AudioRecord.READ_NON_BLOCKING);
+						}
+						// older AudioRecord#read blocks, read only the data that were notified
+						final int n = Math.min(size, available.get()) & ~1;
+						final int result = n > 0 ? record.read(buf, n) : 0;
+						if (result > 0) {
+							available.addAndGet(-result);
+						}
+						return result;
+					}
+
+					@Override
+					public void release() {
+						record.setRecordPositionUpdateListener(null);
+						record.release();
+					}
+				};
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * capture audio data from internal mic as uncompressed 16bit PCM data
+	 * and write them to the MediaCodec encoder.
+	 * This is run each time AudioRecord notified new data(or on start/pause/resume/stop)
+	 * and reads all available data without blocking, so no thread is dedicated to audio capturing.
+	 * Audio data are read directly into the input buffer of MediaCodec up to MAX_INPUT_SIZE
+	 * and the encoder is signaled once for each input buffer,
+	 * so no intermediate buffer and no allocation is needed while capturing.
+	 * This task is the only one that queues input buffers, including EOS.
 	 */
-    private class AudioThread extends Thread {
-    	@Override
-    	public void run() {
-    		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
-    		try {
-				final int min_buffer_size = AudioRecord.getMinBufferSize(
-					SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO,
-					AudioFormat.ENCODING_PCM_16BIT);
-				int buffer_size = SAMPLES_PER_FRAME * FRAMES_PER_BUFFER;
-				if (buffer_size < min_buffer_size)
-					buffer_size = ((min_buffer_size / SAMPLES_PER_FRAME) + 1) * SAMPLES_PER_FRAME * 2;
-
-				AudioRecord audioRecord = null;
-				for (final int source : AUDIO_SOURCES) {
-					try {
-						audioRecord = new AudioRecord(
-							source, SAMPLE_RATE,
-							AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, buffer_size);
-						if (audioRecord != null) {
-		    	            if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
-		    	            	audioRecord.release();
-		    	            	audioRecord = null;
-		    	            }
+	private final Runnable mCaptureRunnable = new Runnable() {
+		@Override
+		public void run() {
+			if (!mIsCapturing) {
+				// the encoder was released(or never started)
+				finishCapture();
+				return;
+			}
+			final boolean stopping = mRequestStop || mIsFailed;
+			try {
+				if (!mInputOpened) {
+					mInputOpened = true;
+					mAudioInput = openAudioInput();
+					if (mAudioInput != null) {
+						if (DEBUG) Log.v(TAG, "capture:start audio recording");
+						mAudioInput.startRecording();
+					} else {
+						// EOS is queued when stop is requested
+						Log.e(TAG, "failed to initialize AudioRecord");
+					}
+				}
+				if (mIsFailed) {
+					finishCapture();
+					return;
+				}
+				final AudioInput input = mAudioInput;
+				if ((input != null) && !stopping) {
+					if (mRequestPause) {
+						if (!mInputPaused) {
+							// stop capturing instead of encoding and discarding audio data while paused
+							if (DEBUG) Log.v(TAG, "capture:paused");
+							mInputPaused = true;
+							input.stop();
 						}
-					} catch (final Exception e) {
-						audioRecord = null;
+						return;
+					}
+					if (mInputPaused) {
+						if (DEBUG) Log.v(TAG, "capture:resumed");
+						mInputPaused = false;
+						input.startRecording();
+						// presentationTimeUs restarts from the session time when capturing was resumed
+						mAudioClock.reset();
 					}
-					if (audioRecord != null) break;
 				}
-				if (audioRecord != null) {
-		            try {
-						if (mIsCapturing) {
-		    				if (DEBUG) Log.v(TAG, "AudioThread:start audio recording");
-							final ByteBuffer buf = ByteBuffer.allocateDirect(SAMPLES_PER_FRAME);
-			                int readBytes;
-			                audioRecord.startRecording();
-			                try {
-					    		for (; mIsCapturing && !mRequestStop && !mIsEOS ;) {
-					    			// read audio data from internal mic
-									buf.clear();
-					    			readBytes = audioRecord.read(buf, SAMPLES_PER_FRAME);
-					    			if (readBytes > 0) {
-					    			    // set audio data to encoder
-										buf.position(readBytes);
-										buf.flip();
-					    				encode(buf, readBytes, getPTSUs());
-					    				frameAvailableSoon();
-					    			}
-					    		}
-			    				frameAvailableSoon();
-			                } finally {
-			                	audioRecord.stop();
-			                }
-		            	}
-		            } finally {
-		            	audioRecord.release();
-		            }
-				} else {
-					Log.e(TAG, "failed to initialize AudioRecord");
+				if (stopping && ((input == null) || mInputPaused)) {
+					// e.g. recording was stopped while pausing
+					if (!queueEndOfStream(mAudioClock.nextUs())) {
+						retryLater();
+						return;
+					}
+				} else if (!capture(input)) {
+					// wait for next notification
+					return;
 				}
-    		} catch (final Exception e) {
-    			Log.e(TAG, "AudioThread#run", e);
-    		}
-			if (DEBUG) Log.v(TAG, "AudioThread:finished");
-    	}
-    }
+			} catch (final RuntimeException e) {
+				Log.e(TAG, "capture:", e);
+			}
+			if (stopping) {
+				finishCapture();
+			}
+		}
+	};
 
-    /**
-     * select the first codec that match a specific MIME type
-     * @param mimeType
-     * @return
-     */
-    private static final MediaCodecInfo selectAudioCodec(final String mimeType) {
-    	if (DEBUG) Log.v(TAG, "selectAudioCodec:");
-
-    	MediaCodecInfo result = null;
-    	// get the list of available codecs
-        final int numCodecs = MediaCodecList.getCodecCount();
-LOOP:	for (int i = 0; i < numCodecs; i++) {
-        	final MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-            if (!codecInfo.isEncoder()) {	// skipp decoder
-                continue;
-            }
-            final String[] types = codecInfo.getSupportedTypes();
-            for (int j = 0; j < types.length; j++) {
-            	if (DEBUG) Log.i(TAG, "supportedType:" + codecInfo.getName() + ",MIME=" + types[j]);
-                if (types[j].equalsIgnoreCase(mimeType)) {
-                	if (result == null) {
-                		result = codecInfo;
-               			break LOOP;
-                	}
-                }
-            }
-        }
-   		return result;
-    }
+	/**
+	 * read available audio data and queue them to the codec
+	 * @param input
+	 * @return true if EOS was queued
+	 */
+	private boolean capture(final AudioInput input) {
+		for (; mIsCapturing && !mIsEOS ;) {
+			if (mInputIndex < 0) {
+				mInputIndex = dequeueInputBuffer(0);
+				if (mInputIndex < 0) {
+					// wait for input buffer of encoder
+					retryLater();
+					return false;
+				}
+			}
+			final ByteBuffer buf = getInputBuffer(mInputIndex);
+			buf.clear();
+			// 16bit PCM, read whole samples only
+			final int size = Math.min(buf.capacity(), MAX_INPUT_SIZE) & ~1;
+			// read audio data from internal mic into the input buffer
+			final int readBytes = input.read(buf, size);
+			// stop may be requested while reading, then this buffer is the last one
+			final boolean eos = mRequestStop || !mIsCapturing;
+			if ((readBytes <= 0) && !eos) {
+				// no data available now, keep the input buffer for next time
+				return false;
+			}
+			// presentationTimeUs is calculated from number of captured samples
+			// instead of the time when #read returned to avoid jitter
+			// empty buffer with EOS follows the last audio data
+			mInputPtsUs = readBytes > 0 ? mAudioClock.advance(readBytes / 2) : mAudioClock.nextUs();
+			if (eos) {
+				mIsEOS = true;
+				if (DEBUG) Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM with last audio data");
+			}
+			final int ix = mInputIndex;
+			mInputIndex = -1;
+			// set audio data to encoder, zero length buffer is also queued with EOS
+			queueInputBuffer(ix, readBytes > 0 ? readBytes : 0, mInputPtsUs,
+				eos ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+			if (eos) {
+				return true;
+			}
+			frameAvailableSoon();
+			if (readBytes < size) {
+				// all available data were read
+				return false;
+			}
+		}
+		return mIsEOS;
+	}
+
+	/**
+	 * queue empty input buffer with EOS flag, e.g. when recording was stopped while pausing
+	 * @param presentationTimeUs
+	 * @return false if no input buffer is available now
+	 */
+	private boolean queueEndOfStream(final long presentationTimeUs) {
+		if (mIsEOS) return true;
+		final int ix = mInputIndex >= 0 ? mInputIndex : dequeueInputBuffer(0);
+		if (ix < 0) return false;
+		mInputIndex = -1;
+		mIsEOS = true;
+		if (DEBUG) Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM");
+		queueInputBuffer(ix, 0, presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+		return true;
+	}
+
+	private final Runnable mRetryCapture = new Runnable() {
+		@Override
+		public void run() {
+			mCaptureTask.signal();
+		}
+	};
+
+	/**
+	 * run mCaptureTask again after a while when no input buffer of the codec is available,
+	 * AudioRecord notifies new data periodically but EOS may be waiting for the codec
+	 */
+	private void retryLater() {
+		mCallbackHandler.removeCallbacks(mRetryCapture);
+		mCallbackHandler.postDelayed(mRetryCapture, TIMEOUT_USEC / 1000);
+	}
+
+	/**
+	 * release AudioRecord and close mCaptureTask, then let the stop sequence know EOS was queued
+	 */
+	private void finishCapture() {
+		mCallbackHandler.removeCallbacks(mRetryCapture);
+		final AudioInput input = mAudioInput;
+		mAudioInput = null;
+		if (input != null) {
+			try {
+				if (!mInputPaused) {
+					input.stop();
+				}
+			} catch (final Exception e) {
+				Log.e(TAG, "finishCapture:", e);
+			}
+			input.release();
+		}
+		mCaptureTask.close();
+		if (DEBUG) Log.v(TAG, "capture finished");
+		signalEncoderTask();
+	}
 
 }
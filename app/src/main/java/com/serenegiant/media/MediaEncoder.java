@@ -24,23 +24,32 @@ package com.serenegiant.media;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
 import android.util.Log;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 
-public abstract class MediaEncoder implements Runnable {
+public abstract class MediaEncoder {
 	private static final boolean DEBUG = false;	// TODO set false on release
 	private static final String TAG = MediaEncoder.class.getSimpleName();
 
 	protected static final int TIMEOUT_USEC = 10000;	// 10[msec]
+	protected static final long EOS_TIMEOUT_MS = 1000;	// 1[sec]
 	protected static final int MSG_FRAME_AVAILABLE = 1;
 	protected static final int MSG_STOP_RECORDING = 9;
 
 	public interface MediaEncoderListener {
 		public void onPrepared(MediaEncoder encoder);
 		public void onStopped(MediaEncoder encoder);
+		/**
+		 * encoder failed while recording and is stopped, onStopped is also called after this
+		 * @param encoder
+		 * @param e
+		 */
+		public void onError(MediaEncoder encoder, Exception e);
 	}
 
 	protected final Object mSync = new Object();
@@ -49,9 +58,21 @@ public abstract class MediaEncoder implements Runnable {
 	 */
     protected volatile boolean mIsCapturing;
 	/**
-	 * Flag that indicate the frame data will be available soon.
+	 * workers and callback thread that are shared with other encoders
 	 */
-	private int mRequestDrain;
+	private final EncoderScheduler mScheduler;
+	/**
+	 * drain and stop sequence of this encoder on shared worker threads
+	 */
+	private final EncoderScheduler.SerialTask mEncoderTask;
+	/**
+	 * Flag that indicate EOS was already requested by the stop sequence, this is only accessed in mEncoderTask
+	 */
+	private boolean mEndOfInputSignalled;
+	/**
+	 * time limit to wait for EOS after it was requested, this is only accessed in mEncoderTask
+	 */
+	private long mEndOfStreamDeadlineNs;
     /**
      * Flag to request stop capturing
      */
@@ -59,11 +80,16 @@ public abstract class MediaEncoder implements Runnable {
     /**
      * Flag that indicate encoder received EOS(End Of Stream)
      */
-    protected boolean mIsEOS;
+    protected volatile boolean mIsEOS;
+    /**
+     * Flag that indicate output with BUFFER_FLAG_END_OF_STREAM came from the codec
+     */
+    private volatile boolean mOutputEOS;
     /**
-     * Flag the indicate the muxer is running
+     * Flag the indicate the track of this encoder was added to the muxer,
+     * the muxer may still wait for other tracks(see #isWaitingMuxer)
      */
-    protected boolean mMuxerStarted;
+    protected volatile boolean mMuxerStarted;
     /**
      * Track Number
      */
@@ -84,26 +110,69 @@ public abstract class MediaEncoder implements Runnable {
     protected final MediaEncoderListener mListener;
 
 	protected volatile boolean mRequestPause;
-	private long mLastPausedTimeUs;
+	/**
+	 * clock of the muxer that is shared with other tracks and timestamps of this track
+	 */
+	private final SessionClock mClock;
+	private final SessionClock.Track mClockTrack;
+	/**
+	 * Flag to request asynchronous mode of MediaCodec if available
+	 */
+	private boolean mRequestAsync = true;
+	/**
+	 * Flag that indicate MediaCodec is running in asynchronous mode(API>=23).
+	 * In that case encoded data are written to muxer on MediaCodec.Callback
+	 * as soon as they are available instead of polling them on #drain.
+	 */
+	protected volatile boolean mIsAsync;
+	/**
+	 * Handler on shared callback thread, this receives MediaCodec.Callback in asynchronous mode
+	 * and sub class can run short work that should not block on this.
+	 */
+	protected final Handler mCallbackHandler;
+	/**
+	 * receives MediaCodec.Callback and writes encoded data in asynchronous mode
+	 */
+	private AsyncCodecPipeline mPipeline;
+	/**
+	 * Flag that indicate the codec failed while recording
+	 */
+	protected volatile boolean mIsFailed;
+	/**
+	 * cached input/output buffers of MediaCodec in synchronous mode
+	 */
+	private ByteBuffer[] mInputBuffers, mOutputBuffers;
 
     public MediaEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener) {
     	if (listener == null) throw new NullPointerException("MediaEncoderListener is null");
     	if (muxer == null) throw new NullPointerException("MediaMuxerWrapper is null");
 		mWeakMuxer = new WeakReference<MediaMuxerWrapper>(muxer);
+		mClock = muxer.getClock();
+		mClockTrack = mClock.newTrack();
 		muxer.addEncoder(this);
 		mListener = listener;
-        synchronized (mSync) {
-            // create BufferInfo here for effectiveness(to reduce GC)
-            mBufferInfo = new MediaCodec.BufferInfo();
-            // wait for starting thread
-            new Thread(this, getClass().getSimpleName()).start();
-            try {
-            	mSync.wait();
-            } catch (final InterruptedException e) {
-            }
-        }
+        // create BufferInfo here for effectiveness(to reduce GC)
+        mBufferInfo = new MediaCodec.BufferInfo();
+        // no thread is started here, encoder runs on a worker only while it has something to do
+        mScheduler = EncoderScheduler.getDefault();
+        mEncoderTask = mScheduler.newSerialTask(mEncoderRunnable);
+        mCallbackHandler = new Handler(mScheduler.getCallbackLooper());
 	}
 
+    /**
+     * enable/disable asynchronous mode of MediaCodec, this should be called before #prepare.
+     * asynchronous mode is only available on API>=23 and is ignored on older devices.
+     * @param async
+     */
+    public void setAsyncMode(final boolean async) {
+    	synchronized (mSync) {
+    		if (mMediaCodec != null) {
+    			throw new IllegalStateException("already prepared");
+    		}
+    		mRequestAsync = async;
+    	}
+    }
+
     public String getOutputPath() {
     	final MediaMuxerWrapper muxer = mWeakMuxer.get();
     	return muxer != null ? muxer.getOutputPath() : null;
@@ -115,65 +184,137 @@ public abstract class MediaEncoder implements Runnable {
      */
     public boolean frameAvailableSoon() {
 //    	if (DEBUG) Log.v(TAG, "frameAvailableSoon");
-        synchronized (mSync) {
-            if (!mIsCapturing || mRequestStop) {
-                return false;
-            }
-            mRequestDrain++;
-            mSync.notifyAll();
+        if (!mIsCapturing || mRequestStop) {
+            return false;
+        }
+        if (!mIsAsync) {
+        	// in asynchronous mode, encoded data are handled on MediaCodec.Callback
+        	// so we need not wake up encoder task.
+        	mEncoderTask.signal();
         }
         return true;
     }
 
     /**
-     * encoding loop on private thread
+     * run drain/stop sequence again, e.g. after sub class queued EOS on its own task.
+     * unlike #frameAvailableSoon this also works while stopping
      */
-	@Override
-	public void run() {
-//		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
-        synchronized (mSync) {
-            mRequestStop = false;
-    		mRequestDrain = 0;
-            mSync.notify();
-        }
-        final boolean isRunning = true;
-        boolean localRequestStop;
-        boolean localRequestDrain;
-        while (isRunning) {
-        	synchronized (mSync) {
-        		localRequestStop = mRequestStop;
-        		localRequestDrain = (mRequestDrain > 0);
-        		if (localRequestDrain)
-        			mRequestDrain--;
-        	}
-	        if (localRequestStop) {
-	           	drain();
-	           	// request stop recording
-	           	signalEndOfInputStream();
+    protected void signalEncoderTask() {
+    	mEncoderTask.signal();
+    }
+
+    /**
+     * create SerialTask on the workers shared with other encoders,
+     * sub class should close it when it is not needed anymore
+     * @param body
+     * @return
+     */
+    protected EncoderScheduler.SerialTask newSerialTask(final Runnable body) {
+    	return mScheduler.newSerialTask(body);
+    }
+
+    /**
+     * the muxer started or gave up waiting for other tracks, this is called from MediaMuxerWrapper.
+     * output that was kept in the codec while waiting is written after this.
+     */
+    /*package*/ void onMuxerReady() {
+    	if (DEBUG) Log.v(TAG, "onMuxerReady:");
+    	final AsyncCodecPipeline pipeline = mPipeline;
+    	if (mIsAsync && (pipeline != null)) {
+    		// held output is passed to the muxer on callback thread to keep order
+    		mCallbackHandler.post(new Runnable() {
+    			@Override
+    			public void run() {
+    				if (pipeline == mPipeline) {
+    					pipeline.releaseOutput();
+    				}
+    			}
+    		});
+    	}
+    	// resume drain/stop sequence that returned while waiting
+    	mEncoderTask.signal();
+    }
+
+    /**
+     * whether the track of this encoder was added and the muxer is still waiting for other tracks.
+     * output is kept in the codec meanwhile instead of blocking the worker/callback thread
+     * @return
+     */
+    private boolean isWaitingMuxer() {
+    	if (!mMuxerStarted) return false;
+    	final MediaMuxerWrapper muxer = mWeakMuxer.get();
+    	return (muxer != null) && muxer.isStartPending();
+    }
+
+    /**
+     * whether nothing is expected from the codec anymore after EOS was requested
+     * @return
+     */
+    private boolean isEndOfStream() {
+    	return mIsFailed || !mIsCapturing
+    		|| (mIsEOS && (mOutputEOS || (mMediaCodec == null)));
+    }
+
+    /**
+     * wake up the stop sequence when EOS did not come in time
+     */
+    private final Runnable mEndOfStreamTimeout = new Runnable() {
+    	@Override
+    	public void run() {
+    		mEncoderTask.signal();
+    	}
+    };
+
+    /**
+     * drain encoded data or stop encoding on a worker thread,
+     * this is run again when frameAvailableSoon/stopRecording/onMuxerReady is called while running.
+     * this returns without blocking while the muxer waits for other tracks
+     * and continues when #onMuxerReady signals again.
+     * the stop sequence does not wait for EOS either, it returns and is signalled again
+     * when EOS came from the codec(or was queued by sub class) or when EOS_TIMEOUT_MS passed.
+     */
+	private final Runnable mEncoderRunnable = new Runnable() {
+		@Override
+		public void run() {
+	        if (mRequestStop) {
+	        	if (!mEndOfInputSignalled) {
+		           	drain();
+		           	if (isWaitingMuxer()) return;
+		           	// request stop recording
+		           	signalEndOfInputStream();
+		           	mEndOfInputSignalled = true;
+		           	mEndOfStreamDeadlineNs = System.nanoTime() + EOS_TIMEOUT_MS * 1000000L;
+		           	mCallbackHandler.postDelayed(mEndOfStreamTimeout, EOS_TIMEOUT_MS);
+	        	}
 	           	// process output data again for EOS signale
 	           	drain();
+	           	if (isWaitingMuxer()) return;
+	           	if (!isEndOfStream()) {
+	           		if (System.nanoTime() - mEndOfStreamDeadlineNs < 0) {
+	           			if (!mIsAsync) {
+	           				// poll output of the codec again after other tasks ran
+	           				mEncoderTask.signal();
+	           			}
+	           			return;
+	           		}
+	           		Log.w(TAG, "timeout while waiting EOS");
+	           	}
+	           	mCallbackHandler.removeCallbacks(mEndOfStreamTimeout);
 	           	// release all related objects
 	           	release();
-	           	break;
-	        }
-	        if (localRequestDrain) {
-	        	drain();
+				if (DEBUG) Log.d(TAG, "Encoder task finished");
+	            mIsCapturing = false;
+	            mEncoderTask.close();
 	        } else {
-	        	synchronized (mSync) {
-		        	try {
-						mSync.wait();
-					} catch (final InterruptedException e) {
-						break;
-					}
+	        	try {
+	        		drain();
+	        	} catch (final RuntimeException e) {
+	        		// e.g. MediaCodec failed in synchronous mode
+	        		handleError(e);
 	        	}
-        	}
-        } // end of while
-		if (DEBUG) Log.d(TAG, "Encoder thread exiting");
-        synchronized (mSync) {
-        	mRequestStop = true;
-            mIsCapturing = false;
-        }
-	}
+	        }
+		}
+	};
 
 	/*
     * preparing method for each sub class
@@ -188,7 +329,6 @@ public abstract class MediaEncoder implements Runnable {
 			mIsCapturing = true;
 			mRequestStop = false;
 			mRequestPause = false;
-			mSync.notifyAll();
 		}
 	}
 
@@ -198,14 +338,15 @@ public abstract class MediaEncoder implements Runnable {
 	/*package*/ void stopRecording() {
 		if (DEBUG) Log.v(TAG, "stopRecording");
 		synchronized (mSync) {
-			if (!mIsCapturing || mRequestStop) {
+			// encoder that is prepared but not started(standby) is also stopped and released here
+			if (mRequestStop) {
 				return;
 			}
 			mRequestStop = true;	// for rejecting newer frame
-			mSync.notifyAll();
-	        // We can not know when the encoding and writing finish.
-	        // so we return immediately after request to avoid delay of caller thread
 		}
+		mEncoderTask.signal();
+        // We can not know when the encoding and writing finish.
+        // so we return immediately after request to avoid delay of caller thread
 	}
 
 	/*package*/ void pauseRecording() {
@@ -214,9 +355,8 @@ public abstract class MediaEncoder implements Runnable {
 			if (!mIsCapturing || mRequestStop) {
 				return;
 			}
+			// session time is paused by MediaMuxerWrapper for all tracks
 			mRequestPause = true;
-			mLastPausedTimeUs = System.nanoTime() / 1000;
-			mSync.notifyAll();
 		}
 	}
 
@@ -226,15 +366,16 @@ public abstract class MediaEncoder implements Runnable {
 			if (!mIsCapturing || mRequestStop) {
 				return;
 			}
-			if (mLastPausedTimeUs != 0) {
-				offsetPTSUs += (System.nanoTime() / 1000 - mLastPausedTimeUs);
-				mLastPausedTimeUs = 0;
-			}
 			mRequestPause = false;
-			mSync.notifyAll();
 		}
 	}
 
+	/**
+	 * request key frame as soon as possible, this is only meaningful for video encoder
+	 */
+	/*package*/ void requestSyncFrame() {
+	}
+
 //********************************************************************************
 //********************************************************************************
     /**
@@ -251,12 +392,20 @@ public abstract class MediaEncoder implements Runnable {
         if (mMediaCodec != null) {
 			try {
 	            mMediaCodec.stop();
+			} catch (final Exception e) {
+				// MediaCodec was not started when prepare failed
+				Log.e(TAG, "failed stopping MediaCodec", e);
+			}
+			try {
 	            mMediaCodec.release();
-	            mMediaCodec = null;
 			} catch (final Exception e) {
 				Log.e(TAG, "failed releasing MediaCodec", e);
 			}
+            mMediaCodec = null;
         }
+        // shared callback thread is quit by EncoderScheduler
+        mPipeline = null;
+        mInputBuffers = mOutputBuffers = null;
         if (mMuxerStarted) {
        		final MediaMuxerWrapper muxer = mWeakMuxer != null ? mWeakMuxer.get() : null;
        		if (muxer != null) {
@@ -270,6 +419,11 @@ public abstract class MediaEncoder implements Runnable {
         mBufferInfo = null;
     }
 
+    /**
+     * send EOS to the encoder, this is called on the encoder task while stopping.
+     * sub class that queues input buffers on its own thread should override this
+     * and queue EOS on that thread instead, otherwise input data can be queued after EOS.
+     */
     protected void signalEndOfInputStream() {
 		if (DEBUG) Log.d(TAG, "sending EOS to encoder");
         // signalEndOfInputStream is only avairable for video encoding with surface
@@ -285,12 +439,12 @@ public abstract class MediaEncoder implements Runnable {
      * @param presentationTimeUs
      */
     protected void encode(final ByteBuffer buffer, final int length, final long presentationTimeUs) {
-    	if (!mIsCapturing) return;
-        final ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
-        while (mIsCapturing) {
-	        final int inputBufferIndex = mMediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
+    	// no codec when the encoder failed to prepare, the stop sequence ends without EOS then
+    	if (!mIsCapturing || mIsFailed || (mMediaCodec == null)) return;
+        while (mIsCapturing && !mIsFailed) {
+	        final int inputBufferIndex = dequeueInputBuffer();
 	        if (inputBufferIndex >= 0) {
-	            final ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];
+	            final ByteBuffer inputBuffer = getInputBuffer(inputBufferIndex);
 	            inputBuffer.clear();
 	            if (buffer != null) {
 	            	inputBuffer.put(buffer);
@@ -300,12 +454,10 @@ public abstract class MediaEncoder implements Runnable {
 	            	// send EOS
 	            	mIsEOS = true;
 	            	if (DEBUG) Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM");
-	            	mMediaCodec.queueInputBuffer(inputBufferIndex, 0, 0,
-	            		presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+	            	queueInputBuffer(inputBufferIndex, 0, presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
 		            break;
 	            } else {
-	            	mMediaCodec.queueInputBuffer(inputBufferIndex, 0, length,
-	            		presentationTimeUs, 0);
+	            	queueInputBuffer(inputBufferIndex, length, presentationTimeUs, 0);
 	            }
 	            break;
 	        } else if (inputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
@@ -316,12 +468,218 @@ public abstract class MediaEncoder implements Runnable {
         }
     }
 
+    /**
+     * get index of available input buffer with maximum timeout duration of TIMEOUT_USEC.
+     * sub class can fill the input buffer directly with #getInputBuffer and #queueInputBuffer.
+     * @return MediaCodec.INFO_TRY_AGAIN_LATER if no input buffer is available
+     */
+    protected int dequeueInputBuffer() {
+    	return dequeueInputBuffer(TIMEOUT_USEC);
+    }
+
+    /**
+     * get index of available input buffer
+     * @param timeoutUs zero to return immediately
+     * @return MediaCodec.INFO_TRY_AGAIN_LATER if no input buffer is available
+     */
+    protected int dequeueInputBuffer(final long timeoutUs) {
+    	if (mIsAsync) {
+    		return mPipeline.dequeueInputBuffer(timeoutUs);
+    	}
+    	return mMediaCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    /**
+     * get input buffer of MediaCodec, buffer array is cached in synchronous mode
+     * @param index index of input buffer that #dequeueInputBuffer returned
+     * @return
+     */
+    protected ByteBuffer getInputBuffer(final int index) {
+    	if (mIsAsync) {
+    		return mPipeline.getInputBuffer(index);
+    	}
+    	if (mInputBuffers == null) {
+    		mInputBuffers = mMediaCodec.getInputBuffers();
+    	}
+    	return mInputBuffers[index];
+    }
+
+    /**
+     * pass filled input buffer to MediaCodec
+     * @param index index of input buffer that #dequeueInputBuffer returned
+     * @param size
+     * @param presentationTimeUs
+     */
+    protected void queueInputBuffer(final int index, final int size, final long presentationTimeUs) {
+    	queueInputBuffer(index, size, presentationTimeUs, 0);
+    }
+
+    /**
+     * pass filled input buffer to MediaCodec with flags, e.g. BUFFER_FLAG_END_OF_STREAM
+     * @param index
+     * @param size
+     * @param presentationTimeUs
+     * @param flags
+     */
+    protected void queueInputBuffer(final int index, final int size, final long presentationTimeUs, final int flags) {
+    	if (mIsAsync) {
+    		mPipeline.queueInputBuffer(index, size, presentationTimeUs, flags);
+    	} else {
+    		mMediaCodec.queueInputBuffer(index, 0, size, presentationTimeUs, flags);
+    	}
+    }
+
+    /**
+     * configure MediaCodec as encoder.
+     * MediaCodec.Callback is set before configuring when asynchronous mode is available.
+     * @param format
+     */
+    protected void configureEncoder(final MediaFormat format) {
+    	mIsAsync = mRequestAsync && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M);
+    	if (mIsAsync) {
+    		mPipeline = new AsyncCodecPipeline(
+    			new AndroidCodec(mMediaCodec, mCallbackHandler), mPipelineOutput);
+    	}
+        mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    /**
+     * AsyncCodec implementation with asynchronous mode of MediaCodec(API>=23)
+     */
+    private static class AndroidCodec implements AsyncCodec {
+    	private final MediaCodec mCodec;
+    	private final Handler mHandler;
+
+    	private AndroidCodec(final MediaCodec codec, final Handler handler) {
+    		mCodec = codec;
+    		mHandler = handler;
+    	}
+
+    	@Override
+    	public void setCallback(final Callback callback) {
+    		mCodec.setCallback(new MediaCodec.Callback() {	// API >= 23
+    	    	@Override
+    	    	public void onInputBufferAvailable(final MediaCodec codec, final int index) {
+    	    		callback.onInputBufferAvailable(index);
+    	    	}
+
+    	    	@Override
+    	    	public void onOutputBufferAvailable(final MediaCodec codec, final int index, final MediaCodec.BufferInfo info) {
+    	    		callback.onOutputBufferAvailable(index, info);
+    	    	}
+
+    	    	@Override
+    	    	public void onError(final MediaCodec codec, final MediaCodec.CodecException e) {
+    	    		callback.onError(e);
+    	    	}
+
+    	    	@Override
+    	    	public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+    	    		callback.onOutputFormatChanged(format);
+    	    	}
+    		}, mHandler);
+    	}
+
+    	@Override
+    	public ByteBuffer getInputBuffer(final int index) {
+    		return mCodec.getInputBuffer(index);	// API >= 21
+    	}
+
+    	@Override
+    	public void queueInputBuffer(final int index, final int offset, final int size,
+    		final long presentationTimeUs, final int flags) {
+
+    		mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    	}
+
+    	@Override
+    	public ByteBuffer getOutputBuffer(final int index) {
+    		return mCodec.getOutputBuffer(index);	// API >= 21
+    	}
+
+    	@Override
+    	public void releaseOutputBuffer(final int index) {
+    		mCodec.releaseOutputBuffer(index, false);
+    	}
+    }
+
+    /**
+     * receives encoded data from AsyncCodecPipeline in asynchronous mode
+     */
+    private final AsyncCodecPipeline.Output mPipelineOutput = new AsyncCodecPipeline.Output() {
+    	@Override
+    	public void onFormatChanged(final MediaFormat format) {
+    		if (DEBUG) Log.v(TAG, "onFormatChanged:");
+    		final MediaMuxerWrapper muxer = mWeakMuxer.get();
+    		if ((muxer != null) && !startMuxer(muxer, format)) {
+    			// this callback should not block the callback thread shared with other encoders
+    			mPipeline.holdOutput();
+    		}
+    	}
+
+    	@Override
+    	public void onSample(final ByteBuffer encodedData, final MediaCodec.BufferInfo info) {
+    		final MediaMuxerWrapper muxer = mWeakMuxer.get();
+    		if (muxer != null) {
+    			writeSampleData(muxer, encodedData, info);
+    		}
+    	}
+
+    	@Override
+    	public void onEndOfStream() {
+    		mOutputEOS = true;
+    		// continue the stop sequence
+    		mEncoderTask.signal();
+    	}
+
+    	@Override
+    	public void onFailed(final Exception e) {
+    		handleError(e);
+    	}
+    };
+
+    /**
+     * the codec failed while recording. the encoder is marked as failed and stopped,
+     * its track is released from the muxer so that other tracks are not blocked.
+     * @param e
+     */
+    protected void handleError(final Exception e) {
+    	Log.e(TAG, "encoder failed:", e);
+    	synchronized (mSync) {
+    		if (mIsFailed) return;
+    		mIsFailed = true;
+    	}
+		final MediaMuxerWrapper muxer = mWeakMuxer.get();
+		if ((muxer != null) && !mMuxerStarted) {
+			// the muxer should not wait for the track of this encoder,
+			// the track that was already added is released in #release
+			muxer.cancelTrack();
+		}
+    	try {
+    		mListener.onError(this, e);
+    	} catch (final Exception e1) {
+    		Log.e(TAG, "failed onError", e1);
+    	}
+    	stopRecording();
+    }
+
     /**
      * drain encoded data and write them to muxer
      */
     protected void drain() {
-    	if (mMediaCodec == null) return;
-        ByteBuffer[] encoderOutputBuffers = mMediaCodec.getOutputBuffers();
+    	// nothing to drain when encoder was not started(standby or failed to prepare)
+    	if ((mMediaCodec == null) || !mIsCapturing) return;
+    	// output is kept in the codec until the muxer is ready
+    	if (isWaitingMuxer()) return;
+    	if (mIsAsync) {
+    		// encoded data are written on MediaCodec.Callback,
+    		// and the stop sequence is signalled when EOS came
+    		return;
+    	}
+        if (mOutputBuffers == null) {
+        	mOutputBuffers = mMediaCodec.getOutputBuffers();
+        }
+        ByteBuffer[] encoderOutputBuffers = mOutputBuffers;
         int encoderStatus, count = 0;
         final MediaMuxerWrapper muxer = mWeakMuxer.get();
         if (muxer == null) {
@@ -333,39 +691,26 @@ LOOP:	while (mIsCapturing) {
 			// get encoded data with maximum timeout duration of TIMEOUT_USEC(=10[msec])
             encoderStatus = mMediaCodec.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
             if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                // wait 5 counts(=TIMEOUT_USEC x 5 = 50msec) until data/EOS come
-                if (!mIsEOS) {
-                	if (++count > 5)
-                		break LOOP;		// out of while
+                // wait 5 counts(=TIMEOUT_USEC x 5 = 50msec) until data come,
+                // the stop sequence polls again by itself while waiting EOS
+                if (mIsEOS || (++count > 5)) {
+               		break LOOP;		// out of while
                 }
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
             	if (DEBUG) Log.v(TAG, "INFO_OUTPUT_BUFFERS_CHANGED");
                 // this should not come when encoding
-                encoderOutputBuffers = mMediaCodec.getOutputBuffers();
+                encoderOutputBuffers = mOutputBuffers = mMediaCodec.getOutputBuffers();
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
             	if (DEBUG) Log.v(TAG, "INFO_OUTPUT_FORMAT_CHANGED");
             	// this status indicate the output format of codec is changed
                 // this should come only once before actual encoded data
             	// but this status never come on Android4.3 or less
             	// and in that case, you should treat when MediaCodec.BUFFER_FLAG_CODEC_CONFIG come.
-                if (mMuxerStarted) {	// second time request is error
-                    throw new RuntimeException("format changed twice");
-                }
 				// get output format from codec and pass them to muxer
 				// getOutputFormat should be called after INFO_OUTPUT_FORMAT_CHANGED otherwise crash.
                 final MediaFormat format = mMediaCodec.getOutputFormat(); // API >= 16
-               	mTrackIndex = muxer.addTrack(format);
-               	mMuxerStarted = true;
-               	if (!muxer.start()) {
-               		// we should wait until muxer is ready
-               		synchronized (muxer) {
-	               		while (!muxer.isStarted())
-						try {
-							muxer.wait(100);
-						} catch (final InterruptedException e) {
-							break LOOP;
-						}
-               		}
+               	if (!startMuxer(muxer, format)) {
+               		break LOOP;
                	}
             } else if (encoderStatus < 0) {
             	// unexpected status
@@ -376,33 +721,15 @@ LOOP:	while (mIsCapturing) {
                 	// this never should come...may be a MediaCodec internal error
                     throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
                 }
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                	// You should set output format to muxer here when you target Android4.3 or less
-                	// but MediaCodec#getOutputFormat can not call here(because INFO_OUTPUT_FORMAT_CHANGED don't come yet)
-                	// therefor we should expand and prepare output format from buffer data.
-                	// This sample is for API>=18(>=Android 4.3), just ignore this flag here
-					if (DEBUG) Log.d(TAG, "drain:BUFFER_FLAG_CODEC_CONFIG");
-					mBufferInfo.size = 0;
-                }
-
-                if (mBufferInfo.size != 0) {
+                if (writeSampleData(muxer, encodedData, mBufferInfo)) {
                 	// encoded data is ready, clear waiting counter
             		count = 0;
-                    if (!mMuxerStarted) {
-                    	// muxer is not ready...this will be programing failure.
-                        throw new RuntimeException("drain:muxer hasn't started");
-                    }
-                    // write encoded data to muxer(need to adjust presentationTimeUs.
-					if (!mRequestPause) {
-	                   	mBufferInfo.presentationTimeUs = getPTSUs();
-	                   	muxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-						prevOutputPTSUs = mBufferInfo.presentationTimeUs;
-					}
                 }
                 // return buffer to encoder
                 mMediaCodec.releaseOutputBuffer(encoderStatus, false);
                 if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                 	// when EOS come.
+                	mOutputEOS = true;
                		mIsCapturing = false;
                     break;      // out of while
                 }
@@ -411,28 +738,105 @@ LOOP:	while (mIsCapturing) {
     }
 
     /**
-     * previous presentationTimeUs for writing
+     * add track to muxer, this never blocks
+     * @param muxer
+     * @param format output format of codec
+     * @return false if the muxer waits for tracks of other encoders,
+     * 			output should be kept in the codec until #onMuxerReady is called
+     */
+    private boolean startMuxer(final MediaMuxerWrapper muxer, final MediaFormat format) {
+        if (mMuxerStarted) {	// second time request is error
+            throw new RuntimeException("format changed twice");
+        }
+       	mTrackIndex = muxer.addTrack(this, format);
+       	mMuxerStarted = true;
+       	return muxer.start() || !muxer.isStartPending();
+    }
+
+    /**
+     * write encoded data to muxer
+     * @param muxer
+     * @param encodedData
+     * @param info
+     * @return true if encoded data is available
      */
-	private long prevOutputPTSUs = 0;
+    private boolean writeSampleData(final MediaMuxerWrapper muxer, final ByteBuffer encodedData, final MediaCodec.BufferInfo info) {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+        	// You should set output format to muxer here when you target Android4.3 or less
+        	// but MediaCodec#getOutputFormat can not call here(because INFO_OUTPUT_FORMAT_CHANGED don't come yet)
+        	// therefor we should expand and prepare output format from buffer data.
+        	// This sample is for API>=18(>=Android 4.3), just ignore this flag here
+			if (DEBUG) Log.d(TAG, "drain:BUFFER_FLAG_CODEC_CONFIG");
+			info.size = 0;
+        }
+        if (info.size != 0) {
+            if (!mMuxerStarted) {
+            	// muxer is not ready...this will be programing failure.
+                throw new RuntimeException("drain:muxer hasn't started");
+            }
+            final EncoderMetrics metrics = muxer.getMetrics();
+            // write encoded data to muxer(need to adjust presentationTimeUs.
+			// pausing state is shared by all tracks so that they are paused at the same time
+			if (!mClock.isPaused()) {
+				metrics.recordLatency(EncoderMetrics.STAGE_ENCODE,
+					System.nanoTime() / 1000L - getInputTimeOffsetUs() - info.presentationTimeUs);
+               	info.presentationTimeUs = getOutputPTSUs(info);
+               	muxer.writeSampleData(mTrackIndex, encodedData, info);
+			} else {
+				metrics.recordDropped(mTrackIndex);
+			}
+			if (mIsAsync) {
+				metrics.recordInputDepth(mTrackIndex, mPipeline.getAvailableInputCount());
+			}
+			return true;
+        }
+        return false;
+    }
+
+    /**
+     * offset between System.nanoTime()/1000 and presentationTimeUs of input data,
+     * this is used to measure latency of encoder.
+     * @return
+     */
+    protected long getInputTimeOffsetUs() {
+    	return getPauseOffsetUs();
+    }
+
+    /**
+     * total duration of pausing that is subtracted from presentationTimeUs
+     * @return
+     */
+    protected long getPauseOffsetUs() {
+    	return mClock.getPauseOffsetUs();
+    }
+
+    /**
+     * get presentationTimeUs of encoded data to write to muxer.
+     * default implementation stamps current time,
+     * sub class can override this to use the presentationTimeUs of input data.
+     * @param info
+     * @return
+     */
+    protected long getOutputPTSUs(final MediaCodec.BufferInfo info) {
+    	return stampOutputPTSUs(getPTSUs());
+    }
+
+    /**
+     * make presentationTimeUs of this track strictly increasing, otherwise muxer fail to write.
+     * the correction is counted by SessionClock.
+     * @param sessionTimeUs
+     * @return
+     */
+    protected long stampOutputPTSUs(final long sessionTimeUs) {
+    	return mClockTrack.stamp(sessionTimeUs);
+    }
 
-	private long offsetPTSUs = 0;
 	/**
-	 * get next encoding presentationTimeUs
+	 * get current session time of the muxer, this does not advance while paused
 	 * @return
 	 */
     protected long getPTSUs() {
-    	long result;
-		synchronized (mSync) {
-			result = System.nanoTime() / 1000L - offsetPTSUs;
-		}
-		// presentationTimeUs should be monotonic
-		// otherwise muxer fail to write
-		if (result < prevOutputPTSUs) {
-			final long offset = prevOutputPTSUs - result;
-			offsetPTSUs -= offset;
-			result += offset;
-		}
-		return result;
+    	return mClock.nowUs();
     }
 
 }
@@ -32,19 +32,199 @@ import android.util.Log;
 
 import com.serenegiant.utils.FileUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 public class MediaMuxerWrapper {
 	private static final boolean DEBUG = false;	// TODO set false on release
 	private static final String TAG = MediaMuxerWrapper.class.getSimpleName();
 
+	/**
+	 * output with android.media.MediaMuxer, moov is written when recording stopped
+	 */
+	public static final int MUXER_MP4 = 0;
+	/**
+	 * output with FragmentedMp4Muxer, moof/mdat is appended every DEFAULT_FRAGMENT_DURATION_MS
+	 */
+	public static final int MUXER_FRAGMENTED_MP4 = 1;
+	/**
+	 * no output file, encoded samples are only passed to MediaSinks(e.g. PreRollSink)
+	 */
+	public static final int MUXER_NONE = 2;
+	private static final long DEFAULT_FRAGMENT_DURATION_MS = 1000;
+
+	/**
+	 * interface of muxer backend, all methods except #addTrack/#start are called from writer thread
+	 */
+	public interface IMuxer {
+		public int addTrack(MediaFormat format);
+		public void start();
+		public void stop();
+		public void release();
+		public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo);
+	}
+
+	/**
+	 * IMuxer implementation with android.media.MediaMuxer
+	 */
+	private static class AndroidMuxer implements IMuxer {
+		private final MediaMuxer mMuxer;	// API >= 18
+
+		private AndroidMuxer(final String outputPath) throws IOException {
+			mMuxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+		}
+
+		@Override
+		public int addTrack(final MediaFormat format) {
+			return mMuxer.addTrack(format);
+		}
+
+		@Override
+		public void start() {
+			mMuxer.start();
+		}
+
+		@Override
+		public void stop() {
+			mMuxer.stop();
+		}
+
+		@Override
+		public void release() {
+			mMuxer.release();
+		}
+
+		@Override
+		public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+			mMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+		}
+	}
+
+	/**
+	 * IMuxer implementation that discards all samples
+	 */
+	private static class NullMuxer implements IMuxer {
+		private int mTrackCount;
+
+		@Override
+		public int addTrack(final MediaFormat format) {
+			return mTrackCount++;
+		}
+
+		@Override
+		public void start() {
+		}
+
+		@Override
+		public void stop() {
+		}
+
+		@Override
+		public void release() {
+		}
+
+		@Override
+		public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+		}
+	}
+
+	/**
+	 * number of encoded samples that can be queued for each track
+	 */
+	private static final int QUEUE_CAPACITY = 64;
+	/**
+	 * maximum duration to park writer thread when no sample is queued
+	 */
+	private static final long WRITER_PARK_NS = TimeUnit.MILLISECONDS.toNanos(10);
+	/**
+	 * maximum time that writer thread waits for a track that has no queued sample,
+	 * samples of other tracks are written without waiting for it after this
+	 */
+	private static final long WRITER_MAX_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(200);
+
+	private final Context mContext;
+	private final String mExt;
 	private String mOutputPath;
-	private final MediaMuxer mMediaMuxer;	// API >= 18
-	private int mEncoderCount, mStatredCount;
-	private boolean mIsStarted;
-	private volatile boolean mIsPaused;
-	private MediaEncoder mVideoEncoder, mAudioEncoder;
+	private final int mMuxerType;
+	/**
+	 * muxer of current segment, this is only accessed from writer thread after started
+	 */
+	private IMuxer mMediaMuxer;
+	/**
+	 * encoders of this recording, each encoder adds one track. copy-on-write.
+	 */
+	private volatile MediaEncoder[] mEncoders = new MediaEncoder[0];
+	/**
+	 * number of tracks that the muxer waits for, this is fixed on #prepare
+	 */
+	private volatile int mTrackCount;
+	/**
+	 * number of tracks that were added and not stopped yet
+	 */
+	private final AtomicInteger mStartedTracks = new AtomicInteger();
+	/**
+	 * opened when all tracks were added and the muxer started, or when recording was stopped
+	 */
+	private final CountDownLatch mStartBarrier = new CountDownLatch(1);
+	private volatile boolean mIsPrepared;
+	private volatile boolean mIsStarted;
+	/**
+	 * sample queue for each track, indexed by track index. copy-on-write.
+	 */
+	private volatile SampleQueue[] mQueues = new SampleQueue[0];
+	/**
+	 * whether each track is video, samples of video tracks depend on previous samples
+	 */
+	private boolean[] mIsVideoTrack = new boolean[0];
+	/**
+	 * per track flag that samples are discarded until next key frame because a sample was discarded on overflow.
+	 * each element is only accessed from the thread that writes the track.
+	 */
+	private boolean[] mWaitKeyFrame = new boolean[0];
+	private Thread mWriterThread;
+	private volatile boolean mRequestStopWriter;
+	/**
+	 * output format of each track, kept to add tracks to the muxer of next segment
+	 */
+	private MediaFormat[] mFormats = new MediaFormat[0];
+	/**
+	 * encoder whose key frames start new segments, the first video track is used when this is null
+	 */
+	private MediaEncoder mPrimaryVideoEncoder;
+	private int mPrimaryVideoTrackIx = -1;
+	// segmentation, 0 means unlimited
+	private long mSegmentDurationUs;
+	private long mSegmentMaxBytes;
+	private long mMaxTotalBytes;
+	// following fields are only accessed from writer thread
+	private int mSegmentIndex;
+	private long mSegmentStartUs = -1;
+	private long mSegmentBytes;
+	private boolean mRequestRollover;
+	private String mSegmentPath;
+	private long mTotalBytes;
+	private final ArrayDeque<File> mSegments = new ArrayDeque<File>();
+	private final EncoderMetrics mMetrics = new EncoderMetrics();
+	/**
+	 * interval to dump metrics while recording, 0 means no dump
+	 */
+	private long mMetricsDumpIntervalMs;
+	private File mMetricsDumpFile;
+	/**
+	 * presentationTimeUs of all tracks are based on this
+	 */
+	private final SessionClock mClock = new SessionClock(FrameScheduler.SYSTEM_CLOCK);
+	/**
+	 * additional consumers of encoded samples. copy-on-write.
+	 */
+	private volatile MediaSink[] mSinks = new MediaSink[0];
 
 	/**
 	 * Constructor
@@ -52,141 +232,737 @@ public class MediaMuxerWrapper {
 	 * @throws IOException
 	 */
 	public MediaMuxerWrapper(final Context context, final String _ext) throws IOException {
-		String ext = _ext;
-		if (TextUtils.isEmpty(ext)) ext = ".mp4";
-		try {
-			mOutputPath = FileUtils.getCaptureFile(context, Environment.DIRECTORY_MOVIES, ext, 0).toString();
-		} catch (final NullPointerException e) {
-			throw new RuntimeException("This app has no permission of writing external storage");
-		}
-		mMediaMuxer = new MediaMuxer(mOutputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-		mEncoderCount = mStatredCount = 0;
+		this(context, _ext, MUXER_MP4);
+	}
+
+	/**
+	 * Constructor
+	 * @param _ext extension of output file
+	 * @param muxerType MUXER_MP4, MUXER_FRAGMENTED_MP4 or MUXER_NONE
+	 * @throws IOException
+	 */
+	public MediaMuxerWrapper(final Context context, final String _ext, final int muxerType) throws IOException {
+		this(context, _ext, muxerType, false);
+	}
+
+	/**
+	 * Constructor
+	 * @param _ext extension of output file
+	 * @param muxerType MUXER_MP4, MUXER_FRAGMENTED_MP4 or MUXER_NONE
+	 * @param standby true if output file should not be created until #bindOutput,
+	 * 			encoders can be added and prepared ahead of recording in that case
+	 * @throws IOException
+	 */
+	public MediaMuxerWrapper(final Context context, final String _ext,
+		final int muxerType, final boolean standby) throws IOException {
+
+		mContext = context;
+		mExt = TextUtils.isEmpty(_ext) ? ".mp4" : _ext;
+		mMuxerType = muxerType;
 		mIsStarted = false;
+		if (!standby) {
+			bindOutput();
+		}
+	}
+
+	/**
+	 * create output file and muxer, this should be called before #startRecording
+	 * when this instance was created in standby. output file is named at this time.
+	 * @throws IOException
+	 */
+	public synchronized void bindOutput() throws IOException {
+		if (mMediaMuxer != null) return;
+		String outputPath = null;
+		if (mMuxerType != MUXER_NONE) {
+			try {
+				outputPath = FileUtils.getCaptureFile(mContext, Environment.DIRECTORY_MOVIES, mExt, 0).toString();
+			} catch (final NullPointerException e) {
+				throw new RuntimeException("This app has no permission of writing external storage");
+			}
+		}
+		bindOutput(outputPath);
+	}
+
+	/**
+	 * create muxer for specific output file
+	 * @param outputPath
+	 * @throws IOException
+	 */
+	/*package*/ synchronized void bindOutput(final String outputPath) throws IOException {
+		if (mMediaMuxer != null) return;
+		mOutputPath = outputPath;
+		mSegmentPath = mOutputPath;
+		mMediaMuxer = createMuxer(mOutputPath);
+	}
+
+	/**
+	 * create muxer backend of this instance, this is only replaced for testing
+	 * @param outputPath
+	 * @return
+	 * @throws IOException
+	 */
+	/*package*/ IMuxer createMuxer(final String outputPath) throws IOException {
+		return createMuxer(mMuxerType, outputPath);
 	}
 
+	/**
+	 * create muxer backend
+	 * @param muxerType MUXER_MP4, MUXER_FRAGMENTED_MP4 or MUXER_NONE
+	 * @param outputPath
+	 * @return
+	 * @throws IOException
+	 */
+	public static IMuxer createMuxer(final int muxerType, final String outputPath) throws IOException {
+		switch (muxerType) {
+		case MUXER_FRAGMENTED_MP4:
+			return new FragmentedMp4Muxer(outputPath, DEFAULT_FRAGMENT_DURATION_MS);
+		case MUXER_NONE:
+			return new NullMuxer();
+		default:
+			return new AndroidMuxer(outputPath);
+		}
+	}
+
+	/**
+	 * metrics of encoding pipeline of this recording session
+	 * @return
+	 */
+	public EncoderMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * path of the first segment
+	 * @return
+	 */
 	public String getOutputPath() {
 		return mOutputPath;
 	}
 
+	/**
+	 * split recording into segments. new segment starts on next key frame of the primary video track
+	 * (see #setPrimaryVideoEncoder) after the duration or size of current segment exceeds the limit
+	 * without stopping encoders. this should be called before recording starts.
+	 * segments are named as outputPath with suffix of segment number.
+	 * @param maxDurationMs maximum duration of each segment, 0 means unlimited
+	 * @param maxBytes maximum size of each segment, 0 means unlimited
+	 * @param maxTotalBytes oldest segments are deleted when total size of segments exceeds this, 0 means unlimited
+	 */
+	public synchronized void setSegmentation(final long maxDurationMs, final long maxBytes, final long maxTotalBytes) {
+		if (mIsStarted)
+			throw new IllegalStateException("muxer already started");
+		mSegmentDurationUs = maxDurationMs * 1000L;
+		mSegmentMaxBytes = maxBytes;
+		mMaxTotalBytes = maxTotalBytes;
+	}
+
+	/**
+	 * dump metrics periodically while recording, this should be called before recording starts.
+	 * @param intervalMs 0 means no dump
+	 * @param file metrics are appended to this file, dump to logcat if null
+	 */
+	public synchronized void setMetricsDump(final long intervalMs, final File file) {
+		if (mIsStarted)
+			throw new IllegalStateException("muxer already started");
+		mMetricsDumpIntervalMs = intervalMs;
+		mMetricsDumpFile = file;
+	}
+
+	/**
+	 * add consumer of encoded samples that is fed in parallel with the muxer.
+	 * this should be called before recording starts.
+	 * @param sink
+	 */
+	public synchronized void addSink(final MediaSink sink) {
+		if (mIsStarted)
+			throw new IllegalStateException("muxer already started");
+		final MediaSink[] sinks = new MediaSink[mSinks.length + 1];
+		System.arraycopy(mSinks, 0, sinks, 0, mSinks.length);
+		sinks[mSinks.length] = sink;
+		mSinks = sinks;
+	}
+
+	/**
+	 * select video track that new segments start with its key frame,
+	 * e.g. when a video encoder of lower resolution writes to the same muxer.
+	 * this should be called before #prepare.
+	 * @param encoder encoder that was added to this instance
+	 */
+	public synchronized void setPrimaryVideoEncoder(final MediaEncoder encoder) {
+		if (mIsPrepared)
+			throw new IllegalStateException("primary video encoder should be set before prepare");
+		boolean found = false;
+		for (final MediaEncoder e: mEncoders) {
+			found |= (e == encoder);
+		}
+		if (!found)
+			throw new IllegalArgumentException("encoder is not added");
+		mPrimaryVideoEncoder = encoder;
+	}
+
+	private boolean isSegmented() {
+		return (mMuxerType != MUXER_NONE) && ((mSegmentDurationUs > 0) || (mSegmentMaxBytes > 0));
+	}
+
+	/**
+	 * prepare all encoders concurrently, so the time to prepare is bounded by the slowest encoder.
+	 * when any encoder failed to prepare, all encoders are released, the output file is deleted
+	 * and the first error is thrown.
+	 * @throws IOException
+	 */
 	public synchronized void prepare() throws IOException {
-		if (mVideoEncoder != null)
-			mVideoEncoder.prepare();
-		if (mAudioEncoder != null)
-			mAudioEncoder.prepare();
+		final MediaEncoder[] encoders = mEncoders;
+		final int n = encoders.length;
+		if (n == 0) return;
+		mTrackCount = n;
+		mIsPrepared = true;
+		final Throwable[] errors = new Throwable[n];
+		final CountDownLatch prepared = new CountDownLatch(n - 1);
+		final EncoderScheduler scheduler = EncoderScheduler.getDefault();
+		// first encoder is prepared on the caller thread, others on workers
+		for (int i = 1; i < n; i++) {
+			final int ix = i;
+			final Runnable task = new Runnable() {
+				@Override
+				public void run() {
+					errors[ix] = prepareEncoder(encoders[ix]);
+					prepared.countDown();
+				}
+			};
+			if (!scheduler.execute(task)) {
+				task.run();
+			}
+		}
+		errors[0] = prepareEncoder(encoders[0]);
+		boolean interrupted = false;
+		for ( ; ; ) {
+			try {
+				prepared.await();
+				break;
+			} catch (final InterruptedException e) {
+				// encoder should not be left half prepared
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		Throwable error = null;
+		for (int i = 0; (i < n) && (error == null); i++) {
+			error = errors[i];
+		}
+		if (error != null) {
+			Log.w(TAG, "prepare:failed, release all encoders", error);
+			// rollback, this also releases encoders that were prepared successfully
+			stopRecording();
+			releaseOutput();
+			if (error instanceof IOException) throw (IOException)error;
+			if (error instanceof RuntimeException) throw (RuntimeException)error;
+			if (error instanceof Error) throw (Error)error;
+			throw new IOException(error);
+		}
+	}
+
+	/**
+	 * release the muxer that was not started and delete its empty output file
+	 */
+	private void releaseOutput() {
+		if (mMediaMuxer != null) {
+			try {
+				mMediaMuxer.release();
+			} catch (final Exception e) {
+				Log.w(TAG, "failed to release muxer", e);
+			}
+			mMediaMuxer = null;
+		}
+		if (mOutputPath != null) {
+			final File output = new File(mOutputPath);
+			if (output.exists() && (output.length() == 0) && !output.delete()) {
+				Log.w(TAG, "failed to delete output:" + output);
+			}
+			final File journal = RecordingJournal.getJournalFile(mOutputPath);
+			if (journal.exists() && !journal.delete()) {
+				Log.w(TAG, "failed to delete journal:" + journal);
+			}
+		}
+	}
+
+	private static Throwable prepareEncoder(final MediaEncoder encoder) {
+		try {
+			encoder.prepare();
+			return null;
+		} catch (final Throwable e) {
+			return e;
+		}
 	}
 
 	public synchronized void startRecording() {
-		if (mVideoEncoder != null)
-			mVideoEncoder.startRecording();
-		if (mAudioEncoder != null)
-			mAudioEncoder.startRecording();
+		if (mMediaMuxer == null)
+			throw new IllegalStateException("output is not bound");
+		if (mMetricsDumpIntervalMs > 0) {
+			// this is stopped when the muxer stopped
+			mMetrics.startDump(mMetricsDumpIntervalMs, mMetricsDumpFile);
+		}
+		for (final MediaEncoder encoder: mEncoders) {
+			encoder.startRecording();
+		}
 	}
 
 	public synchronized void stopRecording() {
-		if (mVideoEncoder != null)
-			mVideoEncoder.stopRecording();
-		mVideoEncoder = null;
-		if (mAudioEncoder != null)
-			mAudioEncoder.stopRecording();
-		mAudioEncoder = null;
+		// encoders are kept, stopping them again is ignored
+		final MediaEncoder[] encoders = mEncoders;
+		for (final MediaEncoder encoder: encoders) {
+			encoder.stopRecording();
+		}
+		// encoders that are waiting for other tracks should not wait any more
+		openStartBarrier(encoders);
 	}
 
-	public synchronized boolean isStarted() {
+	public boolean isStarted() {
 		return mIsStarted;
 	}
 
 	public synchronized void pauseRecording() {
-		mIsPaused = true;
-		if (mVideoEncoder != null)
-			mVideoEncoder.pauseRecording();
-		if (mAudioEncoder != null)
-			mAudioEncoder.pauseRecording();
+		// all tracks stop at the same time
+		mClock.pause();
+		for (final MediaEncoder encoder: mEncoders) {
+			encoder.pauseRecording();
+		}
 	}
 
 	public synchronized void resumeRecording() {
-		if (mVideoEncoder != null)
-			mVideoEncoder.resumeRecording();
-		if (mAudioEncoder != null)
-			mAudioEncoder.resumeRecording();
-		mIsPaused = false;
+		// sources are idle while paused, resume the clock first
+		// so that key frames encoded just after resuming are not dropped
+		mClock.resume();
+		for (final MediaEncoder encoder: mEncoders) {
+			encoder.resumeRecording();
+		}
+	}
+
+	public boolean isPaused() {
+		return mClock.isPaused();
 	}
 
-	public synchronized boolean isPaused() {
-		return mIsPaused;
+	/**
+	 * clock of this recording session that presentationTimeUs of all tracks are based on
+	 * @return
+	 */
+	public SessionClock getClock() {
+		return mClock;
 	}
 
 //**********************************************************************
 //**********************************************************************
 	/**
-	 * assign encoder to this calss. this is called from encoder.
-	 * @param encoder instance of MediaVideoEncoderBase
+	 * register encoder to this class, each encoder adds one track. this is called from encoder.
+	 * any number of encoders can be added before #prepare
+	 * @param encoder
 	 */
-	/*package*/ void addEncoder(final MediaEncoder encoder) {
-		if (encoder instanceof MediaVideoEncoderBase) {
-			if (mVideoEncoder != null)
-				throw new IllegalArgumentException("Video encoder already added.");
-			mVideoEncoder = encoder;
-		} else if (encoder instanceof MediaAudioEncoder) {
-			if (mAudioEncoder != null)
-				throw new IllegalArgumentException("Video encoder already added.");
-			mAudioEncoder = encoder;
-		} else
-			throw new IllegalArgumentException("unsupported encoder");
-		mEncoderCount = (mVideoEncoder != null ? 1 : 0) + (mAudioEncoder != null ? 1 : 0);
+	/*package*/ synchronized void addEncoder(final MediaEncoder encoder) {
+		if (mIsPrepared)
+			throw new IllegalStateException("encoder should be added before prepare");
+		final MediaEncoder[] encoders = mEncoders;
+		for (final MediaEncoder e: encoders) {
+			if (e == encoder)
+				throw new IllegalArgumentException("encoder already added");
+		}
+		final MediaEncoder[] newEncoders = new MediaEncoder[encoders.length + 1];
+		System.arraycopy(encoders, 0, newEncoders, 0, encoders.length);
+		newEncoders[encoders.length] = encoder;
+		mEncoders = newEncoders;
 	}
 
 	/**
-	 * request start recording from encoder
-	 * @return true when muxer is ready to write
+	 * notify that the track of an encoder was added, the muxer starts when all tracks were added.
+	 * this is called from encoder after #addTrack
+	 * @return true when muxer is ready to write, otherwise the encoder should keep its output
+	 * 			until MediaEncoder#onMuxerReady is called
 	 */
-	/*package*/ synchronized boolean start() {
-		if (DEBUG) Log.v(TAG,  "start:");
-		mStatredCount++;
-		if ((mEncoderCount > 0) && (mStatredCount == mEncoderCount)) {
+	/*package*/ boolean start() {
+		final int started = mStartedTracks.incrementAndGet();
+		if (DEBUG) Log.v(TAG,  "start:" + started + "/" + mTrackCount);
+		return startIfReady();
+	}
+
+	/**
+	 * notify that an encoder failed before adding its track,
+	 * the muxer starts with the other tracks without waiting for it. this is called from encoder.
+	 */
+	/*package*/ void cancelTrack() {
+		synchronized (this) {
+			if (mIsStarted || (mTrackCount <= 0)) return;
+			mTrackCount--;
+			if (DEBUG) Log.v(TAG,  "cancelTrack:" + mStartedTracks.get() + "/" + mTrackCount);
+		}
+		if (mTrackCount > 0) {
+			startIfReady();
+		} else {
+			// no track remains, encoders should not wait any more
+			openStartBarrier(mEncoders);
+		}
+	}
+
+	/**
+	 * start the muxer and writer thread when all tracks were added
+	 * @return true if the muxer started
+	 */
+	private synchronized boolean startIfReady() {
+		if (!mIsStarted && (mTrackCount > 0) && (mStartedTracks.get() == mTrackCount)) {
 			mMediaMuxer.start();
+			mRequestStopWriter = false;
+			mWriterThread = new Thread(mWriterTask, "MuxerWriter");
+			mWriterThread.start();
+			for (final MediaSink sink: mSinks) {
+				sink.start(this, mFormats);
+			}
 			mIsStarted = true;
-			notifyAll();
+			openStartBarrier(mEncoders);
 			if (DEBUG) Log.v(TAG,  "MediaMuxer started:");
 		}
 		return mIsStarted;
 	}
 
 	/**
-	 * request stop recording from encoder when encoder received EOS
+	 * whether encoders that added their tracks should still keep their output,
+	 * this becomes false when all tracks were added and the muxer started, or recording was stopped
+	 * @return
+	 */
+	/*package*/ boolean isStartPending() {
+		return mStartBarrier.getCount() > 0;
+	}
+
+	/**
+	 * let encoders write their output, this never blocks
+	 * @param encoders
+	 */
+	private void openStartBarrier(final MediaEncoder[] encoders) {
+		if (mStartBarrier.getCount() > 0) {
+			mStartBarrier.countDown();
+			for (final MediaEncoder encoder: encoders) {
+				encoder.onMuxerReady();
+			}
+		}
+	}
+
+	/**
+	 * notify that an encoder that added its track finished,
+	 * the muxer stops when all of those encoders finished. this is called from encoder.
 	*/
-	/*package*/ synchronized void stop() {
-		if (DEBUG) Log.v(TAG,  "stop:mStatredCount=" + mStatredCount);
-		mStatredCount--;
-		if ((mEncoderCount > 0) && (mStatredCount <= 0)) {
-			mMediaMuxer.stop();
-			mMediaMuxer.release();
+	/*package*/ void stop() {
+		final int remaining = mStartedTracks.decrementAndGet();
+		if (DEBUG) Log.v(TAG,  "stop:remaining=" + remaining);
+		if (remaining > 0) return;
+		synchronized (this) {
+			mMetrics.stopDump();
+			// wait until writer thread writes all queued samples
+			mRequestStopWriter = true;
+			if (mWriterThread != null) {
+				LockSupport.unpark(mWriterThread);
+				try {
+					mWriterThread.join();
+				} catch (final InterruptedException e) {
+					// ignore
+				}
+				mWriterThread = null;
+			}
+			for (final MediaSink sink: mSinks) {
+				sink.stop();
+			}
+			if (mMediaMuxer != null) {
+				try {
+					if (mIsStarted) {
+						mMediaMuxer.stop();
+					}
+				} finally {
+					mMediaMuxer.release();
+					mMediaMuxer = null;
+				}
+			}
 			mIsStarted = false;
+			if (mClock.getCorrections() > 0) {
+				// presentationTimeUs went backwards, e.g. input of encoder was stamped on another clock
+				Log.w(TAG, "stop:presentationTimeUs were corrected:" + mClock);
+			}
 			if (DEBUG) Log.v(TAG,  "MediaMuxer stopped:");
 		}
 	}
 
 	/**
 	 * assign encoder to muxer
+	 * @param encoder
 	 * @param format
 	 * @return minus value indicate error
 	 */
-	/*package*/ synchronized int addTrack(final MediaFormat format) {
+	/*package*/ synchronized int addTrack(final MediaEncoder encoder, final MediaFormat format) {
 		if (mIsStarted)
 			throw new IllegalStateException("muxer already started");
+		if (mMediaMuxer == null)
+			throw new IllegalStateException("output is not bound");
 		final int trackIx = mMediaMuxer.addTrack(format);
-		if (DEBUG) Log.i(TAG, "addTrack:trackNum=" + mEncoderCount + ",trackIx=" + trackIx + ",format=" + format);
+		if (DEBUG) Log.i(TAG, "addTrack:trackNum=" + mTrackCount + ",trackIx=" + trackIx + ",format=" + format);
+		final SampleQueue[] queues = new SampleQueue[Math.max(mQueues.length, trackIx + 1)];
+		System.arraycopy(mQueues, 0, queues, 0, mQueues.length);
+		queues[trackIx] = new SampleQueue(QUEUE_CAPACITY);
+		final MediaFormat[] formats = new MediaFormat[queues.length];
+		System.arraycopy(mFormats, 0, formats, 0, mFormats.length);
+		formats[trackIx] = format;
+		mFormats = formats;
+		final boolean[] isVideo = new boolean[queues.length];
+		System.arraycopy(mIsVideoTrack, 0, isVideo, 0, mIsVideoTrack.length);
+		final String mime = getMime(format);
+		if ((mime != null) && mime.startsWith("video/")) {
+			if (mPrimaryVideoEncoder != null ? (encoder == mPrimaryVideoEncoder) : (mPrimaryVideoTrackIx < 0)) {
+				mPrimaryVideoTrackIx = trackIx;
+			}
+			isVideo[trackIx] = true;
+		}
+		mIsVideoTrack = isVideo;
+		mWaitKeyFrame = new boolean[queues.length];
+		// published by volatile write of mQueues
+		mQueues = queues;
 		return trackIx;
 	}
 
 	/**
-	 * write encoded data to muxer
+	 * get mime type of the track, this is only replaced for testing
+	 * @param format
+	 * @return
+	 */
+	/*package*/ String getMime(final MediaFormat format) {
+		return format.getString(MediaFormat.KEY_MIME);
+	}
+
+	/**
+	 * write encoded data to muxer.
+	 * encoded data are copied into the sample queue of the track and actually written
+	 * on the writer thread, so caller can return the buffer to MediaCodec immediately.
+	 * this never blocks, the sample is discarded when the queue is full. video samples are then
+	 * discarded until next key frame, which is requested at once, so the written stream stays decodable.
+	 * each track should be written from only one thread.
 	 * @param trackIndex
 	 * @param byteBuf
 	 * @param bufferInfo
 	 */
-	/*package*/ synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
-		if (mStatredCount > 0)
-			mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+	/*package*/ void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+		if (!mIsStarted) return;
+		final long firstSampleUs = mMetrics.recordFirstSample(trackIndex);
+		if (firstSampleUs > 0) {
+			Log.i(TAG, "time to first sample:track=" + trackIndex + "," + firstSampleUs + "us");
+		}
+		// sinks never block
+		final MediaSink[] sinks = mSinks;
+		for (int i = 0; i < sinks.length; i++) {
+			sinks[i].offer(trackIndex, byteBuf, bufferInfo);
+		}
+		if (mMuxerType == MUXER_NONE) return;
+		final SampleQueue queue = mQueues[trackIndex];
+		final boolean[] waitKeyFrame = mWaitKeyFrame;
+		final boolean keyFrame = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+		if (waitKeyFrame[trackIndex] && !keyFrame) {
+			// this refers to a discarded sample
+			mMetrics.recordOverflow(trackIndex);
+		} else if (queue.offer(byteBuf, bufferInfo.offset, bufferInfo.size,
+			bufferInfo.presentationTimeUs, bufferInfo.flags)) {
+
+			waitKeyFrame[trackIndex] = false;
+		} else {
+			// queue is full, writer thread can not catch up with encoder
+			mMetrics.recordOverflow(trackIndex);
+			if (mIsVideoTrack[trackIndex] && !waitKeyFrame[trackIndex]) {
+				if (DEBUG) Log.w(TAG, "writeSampleData:overflow, wait for key frame:track=" + trackIndex);
+				waitKeyFrame[trackIndex] = true;
+				requestSyncFrame();
+			}
+		}
+		LockSupport.unpark(mWriterThread);
+	}
+
+	/**
+	 * request key frame from video encoders
+	 */
+	/*package*/ void requestSyncFrame() {
+		for (final MediaEncoder encoder: mEncoders) {
+			encoder.requestSyncFrame();
+		}
+	}
+
+	/**
+	 * writer thread that writes queued samples into MediaMuxer
+	 * in order of presentationTimeUs across tracks.
+	 * a sample is written when every track has a queued sample so that it is the oldest one,
+	 * or when a track had no sample for WRITER_MAX_WAIT_NS(e.g. video of still screen)
+	 */
+	private final Runnable mWriterTask = new Runnable() {
+		@Override
+		public void run() {
+			if (DEBUG) Log.v(TAG, "writer thread started");
+			final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+			final SampleQueue[] queues = mQueues;
+			final int n = queues.length;
+			// time when a track was found empty while other tracks had samples, 0 if not waiting
+			long waitStartNs = 0;
+			for ( ; ; ) {
+				// select the oldest sample across tracks
+				int trackIx = -1;
+				SampleQueue.Sample oldest = null;
+				boolean missing = false;
+				for (int i = 0; i < n; i++) {
+					if (queues[i] == null) continue;
+					final SampleQueue.Sample sample = queues[i].peek();
+					if (sample == null) {
+						missing = true;
+					} else if ((oldest == null) || (sample.presentationTimeUs < oldest.presentationTimeUs)) {
+						oldest = sample;
+						trackIx = i;
+					}
+				}
+				if (!missing) {
+					waitStartNs = 0;
+				} else if ((oldest != null) && !mRequestStopWriter) {
+					// next sample of the empty track may be older than the oldest one
+					final long now = System.nanoTime();
+					if (waitStartNs == 0) {
+						waitStartNs = now;
+					}
+					if (now - waitStartNs < WRITER_MAX_WAIT_NS) {
+						LockSupport.parkNanos(this, WRITER_PARK_NS);
+						continue;
+					}
+					// empty tracks are not waited again until all tracks have samples
+				}
+				if (oldest != null) {
+					long pts = oldest.presentationTimeUs;
+					boolean drop = false;
+					if (isSegmented()) {
+						checkSegment(trackIx, oldest);
+						// rebase presentationTimeUs on each segment
+						if (mSegmentStartUs < 0) {
+							mSegmentStartUs = pts;
+						}
+						pts -= mSegmentStartUs;
+						if (pts < 0) {
+							// sample that was queued after newer samples of other tracks were written,
+							// this belongs to the previous segment and would duplicate timestamp 0
+							if (DEBUG) Log.w(TAG, "drop sample before segment start:track=" + trackIx + ",pts=" + pts);
+							drop = true;
+						} else {
+							mSegmentBytes += oldest.size;
+							trimSegments();
+						}
+					}
+					info.set(0, oldest.size, pts, oldest.flags);
+					if ((mMediaMuxer != null) && !drop) {
+						try {
+							mMediaMuxer.writeSampleData(trackIx, oldest.buffer, info);
+							mMetrics.recordBytesWritten(oldest.size);
+						} catch (final Exception e) {
+							Log.w(TAG, "failed to write sample data", e);
+						}
+					}
+					mMetrics.recordLatency(EncoderMetrics.STAGE_WRITE,
+						(System.nanoTime() - oldest.queuedTimeNs) / 1000L);
+					queues[trackIx].remove();
+					mMetrics.recordQueueDepth(trackIx, queues[trackIx].size());
+				} else if (mRequestStopWriter) {
+					break;
+				} else {
+					LockSupport.parkNanos(this, WRITER_PARK_NS);
+				}
+			}
+			if (DEBUG) Log.v(TAG, "writer thread finished");
+		}
+	};
+
+	/**
+	 * check whether current segment should be closed, this is called on writer thread
+	 * @param trackIx
+	 * @param sample next sample to write
+	 */
+	private void checkSegment(final int trackIx, final SampleQueue.Sample sample) {
+		if (!mRequestRollover && (mSegmentStartUs >= 0)
+			&& (((mSegmentDurationUs > 0) && (sample.presentationTimeUs - mSegmentStartUs >= mSegmentDurationUs))
+				|| ((mSegmentMaxBytes > 0) && (mSegmentBytes + sample.size >= mSegmentMaxBytes)))) {
+
+			mRequestRollover = true;
+			// request key frame not to wait for next periodic one
+			requestSyncFrame();
+		}
+		if (mRequestRollover
+			&& ((mPrimaryVideoTrackIx < 0)
+				|| ((trackIx == mPrimaryVideoTrackIx) && ((sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0)))) {
+
+			rollover();
+		}
+	}
+
+	/**
+	 * close current segment and start next one, this is called on writer thread
+	 */
+	private void rollover() {
+		if (DEBUG) Log.v(TAG, "rollover:segment=" + mSegmentIndex);
+		mRequestRollover = false;
+		if (mMediaMuxer != null) {
+			try {
+				mMediaMuxer.stop();
+			} catch (final Exception e) {
+				Log.w(TAG, "failed to stop muxer", e);
+			}
+			mMediaMuxer.release();
+			mMediaMuxer = null;
+		}
+		mSegmentBytes = 0;
+		addSegment(new File(mSegmentPath));
+		mSegmentIndex++;
+		mSegmentStartUs = -1;
+		mSegmentPath = getSegmentPath(mSegmentIndex);
+		try {
+			final IMuxer muxer = createMuxer(mSegmentPath);
+			final MediaFormat[] formats = mFormats;
+			for (int i = 0; i < formats.length; i++) {
+				if (formats[i] != null) {
+					final int trackIx = muxer.addTrack(formats[i]);
+					if (trackIx != i) {
+						throw new IllegalStateException("unexpected track index " + trackIx + ", expected " + i);
+					}
+				}
+			}
+			muxer.start();
+			mMediaMuxer = muxer;
+		} catch (final Exception e) {
+			// following samples are discarded
+			Log.e(TAG, "failed to start next segment", e);
+		}
+	}
+
+	/**
+	 * append closed segment, mTotalBytes is the size of closed segments on storage
+	 */
+	private void addSegment(final File segment) {
+		mSegments.addLast(segment);
+		mTotalBytes += segment.length();
+		trimSegments();
+	}
+
+	/**
+	 * delete oldest closed segments while total size including current segment exceeds the limit,
+	 * this is called on writer thread
+	 */
+	private void trimSegments() {
+		if (mMaxTotalBytes <= 0) return;
+		while ((mTotalBytes + mSegmentBytes > mMaxTotalBytes) && !mSegments.isEmpty()) {
+			final File oldest = mSegments.removeFirst();
+			mTotalBytes -= oldest.length();
+			if (!oldest.delete()) {
+				Log.w(TAG, "failed to delete segment:" + oldest);
+			}
+		}
+	}
+
+	private String getSegmentPath(final int index) {
+		final int ix = mOutputPath.lastIndexOf('.');
+		final String base = ix > 0 ? mOutputPath.substring(0, ix) : mOutputPath;
+		final String ext = ix > 0 ? mOutputPath.substring(ix) : "";
+		return String.format(Locale.US, "%s_%03d%s", base, index, ext);
 	}
 
 //**********************************************************************
@@ -0,0 +1,125 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: MediaRenditionEncoder.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.media.MediaFormat;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+
+/**
+ * Additional video encoder that receives the frames captured by MediaScreenEncoder,
+ * e.g. low resolution/bitrate preview stream in addition to the full quality recording.
+ * Frames are drawn into the input Surface of this encoder on the shared callback thread that MediaScreenEncoder captures on
+ * from the same texture, so this costs one extra draw instead of another VirtualDisplay.
+ * This encoder can be added to another MediaMuxerWrapper than the one of MediaScreenEncoder,
+ * and it follows the crop rectangle of MediaScreenEncoder with its own output scale.
+ */
+public class MediaRenditionEncoder extends MediaVideoEncoderBase {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = MediaRenditionEncoder.class.getSimpleName();
+
+	private static final String MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC;
+
+	private final MediaScreenEncoder mSource;
+	private final CaptureRegion mRegion;
+	private final int mBitrate;
+	private final int mFpsDivisor;
+	private final int mFrameRate;
+	private Surface mSurface;
+
+	/**
+	 * Constructor
+	 * @param muxer
+	 * @param listener
+	 * @param source encoder that captures the screen
+	 * @param scale output scale to the crop rectangle of source, (0, 1]
+	 * @param bitrate
+	 * @param fpsDivisor every fpsDivisor-th frame of source is encoded
+	 */
+	public MediaRenditionEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener,
+		final MediaScreenEncoder source, final float scale, final int bitrate, final int fpsDivisor) {
+
+		this(muxer, listener, source, scaledRegion(source.getCaptureRegion(), scale), bitrate, fpsDivisor);
+	}
+
+	private MediaRenditionEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener,
+		final MediaScreenEncoder source, final CaptureRegion region, final int bitrate, final int fpsDivisor) {
+
+		super(muxer, listener, region.getOutputWidth(), region.getOutputHeight());
+		mSource = source;
+		mRegion = region;
+		mFpsDivisor = Math.max(1, fpsDivisor);
+		mFrameRate = Math.max(1, source.getFrameRate() / mFpsDivisor);
+		mBitrate = (bitrate > 0) ? bitrate : calcBitRate(mFrameRate);
+	}
+
+	@Override
+	void prepare() throws IOException {
+		if (DEBUG) Log.i(TAG, "prepare:" + mRegion + ",fpsDivisor=" + mFpsDivisor);
+		mSurface = prepare_surface_encoder(MIME_TYPE, mFrameRate, mBitrate);
+		mMediaCodec.start();
+		mSource.addRendition(this, mSurface, mFpsDivisor, mRegion);
+		if (mListener != null) {
+			try {
+				mListener.onPrepared(this);
+			} catch (final Exception e) {
+				Log.e(TAG, "prepare:", e);
+			}
+		}
+	}
+
+	/*package*/ int getFrameRate() {
+		return mFrameRate;
+	}
+
+	/**
+	 * whether frames should be drawn into input Surface, frames are not drawn before #startRecording
+	 * because nobody drains the encoder and drawing may block the shared callback thread.
+	 * frames are not drawn while paused either, so the encoder is idle.
+	 * @return
+	 */
+	/*package*/ boolean isCapturing() {
+		return mIsCapturing && !mRequestStop && !mRequestPause;
+	}
+
+	@Override
+	void resumeRecording() {
+		super.resumeRecording();
+		// capturing of source may be idle when all of its outputs were paused
+		mSource.requestRedraw();
+	}
+
+	@Override
+	protected void release() {
+		// input Surface should not be drawn after MediaCodec was released
+		mSource.removeRendition(this);
+		super.release();
+	}
+
+	private static CaptureRegion scaledRegion(final CaptureRegion region, final float scale) {
+		return new CaptureRegion(region.getSourceWidth(), region.getSourceHeight(),
+			region.getLeft(), region.getTop(), region.getRight(), region.getBottom(), scale);
+	}
+}
@@ -30,16 +30,24 @@ import android.media.MediaFormat;
 import android.media.projection.MediaProjection;
 import android.opengl.GLES20;
 import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 
 import com.serenegiant.glutils.EGLBase;
-import com.serenegiant.glutils.EglTask;
 import com.serenegiant.glutils.GLDrawer2D;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Video encoder that captures screen with MediaProjection.
+ * No thread is dedicated to capturing, frames are drawn into the input Surface of the encoder
+ * on the callback thread shared with other encoders(see EncoderScheduler#getCallbackLooper)
+ * each time new frame came or previous frame should be drawn again.
+ */
 public class MediaScreenEncoder extends MediaVideoEncoderBase {
 	private static final boolean DEBUG = false;	// TODO set false on release
 	private static final String TAG = MediaScreenEncoder.class.getSimpleName();
@@ -47,30 +55,203 @@ public class MediaScreenEncoder extends MediaVideoEncoderBase {
 	private static final String MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC;
 	// parameters for recording
     private static final int FRAME_RATE = 25;
+    /**
+     * interval to update bitrate/frame rate with back-pressure of encoder and storage
+     */
+    private static final long ADAPT_INTERVAL_MS = 500;
+    /**
+     * previous frame is drawn again when screen content was not changed for this period
+     */
+    private static final long MAX_FRAME_INTERVAL_MS = 1000;
 
-	private MediaProjection mMediaProjection;
+	private volatile MediaProjection mMediaProjection;
     private final int mDensity;
+    /**
+     * crop rectangle and output size, this is replaced when crop rectangle is changed
+     */
+    private final AtomicReference<CaptureRegion> mRegion = new AtomicReference<CaptureRegion>();
     private final int bitrate, fps;
     private Surface mSurface;
+    /**
+     * Handler on the shared callback thread, capturing and adaptation are run on this
+     */
     private final Handler mHandler;
+    private int mMinBitrate, mMaxBitrate, mMinFps;
+    private BitrateController mBitrateController;
+    /**
+     * decide when frames are drawn, its minimum interval is changed by BitrateController
+     */
+    private final FrameGovernor mGovernor;
 
 	public MediaScreenEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener,
 		final MediaProjection projection, final int width, final int height, final int density,
 		final int _bitrate, final int _fps) {
 
-		super(muxer, listener, width, height);
+		this(muxer, listener, projection, new CaptureRegion(width, height), density, _bitrate, _fps);
+	}
+
+	/**
+	 * Constructor to capture a part of screen and/or to downscale it
+	 * @param muxer
+	 * @param listener
+	 * @param projection
+	 * @param region size of VirtualDisplay is the source size and encoder input is the output size of this region
+	 * @param density
+	 * @param _bitrate
+	 * @param _fps
+	 */
+	public MediaScreenEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener,
+		final MediaProjection projection, final CaptureRegion region, final int density,
+		final int _bitrate, final int _fps) {
+
+		super(muxer, listener, region.getOutputWidth(), region.getOutputHeight());
+		mRegion.set(region);
 		mMediaProjection = projection;
 		mDensity = density;
 		fps = (_fps > 0 && _fps <= 30) ? _fps : FRAME_RATE;
 		bitrate = (_bitrate > 0) ? _bitrate : calcBitRate(_fps);
-		final HandlerThread thread = new HandlerThread(TAG);
-		thread.start();
-		mHandler = new Handler(thread.getLooper());
+		mHandler = mCallbackHandler;
+		mGovernor = new FrameGovernor(
+			new FrameScheduler(FrameScheduler.SYSTEM_CLOCK, 1000000000L / fps),
+			MAX_FRAME_INTERVAL_MS * 1000000L);
+	}
+
+	/**
+	 * set MediaProjection to capture. the encoder can be prepared without MediaProjection
+	 * to start recording quickly later(warm standby), in that case set it before #startRecording.
+	 * @param projection
+	 */
+	public void setMediaProjection(final MediaProjection projection) {
+		if (projection == null) throw new NullPointerException("MediaProjection is null");
+		synchronized (mSync) {
+			if (mMediaProjection != null)
+				throw new IllegalStateException("MediaProjection already set");
+			mMediaProjection = projection;
+			if (mIsRecording) {
+				// capturing was already started, create VirtualDisplay on the callback thread
+				mHandler.post(mScreenCaptureTask.mCreateDisplayTask);
+			}
+		}
+	}
+
+	/**
+	 * change crop rectangle, this can be called while recording.
+	 * output size is not changed, so the crop rectangle is fitted into it
+	 * with black bars when its aspect ratio differs from the output.
+	 * @param left in pixels of the VirtualDisplay
+	 * @param top
+	 * @param right
+	 * @param bottom
+	 * @throws IllegalArgumentException when the crop rectangle is empty
+	 */
+	public void setCrop(final int left, final int top, final int right, final int bottom) {
+		for ( ; ; ) {
+			final CaptureRegion prev = mRegion.get();
+			final CaptureRegion region = prev.withCrop(left, top, right, bottom);
+			if (mRegion.compareAndSet(prev, region)) {
+				if (DEBUG) Log.v(TAG, "setCrop:" + region);
+				break;
+			}
+		}
+		requestRedraw();
+	}
+
+	/**
+	 * draw current frame again even if screen content is not changed,
+	 * this also wakes up capturing while it is idle
+	 */
+	/*package*/ void requestRedraw() {
+		mHandler.post(mScreenCaptureTask.mRedrawTask);
+	}
+
+	public CaptureRegion getCaptureRegion() {
+		return mRegion.get();
+	}
+
+	/*package*/ int getFrameRate() {
+		return fps;
+	}
+
+	/**
+	 * additional encoder input surface that is drawn from the same texture
+	 */
+	private static final class Rendition {
+		private final MediaRenditionEncoder encoder;
+		private final Surface surface;
+		private final int fpsDivisor;
+		/** following fields are accessed only on the callback thread */
+		private EGLBase.IEglSurface eglSurface;
+		private CaptureRegion region;
+		/** region of MediaScreenEncoder that the crop of #region was taken from */
+		private CaptureRegion sourceRegion;
+		private int frames;
+
+		private Rendition(final MediaRenditionEncoder encoder, final Surface surface,
+			final int fpsDivisor, final CaptureRegion region) {
+
+			this.encoder = encoder;
+			this.surface = surface;
+			this.fpsDivisor = fpsDivisor;
+			this.region = region;
+		}
+	}
+
+	/**
+	 * draw captured frames also into input Surface of another encoder, this is called from MediaRenditionEncoder
+	 * @param encoder
+	 * @param surface input Surface of the encoder
+	 * @param fpsDivisor every fpsDivisor-th frame is drawn
+	 * @param region output size of the rendition, its crop rectangle follows this encoder
+	 */
+	/*package*/ void addRendition(final MediaRenditionEncoder encoder, final Surface surface,
+		final int fpsDivisor, final CaptureRegion region) {
+
+		synchronized (mRenditionSync) {
+			mRenditions.add(new Rendition(encoder, surface, fpsDivisor, region));
+		}
+		requestRedraw();
+	}
+
+	/**
+	 * stop drawing into input Surface of the encoder,
+	 * the Surface is not touched after this returned so the encoder can be released
+	 * @param encoder
+	 */
+	/*package*/ void removeRendition(final MediaRenditionEncoder encoder) {
+		synchronized (mRenditionSync) {
+			for (int i = mRenditions.size() - 1; i >= 0; i--) {
+				final Rendition rendition = mRenditions.get(i);
+				if (rendition.encoder == encoder) {
+					mRenditions.remove(i);
+					if (rendition.eglSurface != null) {
+						// EGL surface should be released on the callback thread
+						mDetachedSurfaces.add(rendition.eglSurface);
+						rendition.eglSurface = null;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * adjust bitrate and frame rate at runtime when encoder or storage can not keep up,
+	 * this should be called before prepare
+	 * @param minBitrate
+	 * @param maxBitrate
+	 * @param minFps
+	 */
+	public void setAdaptiveBitrate(final int minBitrate, final int maxBitrate, final int minFps) {
+		mMinBitrate = minBitrate;
+		mMaxBitrate = maxBitrate;
+		mMinFps = minFps;
 	}
 
 	@Override
 	protected void release() {
-		mHandler.getLooper().quit();
+		mIsRecording = false;
+		mHandler.removeCallbacks(mAdaptTask);
+		// capturing is stopped on the callback thread, the thread itself is shared and kept
+		mHandler.post(mScreenCaptureTask.mDrawTask);
 		super.release();
 	}
 
@@ -80,7 +261,12 @@ public class MediaScreenEncoder extends MediaVideoEncoderBase {
 		mSurface = prepare_surface_encoder(MIME_TYPE, fps, bitrate);
         mMediaCodec.start();
         mIsRecording = true;
-        new Thread(mScreenCaptureTask, "ScreenCaptureThread").start();
+        if (mMaxBitrate > 0) {
+        	mBitrateController = new BitrateController(mMinBitrate, mMaxBitrate, bitrate,
+        		Math.min(mMinFps > 0 ? mMinFps : 1, fps), fps);
+        	mHandler.postDelayed(mAdaptTask, ADAPT_INTERVAL_MS);
+        }
+        mHandler.post(mScreenCaptureTask.mStartTask);
         if (DEBUG) Log.i(TAG, "prepare finishing");
         if (mListener != null) {
         	try {
@@ -97,57 +283,200 @@ public class MediaScreenEncoder extends MediaVideoEncoderBase {
 		if (DEBUG) Log.v(TAG,  "stopRecording:");
 		synchronized (mSync) {
 			mIsRecording = false;
-			mSync.notifyAll();
 		}
+		mHandler.removeCallbacks(mAdaptTask);
+		// capturing is stopped and resources are released on the callback thread
+		mHandler.post(mScreenCaptureTask.mDrawTask);
 		super.stopRecording();
 	}
 
+	/**
+	 * nothing is drawn into the encoder while paused,
+	 * capturing stops VirtualDisplay unless renditions still need frames
+	 */
+	@Override
+	void pauseRecording() {
+		super.pauseRecording();
+		mHandler.post(mScreenCaptureTask.mDrawTask);
+	}
+
+	@Override
+	void resumeRecording() {
+		super.resumeRecording();
+		// draw latest frame immediately, it is encoded as a key frame
+		requestRedraw();
+	}
+
+	/**
+	 * periodically feed back-pressure values to BitrateController on mHandler
+	 */
+	private final Runnable mAdaptTask = new Runnable() {
+		@Override
+		public void run() {
+			final MediaMuxerWrapper muxer = mWeakMuxer.get();
+			if (!mIsRecording || (muxer == null)) return;
+			final EncoderMetrics metrics = muxer.getMetrics();
+			final long now = SystemClock.elapsedRealtime();
+			final int queueDepth = metrics.takeWindowMaxQueueDepth();
+			final long writeLatencyUs = metrics.takeWindowMaxLatency(EncoderMetrics.STAGE_WRITE);
+			// same format as trace of BitrateSimulation
+			if (DEBUG) Log.v(TAG, "trace:" + now + "," + queueDepth + "," + writeLatencyUs);
+			if (mBitrateController.update(now, queueDepth, writeLatencyUs)) {
+
+				final int bitrate = mBitrateController.getBitrate();
+				final int fps = mBitrateController.getFps();
+				if (DEBUG) Log.v(TAG, "adapt:bitrate=" + bitrate + ",fps=" + fps);
+				setBitrate(bitrate);
+				mGovernor.setMinIntervalNs(1000000000L / fps);
+			}
+			mHandler.postDelayed(this, ADAPT_INTERVAL_MS);
+		}
+	};
+
 
 	private final Object mSync = new Object();
 	private volatile boolean mIsRecording;
 
-	private boolean requestDraw;
-	private final DrawTask mScreenCaptureTask = new DrawTask(null, 0);
+	/**
+	 * drawing into renditions is done while holding this
+	 * so that they can be removed safely from other thread
+	 */
+	private final Object mRenditionSync = new Object();
+	private final List<Rendition> mRenditions = new ArrayList<Rendition>();
+	private final List<EGLBase.IEglSurface> mDetachedSurfaces = new ArrayList<EGLBase.IEglSurface>();
+	private final DrawTask mScreenCaptureTask = new DrawTask();
 
-	private final class DrawTask extends EglTask {
+	/**
+	 * capturing and drawing frames, all methods and fields are only accessed on the callback thread.
+	 * nothing blocks here, waiting for the next frame slot is a delayed message of the Handler.
+	 */
+	private final class DrawTask {
+		private EGLBase mEgl;
+		/** offscreen surface to keep EGL context current while nothing is drawn */
+		private EGLBase.IEglSurface mOffscreen;
 		private VirtualDisplay display;
-		private long intervals;
+		/** whether Surface of VirtualDisplay was detached while paused */
+		private boolean mDisplayPaused;
 		private int mTexId;
 		private SurfaceTexture mSourceTexture;
 		private Surface mSourceSurface;
     	private EGLBase.IEglSurface mEncoderSurface;
     	private GLDrawer2D mDrawer;
     	private final float[] mTexMatrix = new float[16];
+    	/** mTexMatrix multiplied with crop matrix */
+    	private final float[] mDrawMatrix = new float[16];
+    	private EncoderMetrics mMetrics;
+		private boolean requestDraw;
+		/**
+		 * System.nanoTime when the latest frame became available
+		 */
+		private long mFrameAvailableNs;
+		/**
+		 * time that delayed mDrawTask should run for next frame slot, negative if not waiting for it
+		 */
+		private long mWakeupNs = -1;
 
-    	public DrawTask(final EGLBase.IContext sharedContext, final int flags) {
-    		super(sharedContext, flags);
-    	}
-
-		@Override
-		protected void onStart() {
+		private void onStart() {
 		    if (DEBUG) Log.d(TAG,"mScreenCaptureTask#onStart:");
+		    mEgl = EGLBase.createFrom(null, false, false);
+		    mOffscreen = mEgl.createOffscreen(1, 1);
+		    mOffscreen.makeCurrent();
 			mDrawer = new GLDrawer2D(true);
 			mTexId = mDrawer.initTex();
 			mSourceTexture = new SurfaceTexture(mTexId);
-			mSourceTexture.setDefaultBufferSize(mWidth, mHeight);	// これを入れないと映像が取れない
+			final CaptureRegion region = mRegion.get();
+			mSourceTexture.setDefaultBufferSize(region.getSourceWidth(), region.getSourceHeight());	// これを入れないと映像が取れない
 			mSourceSurface = new Surface(mSourceTexture);
 			mSourceTexture.setOnFrameAvailableListener(mOnFrameAvailableListener, mHandler);
-			mEncoderSurface = getEgl().createFromSurface(mSurface);
+			mEncoderSurface = mEgl.createFromSurface(mSurface);
+			final MediaMuxerWrapper muxer = mWeakMuxer.get();
+			mMetrics = muxer != null ? muxer.getMetrics() : null;
+			if (mMediaProjection != null) {
+				createVirtualDisplay();
+			}
+			// 録画タスクを起床
+			mDrawTask.run();
+		}
 
+		private final Runnable mStartTask = new Runnable() {
+			@Override
+			public void run() {
+				if (!mIsRecording || (mEgl != null)) return;
+				try {
+					onStart();
+				} catch (final RuntimeException e) {
+					onStop();
+					handleError(e);
+				}
+			}
+		};
+
+		/**
+		 * create VirtualDisplay when MediaProjection is available
+		 */
+		private void createVirtualDisplay() {
+			if (display != null) return;
 	    	if (DEBUG) Log.d(TAG,"setup VirtualDisplay");
-			intervals = (long)(1000f / fps);
+			final CaptureRegion region = mRegion.get();
 		    display = mMediaProjection.createVirtualDisplay(
 		    	"Capturing Display",
-		    	mWidth, mHeight, mDensity,
+		    	region.getSourceWidth(), region.getSourceHeight(), mDensity,
 		    	DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
 		    	mSourceSurface, mCallback, mHandler);
 			if (DEBUG) Log.v(TAG,  "screen capture loop:display=" + display);
-			// 録画タスクを起床
-			queueEvent(mDrawTask);
 		}
 
-		@Override
-		protected void onStop() {
+		/**
+		 * detach Surface from VirtualDisplay so that the screen is not composited into it while idle
+		 */
+		private void pauseDisplay() {
+			if ((display != null) && !mDisplayPaused) {
+				if (DEBUG) Log.v(TAG, "pauseDisplay:");
+				display.setSurface(null);
+				mDisplayPaused = true;
+			}
+		}
+
+		/**
+		 * attach Surface to VirtualDisplay again
+		 */
+		private void resumeDisplay() {
+			if (mDisplayPaused) {
+				if (DEBUG) Log.v(TAG, "resumeDisplay:");
+				mDisplayPaused = false;
+				display.setSurface(mSourceSurface);
+				// slots of the scheduler restart from the first frame after resuming
+				// instead of counting the paused period as missed slots
+				mGovernor.getScheduler().reset();
+			}
+		}
+
+		/**
+		 * whether nothing needs frames now, i.e. paused and no rendition is capturing
+		 * @return
+		 */
+		private boolean isIdle() {
+			if (!mRequestPause) return false;
+			synchronized (mRenditionSync) {
+				for (final Rendition rendition: mRenditions) {
+					if (rendition.encoder.isCapturing()) return false;
+				}
+			}
+			return true;
+		}
+
+		private final Runnable mCreateDisplayTask = new Runnable() {
+			@Override
+			public void run() {
+				if (mIsRecording && (mSourceSurface != null)) {
+					createVirtualDisplay();
+				}
+			}
+		};
+
+		private void onStop() {
+			mHandler.removeCallbacks(mDrawTask);
+			if (mEgl == null) return;
 			if (mDrawer != null) {
 				mDrawer.release();
 				mDrawer = null;
@@ -164,28 +493,99 @@ public class MediaScreenEncoder extends MediaVideoEncoderBase {
 				mEncoderSurface.release();
 				mEncoderSurface = null;
 			}
-			makeCurrent();
-			if (DEBUG) Log.v(TAG, "mScreenCaptureTask#onStop:");
+			synchronized (mRenditionSync) {
+				for (final Rendition rendition: mRenditions) {
+					if (rendition.eglSurface != null) {
+						rendition.eglSurface.release();
+						rendition.eglSurface = null;
+					}
+				}
+				releaseDetachedSurfaces();
+			}
+			if (mOffscreen != null) {
+				mOffscreen.makeCurrent();
+			}
+			if (DEBUG) Log.v(TAG, "mScreenCaptureTask#onStop:drawn=" + mGovernor.getDrawnFrames()
+				+ ",duplicated=" + mGovernor.getDuplicatedFrames() + "," + mGovernor.getScheduler());
 			if (display != null) {
 				if (DEBUG) Log.v(TAG,  "release VirtualDisplay");
 				display.release();
+				display = null;
 			}
 			if (DEBUG) Log.v(TAG,  "tear down MediaProjection");
 		    if (mMediaProjection != null) {
 	            mMediaProjection.stop();
 	            mMediaProjection = null;
 	        }
+			if (mOffscreen != null) {
+				mOffscreen.release();
+				mOffscreen = null;
+			}
+			mEgl.release();
+			mEgl = null;
 		}
 
-		@Override
-		protected boolean onError(final Exception e) {
-			if (DEBUG) Log.w(TAG, "mScreenCaptureTask:", e);
-			return false;
+		/**
+		 * draw current texture into renditions
+		 * @param sourceRegion
+		 */
+		private void drawRenditions(final CaptureRegion sourceRegion) {
+			synchronized (mRenditionSync) {
+				releaseDetachedSurfaces();
+				for (final Rendition rendition: mRenditions) {
+					if (!rendition.encoder.isCapturing()
+						|| ((rendition.frames++ % rendition.fpsDivisor) != 0)) continue;
+					if (rendition.eglSurface == null) {
+						rendition.eglSurface = mEgl.createFromSurface(rendition.surface);
+					}
+					if (rendition.sourceRegion != sourceRegion) {
+						// crop rectangle was changed
+						rendition.region = rendition.region.withCrop(sourceRegion.getLeft(), sourceRegion.getTop(),
+							sourceRegion.getRight(), sourceRegion.getBottom());
+						rendition.sourceRegion = sourceRegion;
+					}
+					draw(rendition.eglSurface, rendition.region);
+					rendition.encoder.frameAvailableSoon();
+				}
+			}
 		}
 
-		@Override
-		protected Object processRequest(final int request, final int arg1, final int arg2, final Object obj) {
-			return null;
+		/**
+		 * this should be called while holding mRenditionSync
+		 */
+		private void releaseDetachedSurfaces() {
+			for (final EGLBase.IEglSurface surface: mDetachedSurfaces) {
+				surface.release();
+			}
+			mDetachedSurfaces.clear();
+		}
+
+		/**
+		 * draw current texture into encoder input surface with crop/scale of the region
+		 * @param surface
+		 * @param region
+		 */
+		private void draw(final EGLBase.IEglSurface surface, final CaptureRegion region) {
+			region.getTexMatrix(mTexMatrix, 0, mDrawMatrix, 0);
+			surface.makeCurrent();
+			if (!region.isFullViewport()) {
+				// clear bars outside of the viewport
+				GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+			}
+			GLES20.glViewport(region.getViewportX(), region.getViewportY(),
+				region.getViewportWidth(), region.getViewportHeight());
+			mDrawer.draw(mTexId, mDrawMatrix, 0);
+			surface.swap();
+		}
+
+		/**
+		 * run mDrawTask when next action is due, Handler has millisecond resolution
+		 * so the wait is at least 1 ms and oversleep is compensated by FrameScheduler
+		 * @param waitNs
+		 */
+		private void scheduleDraw(final long waitNs) {
+			mWakeupNs = mGovernor.getScheduler().now() + waitNs;
+			mHandler.postDelayed(mDrawTask, Math.max(1, waitNs / 1000000L));
 		}
 
 		// TextureSurfaceで映像を受け取った際のコールバックリスナー
@@ -194,48 +594,94 @@ public class MediaScreenEncoder extends MediaVideoEncoderBase {
 			public void onFrameAvailable(final SurfaceTexture surfaceTexture) {
 //				if (DEBUG) Log.v(TAG, "onFrameAvailable:mIsRecording=" + mIsRecording);
 				if (mIsRecording) {
-					synchronized (mSync) {
-						requestDraw = true;
-						mSync.notifyAll();
-					}
+					mFrameAvailableNs = System.nanoTime();
+					requestDraw = true;
+					mDrawTask.run();
 				}
 			}
 		};
 
+		private final Runnable mRedrawTask = new Runnable() {
+			@Override
+			public void run() {
+				requestDraw = true;
+				mDrawTask.run();
+			}
+		};
+
+		/**
+		 * draw a frame if it is due and schedule next run,
+		 * this is also run immediately when new frame came or state of recording changed
+		 */
 		private final Runnable mDrawTask = new Runnable() {
 			@Override
 			public void run() {
 //				if (DEBUG) Log.v(TAG, "draw:");
-				boolean local_request_draw;
-				synchronized (mSync) {
-					local_request_draw = requestDraw;
-					if (!requestDraw) {
-						try {
-							mSync.wait(intervals);
-							local_request_draw = requestDraw;
-							requestDraw = false;
-						} catch (final InterruptedException e) {
-							return;
-						}
-					}
+				if (!mIsRecording) {
+					onStop();
+					return;
 				}
-				if (mIsRecording) {
-					if (local_request_draw) {
-						mSourceTexture.updateTexImage();
-						mSourceTexture.getTransformMatrix(mTexMatrix);
+				if (mSourceTexture == null) return;	// not started yet
+				// this may run before delayed one, only one is kept pending
+				mHandler.removeCallbacks(this);
+				if (mWakeupNs >= 0) {
+					mGovernor.getScheduler().onWakeup(mWakeupNs);
+					mWakeupNs = -1;
+				}
+				try {
+					if (isIdle()) {
+						// nothing is drawn or encoded while paused instead of encoding and discarding frames
+						pauseDisplay();
+						// frames that became available while pausing are discarded
+						requestDraw = false;
+						// resuming runs this again immediately
+						mHandler.postDelayed(this, MAX_FRAME_INTERVAL_MS);
+						return;
+					}
+					resumeDisplay();
+					// wait for new frame or until previous frame should be drawn again
+					final long waitNs = mGovernor.getWaitNs(requestDraw);
+					if (waitNs > 0) {
+						scheduleDraw(waitNs);
+						return;
+					}
+					final int action = mGovernor.next(requestDraw);
+					if (action == FrameGovernor.DRAW) {
+						requestDraw = false;
+					}
+					if (action != FrameGovernor.SKIP) {
+						if (action == FrameGovernor.DRAW) {
+							mSourceTexture.updateTexImage();
+							mSourceTexture.getTransformMatrix(mTexMatrix);
+						}
+						final CaptureRegion region = mRegion.get();
+						// only renditions are drawn while this encoder is paused
+						final boolean paused = mRequestPause;
+						if (!paused) {
+							// SurfaceTextureで受け取った画像をMediaCodecの入力用Surfaceへ描画する
+							draw(mEncoderSurface, region);
+						}
+						mGovernor.onDrawn(action == FrameGovernor.DRAW_DUPLICATE);
+						if (!paused && (action == FrameGovernor.DRAW) && (mMetrics != null)) {
+							mMetrics.recordLatency(EncoderMetrics.STAGE_DRAW,
+								(System.nanoTime() - mFrameAvailableNs) / 1000L);
+						}
+						// same texture is drawn into other encoders without uploading again
+						drawRenditions(region);
+						// EGL保持用のオフスクリーンに描画しないとハングアップする機種の為のworkaround
+						mOffscreen.makeCurrent();
+						GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+						GLES20.glFlush();
+						if (!paused) {
+							frameAvailableSoon();
+						}
 					}
-					// SurfaceTextureで受け取った画像をMediaCodecの入力用Surfaceへ描画する
-					mEncoderSurface.makeCurrent();
-					mDrawer.draw(mTexId, mTexMatrix, 0);
-			    	mEncoderSurface.swap();
-			    	// EGL保持用のオフスクリーンに描画しないとハングアップする機種の為のworkaround
-					makeCurrent();
-					GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-					GLES20.glFlush();
-					frameAvailableSoon();
-					queueEvent(this);
-				} else {
-					releaseSelf();
+					scheduleDraw(mGovernor.getWaitNs(requestDraw));
+				} catch (final RuntimeException e) {
+					// the callback thread is shared with other encoders and should keep running,
+					// this encoder is stopped instead
+					onStop();
+					handleError(e);
 				}
 //				if (DEBUG) Log.v(TAG, "draw:finished");
 			}
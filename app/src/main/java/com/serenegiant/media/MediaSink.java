@@ -0,0 +1,333 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: MediaSink.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Additional consumer of encoded samples that is fed with the same samples as the muxer
+ * of MediaMuxerWrapper, so one encoded stream can be written to several outputs without re-encoding.
+ * Each sink has its own bounded queue for each track and its own thread.
+ * When the sink can not keep up, samples are dropped instead of blocking the encoder
+ * (video samples are dropped until next key frame), and the sink is aborted
+ * when it did not consume anything for a while. A sink that serves replaceable clients
+ * can drop only the slow client and keep running instead, see #onAbort.
+ * Optionally samples that waited in the queue longer than latency budget are also dropped
+ * so that live output does not fall behind.
+ */
+public abstract class MediaSink {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = MediaSink.class.getSimpleName();
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 32;
+	/**
+	 * maximum duration to park sink thread when no sample is queued
+	 */
+	private static final long PARK_NS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final String mName;
+	private final int mQueueCapacity;
+	/**
+	 * sink is aborted when this number of samples were dropped in a row
+	 */
+	private final int mMaxConsecutiveDrops;
+	private volatile SampleQueue[] mQueues;
+	// following arrays are accessed only from the producer thread of each track
+	private boolean[] mIsVideo;
+	private boolean[] mWaitKeyFrame;
+	private int[] mConsecutiveDrops;
+	private MediaFormat[] mFormats;
+	private Thread mThread;
+	private volatile boolean mRequestStop;
+	private volatile boolean mIsClosed;
+	/**
+	 * request to discard queued samples on sink thread after the slow consumer was dropped
+	 */
+	private volatile boolean mRequestFlush;
+	private final AtomicLong mDropped = new AtomicLong();
+	private volatile long mLatencyBudgetNs;
+	private volatile MediaMuxerWrapper mMuxer;
+
+	/**
+	 * Constructor
+	 * @param name name of sink thread
+	 * @param queueCapacity number of samples that can be queued for each track
+	 */
+	protected MediaSink(final String name, final int queueCapacity) {
+		mName = name;
+		mQueueCapacity = queueCapacity;
+		mMaxConsecutiveDrops = queueCapacity * 4;
+	}
+
+	/**
+	 * whether this sink was closed by error or by slow consumer
+	 * @return
+	 */
+	public boolean isClosed() {
+		return mIsClosed;
+	}
+
+	/**
+	 * number of samples dropped because this sink could not keep up
+	 * @return
+	 */
+	public long getDroppedSamples() {
+		return mDropped.get();
+	}
+
+	/**
+	 * samples that waited in the queue longer than this are dropped on sink thread
+	 * @param budgetMs 0 means unlimited
+	 */
+	public void setLatencyBudgetMs(final long budgetMs) {
+		mLatencyBudgetNs = TimeUnit.MILLISECONDS.toNanos(budgetMs);
+	}
+
+	/**
+	 * request key frame from video encoder, e.g. when new receiver connected
+	 */
+	protected void requestSyncFrame() {
+		final MediaMuxerWrapper muxer = mMuxer;
+		if (muxer != null) {
+			muxer.requestSyncFrame();
+		}
+	}
+
+	/**
+	 * MIME type of the track, sub class can override this for testing
+	 * because MediaFormat does not work on JVM
+	 * @param format
+	 * @return null if format is null
+	 */
+	protected String getMime(final MediaFormat format) {
+		return format != null ? format.getString(MediaFormat.KEY_MIME) : null;
+	}
+
+	/**
+	 * codec specific data of the track, sub class can override this for testing
+	 * @param format
+	 * @param key "csd-0" or "csd-1"
+	 * @return
+	 */
+	protected ByteBuffer getCodecSpecificData(final MediaFormat format, final String key) {
+		return format != null ? format.getByteBuffer(key) : null;
+	}
+
+	/**
+	 * called on sink thread before any sample
+	 * @param formats output format of each track, indexed by track index, some elements can be null
+	 * @throws IOException
+	 */
+	protected abstract void onStart(final MediaFormat[] formats) throws IOException;
+
+	/**
+	 * called on sink thread for each sample in order of presentationTimeUs across tracks
+	 * @param trackIndex
+	 * @param buf encoded data, position is 0 and limit is size
+	 * @param size
+	 * @param presentationTimeUs
+	 * @param flags
+	 * @throws IOException the sink is closed when IOException is thrown
+	 */
+	protected abstract void onSample(final int trackIndex, final ByteBuffer buf, final int size,
+		final long presentationTimeUs, final int flags) throws IOException;
+
+	/**
+	 * called on sink thread when the sink finished, release resources here
+	 */
+	protected abstract void onStop();
+
+	/**
+	 * called on the producer thread when the consumer is too slow.
+	 * sub class should unblock the sink thread here, e.g. close the socket
+	 * @return true if only the slow consumer was dropped and the sink keeps running,
+	 * 			queued samples are discarded then. false to close the sink.
+	 */
+	protected boolean onAbort() {
+		return false;
+	}
+
+	/**
+	 * start sink thread, this is called from MediaMuxerWrapper
+	 * @param muxer
+	 * @param formats
+	 */
+	/*package*/ final void start(final MediaMuxerWrapper muxer, final MediaFormat[] formats) {
+		final int n = formats.length;
+		final SampleQueue[] queues = new SampleQueue[n];
+		mIsVideo = new boolean[n];
+		mWaitKeyFrame = new boolean[n];
+		mConsecutiveDrops = new int[n];
+		for (int i = 0; i < n; i++) {
+			if (formats[i] != null) {
+				queues[i] = new SampleQueue(mQueueCapacity);
+				final String mime = getMime(formats[i]);
+				mIsVideo[i] = (mime != null) && mime.startsWith("video/");
+				// decoder can not start from non key frame
+				mWaitKeyFrame[i] = mIsVideo[i];
+			}
+		}
+		mFormats = formats.clone();
+		mMuxer = muxer;
+		mRequestStop = mIsClosed = mRequestFlush = false;
+		mQueues = queues;
+		mThread = new Thread(mSinkTask, mName);
+		mThread.start();
+	}
+
+	/**
+	 * queue encoded data, this never blocks. this is called from MediaMuxerWrapper
+	 * @param trackIndex
+	 * @param byteBuf position and limit are not changed
+	 * @param bufferInfo
+	 */
+	/*package*/ final void offer(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+		final SampleQueue[] queues = mQueues;
+		if (mIsClosed || (queues == null) || (trackIndex >= queues.length) || (queues[trackIndex] == null)) return;
+		if (mWaitKeyFrame[trackIndex]) {
+			if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0) {
+				mDropped.incrementAndGet();
+				return;
+			}
+			mWaitKeyFrame[trackIndex] = false;
+		}
+		if (queues[trackIndex].offer(byteBuf, bufferInfo.offset, bufferInfo.size,
+			bufferInfo.presentationTimeUs, bufferInfo.flags)) {
+
+			mConsecutiveDrops[trackIndex] = 0;
+		} else {
+			// slow consumer, drop the sample not to stall the encoder
+			mDropped.incrementAndGet();
+			if (mIsVideo[trackIndex] && !mWaitKeyFrame[trackIndex]) {
+				mWaitKeyFrame[trackIndex] = true;
+				requestSyncFrame();
+			}
+			if (++mConsecutiveDrops[trackIndex] >= mMaxConsecutiveDrops) {
+				mConsecutiveDrops[trackIndex] = 0;
+				if (onAbort()) {
+					Log.w(TAG, mName + ":consumer is too slow, dropped");
+					mRequestFlush = true;
+				} else {
+					Log.w(TAG, mName + ":consumer is too slow, abort");
+					mIsClosed = true;
+				}
+			}
+		}
+		LockSupport.unpark(mThread);
+	}
+
+	/**
+	 * write remaining samples and stop sink thread, this is called from MediaMuxerWrapper
+	 */
+	/*package*/ final void stop() {
+		mRequestStop = true;
+		final Thread thread = mThread;
+		mThread = null;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+			try {
+				thread.join();
+			} catch (final InterruptedException e) {
+				// ignore
+			}
+		}
+		mQueues = null;
+		mMuxer = null;
+	}
+
+	private final Runnable mSinkTask = new Runnable() {
+		@Override
+		public void run() {
+			if (DEBUG) Log.v(TAG, mName + ":started");
+			final SampleQueue[] queues = mQueues;
+			final int n = queues.length;
+			// tracks that wait for key frame after dropping stale samples
+			final boolean[] resync = new boolean[n];
+			try {
+				onStart(mFormats);
+				for ( ; !mIsClosed ; ) {
+					if (mRequestFlush) {
+						mRequestFlush = false;
+						// samples for the dropped consumer, next one starts from key frame
+						for (int i = 0; i < n; i++) {
+							if (queues[i] != null) {
+								queues[i].clear();
+								if (mIsVideo[i] && !resync[i]) {
+									resync[i] = true;
+									requestSyncFrame();
+								}
+							}
+						}
+					}
+					// select the oldest sample across tracks
+					int trackIx = -1;
+					SampleQueue.Sample oldest = null;
+					for (int i = 0; i < n; i++) {
+						final SampleQueue.Sample sample = queues[i] != null ? queues[i].peek() : null;
+						if ((sample != null)
+							&& ((oldest == null) || (sample.presentationTimeUs < oldest.presentationTimeUs))) {
+
+							oldest = sample;
+							trackIx = i;
+						}
+					}
+					if (oldest != null) {
+						final long budget = mLatencyBudgetNs;
+						if ((budget > 0) && (System.nanoTime() - oldest.queuedTimeNs > budget)) {
+							// too late for live output
+							mDropped.incrementAndGet();
+							if (mIsVideo[trackIx] && !resync[trackIx]) {
+								resync[trackIx] = true;
+								requestSyncFrame();
+							}
+						} else if (resync[trackIx] && ((oldest.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0)) {
+							mDropped.incrementAndGet();
+						} else {
+							resync[trackIx] = false;
+							onSample(trackIx, oldest.buffer, oldest.size, oldest.presentationTimeUs, oldest.flags);
+						}
+						queues[trackIx].remove();
+					} else if (mRequestStop) {
+						break;
+					} else {
+						LockSupport.parkNanos(this, PARK_NS);
+					}
+				}
+			} catch (final IOException e) {
+				Log.w(TAG, mName + ":closed", e);
+			} finally {
+				mIsClosed = true;
+				onStop();
+			}
+			if (DEBUG) Log.v(TAG, mName + ":finished,dropped=" + mDropped.get());
+		}
+	};
+}
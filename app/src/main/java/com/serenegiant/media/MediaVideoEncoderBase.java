@@ -24,8 +24,8 @@ package com.serenegiant.media;
 
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
+import android.os.Bundle;
 import android.util.Log;
 import android.view.Surface;
 
@@ -73,17 +73,17 @@ public abstract class MediaVideoEncoderBase extends MediaEncoder {
 		mTrackIndex = -1;
         mMuxerStarted = mIsEOS = false;
 
-        final MediaCodecInfo videoCodecInfo = selectVideoCodec(mime);
-        if (videoCodecInfo == null) {
+        final CodecCapabilityIndex.Entry codec = selectVideoCodec(mime, mWidth, mHeight, frame_rate);
+        if (codec == null) {
             throw new IllegalArgumentException("Unable to find an appropriate codec for " + mime);
         }
-		if (DEBUG) Log.i(TAG, "selected codec: " + videoCodecInfo.getName());
+		if (DEBUG) Log.i(TAG, "selected codec: " + codec.name);
 
         final MediaFormat format = create_encoder_format(mime, frame_rate, bitrate);
 		if (DEBUG) Log.i(TAG, "format: " + format);
 
-        mMediaCodec = MediaCodec.createEncoderByType(mime);
-        mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mMediaCodec = MediaCodec.createByCodecName(codec.name);
+        configureEncoder(format);
         // get Surface for encoder input
         // this method only can call between #configure and #start
         return mMediaCodec.createInputSurface();	// API >= 18
@@ -96,92 +96,84 @@ public abstract class MediaVideoEncoderBase extends MediaEncoder {
 	}
 
     /**
-     * select the first codec that match a specific MIME type
+     * select the best encoder that accepts input from Surface, from the codec capability index.
+     * when no encoder claims to support the size and frame rate, the best one for the MIME type
+     * is selected because the limits that encoders report are not always accurate.
      * @param mimeType
+     * @param width
+     * @param height
+     * @param frameRate
      * @return null if no codec matched
      */
-    @SuppressWarnings("deprecation")
-	protected static final MediaCodecInfo selectVideoCodec(final String mimeType) {
-    	if (DEBUG) Log.v(TAG, "selectVideoCodec:");
+	protected static final CodecCapabilityIndex.Entry selectVideoCodec(final String mimeType,
+		final int width, final int height, final int frameRate) {
 
-    	// get the list of available codecs
-        final int numCodecs = MediaCodecList.getCodecCount();
-        for (int i = 0; i < numCodecs; i++) {
-        	final MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-
-            if (!codecInfo.isEncoder()) {	// skipp decoder
-                continue;
-            }
-            // select first codec that match a specific MIME type and color format
-            final String[] types = codecInfo.getSupportedTypes();
-            for (int j = 0; j < types.length; j++) {
-                if (types[j].equalsIgnoreCase(mimeType)) {
-                	if (DEBUG) Log.i(TAG, "codec:" + codecInfo.getName() + ",MIME=" + types[j]);
-            		final int format = selectColorFormat(codecInfo, mimeType);
-                	if (format > 0) {
-                		return codecInfo;
-                	}
-                }
-            }
-        }
-        return null;
+    	if (DEBUG) Log.v(TAG, "selectVideoCodec:");
+		final CodecCapabilityIndex index = CodecIndexLoader.getIndex();
+		final CodecCapabilityIndex.Entry result = index.selectVideoEncoder(mimeType, width, height, frameRate);
+		if (result != null) {
+			return result;
+		}
+		Log.w(TAG, String.format("no encoder claims to support (%d,%d)@%d", width, height, frameRate));
+		return index.selectVideoEncoder(mimeType, 0, 0, 0);
     }
 
-    /**
-     * select color format available on specific codec and we can use.
-     * @return 0 if no colorFormat is matched
-     */
-    protected static final int selectColorFormat(final MediaCodecInfo codecInfo, final String mimeType) {
-		if (DEBUG) Log.i(TAG, "selectColorFormat: ");
-    	int result = 0;
-    	final MediaCodecInfo.CodecCapabilities caps;
-    	try {
-    		Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-    		caps = codecInfo.getCapabilitiesForType(mimeType);
-    	} finally {
-    		Thread.currentThread().setPriority(Thread.NORM_PRIORITY);
-    	}
-        int colorFormat;
-        for (int i = 0; i < caps.colorFormats.length; i++) {
-        	colorFormat = caps.colorFormats[i];
-            if (isRecognizedViewoFormat(colorFormat)) {
-            	if (result == 0)
-            		result = colorFormat;
-                break;
-            }
-        }
-        if (result == 0)
-        	Log.e(TAG, "couldn't find a good color format for " + codecInfo.getName() + " / " + mimeType);
-        return result;
-    }
+	/**
+	 * input frames from Surface are stamped with System.nanoTime
+	 */
+	@Override
+	protected long getInputTimeOffsetUs() {
+		return 0;
+	}
 
 	/**
-	 * color formats that we can use in this class
+	 * nothing is encoded while paused, so output restarts with a key frame
+	 * to make the resumed part decodable without the frames before pausing
 	 */
-    protected static int[] recognizedFormats;
-	static {
-		recognizedFormats = new int[] {
-//        	MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar,
-//        	MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar,
-//        	MediaCodecInfo.CodecCapabilities.COLOR_QCOM_FormatYUV420SemiPlanar,
-        	MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface,
-		};
+	@Override
+	void resumeRecording() {
+		final boolean paused = mRequestPause;
+		super.resumeRecording();
+		if (paused && !mRequestPause) {
+			requestSyncFrame();
+		}
 	}
 
-    protected static final boolean isRecognizedViewoFormat(final int colorFormat) {
-		if (DEBUG) Log.i(TAG, "isRecognizedViewoFormat:colorFormat=" + colorFormat);
-    	final int n = recognizedFormats != null ? recognizedFormats.length : 0;
-    	for (int i = 0; i < n; i++) {
-    		if (recognizedFormats[i] == colorFormat) {
-    			return true;
-    		}
-    	}
-    	return false;
-    }
+	@Override
+	void requestSyncFrame() {
+		final MediaCodec codec = mMediaCodec;
+		if (codec != null) {
+			final Bundle params = new Bundle();
+			params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+			try {
+				codec.setParameters(params);	// API >= 19
+			} catch (final IllegalStateException e) {
+				Log.w(TAG, "requestSyncFrame:", e);
+			}
+		}
+	}
+
+	/**
+	 * change target bitrate of running encoder
+	 * @param bitrate [bps]
+	 */
+	/*package*/ void setBitrate(final int bitrate) {
+		final MediaCodec codec = mMediaCodec;
+		if (codec != null) {
+			final Bundle params = new Bundle();
+			params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+			try {
+				codec.setParameters(params);	// API >= 19
+			} catch (final IllegalStateException e) {
+				Log.w(TAG, "setBitrate:", e);
+			}
+		}
+	}
 
     @Override
     protected void signalEndOfInputStream() {
 		if (DEBUG) Log.d(TAG, "sending EOS to encoder");
+		if ((mMediaCodec == null) || !mIsCapturing) return;	// not started
 		mMediaCodec.signalEndOfInputStream();	// API >= 18
 		mIsEOS = true;
 	}
@@ -0,0 +1,234 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: MpegTsSink.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * MediaSink that serves live MPEG-TS over TCP to one local client at a time,
+ * e.g. `adb forward tcp:8554 tcp:8554` and `ffplay -fflags nobuffer tcp://127.0.0.1:8554`.
+ * When a client connects a key frame is requested from the video encoder and
+ * output starts from it, a new client replaces the previous one.
+ * A client that can not keep up is disconnected and the next client is served
+ * from the next key frame with fresh PAT/PMT.
+ *
+ * Target glass-to-glass latency is DEFAULT_LATENCY_BUDGET_MS for this sink plus
+ * screen capture(1 frame), encoder(typically 1-3 frames) and receiver buffering
+ * (MpegTsWriter delays presentation 100ms from PCR), about 400ms at 15fps.
+ * Samples that waited in the queue of this sink longer than the budget are dropped.
+ */
+public class MpegTsSink extends MediaSink {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = MpegTsSink.class.getSimpleName();
+
+	public static final long DEFAULT_LATENCY_BUDGET_MS = 100;
+
+	private final int mPort;
+	private ServerSocketChannel mServer;
+	private Thread mAcceptThread;
+	/**
+	 * client that was accepted but is not used yet
+	 */
+	private final AtomicReference<SocketChannel> mPendingClient = new AtomicReference<SocketChannel>();
+	private volatile SocketChannel mClient;
+	private MpegTsWriter mWriter;
+	private MediaFormat[] mFormats;
+	/**
+	 * track index of MpegTsWriter for each track, -1 if the track is not sent
+	 */
+	private int[] mTsTracks;
+	private int mVideoTrack;
+	private boolean mWaitKeyFrame;
+
+	/**
+	 * Constructor
+	 * @param port port to listen on loopback interface
+	 */
+	public MpegTsSink(final int port) {
+		super(TAG, DEFAULT_QUEUE_CAPACITY);
+		mPort = port;
+		setLatencyBudgetMs(DEFAULT_LATENCY_BUDGET_MS);
+	}
+
+	@Override
+	protected void onStart(final MediaFormat[] formats) throws IOException {
+		mFormats = formats;
+		mServer = ServerSocketChannel.open();
+		mServer.socket().setReuseAddress(true);
+		mServer.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), mPort));
+		mAcceptThread = new Thread(mAcceptTask, TAG + "Accept");
+		mAcceptThread.start();
+		if (DEBUG) Log.v(TAG, "listening on " + mPort);
+	}
+
+	@Override
+	protected void onSample(final int trackIndex, final ByteBuffer buf, final int size,
+		final long presentationTimeUs, final int flags) throws IOException {
+
+		final SocketChannel client = mPendingClient.getAndSet(null);
+		if (client != null) {
+			closeClient();
+			mClient = client;
+			mWriter = createWriter(client);
+			mWaitKeyFrame = mVideoTrack >= 0;
+		}
+		if ((mWriter == null) || (trackIndex >= mTsTracks.length) || (mTsTracks[trackIndex] < 0)) return;
+		final boolean isSync = (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+		if (mWaitKeyFrame) {
+			// start from video key frame so that audio and video start together
+			if ((trackIndex != mVideoTrack) || !isSync) return;
+			mWaitKeyFrame = false;
+		}
+		try {
+			mWriter.writeSample(mTsTracks[trackIndex], buf, 0, size, presentationTimeUs, isSync);
+		} catch (final IOException e) {
+			// client disconnected, wait for next client
+			if (DEBUG) Log.v(TAG, "client disconnected", e);
+			closeClient();
+		}
+	}
+
+	@Override
+	protected void onStop() {
+		if (mServer != null) {
+			try {
+				mServer.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+			mServer = null;
+		}
+		if (mAcceptThread != null) {
+			try {
+				mAcceptThread.join();
+			} catch (final InterruptedException e) {
+				// ignore
+			}
+			mAcceptThread = null;
+		}
+		closeClient();
+		final SocketChannel pending = mPendingClient.getAndSet(null);
+		if (pending != null) {
+			close(pending);
+		}
+	}
+
+	/**
+	 * drop the slow client and keep accepting new clients
+	 * @return
+	 */
+	@Override
+	protected boolean onAbort() {
+		// unblock the sink thread writing to the slow client,
+		// the sink thread releases its writer when the write failed
+		final SocketChannel client = mClient;
+		if (client != null) {
+			if (DEBUG) Log.v(TAG, "drop slow client:" + client);
+			close(client);
+		}
+		return true;
+	}
+
+	private MpegTsWriter createWriter(final SocketChannel client) {
+		final MpegTsWriter writer = new MpegTsWriter(client);
+		mTsTracks = new int[mFormats.length];
+		mVideoTrack = -1;
+		boolean hasAudio = false;
+		for (int i = 0; i < mFormats.length; i++) {
+			mTsTracks[i] = -1;
+			final String mime = getMime(mFormats[i]);
+			if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime) && (mVideoTrack < 0)) {
+				mTsTracks[i] = writer.addVideoTrack(
+					toArray(getCodecSpecificData(mFormats[i], "csd-0")), toArray(getCodecSpecificData(mFormats[i], "csd-1")));
+				mVideoTrack = i;
+			} else if ((mime != null) && mime.startsWith("audio/mp4a") && !hasAudio) {
+				// only the first audio track is served
+				final byte[] asc = toArray(getCodecSpecificData(mFormats[i], "csd-0"));
+				if ((asc != null) && (asc.length >= 2)) {
+					mTsTracks[i] = writer.addAudioTrack(asc);
+					hasAudio = true;
+				}
+			}
+		}
+		return writer;
+	}
+
+	private void closeClient() {
+		final SocketChannel client = mClient;
+		mClient = null;
+		mWriter = null;
+		if (client != null) {
+			close(client);
+		}
+	}
+
+	private final Runnable mAcceptTask = new Runnable() {
+		@Override
+		public void run() {
+			final ServerSocketChannel server = mServer;
+			for ( ; ; ) {
+				try {
+					final SocketChannel client = server.accept();
+					client.socket().setTcpNoDelay(true);
+					if (DEBUG) Log.v(TAG, "accepted:" + client);
+					final SocketChannel prev = mPendingClient.getAndSet(client);
+					if (prev != null) {
+						close(prev);
+					}
+					// new client can not decode until next key frame
+					requestSyncFrame();
+				} catch (final IOException e) {
+					// server socket was closed
+					break;
+				}
+			}
+		}
+	};
+
+	private static void close(final SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (final IOException e) {
+			// ignore
+		}
+	}
+
+	private static byte[] toArray(final ByteBuffer buf) {
+		if (buf == null) return null;
+		final ByteBuffer dup = buf.duplicate();
+		dup.rewind();
+		final byte[] result = new byte[dup.remaining()];
+		dup.get(result);
+		return result;
+	}
+}
@@ -0,0 +1,374 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: MpegTsWriter.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Streaming writer of MPEG-2 transport stream for H.264 video and AAC(ADTS) audio.
+ * Encoded data are packetized directly from the source buffer into 188 bytes TS packets
+ * without intermediate PES buffer, and written to the channel at the end of each sample
+ * so that nothing is buffered in this class. PAT/PMT are repeated before each video key frame
+ * (and periodically) so that a receiver can join at any time.
+ * This class does not depend on Android framework. All methods should be called from the same thread.
+ */
+public class MpegTsWriter {
+
+	private static final int PACKET_SIZE = 188;
+	private static final int PACKET_PAYLOAD_SIZE = 184;
+	private static final int PACKETS_PER_WRITE = 7;
+	private static final int PID_PAT = 0x0000;
+	private static final int PID_PMT = 0x1000;
+	private static final int PID_VIDEO = 0x0100;
+	private static final int PID_AUDIO = 0x0101;
+	private static final int STREAM_TYPE_H264 = 0x1b;
+	private static final int STREAM_TYPE_AAC_ADTS = 0x0f;
+	private static final int STREAM_ID_VIDEO = 0xe0;
+	private static final int STREAM_ID_AUDIO = 0xc0;
+	/**
+	 * presentation time is delayed from PCR by this(100ms in 90kHz), receiver buffers this duration
+	 */
+	private static final long PTS_DELAY = 9000;
+	/**
+	 * PAT/PMT are written at least this interval
+	 */
+	private static final long PSI_INTERVAL_US = 500000;
+	private static final int ADTS_HEADER_SIZE = 7;
+	/**
+	 * access unit delimiter, recommended before each access unit in transport stream
+	 */
+	private static final byte[] AUD = {0, 0, 0, 1, 0x09, (byte)0xf0};
+
+	private static final int[] CRC_TABLE = new int[256];
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i << 24;
+			for (int j = 0; j < 8; j++) {
+				crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+			}
+			CRC_TABLE[i] = crc;
+		}
+	}
+
+	private final WritableByteChannel mChannel;
+	private final ByteBuffer mOut = ByteBuffer.allocateDirect(PACKET_SIZE * PACKETS_PER_WRITE);
+	private final ByteBuffer mSection = ByteBuffer.allocate(PACKET_SIZE);
+	private final ByteBuffer mPesHeader = ByteBuffer.allocate(14);
+	private final ByteBuffer mAdtsHeader = ByteBuffer.allocate(ADTS_HEADER_SIZE);
+	private final ByteBuffer mAud = ByteBuffer.wrap(AUD);
+	private ByteBuffer mSps, mPps;
+	private int mAacProfile, mFreqIndex, mChannelConfig;
+	private int mVideoTrack = -1, mAudioTrack = -1;
+	private int mNumTracks;
+	private int mPatCC, mPmtCC, mVideoCC, mAudioCC;
+	private long mLastPsiUs = Long.MIN_VALUE;
+	/**
+	 * payload of current PES, header and encoded data
+	 */
+	private final ByteBuffer[] mParts = new ByteBuffer[5];
+	private int mNumParts;
+
+	/**
+	 * Constructor
+	 * @param channel
+	 */
+	public MpegTsWriter(final WritableByteChannel channel) {
+		mChannel = channel;
+	}
+
+	/**
+	 * add H.264 track
+	 * @param sps SPS with start code(csd-0)
+	 * @param pps PPS with start code(csd-1)
+	 * @return track index
+	 */
+	public int addVideoTrack(final byte[] sps, final byte[] pps) {
+		if (mVideoTrack >= 0)
+			throw new IllegalStateException("video track already added");
+		mSps = sps != null ? ByteBuffer.wrap(sps) : null;
+		mPps = pps != null ? ByteBuffer.wrap(pps) : null;
+		mVideoTrack = mNumTracks++;
+		return mVideoTrack;
+	}
+
+	/**
+	 * add AAC track
+	 * @param asc AudioSpecificConfig(csd-0)
+	 * @return track index
+	 */
+	public int addAudioTrack(final byte[] asc) {
+		if (mAudioTrack >= 0)
+			throw new IllegalStateException("audio track already added");
+		if ((asc == null) || (asc.length < 2))
+			throw new IllegalArgumentException("invalid AudioSpecificConfig");
+		mAacProfile = (asc[0] & 0xff) >> 3;
+		mFreqIndex = ((asc[0] & 0x07) << 1) | ((asc[1] & 0xff) >> 7);
+		mChannelConfig = (asc[1] >> 3) & 0x0f;
+		mAudioTrack = mNumTracks++;
+		return mAudioTrack;
+	}
+
+	/**
+	 * packetize and write encoded sample
+	 * @param trackIndex
+	 * @param src position and limit are restored before returning
+	 * @param offset
+	 * @param size
+	 * @param presentationTimeUs
+	 * @param isSync
+	 * @throws IOException
+	 */
+	public void writeSample(final int trackIndex, final ByteBuffer src, final int offset, final int size,
+		final long presentationTimeUs, final boolean isSync) throws IOException {
+
+		final boolean video = trackIndex == mVideoTrack;
+		if (!video && (trackIndex != mAudioTrack))
+			throw new IllegalArgumentException("invalid track index " + trackIndex);
+		if ((video && isSync) || (presentationTimeUs - mLastPsiUs >= PSI_INTERVAL_US)) {
+			writePsi();
+			mLastPsiUs = presentationTimeUs;
+		}
+		final long pts = presentationTimeUs * 9 / 100;	// 90kHz
+		mNumParts = 0;
+		mPesHeader.clear();
+		mParts[mNumParts++] = mPesHeader;
+		int payloadSize = size;
+		if (video) {
+			mParts[mNumParts++] = rewind(mAud);
+			payloadSize += AUD.length;
+			if (isSync) {
+				// parameter sets are needed before each key frame for joining receiver
+				if (mSps != null) {
+					mParts[mNumParts++] = rewind(mSps);
+					payloadSize += mSps.limit();
+				}
+				if (mPps != null) {
+					mParts[mNumParts++] = rewind(mPps);
+					payloadSize += mPps.limit();
+				}
+			}
+		} else {
+			final int frameLength = size + ADTS_HEADER_SIZE;
+			mAdtsHeader.clear();
+			mAdtsHeader.put((byte)0xff);
+			mAdtsHeader.put((byte)0xf1);	// MPEG-4, layer 0, no CRC
+			mAdtsHeader.put((byte)(((mAacProfile - 1) << 6) | (mFreqIndex << 2) | (mChannelConfig >> 2)));
+			mAdtsHeader.put((byte)(((mChannelConfig & 3) << 6) | (frameLength >> 11)));
+			mAdtsHeader.put((byte)((frameLength >> 3) & 0xff));
+			mAdtsHeader.put((byte)(((frameLength & 7) << 5) | 0x1f));
+			mAdtsHeader.put((byte)0xfc);
+			mAdtsHeader.flip();
+			mParts[mNumParts++] = mAdtsHeader;
+			payloadSize += ADTS_HEADER_SIZE;
+		}
+		// PES header
+		final int pesLength = video ? 0 : 8 + payloadSize;	// 0 means unbounded(only allowed for video)
+		mPesHeader.put((byte)0).put((byte)0).put((byte)1);
+		mPesHeader.put((byte)(video ? STREAM_ID_VIDEO : STREAM_ID_AUDIO));
+		mPesHeader.putShort((short)(pesLength <= 0xffff ? pesLength : 0));
+		mPesHeader.put((byte)0x80);	// marker bits
+		mPesHeader.put((byte)0x80);	// PTS only
+		mPesHeader.put((byte)5);	// PES header data length
+		putTimestamp(mPesHeader, pts + PTS_DELAY);
+		mPesHeader.flip();
+		// encoded data, src is used directly not to copy
+		final int pos = src.position();
+		final int limit = src.limit();
+		src.limit(offset + size).position(offset);
+		mParts[mNumParts++] = src;
+		try {
+			final boolean pcr = video || (mVideoTrack < 0);
+			writePes(video ? PID_VIDEO : PID_AUDIO, pcr, pts, isSync || !video);
+		} finally {
+			src.limit(limit).position(pos);
+		}
+		flushOut();
+	}
+
+	private void writePsi() throws IOException {
+		// PAT
+		mSection.clear();
+		mSection.put((byte)0x00);	// table_id
+		mSection.putShort((short)(0xb000 | 13));
+		mSection.putShort((short)1);	// transport_stream_id
+		mSection.put((byte)0xc1);	// version 0, current_next_indicator
+		mSection.put((byte)0).put((byte)0);
+		mSection.putShort((short)1);	// program_number
+		mSection.putShort((short)(0xe000 | PID_PMT));
+		writeSection(PID_PAT, mPatCC);
+		mPatCC = (mPatCC + 1) & 0x0f;
+		// PMT
+		final int numStreams = (mVideoTrack >= 0 ? 1 : 0) + (mAudioTrack >= 0 ? 1 : 0);
+		mSection.clear();
+		mSection.put((byte)0x02);	// table_id
+		mSection.putShort((short)(0xb000 | (9 + 5 * numStreams + 4)));
+		mSection.putShort((short)1);	// program_number
+		mSection.put((byte)0xc1);
+		mSection.put((byte)0).put((byte)0);
+		mSection.putShort((short)(0xe000 | (mVideoTrack >= 0 ? PID_VIDEO : PID_AUDIO)));	// PCR_PID
+		mSection.putShort((short)0xf000);	// program_info_length
+		if (mVideoTrack >= 0) {
+			mSection.put((byte)STREAM_TYPE_H264);
+			mSection.putShort((short)(0xe000 | PID_VIDEO));
+			mSection.putShort((short)0xf000);
+		}
+		if (mAudioTrack >= 0) {
+			mSection.put((byte)STREAM_TYPE_AAC_ADTS);
+			mSection.putShort((short)(0xe000 | PID_AUDIO));
+			mSection.putShort((short)0xf000);
+		}
+		writeSection(PID_PMT, mPmtCC);
+		mPmtCC = (mPmtCC + 1) & 0x0f;
+	}
+
+	/**
+	 * write PSI section in mSection as a TS packet
+	 * @param pid
+	 * @param cc
+	 * @throws IOException
+	 */
+	private void writeSection(final int pid, final int cc) throws IOException {
+		final int length = mSection.position();
+		int crc = 0xffffffff;
+		for (int i = 0; i < length; i++) {
+			crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ mSection.get(i)) & 0xff];
+		}
+		mSection.putInt(crc);
+		mSection.flip();
+		if (mOut.remaining() < PACKET_SIZE) {
+			flushOut();
+		}
+		final int start = mOut.position();
+		mOut.put((byte)0x47);
+		mOut.put((byte)(0x40 | (pid >> 8)));	// payload_unit_start_indicator
+		mOut.put((byte)pid);
+		mOut.put((byte)(0x10 | cc));	// payload only
+		mOut.put((byte)0);	// pointer_field
+		mOut.put(mSection);
+		while (mOut.position() < start + PACKET_SIZE) {
+			mOut.put((byte)0xff);
+		}
+	}
+
+	/**
+	 * write parts of current PES as TS packets
+	 * @param pid
+	 * @param pcr whether PCR is written in the first packet
+	 * @param pcrBase
+	 * @param randomAccess
+	 * @throws IOException
+	 */
+	private void writePes(final int pid, final boolean pcr, final long pcrBase, final boolean randomAccess)
+		throws IOException {
+
+		int remaining = 0;
+		for (int i = 0; i < mNumParts; i++) {
+			remaining += mParts[i].remaining();
+		}
+		int partIx = 0;
+		boolean first = true;
+		while (remaining > 0) {
+			if (mOut.remaining() < PACKET_SIZE) {
+				flushOut();
+			}
+			final boolean withPcr = first && pcr;
+			final boolean withFlags = withPcr || (first && randomAccess);
+			final int adaptationBase = withPcr ? 8 : (withFlags ? 2 : 0);
+			final int payload = Math.min(remaining, PACKET_PAYLOAD_SIZE - adaptationBase);
+			// adaptation field is also used for stuffing of the last packet
+			final int adaptationSize = PACKET_PAYLOAD_SIZE - payload;
+			final int cc = pid == PID_VIDEO ? mVideoCC : mAudioCC;
+			mOut.put((byte)0x47);
+			mOut.put((byte)((first ? 0x40 : 0) | (pid >> 8)));
+			mOut.put((byte)pid);
+			mOut.put((byte)((adaptationSize > 0 ? 0x30 : 0x10) | cc));
+			if (pid == PID_VIDEO) {
+				mVideoCC = (cc + 1) & 0x0f;
+			} else {
+				mAudioCC = (cc + 1) & 0x0f;
+			}
+			if (adaptationSize > 0) {
+				mOut.put((byte)(adaptationSize - 1));
+				int written = 1;
+				if (adaptationSize > 1) {
+					mOut.put((byte)((withPcr ? 0x10 : 0) | (first && randomAccess ? 0x40 : 0)));
+					written++;
+					if (withPcr) {
+						mOut.put((byte)(pcrBase >> 25));
+						mOut.put((byte)(pcrBase >> 17));
+						mOut.put((byte)(pcrBase >> 9));
+						mOut.put((byte)(pcrBase >> 1));
+						mOut.put((byte)(((pcrBase & 1) << 7) | 0x7e));
+						mOut.put((byte)0);
+						written += 6;
+					}
+				}
+				for ( ; written < adaptationSize; written++) {
+					mOut.put((byte)0xff);
+				}
+			}
+			// copy payload from parts
+			int n = payload;
+			while (n > 0) {
+				final ByteBuffer part = mParts[partIx];
+				final int bytes = Math.min(n, part.remaining());
+				if (bytes == part.remaining()) {
+					mOut.put(part);
+					partIx++;
+				} else {
+					final int limit = part.limit();
+					part.limit(part.position() + bytes);
+					mOut.put(part);
+					part.limit(limit);
+				}
+				n -= bytes;
+			}
+			remaining -= payload;
+			first = false;
+		}
+	}
+
+	private void flushOut() throws IOException {
+		mOut.flip();
+		while (mOut.hasRemaining()) {
+			mChannel.write(mOut);
+		}
+		mOut.clear();
+	}
+
+	private static ByteBuffer rewind(final ByteBuffer buf) {
+		buf.rewind();
+		return buf;
+	}
+
+	private static void putTimestamp(final ByteBuffer buf, final long ts) {
+		buf.put((byte)(0x20 | ((ts >> 29) & 0x0e) | 1));
+		buf.put((byte)(ts >> 22));
+		buf.put((byte)(((ts >> 14) & 0xfe) | 1));
+		buf.put((byte)(ts >> 7));
+		buf.put((byte)(((ts << 1) & 0xfe) | 1));
+	}
+}
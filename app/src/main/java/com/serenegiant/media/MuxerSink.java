@@ -0,0 +1,91 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: MuxerSink.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * MediaSink that writes samples into another IMuxer, e.g. second MP4 file
+ */
+public class MuxerSink extends MediaSink {
+	private static final String TAG = MuxerSink.class.getSimpleName();
+
+	private final MediaMuxerWrapper.IMuxer mMuxer;
+	private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+	private int[] mTrackIndices;
+
+	/**
+	 * Constructor
+	 * @param muxer this is released when the sink stopped
+	 */
+	public MuxerSink(final MediaMuxerWrapper.IMuxer muxer) {
+		this(muxer, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * Constructor
+	 * @param muxer this is released when the sink stopped
+	 * @param queueCapacity
+	 */
+	public MuxerSink(final MediaMuxerWrapper.IMuxer muxer, final int queueCapacity) {
+		super(TAG, queueCapacity);
+		mMuxer = muxer;
+	}
+
+	@Override
+	protected void onStart(final MediaFormat[] formats) throws IOException {
+		mTrackIndices = new int[formats.length];
+		for (int i = 0; i < formats.length; i++) {
+			mTrackIndices[i] = formats[i] != null ? mMuxer.addTrack(formats[i]) : -1;
+		}
+		mMuxer.start();
+	}
+
+	@Override
+	protected void onSample(final int trackIndex, final ByteBuffer buf, final int size,
+		final long presentationTimeUs, final int flags) throws IOException {
+
+		mBufferInfo.set(0, size, presentationTimeUs, flags);
+		try {
+			mMuxer.writeSampleData(mTrackIndices[trackIndex], buf, mBufferInfo);
+		} catch (final IllegalStateException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	protected void onStop() {
+		try {
+			mMuxer.stop();
+		} catch (final Exception e) {
+			Log.w(TAG, "failed to stop muxer", e);
+		}
+		mMuxer.release();
+	}
+}
@@ -0,0 +1,251 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: PreRollBuffer.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded ring of encoded samples held in one direct ByteBuffer, indexed by key frames.
+ * Each sample is stored contiguously, the oldest samples are evicted when there is
+ * not enough room for a new sample, so memory is bounded by bytes and eviction is O(1)
+ * per sample. Samples are identified by monotonic sequence number.
+ * Samples that are pinned(#pin) are never evicted, new samples are dropped instead.
+ * This class does not depend on Android framework and is not thread safe.
+ */
+public class PreRollBuffer {
+
+	private final ByteBuffer mData;
+	/**
+	 * view of mData to return stored samples without allocation
+	 */
+	private final ByteBuffer mView;
+	private final int mCapacity;
+	private final int mMask;
+	private final int[] mOffsets, mSizes, mFlags, mTracks;
+	private final long[] mTimes;
+	/**
+	 * sequence numbers of key frames, same capacity as samples
+	 */
+	private final long[] mKeyFrames;
+	private long mHead, mTail;
+	private long mKeyHead, mKeyTail;
+	/** byte offset to write next sample */
+	private int mWritePos;
+	/** byte offset of oldest sample */
+	private int mReadPos;
+	private long mPinnedSeq = Long.MAX_VALUE;
+	private long mDropped;
+
+	/**
+	 * Constructor
+	 * @param capacityBytes size of off-heap memory to hold samples
+	 * @param maxSamples maximum number of samples, rounded up to power of 2
+	 */
+	public PreRollBuffer(final int capacityBytes, final int maxSamples) {
+		mData = ByteBuffer.allocateDirect(capacityBytes);
+		mView = mData.duplicate();
+		mCapacity = capacityBytes;
+		int n = 1;
+		while (n < maxSamples) n <<= 1;
+		mMask = n - 1;
+		mOffsets = new int[n];
+		mSizes = new int[n];
+		mFlags = new int[n];
+		mTracks = new int[n];
+		mTimes = new long[n];
+		mKeyFrames = new long[n];
+	}
+
+	/**
+	 * store encoded sample, oldest samples are evicted if there is not enough room
+	 * @param trackIndex
+	 * @param src position and limit are restored before returning
+	 * @param offset
+	 * @param size
+	 * @param presentationTimeUs
+	 * @param flags
+	 * @param isKeyFrame true if the sample can be used as start point
+	 * @return false if the sample was dropped because it is too large or pinned samples can not be evicted
+	 */
+	public boolean add(final int trackIndex, final ByteBuffer src, final int offset, final int size,
+		final long presentationTimeUs, final int flags, final boolean isKeyFrame) {
+
+		if (size > mCapacity) {
+			mDropped++;
+			return false;
+		}
+		// sample is placed at mWritePos, or at the beginning when it does not fit before the end
+		final boolean wrap = mWritePos + size > mCapacity;
+		while ((mHead > mTail) && ((mHead - mTail > mMask) || overlaps(wrap, size))) {
+			if (mTail >= mPinnedSeq) {
+				mDropped++;
+				return false;
+			}
+			evict();
+		}
+		if (mHead == mTail) {
+			// empty, restart from the beginning
+			mWritePos = mReadPos = 0;
+		}
+		final int pos = (mWritePos + size > mCapacity) ? 0 : mWritePos;
+		final int ix = (int)mHead & mMask;
+		if (size > 0) {
+			final int srcPos = src.position();
+			final int srcLimit = src.limit();
+			src.limit(offset + size).position(offset);
+			mData.limit(pos + size).position(pos);
+			mData.put(src);
+			src.limit(srcLimit).position(srcPos);
+		}
+		mOffsets[ix] = pos;
+		mSizes[ix] = size;
+		mFlags[ix] = flags;
+		mTracks[ix] = trackIndex;
+		mTimes[ix] = presentationTimeUs;
+		if (mHead == mTail) {
+			mReadPos = pos;
+		}
+		mWritePos = pos + size;
+		if (isKeyFrame) {
+			mKeyFrames[(int)mKeyHead & mMask] = mHead;
+			mKeyHead++;
+		}
+		mHead++;
+		return true;
+	}
+
+	/**
+	 * whether new sample overlaps with stored samples
+	 */
+	private boolean overlaps(final boolean wrap, final int size) {
+		if (mReadPos < mWritePos) {
+			// stored samples are in [mReadPos, mWritePos)
+			return wrap && (size > mReadPos);
+		} else {
+			// stored samples are in [mReadPos, capacity) and [0, mWritePos)
+			return wrap || (mWritePos + size > mReadPos);
+		}
+	}
+
+	private void evict() {
+		mTail++;
+		while ((mKeyTail < mKeyHead) && (mKeyFrames[(int)mKeyTail & mMask] < mTail)) {
+			mKeyTail++;
+		}
+		if (mTail < mHead) {
+			mReadPos = mOffsets[(int)mTail & mMask];
+		}
+	}
+
+	/**
+	 * sequence number of oldest sample
+	 * @return
+	 */
+	public long tail() {
+		return mTail;
+	}
+
+	/**
+	 * sequence number of next sample
+	 * @return
+	 */
+	public long head() {
+		return mHead;
+	}
+
+	public boolean isEmpty() {
+		return mHead == mTail;
+	}
+
+	/**
+	 * find key frame to start output that covers specific duration up to the newest sample
+	 * @param durationUs
+	 * @return sequence number of the latest key frame not after (newest - duration),
+	 * 		the oldest key frame if stored samples are shorter than the duration, -1 if no key frame
+	 */
+	public long findStart(final long durationUs) {
+		if ((mKeyHead == mKeyTail) || (mHead == mTail)) return -1;
+		final long target = mTimes[(int)(mHead - 1) & mMask] - durationUs;
+		for (long k = mKeyHead - 1; k > mKeyTail; k--) {
+			final long seq = mKeyFrames[(int)k & mMask];
+			if (mTimes[(int)seq & mMask] <= target) {
+				return seq;
+			}
+		}
+		return mKeyFrames[(int)mKeyTail & mMask];
+	}
+
+	/**
+	 * samples from specific sequence number are not evicted until #unpin
+	 * @param seq
+	 */
+	public void pin(final long seq) {
+		mPinnedSeq = seq;
+	}
+
+	public void unpin() {
+		mPinnedSeq = Long.MAX_VALUE;
+	}
+
+	/**
+	 * get data of stored sample, returned buffer is valid until next call of #getData or #add
+	 * @param seq
+	 * @return position is start of the sample and limit is end of the sample
+	 */
+	public ByteBuffer getData(final long seq) {
+		final int ix = (int)seq & mMask;
+		mView.limit(mOffsets[ix] + mSizes[ix]).position(mOffsets[ix]);
+		return mView;
+	}
+
+	public int getSize(final long seq) {
+		return mSizes[(int)seq & mMask];
+	}
+
+	public int getFlags(final long seq) {
+		return mFlags[(int)seq & mMask];
+	}
+
+	public int getTrackIndex(final long seq) {
+		return mTracks[(int)seq & mMask];
+	}
+
+	public long getPresentationTimeUs(final long seq) {
+		return mTimes[(int)seq & mMask];
+	}
+
+	/**
+	 * number of samples that could not be stored
+	 * @return
+	 */
+	public long getDroppedSamples() {
+		return mDropped;
+	}
+
+	public void clear() {
+		mHead = mTail = mKeyHead = mKeyTail = 0;
+		mWritePos = mReadPos = 0;
+		unpin();
+	}
+}
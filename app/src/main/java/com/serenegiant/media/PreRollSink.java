@@ -0,0 +1,249 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: PreRollSink.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * MediaSink that keeps the last encoded samples in PreRollBuffer("instant replay").
+ * Use with MediaMuxerWrapper of MUXER_NONE so that encoders run continuously without output file.
+ * When #save is called, samples from the key frame nearest to the requested duration ago
+ * are written to a new MP4 file. Writing is done on the sink thread a few samples at a time
+ * between incoming samples, so the encoders must keep running until the callback is called.
+ */
+public class PreRollSink extends MediaSink {
+	private static final boolean DEBUG = false;	// TODO set false on release
+	private static final String TAG = PreRollSink.class.getSimpleName();
+
+	/**
+	 * maximum number of samples held in the buffer
+	 */
+	private static final int MAX_SAMPLES = 8192;
+	/**
+	 * number of samples written to the file per incoming sample while saving
+	 */
+	private static final int FLUSH_BATCH = 16;
+
+	/**
+	 * callback of #save, this is called on sink thread(or on caller of #save when the request is replaced)
+	 */
+	public interface SaveCallback {
+		public void onSaved(final String outputPath, final long durationUs);
+		public void onError(final String outputPath, final Exception e);
+	}
+
+	private static final class SaveRequest {
+		private final String outputPath;
+		private final long durationUs;
+		private final SaveCallback callback;
+
+		private SaveRequest(final String outputPath, final long durationUs, final SaveCallback callback) {
+			this.outputPath = outputPath;
+			this.durationUs = durationUs;
+			this.callback = callback;
+		}
+	}
+
+	private final PreRollBuffer mBuffer;
+	private final AtomicReference<SaveRequest> mRequest = new AtomicReference<SaveRequest>();
+	private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+	private MediaFormat[] mFormats;
+	private int mVideoTrack = -1;
+	// following fields are used while saving
+	private SaveRequest mSaving;
+	private MediaMuxerWrapper.IMuxer mMuxer;
+	private int[] mTrackIndices;
+	private long mFlushSeq, mFlushEnd;
+	private long mStartUs, mEndUs;
+
+	/**
+	 * memory to hold samples of specific duration, with margin for key frames
+	 * @param bitrate total bitrate of all tracks [bits/sec]
+	 * @param durationMs
+	 * @return capacity in bytes, (bitrate / 8 * seconds * 1.5)
+	 */
+	public static int getCapacity(final int bitrate, final long durationMs) {
+		final long bytes = bitrate / 8L * durationMs / 1000 * 3 / 2;
+		return (int)Math.min(bytes, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Constructor
+	 * @param capacityBytes memory to hold encoded samples, see #getCapacity
+	 */
+	public PreRollSink(final int capacityBytes) {
+		super(TAG, DEFAULT_QUEUE_CAPACITY);
+		mBuffer = new PreRollBuffer(capacityBytes, MAX_SAMPLES);
+	}
+
+	/**
+	 * request to write buffered samples to a new MP4 file
+	 * @param outputPath
+	 * @param durationMs samples of this duration up to now(from nearest key frame) are written
+	 * @param callback
+	 */
+	public void save(final String outputPath, final long durationMs, final SaveCallback callback) {
+		final SaveRequest prev = mRequest.getAndSet(new SaveRequest(outputPath, durationMs * 1000L, callback));
+		if ((prev != null) && (prev.callback != null)) {
+			prev.callback.onError(prev.outputPath, new IllegalStateException("replaced by new request"));
+		}
+	}
+
+	@Override
+	protected void onStart(final MediaFormat[] formats) throws IOException {
+		mFormats = formats;
+		for (int i = 0; i < formats.length; i++) {
+			final String mime = getMime(formats[i]);
+			if ((mime != null) && mime.startsWith("video/")) {
+				mVideoTrack = i;
+				break;
+			}
+		}
+	}
+
+	@Override
+	protected void onSample(final int trackIndex, final ByteBuffer buf, final int size,
+		final long presentationTimeUs, final int flags) throws IOException {
+
+		// output can start from video key frame, or from any sample when there is no video
+		final boolean isKeyFrame = (mVideoTrack < 0)
+			|| ((trackIndex == mVideoTrack) && ((flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0));
+		mBuffer.add(trackIndex, buf, 0, size, presentationTimeUs, flags, isKeyFrame);
+		if (mSaving == null) {
+			final SaveRequest request = mRequest.getAndSet(null);
+			if (request != null) {
+				startSave(request);
+			}
+		}
+		if (mSaving != null) {
+			flush(FLUSH_BATCH);
+		}
+	}
+
+	@Override
+	protected void onStop() {
+		if (mSaving == null) {
+			final SaveRequest request = mRequest.getAndSet(null);
+			if (request != null) {
+				startSave(request);
+			}
+		}
+		if (mSaving != null) {
+			flush(Integer.MAX_VALUE);
+		}
+		mBuffer.clear();
+	}
+
+	private void startSave(final SaveRequest request) {
+		if (DEBUG) Log.v(TAG, "startSave:" + request.outputPath);
+		final long start = mBuffer.findStart(request.durationUs);
+		if (start < 0) {
+			if (request.callback != null) {
+				request.callback.onError(request.outputPath, new IllegalStateException("no key frame"));
+			}
+			return;
+		}
+		try {
+			mMuxer = createMuxer(request.outputPath);
+			mTrackIndices = new int[mFormats.length];
+			for (int i = 0; i < mFormats.length; i++) {
+				mTrackIndices[i] = mFormats[i] != null ? mMuxer.addTrack(mFormats[i]) : -1;
+			}
+			mMuxer.start();
+		} catch (final Exception e) {
+			releaseMuxer();
+			if (request.callback != null) {
+				request.callback.onError(request.outputPath, e);
+			}
+			return;
+		}
+		mSaving = request;
+		mFlushSeq = start;
+		mFlushEnd = mBuffer.head();
+		mStartUs = mEndUs = mBuffer.getPresentationTimeUs(start);
+		// samples being written should not be evicted
+		mBuffer.pin(start);
+	}
+
+	/**
+	 * create muxer to save samples, this is only replaced for testing
+	 * @param outputPath
+	 * @return
+	 * @throws IOException
+	 */
+	/*package*/ MediaMuxerWrapper.IMuxer createMuxer(final String outputPath) throws IOException {
+		return MediaMuxerWrapper.createMuxer(MediaMuxerWrapper.MUXER_MP4, outputPath);
+	}
+
+	/**
+	 * write samples to the file
+	 * @param maxSamples
+	 */
+	private void flush(final int maxSamples) {
+		final SaveRequest request = mSaving;
+		try {
+			for (int i = 0; (i < maxSamples) && (mFlushSeq < mFlushEnd); mFlushSeq++) {
+				final long seq = mFlushSeq;
+				final long pts = mBuffer.getPresentationTimeUs(seq);
+				final int trackIx = mTrackIndices[mBuffer.getTrackIndex(seq)];
+				// skip audio before the key frame
+				if ((pts < mStartUs) || (trackIx < 0)) continue;
+				mBufferInfo.set(0, mBuffer.getSize(seq), pts - mStartUs, mBuffer.getFlags(seq));
+				mMuxer.writeSampleData(trackIx, mBuffer.getData(seq), mBufferInfo);
+				mEndUs = Math.max(mEndUs, pts);
+				i++;
+			}
+			mBuffer.pin(mFlushSeq);
+			if (mFlushSeq >= mFlushEnd) {
+				mMuxer.stop();
+				releaseMuxer();
+				if (DEBUG) Log.v(TAG, "saved:" + request.outputPath);
+				if (request.callback != null) {
+					request.callback.onSaved(request.outputPath, mEndUs - mStartUs);
+				}
+			}
+		} catch (final Exception e) {
+			Log.w(TAG, "failed to save", e);
+			releaseMuxer();
+			if (request.callback != null) {
+				request.callback.onError(request.outputPath, e);
+			}
+		}
+	}
+
+	private void releaseMuxer() {
+		mSaving = null;
+		mBuffer.unpin();
+		if (mMuxer != null) {
+			mMuxer.release();
+			mMuxer = null;
+		}
+	}
+}
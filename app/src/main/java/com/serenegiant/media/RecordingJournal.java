@@ -0,0 +1,286 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: RecordingJournal.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Append-only journal of fragments that were completely written to a fragmented MP4 file.
+ * Each record is fixed size(32 bytes) and has a check word, so a torn record on crash is ignored.
+ * The journal file exists only while recording, so a remaining journal means
+ * the recording was not finished and the MP4 file should be recovered by #recover.
+ * This class does not depend on Android framework.
+ */
+public class RecordingJournal {
+
+	public static final String EXT_JOURNAL = ".journal";
+
+	private static final int MAGIC = 0x524a4e4c;	// 'RJNL'
+	private static final int RECORD_SIZE = 32;
+	/**
+	 * journals that are opened in this process, these belong to running recordings
+	 * and should not be recovered. synchronized on itself.
+	 */
+	private static final Set<String> sOpened = new HashSet<String>();
+
+	private final File mFile;
+	private final FileChannel mChannel;
+	private final ByteBuffer mRecord = ByteBuffer.allocate(RECORD_SIZE);
+
+	/**
+	 * Constructor, create(truncate) journal file
+	 * @param file
+	 * @throws IOException
+	 */
+	public RecordingJournal(final File file) throws IOException {
+		mFile = file;
+		// register before the file exists so that #recoverAll never sees it unregistered
+		synchronized (sOpened) {
+			sOpened.add(file.getAbsolutePath());
+		}
+		try {
+			final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.setLength(0);
+			mChannel = raf.getChannel();
+		} catch (final IOException e) {
+			unregister(file);
+			throw e;
+		}
+	}
+
+	private static void unregister(final File file) {
+		synchronized (sOpened) {
+			sOpened.remove(file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * whether the journal is opened by a recording in this process
+	 * @param file
+	 * @return
+	 */
+	public static boolean isOpened(final File file) {
+		synchronized (sOpened) {
+			return sOpened.contains(file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * journal file for specific output file
+	 * @param outputPath
+	 * @return
+	 */
+	public static File getJournalFile(final String outputPath) {
+		return new File(outputPath + EXT_JOURNAL);
+	}
+
+	/**
+	 * append record of a completely written fragment.
+	 * the output file should be flushed to storage before calling this.
+	 * @param sequenceNumber sequence number of the fragment
+	 * @param endOffset file offset just after the fragment
+	 * @param endTimeUs presentation time of the last sample in the fragment
+	 * @throws IOException
+	 */
+	public void append(final int sequenceNumber, final long endOffset, final long endTimeUs) throws IOException {
+		final ByteBuffer buf = mRecord;
+		buf.clear();
+		buf.putInt(MAGIC);
+		buf.putInt(sequenceNumber);
+		buf.putLong(endOffset);
+		buf.putLong(endTimeUs);
+		buf.putLong(check(sequenceNumber, endOffset, endTimeUs));
+		buf.flip();
+		while (buf.hasRemaining()) {
+			mChannel.write(buf);
+		}
+	}
+
+	/**
+	 * close and delete journal file, this should be called when recording finished normally
+	 */
+	public void delete() {
+		closeChannel();
+		//noinspection ResultOfMethodCallIgnored
+		mFile.delete();
+		unregister(mFile);
+	}
+
+	/**
+	 * close journal file without deleting it, the recording is recovered later
+	 */
+	public void close() {
+		closeChannel();
+		unregister(mFile);
+	}
+
+	private void closeChannel() {
+		try {
+			mChannel.close();
+		} catch (final IOException e) {
+			// ignore
+		}
+	}
+
+	private static long check(final int sequenceNumber, final long endOffset, final long endTimeUs) {
+		return (((long)MAGIC << 32) | sequenceNumber) ^ endOffset ^ (endTimeUs * 31);
+	}
+
+	/**
+	 * read the last valid record of journal
+	 * @param file
+	 * @return end offset of the last completely written fragment, -1 if no valid record
+	 * @throws IOException
+	 */
+	public static long readLastEndOffset(final File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE);
+			// records are fixed size, search from the tail and skip torn record
+			for (long pos = (channel.size() / RECORD_SIZE - 1) * RECORD_SIZE; pos >= 0; pos -= RECORD_SIZE) {
+				buf.clear();
+				while (buf.hasRemaining() && (channel.read(buf, pos + buf.position()) > 0));
+				buf.flip();
+				if (buf.remaining() < RECORD_SIZE) continue;
+				final int magic = buf.getInt();
+				final int seq = buf.getInt();
+				final long endOffset = buf.getLong();
+				final long endTimeUs = buf.getLong();
+				if ((magic == MAGIC) && (buf.getLong() == check(seq, endOffset, endTimeUs))) {
+					return endOffset;
+				}
+			}
+		} finally {
+			raf.close();
+		}
+		return -1;
+	}
+
+	/**
+	 * recover fragmented MP4 file that was not finished.
+	 * top level boxes are scanned from the last journaled offset and the file is truncated
+	 * just after the last complete moof/mdat pair, so this runs in time linear to
+	 * the number of boxes after the journaled offset without reading sample data.
+	 * the journal file is deleted after recovery.
+	 * @param output fragmented MP4 file
+	 * @return size of recovered file, -1 if the file could not be recovered
+	 * @throws IOException
+	 */
+	public static long recover(final File output) throws IOException {
+		final File journal = getJournalFile(output.getAbsolutePath());
+		long start = journal.exists() ? readLastEndOffset(journal) : -1;
+		final RandomAccessFile raf = new RandomAccessFile(output, "rw");
+		long result = -1;
+		try {
+			final FileChannel channel = raf.getChannel();
+			final long length = channel.size();
+			if ((start < 0) || (start > length)) {
+				start = 0;
+			}
+			final ByteBuffer header = ByteBuffer.allocate(16);
+			long pos = start;
+			long lastGood = start;
+			boolean hasMoov = start > 0;
+			for ( ; ; ) {
+				header.clear();
+				header.limit(8);
+				while (header.hasRemaining() && (channel.read(header, pos + header.position()) > 0));
+				if (header.hasRemaining()) break;
+				header.flip();
+				long size = header.getInt() & 0xffffffffL;
+				final int type = header.getInt();
+				if (size == 1) {
+					// 64 bit largesize
+					header.clear();
+					header.limit(8);
+					while (header.hasRemaining() && (channel.read(header, pos + 8 + header.position()) > 0));
+					if (header.hasRemaining()) break;
+					header.flip();
+					size = header.getLong();
+				} else if (size == 0) {
+					// box extends to end of file, this never comes from FragmentedMp4Writer
+					break;
+				}
+				if ((size < 8) || (pos + size > length)) break;
+				pos += size;
+				if (type == fourcc("moov")) {
+					hasMoov = true;
+					lastGood = pos;
+				} else if (type == fourcc("mdat") || type == fourcc("ftyp")) {
+					lastGood = pos;
+				}
+			}
+			if (hasMoov) {
+				channel.truncate(lastGood);
+				channel.force(true);
+				result = lastGood;
+			}
+		} finally {
+			raf.close();
+		}
+		//noinspection ResultOfMethodCallIgnored
+		journal.delete();
+		return result;
+	}
+
+	/**
+	 * recover all unfinished recordings in specific directory.
+	 * journals of recordings that are running in this process are skipped,
+	 * so this can be called while recording without any lock.
+	 * @param dir
+	 * @return number of recovered files
+	 */
+	public static int recoverAll(final File dir) {
+		int result = 0;
+		final File[] files = dir != null ? dir.listFiles() : null;
+		if (files != null) {
+			for (final File file: files) {
+				final String name = file.getName();
+				if (!name.endsWith(EXT_JOURNAL) || isOpened(file)) continue;
+				final File output = new File(dir, name.substring(0, name.length() - EXT_JOURNAL.length()));
+				try {
+					if (output.exists() && (recover(output) > 0)) {
+						result++;
+					} else {
+						//noinspection ResultOfMethodCallIgnored
+						file.delete();
+					}
+				} catch (final IOException e) {
+					// ignore and try next file
+				}
+			}
+		}
+		return result;
+	}
+
+	private static int fourcc(final String type) {
+		return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+	}
+}
@@ -0,0 +1,164 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: SampleQueue.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer/single-consumer ring buffer of encoded samples.
+ * Encoded data are copied into direct ByteBuffers that are pooled on each slot,
+ * so no allocation occurs once the buffers grew up to the largest sample size.
+ * Only one thread may call #offer and only one (other) thread may call #peek/#remove.
+ */
+public class SampleQueue {
+
+	/**
+	 * encoded sample held in the ring buffer
+	 */
+	public static final class Sample {
+		/**
+		 * copied encoded data, position is 0 and limit is size of sample when it is peeked
+		 */
+		public ByteBuffer buffer;
+		public int size;
+		public long presentationTimeUs;
+		public int flags;
+		/**
+		 * System.nanoTime when this sample was queued
+		 */
+		public long queuedTimeNs;
+	}
+
+	private final Sample[] mSamples;
+	private final int mMask;
+	/**
+	 * sequence number of next slot to write, only updated by producer
+	 */
+	private final AtomicLong mHead = new AtomicLong();
+	/**
+	 * sequence number of next slot to read, only updated by consumer
+	 */
+	private final AtomicLong mTail = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * @param capacity number of slots, rounded up to power of 2
+	 */
+	public SampleQueue(final int capacity) {
+		int n = 1;
+		while (n < capacity) n <<= 1;
+		mSamples = new Sample[n];
+		for (int i = 0; i < n; i++) {
+			mSamples[i] = new Sample();
+		}
+		mMask = n - 1;
+	}
+
+	public int capacity() {
+		return mSamples.length;
+	}
+
+	/**
+	 * number of samples in this queue
+	 * @return
+	 */
+	public int size() {
+		return (int)(mHead.get() - mTail.get());
+	}
+
+	public boolean isEmpty() {
+		return mHead.get() == mTail.get();
+	}
+
+	/**
+	 * copy encoded data into the queue, this should be called only from producer thread.
+	 * @param src encoded data, its position and limit are restored before returning
+	 * @param offset
+	 * @param size
+	 * @param presentationTimeUs
+	 * @param flags
+	 * @return false if queue is full
+	 */
+	public boolean offer(final ByteBuffer src, final int offset, final int size,
+		final long presentationTimeUs, final int flags) {
+
+		final long head = mHead.get();
+		if (head - mTail.get() >= mSamples.length) {
+			return false;
+		}
+		final Sample sample = mSamples[(int)head & mMask];
+		if ((sample.buffer == null) || (sample.buffer.capacity() < size)) {
+			// grow pooled buffer, round up to 4KB to reduce re-allocation
+			sample.buffer = ByteBuffer.allocateDirect((size + 0xfff) & ~0xfff);
+		}
+		final ByteBuffer dst = sample.buffer;
+		dst.clear();
+		if (size > 0) {
+			// use src directly instead of ByteBuffer#duplicate not to allocate
+			final int pos = src.position();
+			final int limit = src.limit();
+			src.limit(offset + size).position(offset);
+			dst.put(src);
+			src.limit(limit).position(pos);
+		}
+		dst.flip();
+		sample.size = size;
+		sample.presentationTimeUs = presentationTimeUs;
+		sample.flags = flags;
+		sample.queuedTimeNs = System.nanoTime();
+		// publish the slot to consumer
+		mHead.lazySet(head + 1);
+		return true;
+	}
+
+	/**
+	 * get oldest sample without removing it, this should be called only from consumer thread.
+	 * @return null if queue is empty
+	 */
+	public Sample peek() {
+		final long tail = mTail.get();
+		if (tail >= mHead.get()) {
+			return null;
+		}
+		return mSamples[(int)tail & mMask];
+	}
+
+	/**
+	 * remove oldest sample, this should be called only from consumer thread
+	 * after the sample returned by #peek was consumed.
+	 */
+	public void remove() {
+		final long tail = mTail.get();
+		if (tail < mHead.get()) {
+			mTail.lazySet(tail + 1);
+		}
+	}
+
+	/**
+	 * discard all samples, this should be called only from consumer thread.
+	 */
+	public void clear() {
+		mTail.lazySet(mHead.get());
+	}
+}
@@ -0,0 +1,226 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: SessionClock.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Clock of a recording session that is shared by all tracks of MediaMuxerWrapper.
+ * Session time is System.nanoTime()/1000(or time of FrameScheduler.Clock) minus total duration of pausing,
+ * pausing and resuming are applied to all tracks at once because they share one immutable state
+ * that is swapped atomically. Each track stamps its output samples through its Track,
+ * which keeps presentationTimeUs strictly increasing and counts corrections when it had to.
+ * All methods are lock-free and can be called from any thread.
+ */
+public class SessionClock {
+
+	/**
+	 * pausing state, replaced as a whole on #pause/#resume
+	 */
+	private static final class State {
+		/** total duration of finished pauses */
+		private final long offsetUs;
+		private final boolean paused;
+		/** raw time when current pause started */
+		private final long pausedAtUs;
+
+		private State(final long offsetUs, final boolean paused, final long pausedAtUs) {
+			this.offsetUs = offsetUs;
+			this.paused = paused;
+			this.pausedAtUs = pausedAtUs;
+		}
+	}
+
+	/**
+	 * monotonic timestamps of one track
+	 */
+	public final class Track {
+		private final AtomicLong mLastUs = new AtomicLong(Long.MIN_VALUE);
+		private final AtomicLong mCorrections = new AtomicLong();
+
+		private Track() {
+		}
+
+		/**
+		 * get presentationTimeUs to write, this is later than any previous result of this track
+		 * @param sessionTimeUs
+		 * @return sessionTimeUs, or previous result + 1 if sessionTimeUs is not later than it
+		 */
+		public long stamp(final long sessionTimeUs) {
+			for ( ; ; ) {
+				final long prev = mLastUs.get();
+				final long result = sessionTimeUs > prev ? sessionTimeUs : prev + 1;
+				if (mLastUs.compareAndSet(prev, result)) {
+					if (result != sessionTimeUs) {
+						mCorrections.incrementAndGet();
+						onCorrected(result - sessionTimeUs);
+					}
+					return result;
+				}
+			}
+		}
+
+		/**
+		 * previous result of #stamp
+		 * @return Long.MIN_VALUE if nothing was stamped yet
+		 */
+		public long getLastUs() {
+			return mLastUs.get();
+		}
+
+		/**
+		 * number of timestamps of this track that were moved forward
+		 * @return
+		 */
+		public long getCorrections() {
+			return mCorrections.get();
+		}
+	}
+
+	private final FrameScheduler.Clock mClock;
+	private final AtomicReference<State> mState = new AtomicReference<State>(new State(0, false, 0));
+	private final AtomicLong mCorrections = new AtomicLong();
+	private final AtomicLong mMaxCorrectionUs = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * @param clock time source, null means System.nanoTime
+	 */
+	public SessionClock(final FrameScheduler.Clock clock) {
+		mClock = clock != null ? clock : FrameScheduler.SYSTEM_CLOCK;
+	}
+
+	public Track newTrack() {
+		return new Track();
+	}
+
+	/**
+	 * current session time, this does not advance while paused.
+	 * when #pause runs concurrently, the result can be later than the time that pausing froze
+	 * by the delay between #pause reading the time and swapping the state(usually microseconds,
+	 * a few milliseconds when the pausing thread was preempted). Track#stamp corrects
+	 * the following timestamps of the track and counts it.
+	 * @return
+	 */
+	public long nowUs() {
+		for ( ; ; ) {
+			final State state = mState.get();
+			final long now = state.paused ? state.pausedAtUs : rawUs();
+			// retry when paused/resumed while reading the time,
+			// otherwise the result jumps by the duration of pausing
+			if (mState.get() == state) {
+				return now - state.offsetUs;
+			}
+		}
+	}
+
+	/**
+	 * convert raw time(e.g. capture time of input data) into session time
+	 * @param timeUs time in the same base as the clock of this instance
+	 * @return
+	 */
+	public long toSessionUs(final long timeUs) {
+		return timeUs - mState.get().offsetUs;
+	}
+
+	/**
+	 * total duration of finished pauses
+	 * @return
+	 */
+	public long getPauseOffsetUs() {
+		return mState.get().offsetUs;
+	}
+
+	public boolean isPaused() {
+		return mState.get().paused;
+	}
+
+	/**
+	 * stop session time for all tracks
+	 * @return false if already paused
+	 */
+	public boolean pause() {
+		for ( ; ; ) {
+			final State state = mState.get();
+			if (state.paused) return false;
+			final long now = rawUs();
+			if (mState.compareAndSet(state, new State(state.offsetUs, true, now))) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * restart session time for all tracks from the time when it was paused
+	 * @return false if not paused
+	 */
+	public boolean resume() {
+		for ( ; ; ) {
+			final State state = mState.get();
+			if (!state.paused) return false;
+			final long paused = Math.max(0, rawUs() - state.pausedAtUs);
+			if (mState.compareAndSet(state, new State(state.offsetUs + paused, false, 0))) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * number of timestamps that were moved forward to keep them increasing, for all tracks
+	 * @return
+	 */
+	public long getCorrections() {
+		return mCorrections.get();
+	}
+
+	/**
+	 * maximum amount of a correction
+	 * @return
+	 */
+	public long getMaxCorrectionUs() {
+		return mMaxCorrectionUs.get();
+	}
+
+	private long rawUs() {
+		return mClock.nanoTime() / 1000L;
+	}
+
+	private void onCorrected(final long correctionUs) {
+		mCorrections.incrementAndGet();
+		for ( ; ; ) {
+			final long max = mMaxCorrectionUs.get();
+			if ((correctionUs <= max) || mMaxCorrectionUs.compareAndSet(max, correctionUs)) {
+				break;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SessionClock{paused=" + isPaused()
+			+ ",pauseOffset=" + getPauseOffsetUs()
+			+ ",corrections=" + mCorrections.get()
+			+ ",maxCorrection=" + mMaxCorrectionUs.get() + " us}";
+	}
+}
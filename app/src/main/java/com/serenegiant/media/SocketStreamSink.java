@@ -0,0 +1,63 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: SocketStreamSink.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * ElementaryStreamSink that sends to a TCP socket, e.g. `ffplay -f h264 tcp://0.0.0.0:port?listen`.
+ * The socket is closed when the receiver can not keep up.
+ */
+public class SocketStreamSink extends ElementaryStreamSink {
+	private static final String TAG = SocketStreamSink.class.getSimpleName();
+
+	private final String mHost;
+	private final int mPort;
+
+	/**
+	 * Constructor
+	 * @param host
+	 * @param port
+	 * @param video
+	 */
+	public SocketStreamSink(final String host, final int port, final boolean video) {
+		this(host, port, video, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	public SocketStreamSink(final String host, final int port, final boolean video, final int queueCapacity) {
+		super(TAG, video, queueCapacity);
+		mHost = host;
+		mPort = port;
+	}
+
+	@Override
+	protected WritableByteChannel openChannel() throws IOException {
+		final SocketChannel channel = SocketChannel.open(new InetSocketAddress(mHost, mPort));
+		channel.socket().setTcpNoDelay(true);
+		return channel;
+	}
+}
@@ -53,6 +53,10 @@ public final class MainActivity extends Activity
 	private static final String TAG = "MainActivity";
 
 	private static final int REQUEST_CODE_SCREEN_CAPTURE = 1;
+	/**
+	 * record as fragmented MP4 so that the recording is recovered when the process dies while recording
+	 */
+	private static final boolean FRAGMENTED_MP4 = true;
 
 	private ToggleButton mRecordButton;
 	private ToggleButton mPauseButton;
@@ -96,6 +100,10 @@ public final class MainActivity extends Activity
             if (resultCode != Activity.RESULT_OK) {
                 // when no permission
                 Toast.makeText(this, "permission denied", Toast.LENGTH_LONG).show();
+                // release encoders in standby
+                final Intent intent = new Intent(this, ScreenRecorderService.class);
+                intent.setAction(ScreenRecorderService.ACTION_STOP);
+                startService(intent);
                 return;
             }
             startScreenRecorder(resultCode, data);
@@ -109,6 +117,11 @@ public final class MainActivity extends Activity
 			case R.id.record_button:
 				if (checkPermissionWriteExternalStorage() && checkPermissionAudio()) {
 					if (isChecked) {
+						// prepare encoders while the user is asked for permission
+						final Intent standby = new Intent(MainActivity.this, ScreenRecorderService.class);
+						standby.setAction(ScreenRecorderService.ACTION_STANDBY);
+						standby.putExtra(ScreenRecorderService.EXTRA_FRAGMENTED_MP4, FRAGMENTED_MP4);
+						startService(standby);
 						final MediaProjectionManager manager
 							= (MediaProjectionManager)getSystemService(Context.MEDIA_PROJECTION_SERVICE);
 							final Intent permissionIntent = manager.createScreenCaptureIntent();
@@ -153,6 +166,7 @@ public final class MainActivity extends Activity
 		final Intent intent = new Intent(this, ScreenRecorderService.class);
 		intent.setAction(ScreenRecorderService.ACTION_START);
 		intent.putExtra(ScreenRecorderService.EXTRA_RESULT_CODE, resultCode);
+		intent.putExtra(ScreenRecorderService.EXTRA_FRAGMENTED_MP4, FRAGMENTED_MP4);
 		intent.putExtras(data);
 		startService(intent);
 	}
@@ -22,6 +22,7 @@ package com.serenegiant.service;
  * All files in the folder are under this Apache License, Version 2.0.
 */
 
+import java.io.File;
 import java.io.IOException;
 
 import android.annotation.TargetApi;
@@ -31,19 +32,28 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Rect;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
 import android.os.Build;
+import android.os.Environment;
 import android.os.IBinder;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.DisplayMetrics;
 import android.util.Log;
 
+import com.serenegiant.media.CaptureRegion;
+import com.serenegiant.media.CodecIndexLoader;
+import com.serenegiant.media.EncoderScheduler;
+import com.serenegiant.media.FragmentedMp4Muxer;
 import com.serenegiant.media.MediaAudioEncoder;
 import com.serenegiant.media.MediaEncoder;
 import com.serenegiant.media.MediaMuxerWrapper;
+import com.serenegiant.media.MediaRenditionEncoder;
 import com.serenegiant.media.MediaScreenEncoder;
+import com.serenegiant.media.MpegTsSink;
+import com.serenegiant.media.PreRollSink;
 import com.serenegiant.screenrecordingsample.MainActivity;
 import com.serenegiant.screenrecordingsample.R;
 import com.serenegiant.utils.BuildCheck;
@@ -57,20 +67,96 @@ public class ScreenRecorderService extends Service {
     	FileUtils.DIR_NAME = APP_DIR_NAME;
     }
 
+	/**
+	 * bitrate and frame rate of screen encoder, lowered down to the minimum values
+	 * only while encoder or storage can not keep up
+	 */
+	private static final int VIDEO_BIT_RATE = 800 * 1024;
+	private static final int VIDEO_MIN_BIT_RATE = 200 * 1024;
+	private static final int VIDEO_FRAME_RATE = 15;
+	private static final int VIDEO_MIN_FRAME_RATE = 5;
+
 	private static final String BASE = "com.serenegiant.service.ScreenRecorderService.";
 	public static final String ACTION_START = BASE + "ACTION_START";
 	public static final String ACTION_STOP = BASE + "ACTION_STOP";
+	/**
+	 * prepare encoders ahead of ACTION_START to shorten the time until recording starts,
+	 * e.g. while the user is asked for permission of screen capturing
+	 */
+	public static final String ACTION_STANDBY = BASE + "ACTION_STANDBY";
 	public static final String ACTION_PAUSE = BASE + "ACTION_PAUSE";
 	public static final String ACTION_RESUME = BASE + "ACTION_RESUME";
+	/**
+	 * save last EXTRA_REPLAY_DURATION_MS of pre-roll buffer to a new file
+	 */
+	public static final String ACTION_SAVE_REPLAY = BASE + "ACTION_SAVE_REPLAY";
+	/**
+	 * change crop rectangle to EXTRA_CAPTURE_RECT while recording, whole screen when it is not set
+	 */
+	public static final String ACTION_SET_CAPTURE_RECT = BASE + "ACTION_SET_CAPTURE_RECT";
 	public static final String ACTION_QUERY_STATUS = BASE + "ACTION_QUERY_STATUS";
 	public static final String ACTION_QUERY_STATUS_RESULT = BASE + "ACTION_QUERY_STATUS_RESULT";
 	public static final String EXTRA_RESULT_CODE = BASE + "EXTRA_RESULT_CODE";
+	/**
+	 * optional extras for ACTION_START to split recording into segments, long values
+	 */
+	public static final String EXTRA_SEGMENT_DURATION_MS = BASE + "EXTRA_SEGMENT_DURATION_MS";
+	public static final String EXTRA_SEGMENT_MAX_BYTES = BASE + "EXTRA_SEGMENT_MAX_BYTES";
+	public static final String EXTRA_SEGMENT_TOTAL_BYTES = BASE + "EXTRA_SEGMENT_TOTAL_BYTES";
+	/**
+	 * optional extra for ACTION_START to serve live MPEG-TS on this local port while recording, int value
+	 */
+	public static final String EXTRA_LIVE_PORT = BASE + "EXTRA_LIVE_PORT";
+	/**
+	 * optional extra for ACTION_START to serve low resolution/bitrate preview as MPEG-TS on this local port,
+	 * the preview is encoded from the same capture as the recording, int value
+	 */
+	public static final String EXTRA_PREVIEW_PORT = BASE + "EXTRA_PREVIEW_PORT";
+	/**
+	 * optional extra for ACTION_START to keep this duration of encoded output in memory
+	 * instead of recording to file, long value
+	 */
+	public static final String EXTRA_PREROLL_MS = BASE + "EXTRA_PREROLL_MS";
+	/**
+	 * optional extra for ACTION_START and ACTION_SET_CAPTURE_RECT to capture a part of screen,
+	 * android.graphics.Rect value in screen pixels
+	 */
+	public static final String EXTRA_CAPTURE_RECT = BASE + "EXTRA_CAPTURE_RECT";
+	/**
+	 * optional extra for ACTION_START to downscale the captured screen, float value in (0, 1]
+	 */
+	public static final String EXTRA_OUTPUT_SCALE = BASE + "EXTRA_OUTPUT_SCALE";
+	/**
+	 * optional extra for ACTION_START and ACTION_STANDBY to record as fragmented MP4
+	 * that can be recovered when the process dies while recording, boolean value
+	 */
+	public static final String EXTRA_FRAGMENTED_MP4 = BASE + "EXTRA_FRAGMENTED_MP4";
+	/**
+	 * optional extra for ACTION_START to dump encoder metrics to logcat at this interval, long value
+	 */
+	public static final String EXTRA_METRICS_INTERVAL_MS = BASE + "EXTRA_METRICS_INTERVAL_MS";
+	/**
+	 * extra for ACTION_SAVE_REPLAY, long value
+	 */
+	public static final String EXTRA_REPLAY_DURATION_MS = BASE + "EXTRA_REPLAY_DURATION_MS";
 	public static final String EXTRA_QUERY_RESULT_RECORDING = BASE + "EXTRA_QUERY_RESULT_RECORDING";
 	public static final String EXTRA_QUERY_RESULT_PAUSING = BASE + "EXTRA_QUERY_RESULT_PAUSING";
 	private static final int NOTIFICATION = R.string.app_name;
 
 	private static final Object sSync = new Object();
 	private static MediaMuxerWrapper sMuxer;
+	private static PreRollSink sPreRoll;
+	private static MediaScreenEncoder sScreenEncoder;
+	/**
+	 * muxer of preview rendition, this is not paused with the recording
+	 */
+	private static MediaMuxerWrapper sPreviewMuxer;
+	/**
+	 * encoders that are prepared ahead of ACTION_START
+	 */
+	private static MediaMuxerWrapper sStandbyMuxer;
+	private static MediaScreenEncoder sStandbyEncoder;
+	private static boolean sStandbyFragmented;
 
 	private MediaProjectionManager mMediaProjectionManager;
 	private NotificationManager mNotificationManager;
@@ -87,11 +173,19 @@ public class ScreenRecorderService extends Service {
 			mMediaProjectionManager = (MediaProjectionManager)getSystemService(Context.MEDIA_PROJECTION_SERVICE);
 		mNotificationManager = (NotificationManager)getSystemService(NOTIFICATION_SERVICE);
 		showNotification(TAG);
+		// load encoder capabilities before recording starts
+		CodecIndexLoader.init(this);
+		recoverRecordings();
 	}
 
 	@Override
 	public void onDestroy() {
 		if (DEBUG) Log.v(TAG, "onDestroy:");
+		synchronized (sSync) {
+			releaseStandby();
+		}
+		// worker threads terminate when encoders that are still stopping were released
+		EncoderScheduler.shutdownDefault();
 		super.onDestroy();
 	}
 
@@ -114,8 +208,10 @@ public class ScreenRecorderService extends Service {
 			stopScreenRecord();
 			updateStatus();
 			result = START_NOT_STICKY;
+		} else if (ACTION_STANDBY.equals(action)) {
+			standbyScreenRecord(intent.getBooleanExtra(EXTRA_FRAGMENTED_MP4, false));
 		} else if (ACTION_QUERY_STATUS.equals(action)) {
-			if (!updateStatus()) {
+			if (!updateStatus() && !hasStandby()) {
 				stopSelf();
 				result = START_NOT_STICKY;
 			}
@@ -123,10 +219,20 @@ public class ScreenRecorderService extends Service {
 			pauseScreenRecord();
 		} else if (ACTION_RESUME.equals(action)) {
 			resumeScreenRecord();
+		} else if (ACTION_SAVE_REPLAY.equals(action)) {
+			saveReplay(intent.getLongExtra(EXTRA_REPLAY_DURATION_MS, 0));
+		} else if (ACTION_SET_CAPTURE_RECT.equals(action)) {
+			setCaptureRect(intent.<Rect>getParcelableExtra(EXTRA_CAPTURE_RECT));
 		}
 		return result;
 	}
 
+	private static boolean hasStandby() {
+		synchronized (sSync) {
+			return sStandbyMuxer != null;
+		}
+	}
+
 	private boolean updateStatus() {
 		final boolean isRecording, isPausing;
 		synchronized (sSync) {
@@ -149,63 +255,234 @@ public class ScreenRecorderService extends Service {
 	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
 	private void startScreenRecord(final Intent intent) {
 		if (DEBUG) Log.v(TAG, "startScreenRecord:sMuxer=" + sMuxer);
+		final long startTimeNs = System.nanoTime();
 		synchronized (sSync) {
 			if (sMuxer == null) {
 				final int resultCode = intent.getIntExtra(EXTRA_RESULT_CODE, 0);
 				// get MediaProjection
 			    final MediaProjection projection = mMediaProjectionManager.getMediaProjection(resultCode, intent);
 			    if (projection != null) {
-				    final DisplayMetrics metrics = getResources().getDisplayMetrics();
-					int width = metrics.widthPixels;
-					int height = metrics.heightPixels;
-					if (width > height) {
-						// 横長
-						final float scale_x = width / 1920f;
-						final float scale_y = height / 1080f;
-						final float scale = Math.max(scale_x,  scale_y);
-						width = (int)(width / scale);
-						height = (int)(height / scale);
-					} else {
-						// 縦長
-						final float scale_x = width / 1080f;
-						final float scale_y = height / 1920f;
-						final float scale = Math.max(scale_x,  scale_y);
-						width = (int)(width / scale);
-						height = (int)(height / scale);
-					}
-					if (DEBUG) Log.v(TAG, String.format("startRecording:(%d,%d)(%d,%d)", metrics.widthPixels, metrics.heightPixels, width, height));
 					try {
-						sMuxer = new MediaMuxerWrapper(this, ".mp4");	// if you record audio only, ".m4a" is also OK.
-						if (true) {
-							// for screen capturing
-							new MediaScreenEncoder(sMuxer, mMediaEncoderListener,
-								projection, width, height, metrics.densityDpi, 800 * 1024, 15);
+						final long prerollMs = intent.getLongExtra(EXTRA_PREROLL_MS, 0);
+						final Rect crop = intent.getParcelableExtra(EXTRA_CAPTURE_RECT);
+						final float scale = intent.getFloatExtra(EXTRA_OUTPUT_SCALE, 1.0f);
+						final boolean fragmented = intent.getBooleanExtra(EXTRA_FRAGMENTED_MP4, false);
+						final MediaScreenEncoder encoder;
+						// encoders in standby capture whole screen without scaling
+						if ((sStandbyMuxer != null) && (prerollMs <= 0) && (crop == null) && (scale == 1.0f)
+							&& (sStandbyFragmented == fragmented)) {
+							// codecs and threads are already running, only output file and projection are bound below
+							if (DEBUG) Log.v(TAG, "startScreenRecord:use standby encoders");
+							sMuxer = sStandbyMuxer;
+							encoder = sStandbyEncoder;
+							sStandbyMuxer = null;
+							sStandbyEncoder = null;
+						} else {
+							releaseStandby();
+							sMuxer = new MediaMuxerWrapper(this, ".mp4",	// if you record audio only, ".m4a" is also OK.
+								prerollMs > 0 ? MediaMuxerWrapper.MUXER_NONE : getMuxerType(fragmented), true);
+							encoder = prepareEncoders(sMuxer, crop, scale);
+						}
+						sScreenEncoder = encoder;
+						sMuxer.getMetrics().markStart(startTimeNs);
+						if (prerollMs > 0) {
+							sPreRoll = new PreRollSink(PreRollSink.getCapacity(
+								VIDEO_BIT_RATE + MediaAudioEncoder.BIT_RATE, prerollMs));
+							sMuxer.addSink(sPreRoll);
 						}
-						if (true) {
-							// for audio capturing
-							new MediaAudioEncoder(sMuxer, mMediaEncoderListener);
+						sMuxer.setSegmentation(
+							intent.getLongExtra(EXTRA_SEGMENT_DURATION_MS, 0),
+							intent.getLongExtra(EXTRA_SEGMENT_MAX_BYTES, 0),
+							intent.getLongExtra(EXTRA_SEGMENT_TOTAL_BYTES, 0));
+						sMuxer.setMetricsDump(intent.getLongExtra(EXTRA_METRICS_INTERVAL_MS, 0), null);
+						final int livePort = intent.getIntExtra(EXTRA_LIVE_PORT, 0);
+						if (livePort > 0) {
+							sMuxer.addSink(new MpegTsSink(livePort));
 						}
-						sMuxer.prepare();
+						sMuxer.bindOutput();
+						final int previewPort = intent.getIntExtra(EXTRA_PREVIEW_PORT, 0);
+						if (previewPort > 0) {
+							sPreviewMuxer = preparePreview(encoder, previewPort);
+						}
+						encoder.setMediaProjection(projection);
 						sMuxer.startRecording();
+						if (sPreviewMuxer != null) {
+							sPreviewMuxer.startRecording();
+						}
 					} catch (final IOException e) {
 						Log.e(TAG, "startScreenRecord:", e);
+						// release encoders e.g. when output file could not be created
+						if (sMuxer != null) {
+							sMuxer.stopRecording();
+							sMuxer = null;
+						}
+						if (sPreviewMuxer != null) {
+							sPreviewMuxer.stopRecording();
+							sPreviewMuxer = null;
+						}
+						sPreRoll = null;
+						sScreenEncoder = null;
+						// MediaProjection is not passed to the encoder yet
+						projection.stop();
 					}
 			    }
 			}
 		}
 	}
 
+	/**
+	 * create and prepare encoders without MediaProjection and output file,
+	 * so that next ACTION_START only needs to bind them
+	 */
+	private void standbyScreenRecord(final boolean fragmented) {
+		if (DEBUG) Log.v(TAG, "standbyScreenRecord:fragmented=" + fragmented);
+		synchronized (sSync) {
+			if ((sMuxer == null) && (sStandbyMuxer == null)) {
+				try {
+					sStandbyMuxer = new MediaMuxerWrapper(this, ".mp4", getMuxerType(fragmented), true);
+					sStandbyFragmented = fragmented;
+					sStandbyEncoder = prepareEncoders(sStandbyMuxer, null, 1.0f);
+				} catch (final IOException e) {
+					Log.e(TAG, "standbyScreenRecord:", e);
+					releaseStandby();
+				}
+			}
+		}
+	}
+
+	/**
+	 * fragmented MP4 can be recovered when the process dies while recording,
+	 * but some players can not seek in it
+	 * @param fragmented
+	 * @return
+	 */
+	private static int getMuxerType(final boolean fragmented) {
+		return fragmented ? MediaMuxerWrapper.MUXER_FRAGMENTED_MP4 : MediaMuxerWrapper.MUXER_MP4;
+	}
+
+	/**
+	 * release encoders in standby, this should be called while holding sSync
+	 */
+	private void releaseStandby() {
+		if (sStandbyMuxer != null) {
+			sStandbyMuxer.stopRecording();
+			sStandbyMuxer = null;
+			sStandbyEncoder = null;
+		}
+	}
+
+	/**
+	 * add screen and audio encoders to the muxer and prepare them
+	 * @param muxer
+	 * @param crop part of screen to capture in screen pixels, null means whole screen
+	 * @param outputScale output scale, encoder input is the crop size multiplied by this
+	 * @return screen encoder, MediaProjection should be set before starting
+	 * @throws IOException
+	 */
+	private MediaScreenEncoder prepareEncoders(final MediaMuxerWrapper muxer,
+		@Nullable final Rect crop, final float outputScale) throws IOException {
+
+	    final DisplayMetrics metrics = getResources().getDisplayMetrics();
+		int width = metrics.widthPixels;
+		int height = metrics.heightPixels;
+		if (width > height) {
+			// 横長
+			final float scale_x = width / 1920f;
+			final float scale_y = height / 1080f;
+			final float scale = Math.max(scale_x,  scale_y);
+			width = (int)(width / scale);
+			height = (int)(height / scale);
+		} else {
+			// 縦長
+			final float scale_x = width / 1080f;
+			final float scale_y = height / 1920f;
+			final float scale = Math.max(scale_x,  scale_y);
+			width = (int)(width / scale);
+			height = (int)(height / scale);
+		}
+		if (DEBUG) Log.v(TAG, String.format("prepareEncoders:(%d,%d)(%d,%d)", metrics.widthPixels, metrics.heightPixels, width, height));
+		// VirtualDisplay is always created with whole screen, cropping and scaling are done on GPU
+		CaptureRegion region;
+		try {
+			if (crop != null) {
+				final float s = width / (float)metrics.widthPixels;
+				region = new CaptureRegion(width, height,
+					Math.round(crop.left * s), Math.round(crop.top * s),
+					Math.round(crop.right * s), Math.round(crop.bottom * s), outputScale);
+			} else {
+				region = new CaptureRegion(width, height, 0, 0, width, height, outputScale);
+			}
+		} catch (final IllegalArgumentException e) {
+			Log.w(TAG, "prepareEncoders:capture whole screen", e);
+			region = new CaptureRegion(width, height);
+		}
+		if (DEBUG) Log.v(TAG, "prepareEncoders:" + region);
+		// for screen capturing
+		final MediaScreenEncoder encoder = new MediaScreenEncoder(muxer, mMediaEncoderListener,
+			null, region, metrics.densityDpi, VIDEO_BIT_RATE, VIDEO_FRAME_RATE);
+		// lower bitrate/frame rate only while encoder or storage can not keep up
+		encoder.setAdaptiveBitrate(VIDEO_MIN_BIT_RATE, VIDEO_BIT_RATE, VIDEO_MIN_FRAME_RATE);
+		// segments start with key frame of screen
+		muxer.setPrimaryVideoEncoder(encoder);
+		if (true) {
+			// for audio capturing
+			new MediaAudioEncoder(muxer, mMediaEncoderListener);
+		}
+		muxer.prepare();
+		return encoder;
+	}
+
+	/**
+	 * prepare encoder of half resolution, bitrate and frame rate that is fed from the screen encoder
+	 * and serve it as MPEG-TS
+	 * @param source
+	 * @param port
+	 * @return
+	 * @throws IOException
+	 */
+	private MediaMuxerWrapper preparePreview(final MediaScreenEncoder source, final int port) throws IOException {
+		final MediaMuxerWrapper muxer = new MediaMuxerWrapper(this, ".mp4", MediaMuxerWrapper.MUXER_NONE);
+		new MediaRenditionEncoder(muxer, mMediaEncoderListener, source, 0.5f, 200 * 1024, 2);
+		muxer.addSink(new MpegTsSink(port));
+		// encoders are released when this failed
+		muxer.prepare();
+		return muxer;
+	}
+
+	/**
+	 * recover recordings that were not finished because the process died while recording.
+	 * this only scans box headers of the files so it does not take long even for large files.
+	 * sSync is not held here, journals of running recordings are skipped by RecordingJournal itself.
+	 */
+	private void recoverRecordings() {
+		final File dir = FileUtils.getCaptureDir(this, Environment.DIRECTORY_MOVIES, 0);
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				final int n = FragmentedMp4Muxer.recover(dir);
+				if (DEBUG) Log.v(TAG, "recoverRecordings:recovered=" + n);
+			}
+		}, "RecoverRecordings").start();
+	}
+
 	/**
 	 * stop screen recording
 	 */
 	private void stopScreenRecord() {
 		if (DEBUG) Log.v(TAG, "stopScreenRecord:sMuxer=" + sMuxer);
 		synchronized (sSync) {
+			if (sPreviewMuxer != null) {
+				sPreviewMuxer.stopRecording();
+				sPreviewMuxer = null;
+			}
 			if (sMuxer != null) {
 				sMuxer.stopRecording();
 				sMuxer = null;
+				sPreRoll = null;
+				sScreenEncoder = null;
 				// you should not wait here
 			}
+			releaseStandby();
 		}
 		stopForeground(true/*removeNotification*/);
 		if (mNotificationManager != null) {
@@ -215,6 +492,55 @@ public class ScreenRecorderService extends Service {
 		stopSelf();
 	}
 
+	/**
+	 * save pre-roll buffer to a new file while encoders keep running
+	 * @param durationMs
+	 */
+	private void saveReplay(final long durationMs) {
+		synchronized (sSync) {
+			if (sPreRoll != null) {
+				final String path = FileUtils.getCaptureFile(this, Environment.DIRECTORY_MOVIES, ".mp4", 0).toString();
+				sPreRoll.save(path, durationMs, mSaveCallback);
+			}
+		}
+	}
+
+	private static final PreRollSink.SaveCallback mSaveCallback = new PreRollSink.SaveCallback() {
+		@Override
+		public void onSaved(final String outputPath, final long durationUs) {
+			if (DEBUG) Log.v(TAG, "onSaved:" + outputPath + ",durationUs=" + durationUs);
+		}
+
+		@Override
+		public void onError(final String outputPath, final Exception e) {
+			Log.w(TAG, "failed to save replay:" + outputPath, e);
+		}
+	};
+
+	/**
+	 * change crop rectangle of current recording, output size is not changed
+	 * @param crop in screen pixels, null means whole screen
+	 */
+	private void setCaptureRect(@Nullable final Rect crop) {
+		synchronized (sSync) {
+			if (sScreenEncoder != null) {
+				final CaptureRegion region = sScreenEncoder.getCaptureRegion();
+				try {
+					if (crop != null) {
+						final float s = region.getSourceWidth()
+							/ (float)getResources().getDisplayMetrics().widthPixels;
+						sScreenEncoder.setCrop(Math.round(crop.left * s), Math.round(crop.top * s),
+							Math.round(crop.right * s), Math.round(crop.bottom * s));
+					} else {
+						sScreenEncoder.setCrop(0, 0, region.getSourceWidth(), region.getSourceHeight());
+					}
+				} catch (final IllegalArgumentException e) {
+					Log.w(TAG, "setCaptureRect:", e);
+				}
+			}
+		}
+	}
+
 	private void pauseScreenRecord() {
 		synchronized (sSync) {
 			if (sMuxer != null) {
@@ -244,6 +570,11 @@ public class ScreenRecorderService extends Service {
 		public void onStopped(final MediaEncoder encoder) {
 			if (DEBUG) Log.v(TAG, "onStopped:encoder=" + encoder);
 		}
+
+		@Override
+		public void onError(final MediaEncoder encoder, final Exception e) {
+			Log.e(TAG, "onError:encoder=" + encoder, e);
+		}
 	};
 
 //================================================================================
@@ -0,0 +1,231 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: AsyncCodecPipelineTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncCodecPipelineTest {
+	private static final int BUFFER_COUNT = 4;
+	/**
+	 * timeout of each dequeueOutputBuffer in polling drain loop of synchronous mode
+	 */
+	private static final long POLLING_TIMEOUT_US = MediaEncoder.TIMEOUT_USEC;
+
+	private FakeAsyncCodec mCodec;
+	private RecordingOutput mOutput;
+	private AsyncCodecPipeline mPipeline;
+
+	private static class RecordingOutput implements AsyncCodecPipeline.Output {
+		final AtomicInteger formatChanged = new AtomicInteger();
+		final ConcurrentLinkedQueue<Long> samples = new ConcurrentLinkedQueue<Long>();
+		final CopyOnWriteArrayList<Exception> failures = new CopyOnWriteArrayList<Exception>();
+		final AtomicInteger endOfStream = new AtomicInteger();
+		/**
+		 * sum of latency from queueing input until output was pushed
+		 */
+		long totalLatencyNs;
+		volatile long queuedNs;
+		volatile RuntimeException throwOnSample;
+
+		@Override
+		public void onFormatChanged(final MediaFormat format) {
+			formatChanged.incrementAndGet();
+		}
+
+		@Override
+		public void onSample(final ByteBuffer encodedData, final MediaCodec.BufferInfo info) {
+			totalLatencyNs += System.nanoTime() - queuedNs;
+			if (throwOnSample != null) throw throwOnSample;
+			assertEquals(info.size, encodedData.remaining());
+			samples.add(info.presentationTimeUs);
+		}
+
+		@Override
+		public void onEndOfStream() {
+			endOfStream.incrementAndGet();
+		}
+
+		@Override
+		public void onFailed(final Exception e) {
+			failures.add(e);
+		}
+	}
+
+	@Before
+	public void setUp() {
+		mCodec = new FakeAsyncCodec(BUFFER_COUNT, 1024);
+		mOutput = new RecordingOutput();
+		mPipeline = new AsyncCodecPipeline(mCodec, mOutput);
+		mCodec.start();
+	}
+
+	@After
+	public void tearDown() {
+		mCodec.release();
+	}
+
+	private void queue(final int size, final long pts, final int flags) {
+		final int ix = mPipeline.dequeueInputBuffer(1000000L);
+		assertTrue("no input buffer", ix >= 0);
+		final ByteBuffer buf = mPipeline.getInputBuffer(ix);
+		buf.clear();
+		for (int i = 0; i < size; i++) {
+			buf.put((byte)i);
+		}
+		mOutput.queuedNs = System.nanoTime();
+		mPipeline.queueInputBuffer(ix, size, pts, flags);
+	}
+
+	@Test
+	public void outputIsPushedAsSoonAsAvailable() throws Exception {
+		final int n = 200;
+		for (int i = 0; i < n; i++) {
+			queue(100, i * 1000L, 0);
+			// wait for each output to measure latency of one frame
+			mCodec.sync();
+		}
+		assertEquals(1, mOutput.formatChanged.get());
+		assertEquals(n, mOutput.samples.size());
+		long expected = 0;
+		for (final long pts: mOutput.samples) {
+			assertEquals(expected, pts);
+			expected += 1000L;
+		}
+		assertEquals(n, mCodec.getReleasedOutputs());
+		// polling drain loop waits up to POLLING_TIMEOUT_US for each output
+		final long meanLatencyUs = mOutput.totalLatencyNs / n / 1000L;
+		assertTrue("mean latency " + meanLatencyUs + "us", meanLatencyUs < POLLING_TIMEOUT_US);
+		assertNull(mCodec.uncaught);
+	}
+
+	@Test
+	public void endOfStreamWakesWaiter() throws Exception {
+		queue(10, 0, 0);
+		assertFalse(mPipeline.awaitEndOfStream(10));
+		queue(0, 1000, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+		assertTrue(mPipeline.awaitEndOfStream(1000));
+		assertFalse(mPipeline.isFailed());
+		mCodec.sync();
+		// notified once after the buffer was returned to the codec
+		assertEquals(1, mOutput.endOfStream.get());
+		assertEquals(2, mCodec.getReleasedOutputs());
+	}
+
+	@Test
+	public void heldOutputIsPassedInOrderOnRelease() throws Exception {
+		mCodec.runOnCallbackThread(new Runnable() {
+			@Override
+			public void run() {
+				mPipeline.holdOutput();
+			}
+		});
+		for (int i = 0; i < BUFFER_COUNT - 1; i++) {
+			queue(10, i * 1000L, 0);
+		}
+		queue(0, (BUFFER_COUNT - 1) * 1000L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+		mCodec.sync();
+		// held buffers are not returned to the codec
+		assertTrue(mOutput.samples.isEmpty());
+		assertEquals(0, mCodec.getReleasedOutputs());
+		assertEquals(BUFFER_COUNT, mPipeline.getHeldOutputCount());
+		assertFalse(mPipeline.awaitEndOfStream(10));
+		mCodec.runOnCallbackThread(new Runnable() {
+			@Override
+			public void run() {
+				mPipeline.releaseOutput();
+			}
+		});
+		assertTrue(mPipeline.awaitEndOfStream(1000));
+		mCodec.sync();
+		assertEquals(0, mPipeline.getHeldOutputCount());
+		assertEquals(BUFFER_COUNT, mCodec.getReleasedOutputs());
+		assertEquals(BUFFER_COUNT, mOutput.samples.size());
+		long expected = 0;
+		for (final long pts: mOutput.samples) {
+			assertEquals(expected, pts);
+			expected += 1000L;
+		}
+		// output after releasing is passed immediately
+		queue(10, 10000L, 0);
+		mCodec.sync();
+		assertEquals(BUFFER_COUNT + 1, mOutput.samples.size());
+		assertNull(mCodec.uncaught);
+	}
+
+	@Test
+	public void codecErrorIsReportedOnce() throws Exception {
+		final IllegalStateException error = new IllegalStateException("codec error");
+		mCodec.error(error);
+		mCodec.error(new IllegalStateException("second error"));
+		mCodec.sync();
+		assertTrue(mPipeline.isFailed());
+		assertSame(error, mPipeline.getError());
+		assertEquals(1, mOutput.failures.size());
+		assertSame(error, mOutput.failures.get(0));
+		// stop sequence does not wait for EOS that never comes
+		final long start = System.nanoTime();
+		assertFalse(mPipeline.awaitEndOfStream(1000));
+		assertTrue(System.nanoTime() - start < 500000000L);
+		assertEquals(AsyncCodecPipeline.INFO_TRY_AGAIN_LATER, mPipeline.dequeueInputBuffer(0));
+	}
+
+	@Test
+	public void exceptionOfOutputIsRoutedToFailure() throws Exception {
+		final RuntimeException error = new RuntimeException("muxer failed");
+		mOutput.throwOnSample = error;
+		queue(10, 0, 0);
+		mCodec.sync();
+		assertNull("callback thread should not crash", mCodec.uncaught);
+		assertTrue(mPipeline.isFailed());
+		assertEquals(1, mOutput.failures.size());
+		assertSame(error, mOutput.failures.get(0));
+	}
+
+	@Test
+	public void nullOutputBufferIsFailure() throws Exception {
+		mCodec.setReturnNullOutput(true);
+		queue(10, 0, 0);
+		mCodec.sync();
+		assertNull(mCodec.uncaught);
+		assertTrue(mPipeline.isFailed());
+		assertNotNull(mPipeline.getError());
+		assertTrue(mOutput.samples.isEmpty());
+	}
+}
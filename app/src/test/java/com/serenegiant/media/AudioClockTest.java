@@ -0,0 +1,151 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: AudioClockTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AudioClockTest {
+	private static final int SAMPLE_RATE = 44100;
+	private static final int CHUNK = 1024;
+	/** duration of CHUNK frames */
+	private static final long CHUNK_US = CHUNK * 1000000L / SAMPLE_RATE;
+	private static final long MAX_SLEW_US = 1000;
+	private static final long RESYNC_THRESHOLD_US = 100000;
+
+	private static class FakeClock implements FrameScheduler.Clock {
+		long nowUs = 5000000L;
+
+		@Override
+		public long nanoTime() {
+			return nowUs * 1000L;
+		}
+	}
+
+	private FakeClock mTime;
+	private SessionClock mSessionClock;
+	private AudioClock mClock;
+	private long mPrevPtsUs = -1;
+
+	@Before
+	public void setUp() {
+		mTime = new FakeClock();
+		mSessionClock = new SessionClock(mTime);
+		mClock = new AudioClock(SAMPLE_RATE, mSessionClock);
+	}
+
+	/**
+	 * capture one chunk that took specific duration in real time
+	 * @return presentationTimeUs of the chunk
+	 */
+	private long capture(final long elapsedUs) {
+		mTime.nowUs += elapsedUs;
+		final long pts = mClock.advance(CHUNK);
+		assertTrue(pts > mPrevPtsUs);
+		mPrevPtsUs = pts;
+		return pts;
+	}
+
+	/**
+	 * error of the clock from session time at the end of the last chunk
+	 */
+	private long error() {
+		return mSessionClock.nowUs() - mClock.nextUs();
+	}
+
+	@Test
+	public void anchoredToSessionTime() {
+		mSessionClock.pause();
+		mTime.nowUs += 3000000L;
+		mSessionClock.resume();
+		// first chunk ends now
+		final long pts = capture(CHUNK_US);
+		assertEquals(mSessionClock.nowUs() - CHUNK_US, pts);
+		assertEquals(pts + CHUNK_US, capture(CHUNK_US));
+		assertEquals(0, mClock.getCorrectionUs());
+	}
+
+	@Test
+	public void driftIsSlewed() {
+		// audio device is 0.05% slower than the system clock
+		final long elapsedUs = CHUNK_US * 10005 / 10000;
+		long prevCorrectionUs = 0;
+		for (int i = 0; i < 60 * SAMPLE_RATE / CHUNK; i++) {
+			capture(elapsedUs);
+			final long correctionUs = mClock.getCorrectionUs();
+			assertTrue(Math.abs(correctionUs - prevCorrectionUs) <= MAX_SLEW_US);
+			prevCorrectionUs = correctionUs;
+		}
+		// clock follows session time without jumping
+		assertTrue(mClock.getCorrectionUs() > 20000);
+		assertTrue("error=" + error(), Math.abs(error()) < 10000);
+	}
+
+	@Test
+	public void clockResyncsWhenFallingBehind() {
+		for (int i = 0; i < 10; i++) {
+			capture(CHUNK_US);
+		}
+		// e.g. samples were lost while the device was busy
+		mTime.nowUs += 300000L;
+		long prevPtsUs = mPrevPtsUs;
+		boolean resynced = false;
+		for (int i = 0; i < 2 * SAMPLE_RATE / CHUNK; i++) {
+			final long pts = capture(CHUNK_US);
+			if (pts - prevPtsUs > RESYNC_THRESHOLD_US) {
+				resynced = true;
+			}
+			prevPtsUs = pts;
+		}
+		assertTrue(resynced);
+		assertTrue(mClock.getCorrectionUs() >= 300000L - MAX_SLEW_US);
+		assertTrue("error=" + error(), Math.abs(error()) < CHUNK_US + MAX_SLEW_US);
+	}
+
+	@Test
+	public void clockIsNotJumpedBackward() {
+		for (int i = 0; i < 10; i++) {
+			capture(CHUNK_US);
+		}
+		// audio device is much faster than the system clock, the clock is only slewed
+		for (int i = 0; i < 2 * SAMPLE_RATE / CHUNK; i++) {
+			capture(CHUNK_US / 2);
+		}
+		assertTrue(mClock.getCorrectionUs() >= -2 * MAX_SLEW_US);
+	}
+
+	@Test
+	public void nextFollowsLastChunk() {
+		// session time is used until the first chunk is captured
+		assertEquals(mSessionClock.nowUs(), mClock.nextUs());
+		final long pts = capture(CHUNK_US);
+		assertEquals(pts + CHUNK_US, mClock.nextUs());
+		// not advanced
+		assertEquals(pts + CHUNK_US, mClock.nextUs());
+		assertEquals(pts + CHUNK_US, capture(CHUNK_US));
+	}
+}
@@ -0,0 +1,222 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: AudioMixerTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AudioMixerTest {
+	private static final int RATE = 48000;
+	private static final int CHUNK = 480;
+
+	private static short[] constant(final int samples, final int value) {
+		final short[] pcm = new short[samples];
+		for (int i = 0; i < samples; i++) {
+			pcm[i] = (short)value;
+		}
+		return pcm;
+	}
+
+	private static short[] ramp(final int samples, final int step) {
+		final short[] pcm = new short[samples];
+		for (int i = 0; i < samples; i++) {
+			pcm[i] = (short)(i * step);
+		}
+		return pcm;
+	}
+
+	private static void assertNear(final String msg, final double expected, final short actual) {
+		assertTrue(msg + " expected:" + expected + " but was:" + actual,
+			Math.abs(expected - actual) <= 1.0);
+	}
+
+	@Test
+	public void mixesInputsWithGain() {
+		final AudioMixer mixer = new AudioMixer(RATE, CHUNK);
+		final AudioMixer.Input a = mixer.addInput(RATE, 100, 0);
+		final AudioMixer.Input b = mixer.addInput(RATE, 100, 0);
+		a.write(constant(CHUNK, 1000), 0, CHUNK);
+		b.write(constant(CHUNK, 2000), 0, CHUNK);
+		b.setGain(0.5f);
+		final short[] out = new short[CHUNK + 2];
+		assertEquals(2, mixer.mix(out, 1, CHUNK));
+		assertEquals(0, out[0]);
+		for (int i = 1; i <= CHUNK; i++) {
+			assertEquals(2000, out[i]);
+		}
+		assertEquals(0, out[CHUNK + 1]);
+		assertEquals(0, a.getBufferedSamples());
+		assertEquals(0, b.getBufferedSamples());
+	}
+
+	@Test
+	public void sameRateKeepsSamples() {
+		final AudioMixer mixer = new AudioMixer(RATE, CHUNK);
+		final AudioMixer.Input input = mixer.addInput(RATE, 20, 0);	// ring of 1024 samples
+		final short[] pcm = ramp(CHUNK, 7);
+		final short[] out = new short[CHUNK];
+		// write and read across the end of ring several times
+		for (int n = 0; n < 10; n++) {
+			assertEquals(CHUNK, input.write(pcm, 0, CHUNK));
+			assertEquals(1, mixer.mix(out, 0, CHUNK));
+			assertArrayEquals("chunk#" + n, pcm, out);
+		}
+	}
+
+	@Test
+	public void clipsInsteadOfWrapping() {
+		final AudioMixer mixer = new AudioMixer(RATE, CHUNK);
+		final AudioMixer.Input a = mixer.addInput(RATE, 100, 0);
+		final AudioMixer.Input b = mixer.addInput(RATE, 100, 0);
+		final short[] loud = new short[CHUNK];
+		for (int i = 0; i < CHUNK; i++) {
+			loud[i] = (short)((i & 1) == 0 ? 30000 : -30000);
+		}
+		a.write(loud, 0, CHUNK);
+		b.write(loud, 0, CHUNK);
+		final short[] out = new short[CHUNK];
+		mixer.mix(out, 0, CHUNK);
+		for (int i = 0; i < CHUNK; i++) {
+			assertEquals((i & 1) == 0 ? Short.MAX_VALUE : Short.MIN_VALUE, out[i]);
+		}
+		// gain alone can also exceed full scale
+		a.setGain(2.0f);
+		a.write(constant(CHUNK, 20000), 0, CHUNK);
+		mixer.mix(out, 0, CHUNK);
+		assertEquals(Short.MAX_VALUE, out[0]);
+	}
+
+	@Test
+	public void upsampleInterpolates() {
+		final AudioMixer mixer = new AudioMixer(RATE, CHUNK);
+		final AudioMixer.Input input = mixer.addInput(RATE / 2, 100, 0);
+		input.write(ramp(1000, 10), 0, 1000);
+		final short[] out = new short[CHUNK];
+		// output sample i is at input position i / 2 over several mix calls
+		for (int n = 0; n < 3; n++) {
+			assertEquals(1, mixer.mix(out, 0, CHUNK));
+			for (int i = 0; i < CHUNK; i++) {
+				assertNear("sample#" + (n * CHUNK + i), (n * CHUNK + i) * 5.0, out[i]);
+			}
+		}
+		assertEquals(1000 - 3 * CHUNK / 2, input.getBufferedSamples());
+	}
+
+	@Test
+	public void downsampleSkipsSamples() {
+		final AudioMixer mixer = new AudioMixer(RATE, CHUNK);
+		final AudioMixer.Input input = mixer.addInput(RATE * 2, 100, 0);
+		input.write(ramp(2 * CHUNK + 1, 10), 0, 2 * CHUNK + 1);
+		final short[] out = new short[CHUNK];
+		assertEquals(1, mixer.mix(out, 0, CHUNK));
+		for (int i = 0; i < CHUNK; i++) {
+			assertNear("sample#" + i, i * 20.0, out[i]);
+		}
+		assertEquals(1, input.getBufferedSamples());
+	}
+
+	@Test
+	public void fractionalRatioStaysInPhase() {
+		final AudioMixer mixer = new AudioMixer(RATE, CHUNK);
+		final AudioMixer.Input input = mixer.addInput(44100, 100, 0);
+		final int samples = 2000;
+		input.write(ramp(samples, 15), 0, samples);
+		final short[] out = new short[CHUNK];
+		final double ratio = 44100.0 / RATE;
+		// phase is carried over between mix calls
+		for (int n = 0; n < 4; n++) {
+			assertEquals(1, mixer.mix(out, 0, CHUNK));
+			for (int i = 0; i < CHUNK; i++) {
+				final int k = n * CHUNK + i;
+				assertNear("sample#" + k, k * ratio * 15, out[i]);
+			}
+		}
+		// step is truncated in fixed point, so the read position can be one sample behind
+		final int consumed = samples - input.getBufferedSamples();
+		assertTrue("consumed " + consumed, Math.abs(4 * CHUNK * ratio - consumed) <= 1.0);
+	}
+
+	@Test
+	public void prefillAndUnderrun() {
+		final AudioMixer mixer = new AudioMixer(RATE, CHUNK);
+		final AudioMixer.Input input = mixer.addInput(RATE, 100, 20);	// prefill 960 samples
+		final short[] pcm = constant(CHUNK, 1000);
+		final short[] out = constant(CHUNK, 1);
+		input.write(pcm, 0, CHUNK);
+		// buffering input contributes silence
+		assertEquals(0, mixer.mix(out, 0, CHUNK));
+		assertEquals(0, out[0]);
+		input.write(pcm, 0, CHUNK);
+		assertEquals(1, mixer.mix(out, 0, CHUNK));
+		assertEquals(1000, out[0]);
+		assertEquals(1, mixer.mix(out, 0, CHUNK));
+		assertEquals(0, input.getUnderruns());
+		// nothing left
+		assertEquals(0, mixer.mix(out, 0, CHUNK));
+		assertEquals(1, input.getUnderruns());
+		// needs to buffer prefill samples again
+		input.write(pcm, 0, CHUNK);
+		assertEquals(0, mixer.mix(out, 0, CHUNK));
+		input.write(pcm, 0, CHUNK);
+		assertEquals(1, mixer.mix(out, 0, CHUNK));
+		assertEquals(1, input.getUnderruns());
+	}
+
+	@Test
+	public void overflowDiscardsSamples() {
+		final AudioMixer mixer = new AudioMixer(RATE, CHUNK);
+		final AudioMixer.Input input = mixer.addInput(RATE, 20, 0);	// ring of 1024 samples
+		final short[] pcm = ramp(CHUNK, 1);
+		assertEquals(CHUNK, input.write(pcm, 0, CHUNK));
+		assertEquals(CHUNK, input.write(pcm, 0, CHUNK));
+		assertEquals(1024 - 2 * CHUNK, input.write(pcm, 0, CHUNK));
+		assertEquals(3 * CHUNK - 1024, input.getOverflows());
+		assertEquals(1024, input.getBufferedSamples());
+	}
+
+	@Test
+	public void removedInputIsNotMixed() {
+		final AudioMixer mixer = new AudioMixer(RATE, CHUNK);
+		final AudioMixer.Input a = mixer.addInput(RATE, 100, 0);
+		final AudioMixer.Input b = mixer.addInput(RATE, 100, 0);
+		a.write(constant(CHUNK, 1000), 0, CHUNK);
+		b.write(constant(CHUNK, 2000), 0, CHUNK);
+		mixer.removeInput(a);
+		final short[] out = new short[CHUNK];
+		assertEquals(1, mixer.mix(out, 0, CHUNK));
+		assertEquals(2000, out[0]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void tooManySamples() {
+		new AudioMixer(RATE, CHUNK).mix(new short[CHUNK + 1], 0, CHUNK + 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void prefillLongerThanBuffer() {
+		new AudioMixer(RATE, CHUNK).addInput(RATE, 10, 20);
+	}
+}
@@ -0,0 +1,151 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: BitrateControllerTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BitrateControllerTest {
+	private static final int MIN_BITRATE = 200 * 1024;
+	private static final int MAX_BITRATE = 800 * 1024;
+	private static final int MIN_FPS = 5;
+	private static final int MAX_FPS = 15;
+	private static final long UPDATE_INTERVAL_MS = 500;
+
+	private final BitrateController mController
+		= new BitrateController(MIN_BITRATE, MAX_BITRATE, MAX_BITRATE, MIN_FPS, MAX_FPS);
+	private long mNowMs = 10000;
+
+	private boolean congested() {
+		mNowMs += UPDATE_INTERVAL_MS;
+		return mController.update(mNowMs, BitrateController.HIGH_QUEUE_DEPTH, 0);
+	}
+
+	private boolean healthy() {
+		mNowMs += UPDATE_INTERVAL_MS;
+		return mController.update(mNowMs, 0, 0);
+	}
+
+	@Test
+	public void initialValuesAreClamped() {
+		final BitrateController controller = new BitrateController(MIN_BITRATE, MAX_BITRATE, 1, MIN_FPS, MAX_FPS);
+		assertEquals(MIN_BITRATE, controller.getBitrate());
+		assertEquals(MAX_FPS, controller.getFps());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidBitrateRangeIsRejected() {
+		new BitrateController(MAX_BITRATE, MIN_BITRATE, MAX_BITRATE, MIN_FPS, MAX_FPS);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidFrameRateRangeIsRejected() {
+		new BitrateController(MIN_BITRATE, MAX_BITRATE, MAX_BITRATE, 0, MAX_FPS);
+	}
+
+	@Test
+	public void bitrateIsDecreasedAtMostOncePerSecond() {
+		assertTrue(congested());
+		assertEquals(MAX_BITRATE * 3 / 4, mController.getBitrate());
+		// 500ms later
+		assertFalse(congested());
+		assertEquals(MAX_BITRATE * 3 / 4, mController.getBitrate());
+		assertTrue(congested());
+		assertEquals(MAX_BITRATE * 9 / 16, mController.getBitrate());
+	}
+
+	@Test
+	public void slowWriteIsCongestion() {
+		mNowMs += UPDATE_INTERVAL_MS;
+		assertTrue(mController.update(mNowMs, 0, BitrateController.HIGH_LATENCY_US));
+		assertEquals(MAX_BITRATE * 3 / 4, mController.getBitrate());
+	}
+
+	@Test
+	public void frameRateIsHalvedOnlyAtMinimumBitrate() {
+		while (mController.getBitrate() > MIN_BITRATE) {
+			congested();
+			assertEquals(MAX_FPS, mController.getFps());
+		}
+		assertEquals(MIN_BITRATE, mController.getBitrate());
+		congested();
+		congested();
+		assertEquals(MAX_FPS / 2, mController.getFps());
+		congested();
+		congested();
+		// not lower than the minimum
+		assertEquals(MIN_FPS, mController.getFps());
+		congested();
+		congested();
+		assertEquals(MIN_FPS, mController.getFps());
+		assertEquals(MIN_BITRATE, mController.getBitrate());
+	}
+
+	@Test
+	public void frameRateIsRestoredBeforeBitrate() {
+		while (mController.getFps() > MIN_FPS) {
+			congested();
+		}
+		// increased only after healthy for 5 seconds
+		healthy();
+		for (int i = 0; i < 9; i++) {
+			assertFalse(healthy());
+		}
+		assertTrue(healthy());
+		assertEquals(MIN_FPS * 2, mController.getFps());
+		assertEquals(MIN_BITRATE, mController.getBitrate());
+		while (mController.getFps() < MAX_FPS) {
+			healthy();
+			assertEquals(MIN_BITRATE, mController.getBitrate());
+		}
+		// then bitrate is increased additively
+		while (!healthy());
+		assertEquals(MIN_BITRATE + MAX_BITRATE / 20, mController.getBitrate());
+		while (mController.getBitrate() < MAX_BITRATE) {
+			healthy();
+		}
+		assertEquals(MAX_BITRATE, mController.getBitrate());
+	}
+
+	@Test
+	public void moderateLoadKeepsValuesAndResetsStablePeriod() {
+		congested();
+		final int bitrate = mController.getBitrate();
+		for (int i = 0; i < 9; i++) {
+			healthy();
+		}
+		// neither congested nor healthy
+		mNowMs += UPDATE_INTERVAL_MS;
+		assertFalse(mController.update(mNowMs, BitrateController.HIGH_QUEUE_DEPTH - 1, 0));
+		// stable period restarts
+		for (int i = 0; i < 10; i++) {
+			assertFalse(healthy());
+		}
+		assertTrue(healthy());
+		assertTrue(mController.getBitrate() > bitrate);
+	}
+}
@@ -0,0 +1,187 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: CaptureRegionTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CaptureRegionTest {
+	private static final float EPS = 1e-6f;
+	private static final float[] IDENTITY = {
+		1, 0, 0, 0,
+		0, 1, 0, 0,
+		0, 0, 1, 0,
+		0, 0, 0, 1,
+	};
+	/** vertical flip that SurfaceTexture#getTransformMatrix usually returns */
+	private static final float[] FLIP_Y = {
+		1, 0, 0, 0,
+		0, -1, 0, 0,
+		0, 0, 1, 0,
+		0, 1, 0, 1,
+	};
+
+	/**
+	 * apply column-major matrix to texture coordinates (s, t, 0, 1)
+	 */
+	private static float[] map(final CaptureRegion region, final float[] texMatrix,
+		final float s, final float t) {
+
+		final float[] m = new float[16];
+		region.getTexMatrix(texMatrix, 0, m, 0);
+		return new float[] {
+			m[0] * s + m[4] * t + m[12],
+			m[1] * s + m[5] * t + m[13],
+		};
+	}
+
+	private static void assertViewport(final CaptureRegion region,
+		final int x, final int y, final int width, final int height) {
+
+		assertEquals("x", x, region.getViewportX());
+		assertEquals("y", y, region.getViewportY());
+		assertEquals("width", width, region.getViewportWidth());
+		assertEquals("height", height, region.getViewportHeight());
+	}
+
+	@Test
+	public void wholeFrame() {
+		final CaptureRegion region = new CaptureRegion(1080, 1920);
+		assertTrue(region.isFullFrame());
+		assertTrue(region.isFullViewport());
+		assertEquals(1080, region.getOutputWidth());
+		assertEquals(1920, region.getOutputHeight());
+		assertViewport(region, 0, 0, 1080, 1920);
+		assertEquals(1.0f, region.getPixelRatio(), EPS);
+		final float[] m = new float[16];
+		region.getTexMatrix(IDENTITY, 0, m, 0);
+		assertArrayEquals(IDENTITY, m, EPS);
+	}
+
+	@Test
+	public void scaledOutputIsEven() {
+		final CaptureRegion half = new CaptureRegion(1080, 1920, 0, 0, 1080, 1920, 0.5f);
+		assertEquals(540, half.getOutputWidth());
+		assertEquals(960, half.getOutputHeight());
+		assertEquals(0.25f, half.getPixelRatio(), EPS);
+		assertTrue(half.isFullViewport());
+		// 1001 * 0.5 = 500.5 is rounded to 501 and then to even
+		final CaptureRegion odd = new CaptureRegion(1080, 1920, 0, 0, 1001, 1001, 0.5f);
+		assertEquals(500, odd.getOutputWidth());
+		assertEquals(500, odd.getOutputHeight());
+		assertFalse(odd.isFullFrame());
+		// never smaller than 2
+		final CaptureRegion tiny = new CaptureRegion(1080, 1920, 0, 0, 2, 2, 0.1f);
+		assertEquals(2, tiny.getOutputWidth());
+	}
+
+	@Test
+	public void cropIsClippedWithFrame() {
+		final CaptureRegion region = new CaptureRegion(1080, 1920, -10, -20, 2000, 3000, 1.0f);
+		assertEquals(0, region.getLeft());
+		assertEquals(0, region.getTop());
+		assertEquals(1080, region.getRight());
+		assertEquals(1920, region.getBottom());
+		assertTrue(region.isFullFrame());
+	}
+
+	@Test
+	public void cropMatrix() {
+		final CaptureRegion region = new CaptureRegion(1000, 1000, 100, 200, 600, 700, 1.0f);
+		assertEquals(500, region.getOutputWidth());
+		assertEquals(500, region.getOutputHeight());
+		// texture coordinates are bottom-up, so bottom of the crop rectangle is t = 0.3
+		assertArrayEquals(new float[] {0.1f, 0.3f}, map(region, IDENTITY, 0, 0), EPS);
+		assertArrayEquals(new float[] {0.6f, 0.8f}, map(region, IDENTITY, 1, 1), EPS);
+		assertArrayEquals(new float[] {0.35f, 0.55f}, map(region, IDENTITY, 0.5f, 0.5f), EPS);
+		// crop is applied before the transform of SurfaceTexture
+		assertArrayEquals(new float[] {0.1f, 0.7f}, map(region, FLIP_Y, 0, 0), EPS);
+		assertArrayEquals(new float[] {0.6f, 0.2f}, map(region, FLIP_Y, 1, 1), EPS);
+	}
+
+	@Test
+	public void texMatrixOffsets() {
+		final CaptureRegion region = new CaptureRegion(1000, 1000, 100, 200, 600, 700, 1.0f);
+		final float[] tex = new float[20];
+		System.arraycopy(FLIP_Y, 0, tex, 4, 16);
+		final float[] result = new float[20];
+		region.getTexMatrix(tex, 4, result, 2);
+		final float[] expected = new float[16];
+		region.getTexMatrix(FLIP_Y, 0, expected, 0);
+		for (int i = 0; i < 16; i++) {
+			assertEquals("m" + i, expected[i], result[2 + i], EPS);
+		}
+	}
+
+	@Test
+	public void withCropKeepsOutputAndFitsAspect() {
+		final CaptureRegion region = new CaptureRegion(1000, 500);
+		// square crop into 1000x500 output, pillarbox
+		final CaptureRegion square = region.withCrop(0, 0, 500, 500);
+		assertEquals(1000, square.getOutputWidth());
+		assertEquals(500, square.getOutputHeight());
+		assertFalse(square.isFullViewport());
+		assertViewport(square, 250, 0, 500, 500);
+		// wide crop, letterbox
+		final CaptureRegion wide = region.withCrop(0, 0, 1000, 250);
+		assertViewport(wide, 0, 125, 1000, 250);
+		assertEquals(1.0f, wide.getPixelRatio(), EPS);
+		// the original region is not changed
+		assertTrue(region.isFullFrame());
+		assertTrue(region.isFullViewport());
+	}
+
+	@Test
+	public void roundingDoesNotMakeBars() {
+		// 999x1000 crop is 998x1000 output, viewport 999 high is regarded as full
+		final CaptureRegion region = new CaptureRegion(1000, 1000, 0, 0, 999, 1000, 1.0f);
+		assertEquals(998, region.getOutputWidth());
+		assertEquals(1000, region.getOutputHeight());
+		assertTrue(region.isFullViewport());
+		assertViewport(region, 0, 0, 998, 1000);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void emptyCrop() {
+		new CaptureRegion(1000, 1000).withCrop(500, 500, 501, 900);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void cropOutsideFrame() {
+		new CaptureRegion(1000, 1000, 1200, 0, 1500, 500, 1.0f);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void scaleTooLarge() {
+		new CaptureRegion(1000, 1000, 0, 0, 1000, 1000, 1.5f);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void scaleNaN() {
+		new CaptureRegion(1000, 1000, 0, 0, 1000, 1000, Float.NaN);
+	}
+}
@@ -0,0 +1,193 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: CodecCapabilityIndexTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * fixtures are codec lists in the index format, modelled on MediaCodecList of each vendor
+ */
+public class CodecCapabilityIndexTest {
+	private static final int AVC_BASELINE = 0x01;
+	private static final int AVC_MAIN = 0x02;
+	private static final int AVC_HIGH = 0x08;
+	private static final int AVC_CONSTRAINED_BASELINE = 0x10000;
+	private static final int AVC_CONSTRAINED_HIGH = 0x80000;
+
+	private static String readFixture(final String name) throws IOException {
+		final InputStream in = CodecCapabilityIndexTest.class.getResourceAsStream(name);
+		assertNotNull("missing fixture " + name, in);
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		try {
+			final StringBuilder sb = new StringBuilder();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				sb.append(line).append('\n');
+			}
+			return sb.toString();
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static CodecCapabilityIndex load(final String name, final String fingerprint)
+		throws IOException {
+
+		final CodecCapabilityIndex index
+			= CodecCapabilityIndex.read(new StringReader(readFixture(name)), fingerprint);
+		assertNotNull(index);
+		return index;
+	}
+
+	private static CodecCapabilityIndex.Entry avc(final String name,
+		final boolean hardware, final int profiles) {
+
+		return new CodecCapabilityIndex.Entry(name, "video/avc", hardware, true,
+			profiles, 0x1000, 1920, 1080, 30);
+	}
+
+	@Test
+	public void profileRankFollowsCapabilityNotValue() {
+		final int cb = CodecCapabilityIndex.profileRank("video/avc", AVC_CONSTRAINED_BASELINE);
+		final int baseline = CodecCapabilityIndex.profileRank("video/avc", AVC_BASELINE);
+		final int main = CodecCapabilityIndex.profileRank("video/avc", AVC_MAIN);
+		final int ch = CodecCapabilityIndex.profileRank("video/avc", AVC_CONSTRAINED_HIGH);
+		final int high = CodecCapabilityIndex.profileRank("video/avc", AVC_HIGH);
+		assertTrue(cb > 0);
+		assertTrue(cb < baseline);
+		assertTrue(baseline < main);
+		assertTrue(main < ch);
+		assertTrue(ch < high);
+		// the best supported profile decides the rank
+		assertEquals(high, CodecCapabilityIndex.profileRank("video/avc",
+			AVC_CONSTRAINED_BASELINE | AVC_BASELINE | AVC_HIGH));
+		// HEVC Main10(0x02) is better than MainStill(0x04)
+		assertTrue(CodecCapabilityIndex.profileRank("video/hevc", 0x02)
+			> CodecCapabilityIndex.profileRank("video/hevc", 0x04));
+		assertEquals(0, CodecCapabilityIndex.profileRank("video/avc", 0));
+		assertEquals(0, CodecCapabilityIndex.profileRank("video/x-vnd.on2.vp8", 0x01));
+	}
+
+	@Test
+	public void constrainedBaselineOnlyLosesToHigh() {
+		final List<CodecCapabilityIndex.Entry> entries = new ArrayList<CodecCapabilityIndex.Entry>();
+		entries.add(avc("cb.only", true, AVC_CONSTRAINED_BASELINE | AVC_BASELINE));
+		entries.add(avc("high", true, AVC_BASELINE | AVC_MAIN | AVC_HIGH));
+		final CodecCapabilityIndex index = new CodecCapabilityIndex("fp", entries);
+		assertEquals("high", index.selectVideoEncoder("video/avc", 1280, 720, 30).name);
+		assertEquals("high", index.getEntries().get(0).name);
+	}
+
+	@Test
+	public void equalRankKeepsListOrder() {
+		final List<CodecCapabilityIndex.Entry> entries = new ArrayList<CodecCapabilityIndex.Entry>();
+		entries.add(avc("sw", false, AVC_HIGH));
+		entries.add(avc("first", true, AVC_BASELINE | AVC_HIGH));
+		entries.add(avc("second", true, AVC_HIGH));
+		final CodecCapabilityIndex index = new CodecCapabilityIndex("fp", entries);
+		assertEquals("first", index.getEntries().get(0).name);
+		assertEquals("second", index.getEntries().get(1).name);
+		assertEquals("sw", index.getEntries().get(2).name);
+	}
+
+	@Test
+	public void qcomSelection() throws IOException {
+		final CodecCapabilityIndex index = load("codec_index_qcom.txt", "fixture/qcom");
+		// hardware encoder wins over software one listed before it
+		assertEquals("OMX.qcom.video.encoder.avc",
+			index.selectVideoEncoder("video/avc", 1920, 1080, 30).name);
+		assertEquals("OMX.qcom.video.encoder.hevc",
+			index.selectVideoEncoder("video/hevc", 3840, 2160, 30).name);
+		assertNull(index.selectVideoEncoder("video/avc", 7680, 4320, 30));
+		assertNull(index.selectVideoEncoder("video/x-vnd.on2.vp9", 0, 0, 0));
+		// audio encoder is the first one listed, same as MediaCodec#createEncoderByType
+		assertEquals("OMX.google.aac.encoder", index.selectAudioEncoder("audio/mp4a-latm").name);
+		assertNull(index.selectAudioEncoder("audio/opus"));
+	}
+
+	@Test
+	public void exynosSelection() throws IOException {
+		final CodecCapabilityIndex index = load("codec_index_exynos.txt", "fixture/exynos");
+		// comparing profile values would pick OMX.Exynos.AVC.Encoder for ConstrainedBaseline(0x10000)
+		assertEquals("c2.exynos.h264.encoder",
+			index.selectVideoEncoder("video/avc", 1920, 1080, 30).name);
+		assertEquals("c2.exynos.h264.encoder",
+			index.selectVideoEncoder("video/avc", 1920, 1080, 30, AVC_HIGH).name);
+		// software encoder is selected only when it is the one that supports the requested size
+		assertEquals("c2.android.avc.encoder",
+			index.selectVideoEncoder("video/avc", 4096, 4096, 30).name);
+		assertNull(index.selectVideoEncoder("video/avc", 4096, 4096, 30, AVC_HIGH));
+	}
+
+	@Test
+	public void supportsProfile() throws IOException {
+		final CodecCapabilityIndex index = load("codec_index_exynos.txt", "fixture/exynos");
+		final CodecCapabilityIndex.Entry omx = index.getEntries().get(1);
+		assertEquals("OMX.Exynos.AVC.Encoder", omx.name);
+		assertTrue(omx.supportsProfile(0));
+		assertTrue(omx.supportsProfile(AVC_CONSTRAINED_BASELINE));
+		assertFalse(omx.supportsProfile(AVC_HIGH));
+		// profiles are unknown for audio encoders
+		assertTrue(index.selectAudioEncoder("audio/mp4a-latm").supportsProfile(AVC_HIGH));
+	}
+
+	@Test
+	public void writeKeepsListOrder() throws IOException {
+		final String fixture = readFixture("codec_index_qcom.txt");
+		final CodecCapabilityIndex index
+			= CodecCapabilityIndex.read(new StringReader(fixture), "fixture/qcom");
+		final StringWriter writer = new StringWriter();
+		index.write(writer);
+		assertEquals(fixture, writer.toString());
+	}
+
+	@Test
+	public void readRejectsOtherBuildOrVersion() throws IOException {
+		final String fixture = readFixture("codec_index_qcom.txt");
+		assertNull(CodecCapabilityIndex.read(new StringReader(fixture), "fixture/exynos"));
+		final Reader old = new StringReader(fixture.replaceFirst("\t2\t", "\t1\t"));
+		assertNull(CodecCapabilityIndex.read(old, "fixture/qcom"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void readRejectsBrokenEntry() throws IOException {
+		CodecCapabilityIndex.read(new StringReader(
+			"CodecCapabilityIndex\t2\tfp\nOMX.broken\tvideo/avc\t1\t1\tHigh\t0\t0\t0\t0\n"), "fp");
+	}
+}
@@ -0,0 +1,135 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: EncoderMetricsTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EncoderMetricsTest {
+
+	@Test
+	public void emptyHistogram() {
+		final EncoderMetrics.Histogram h = new EncoderMetrics.Histogram();
+		assertEquals(0, h.count());
+		assertEquals(0, h.mean());
+		assertEquals(0, h.max());
+		assertEquals(0, h.percentile(50));
+		assertEquals(0, h.percentile(100));
+	}
+
+	@Test
+	public void percentileIsUpperBoundOfBucket() {
+		final EncoderMetrics.Histogram h = new EncoderMetrics.Histogram();
+		for (int i = 1; i <= 100; i++) {
+			h.record(i);
+		}
+		assertEquals(100, h.count());
+		assertEquals(50, h.mean());	// 5050 / 100
+		assertEquals(100, h.max());
+		// 50th value is 50, in bucket [32, 63]
+		assertEquals(63, h.percentile(50));
+		// 90th value is 90, bucket [64, 127] is limited by max
+		assertEquals(100, h.percentile(90));
+		assertEquals(100, h.percentile(99));
+		assertEquals(100, h.percentile(100));
+		// 1st value is 1, bucket [1, 1]
+		assertEquals(1, h.percentile(1));
+	}
+
+	@Test
+	public void negativeAndZeroValuesAreInFirstBucket() {
+		final EncoderMetrics.Histogram h = new EncoderMetrics.Histogram();
+		h.record(-5);
+		h.record(0);
+		assertEquals(2, h.count());
+		assertEquals(0, h.mean());
+		assertEquals(0, h.max());
+		assertEquals(0, h.percentile(100));
+	}
+
+	@Test
+	public void percentileIsWithinFactorOfTwo() {
+		final Random random = new Random(12345);
+		final EncoderMetrics.Histogram h = new EncoderMetrics.Histogram();
+		final long[] values = new long[1000];
+		long sum = 0;
+		for (int i = 0; i < values.length; i++) {
+			// latency like distribution, mostly small with long tail
+			values[i] = 1 + (long)(Math.exp(random.nextDouble() * 12));
+			sum += values[i];
+			h.record(values[i]);
+		}
+		Arrays.sort(values);
+		assertEquals(sum / values.length, h.mean());
+		assertEquals(values[values.length - 1], h.max());
+		for (final double p: new double[] {1, 10, 50, 90, 99, 99.9, 100}) {
+			// nearest rank
+			final long exact = values[(int)Math.ceil(values.length * p / 100.0) - 1];
+			final long estimated = h.percentile(p);
+			assertTrue("p" + p + ":" + estimated + " < " + exact, estimated >= exact);
+			assertTrue("p" + p + ":" + estimated + " >= 2 * " + exact, estimated < 2 * exact);
+		}
+	}
+
+	@Test
+	public void reset() {
+		final EncoderMetrics.Histogram h = new EncoderMetrics.Histogram();
+		h.record(1000);
+		h.reset();
+		assertEquals(0, h.count());
+		assertEquals(0, h.max());
+		assertEquals(0, h.percentile(50));
+		h.record(3);
+		assertEquals(3, h.percentile(50));
+	}
+
+	@Test
+	public void snapshot() {
+		final EncoderMetrics metrics = new EncoderMetrics();
+		for (int i = 1; i <= 100; i++) {
+			metrics.recordLatency(EncoderMetrics.STAGE_WRITE, i);
+		}
+		metrics.recordOverflow(1);
+		metrics.recordOverflow(1);
+		metrics.recordDropped(0);
+		// out of range tracks are ignored
+		metrics.recordOverflow(EncoderMetrics.MAX_TRACKS);
+		metrics.recordBytesWritten(1000);
+		final EncoderMetrics.Snapshot snapshot = metrics.snapshot();
+		assertEquals(0, snapshot.latencyCount[EncoderMetrics.STAGE_DRAW]);
+		assertEquals(100, snapshot.latencyCount[EncoderMetrics.STAGE_WRITE]);
+		assertEquals(50, snapshot.latencyMeanUs[EncoderMetrics.STAGE_WRITE]);
+		assertEquals(63, snapshot.latencyP50Us[EncoderMetrics.STAGE_WRITE]);
+		assertEquals(100, snapshot.latencyP99Us[EncoderMetrics.STAGE_WRITE]);
+		assertEquals(100, snapshot.latencyMaxUs[EncoderMetrics.STAGE_WRITE]);
+		assertEquals(2, snapshot.droppedOnOverflow[1]);
+		assertEquals(1, snapshot.droppedWhilePaused[0]);
+		assertEquals(1000, snapshot.bytesWritten);
+	}
+}
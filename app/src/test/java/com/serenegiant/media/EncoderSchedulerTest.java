@@ -0,0 +1,192 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: EncoderSchedulerTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EncoderSchedulerTest {
+	private static final int PRODUCERS = 4;
+	private static final int SIGNALS = 2000;
+
+	private EncoderScheduler mScheduler;
+
+	@Before
+	public void setUp() {
+		mScheduler = new EncoderScheduler("TestWorker", 4);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		mScheduler.shutdown();
+	}
+
+	@Test(timeout = 10000)
+	public void signalsAreMergedWithoutOverlapOrLoss() throws Exception {
+		final AtomicInteger published = new AtomicInteger();
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicBoolean overlapped = new AtomicBoolean();
+		final AtomicInteger runs = new AtomicInteger();
+		final AtomicInteger seen = new AtomicInteger();
+		final AtomicBoolean rejected = new AtomicBoolean();
+		final EncoderScheduler.SerialTask task = mScheduler.newSerialTask(new Runnable() {
+			@Override
+			public void run() {
+				if (running.getAndIncrement() != 0) {
+					overlapped.set(true);
+				}
+				runs.incrementAndGet();
+				seen.set(published.get());
+				Thread.yield();
+				running.decrementAndGet();
+			}
+		});
+		final CountDownLatch start = new CountDownLatch(1);
+		final Thread[] producers = new Thread[PRODUCERS];
+		for (int i = 0; i < PRODUCERS; i++) {
+			producers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (final InterruptedException e) {
+						return;
+					}
+					for (int j = 0; j < SIGNALS; j++) {
+						published.incrementAndGet();
+						if (!task.signal()) {
+							rejected.set(true);
+						}
+					}
+				}
+			});
+			producers[i].start();
+		}
+		start.countDown();
+		for (final Thread producer: producers) {
+			producer.join();
+		}
+		// the run after the last signal sees all published values
+		while (seen.get() != PRODUCERS * SIGNALS) {
+			Thread.sleep(1);
+		}
+		assertFalse(rejected.get());
+		assertFalse("runs overlapped", overlapped.get());
+		assertTrue(runs.get() >= 1);
+		assertTrue("signals were not merged", runs.get() < PRODUCERS * SIGNALS);
+		task.close();
+	}
+
+	@Test(timeout = 10000)
+	public void signalFromBodyRunsAgain() throws Exception {
+		final CountDownLatch done = new CountDownLatch(3);
+		final EncoderScheduler.SerialTask[] task = new EncoderScheduler.SerialTask[1];
+		task[0] = mScheduler.newSerialTask(new Runnable() {
+			@Override
+			public void run() {
+				done.countDown();
+				if (done.getCount() > 0) {
+					// e.g. stop sequence that polls again without blocking the worker
+					task[0].signal();
+				}
+			}
+		});
+		task[0].signal();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		task[0].close();
+	}
+
+	@Test(timeout = 10000)
+	public void closedTaskIsNotRun() throws Exception {
+		final AtomicInteger runs = new AtomicInteger();
+		final CountDownLatch closed = new CountDownLatch(1);
+		final EncoderScheduler.SerialTask[] task = new EncoderScheduler.SerialTask[1];
+		task[0] = mScheduler.newSerialTask(new Runnable() {
+			@Override
+			public void run() {
+				runs.incrementAndGet();
+				// signal while running is merged into one more run,
+				// that must not run the task that was closed meanwhile
+				task[0].signal();
+				// close from the task itself like the stop sequence of MediaEncoder
+				task[0].close();
+				closed.countDown();
+			}
+		});
+		assertTrue(task[0].signal());
+		assertTrue(closed.await(5, TimeUnit.SECONDS));
+		assertFalse(task[0].signal());
+		Thread.sleep(50);
+		assertEquals(1, runs.get());
+	}
+
+	@Test(timeout = 10000)
+	public void shutdownTerminatesAfterAllTasksClosed() throws Exception {
+		final AtomicInteger runs = new AtomicInteger();
+		final CountDownLatch ran = new CountDownLatch(1);
+		final EncoderScheduler.SerialTask task = mScheduler.newSerialTask(new Runnable() {
+			@Override
+			public void run() {
+				runs.incrementAndGet();
+				ran.countDown();
+			}
+		});
+		mScheduler.shutdown();
+		assertTrue(mScheduler.isShutdown());
+		try {
+			mScheduler.newSerialTask(new Runnable() {
+				@Override
+				public void run() {
+				}
+			});
+			fail("new task after shutdown");
+		} catch (final IllegalStateException e) {
+			// expected
+		}
+		assertFalse(mScheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}));
+		// workers keep running the encoder that is still open, e.g. its stop sequence
+		assertTrue(task.signal());
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+		assertFalse(mScheduler.awaitTermination(50));
+		task.close();
+		assertTrue(mScheduler.awaitTermination(5000));
+		assertFalse(task.signal());
+		assertEquals(1, runs.get());
+	}
+}
@@ -0,0 +1,175 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: FakeAsyncCodec.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AsyncCodec that copies each input buffer into an output buffer on its own callback thread
+ * as soon as it is queued, like a codec that encodes instantly.
+ */
+class FakeAsyncCodec implements AsyncCodec {
+	private final ByteBuffer[] mInputBuffers;
+	private final ByteBuffer[] mOutputBuffers;
+	private final ExecutorService mCallbackThread = Executors.newSingleThreadExecutor();
+	private final AtomicInteger mReleasedOutputs = new AtomicInteger();
+	private volatile Callback mCallback;
+	private volatile boolean mReturnNullOutput;
+	/**
+	 * exception that a callback method threw to the callback thread
+	 */
+	volatile Throwable uncaught;
+
+	FakeAsyncCodec(final int bufferCount, final int bufferSize) {
+		mInputBuffers = new ByteBuffer[bufferCount];
+		mOutputBuffers = new ByteBuffer[bufferCount];
+		for (int i = 0; i < bufferCount; i++) {
+			mInputBuffers[i] = ByteBuffer.allocate(bufferSize);
+			mOutputBuffers[i] = ByteBuffer.allocate(bufferSize);
+		}
+	}
+
+	@Override
+	public void setCallback(final Callback callback) {
+		mCallback = callback;
+	}
+
+	/**
+	 * report output format and all input buffers like MediaCodec#start
+	 */
+	void start() {
+		post(new Runnable() {
+			@Override
+			public void run() {
+				mCallback.onOutputFormatChanged(null);
+				for (int i = 0; i < mInputBuffers.length; i++) {
+					mCallback.onInputBufferAvailable(i);
+				}
+			}
+		});
+	}
+
+	void error(final Exception e) {
+		post(new Runnable() {
+			@Override
+			public void run() {
+				mCallback.onError(e);
+			}
+		});
+	}
+
+	void setReturnNullOutput(final boolean returnNull) {
+		mReturnNullOutput = returnNull;
+	}
+
+	int getReleasedOutputs() {
+		return mReleasedOutputs.get();
+	}
+
+	/**
+	 * wait until all callbacks that were posted so far were called
+	 */
+	void sync() throws Exception {
+		mCallbackThread.submit(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}).get(1, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * run a task on the callback thread after callbacks that were posted so far
+	 */
+	void runOnCallbackThread(final Runnable task) {
+		post(task);
+	}
+
+	void release() {
+		mCallbackThread.shutdownNow();
+	}
+
+	@Override
+	public ByteBuffer getInputBuffer(final int index) {
+		return mInputBuffers[index];
+	}
+
+	@Override
+	public void queueInputBuffer(final int index, final int offset, final int size,
+		final long presentationTimeUs, final int flags) {
+
+		post(new Runnable() {
+			@Override
+			public void run() {
+				final ByteBuffer src = mInputBuffers[index];
+				final ByteBuffer dst = mOutputBuffers[index];
+				src.limit(offset + size).position(offset);
+				dst.clear();
+				dst.put(src);
+				dst.flip();
+				final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+				// fields are set directly because framework methods are not available on JVM
+				info.offset = 0;
+				info.size = size;
+				info.presentationTimeUs = presentationTimeUs;
+				info.flags = flags;
+				mCallback.onOutputBufferAvailable(index, info);
+			}
+		});
+	}
+
+	@Override
+	public ByteBuffer getOutputBuffer(final int index) {
+		return mReturnNullOutput ? null : mOutputBuffers[index];
+	}
+
+	@Override
+	public void releaseOutputBuffer(final int index) {
+		mReleasedOutputs.incrementAndGet();
+		post(new Runnable() {
+			@Override
+			public void run() {
+				mCallback.onInputBufferAvailable(index);
+			}
+		});
+	}
+
+	private void post(final Runnable task) {
+		mCallbackThread.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} catch (final Throwable e) {
+					// MediaCodec would crash the app here
+					uncaught = e;
+				}
+			}
+		});
+	}
+}
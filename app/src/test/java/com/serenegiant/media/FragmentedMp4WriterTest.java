@@ -0,0 +1,299 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: FragmentedMp4WriterTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * write synthetic H.264/AAC samples and parse the boxes back
+ */
+public class FragmentedMp4WriterTest {
+	private static final int VIDEO_TIMESCALE = 90000;
+	private static final int SAMPLE_RATE = 44100;
+	private static final long FRAME_INTERVAL_US = 33333;
+	private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+	private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte)0xc0, 0x1e, 0x11, 0x22};
+	private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte)0xce, 0x3c, (byte)0x80};
+	private static final byte[] ASC = {0x12, 0x08};
+
+	private File mFile;
+	private RandomAccessFile mRaf;
+	private FragmentedMp4Writer mWriter;
+	private int mVideoTrack, mAudioTrack;
+	/** payload of each sample of each track in the order of writing */
+	private final List<List<byte[]>> mWritten = new ArrayList<List<byte[]>>();
+	/** time of each sample of each track in timescale of the track */
+	private final List<List<Long>> mWrittenTimes = new ArrayList<List<Long>>();
+
+	private static final class Sample {
+		long decodeTime;
+		int duration;
+		int flags;
+		byte[] data;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		mFile = File.createTempFile("fmp4", ".mp4");
+		mRaf = new RandomAccessFile(mFile, "rw");
+		mWriter = new FragmentedMp4Writer(mRaf.getChannel(), 900000L);
+		mVideoTrack = mWriter.addVideoTrack(640, 480, SPS, PPS);
+		mAudioTrack = mWriter.addAudioTrack(SAMPLE_RATE, 1, ASC);
+		mWriter.start();
+		for (int i = 0; i < 2; i++) {
+			mWritten.add(new ArrayList<byte[]>());
+			mWrittenTimes.add(new ArrayList<Long>());
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		mRaf.close();
+		mFile.delete();
+	}
+
+	@Test
+	public void fragmentsRoundTrip() throws Exception {
+		// 5 seconds, key frame every 30 frames. video frame #59 just before a fragment boundary is dropped
+		// and presentation time jumps 200ms at the key frame #90 like a stall of the encoder
+		int frame = 0, audioFrame = 0;
+		long videoPts = 0;
+		for ( ; frame < 150; ) {
+			final long audioPts = Math.round(audioFrame * 1024 * 1000000.0 / SAMPLE_RATE) + (frame >= 90 ? 200000 : 0);
+			if (audioPts < videoPts) {
+				writeAudio(audioPts, audioFrame++);
+			} else {
+				if (frame != 59) {
+					writeVideo(videoPts, frame, (frame % 30) == 0);
+				}
+				frame++;
+				videoPts = frame * FRAME_INTERVAL_US + (frame >= 90 ? 200000 : 0);
+			}
+		}
+		mWriter.stop();
+
+		final List<List<Sample>> parsed = parse();
+		for (int track = 0; track < 2; track++) {
+			final List<Sample> samples = parsed.get(track);
+			final List<byte[]> written = mWritten.get(track);
+			final List<Long> times = mWrittenTimes.get(track);
+			assertEquals(written.size(), samples.size());
+			for (int i = 0; i < samples.size(); i++) {
+				final Sample sample = samples.get(i);
+				assertArrayEquals("track" + track + ",sample" + i, written.get(i), sample.data);
+				// decode time stays on presentation time, durations absorb dropped samples and jumps
+				final long error = Math.abs(sample.decodeTime - times.get(i));
+				assertTrue("track" + track + ",sample" + i + ",error=" + error, error <= 1);
+				if (track == mAudioTrack) {
+					assertEquals(SAMPLE_FLAGS_SYNC, sample.flags);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void truncatedRecordingIsRecoveredWithJournal() throws Exception {
+		final File journalFile = RecordingJournal.getJournalFile(mFile.getAbsolutePath());
+		final RecordingJournal journal = new RecordingJournal(journalFile);
+		final List<Long> endOffsets = new ArrayList<Long>();
+		mWriter.setFragmentListener(new FragmentedMp4Writer.FragmentListener() {
+			@Override
+			public void onFragmentWritten(final int sequenceNumber, final long endOffset, final long endTimeUs) throws IOException {
+				journal.append(sequenceNumber, endOffset, endTimeUs);
+				endOffsets.add(endOffset);
+			}
+		});
+		// 10 seconds without stop, like the process died while recording
+		int frame = 0, audioFrame = 0;
+		long videoPts = 0;
+		for ( ; frame < 300; ) {
+			final long audioPts = Math.round(audioFrame * 1024 * 1000000.0 / SAMPLE_RATE);
+			if (audioPts < videoPts) {
+				writeAudio(audioPts, audioFrame++);
+			} else {
+				writeVideo(videoPts, frame, (frame % 30) == 0);
+				frame++;
+				videoPts = frame * FRAME_INTERVAL_US;
+			}
+		}
+		final int n = endOffsets.size();
+		assertTrue("fragments=" + n, n >= 8);
+		// the process died in the middle of writing fragment #k+1(0-based),
+		// so the journal has records until fragment #k and a torn record
+		final int k = n - 3;
+		final long recovered = endOffsets.get(k);
+		mRaf.getChannel().truncate(recovered + (endOffsets.get(k + 1) - recovered) / 2);
+		journal.close();
+		final RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+		try {
+			// records are 32 bytes each
+			raf.setLength((k + 1) * 32L);
+			raf.seek(raf.length());
+			raf.write(new byte[] {0x52, 0x4a, 0x4e, 0x4c, 0, 0, 0, 1, 2, 3});
+		} finally {
+			raf.close();
+		}
+
+		assertEquals(recovered, RecordingJournal.recover(mFile));
+		assertEquals(recovered, mRaf.getChannel().size());
+		assertTrue("journal is deleted", !journalFile.exists());
+		// recovered file has only complete fragments and their samples are intact
+		final List<List<Sample>> parsed = parse();
+		for (int track = 0; track < 2; track++) {
+			final List<Sample> samples = parsed.get(track);
+			final List<byte[]> written = mWritten.get(track);
+			assertTrue(samples.size() > 0);
+			assertTrue(samples.size() < written.size());
+			for (int i = 0; i < samples.size(); i++) {
+				assertArrayEquals("track" + track + ",sample" + i, written.get(i), samples.get(i).data);
+			}
+		}
+	}
+
+	private void writeVideo(final long pts, final int frame, final boolean keyFrame) throws Exception {
+		// Annex-B slice, payload is stored with 4 bytes length prefix
+		final byte[] nal = new byte[100 + (frame % 7) * 10];
+		nal[0] = (byte)(keyFrame ? 0x65 : 0x41);
+		for (int i = 1; i < nal.length; i++) {
+			nal[i] = (byte)(frame + i | 1);	// no zero byte, so no start code emulation
+		}
+		final ByteBuffer buf = ByteBuffer.allocate(nal.length + 4);
+		buf.putInt(1).put(nal).flip();
+		mWriter.writeSample(mVideoTrack, buf, 0, buf.limit(), pts, keyFrame);
+		final ByteBuffer expected = ByteBuffer.allocate(nal.length + 4);
+		expected.putInt(nal.length).put(nal);
+		mWritten.get(mVideoTrack).add(expected.array());
+		mWrittenTimes.get(mVideoTrack).add(pts * VIDEO_TIMESCALE / 1000000L);
+	}
+
+	private void writeAudio(final long pts, final int frame) throws Exception {
+		final byte[] data = new byte[20 + frame % 5];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte)(frame * 3 + i);
+		}
+		mWriter.writeSample(mAudioTrack, ByteBuffer.wrap(data), 0, data.length, pts, true);
+		mWritten.get(mAudioTrack).add(data);
+		mWrittenTimes.get(mAudioTrack).add(pts * SAMPLE_RATE / 1000000L);
+	}
+
+	/**
+	 * parse moof/mdat pairs and check structure of boxes
+	 * @return samples of each track
+	 */
+	private List<List<Sample>> parse() throws Exception {
+		final FileChannel channel = mRaf.getChannel();
+		final ByteBuffer file = ByteBuffer.allocate((int)channel.size());
+		channel.read(file, 0);
+		file.flip();
+		final List<List<Sample>> result = new ArrayList<List<Sample>>();
+		result.add(new ArrayList<Sample>());
+		result.add(new ArrayList<Sample>());
+		final long[] nextDecodeTime = {-1, -1};
+		assertEquals("ftyp", typeAt(file, 4));
+		int pos = file.getInt(0);
+		assertEquals("moov", typeAt(file, pos + 4));
+		pos += file.getInt(pos);
+		int sequence = 0, fragments = 0;
+		while (pos < file.limit()) {
+			final int moofPos = pos;
+			assertEquals("moof", typeAt(file, moofPos + 4));
+			final int moofEnd = moofPos + file.getInt(moofPos);
+			final int mdatPos = moofEnd;
+			assertEquals("mdat", typeAt(file, mdatPos + 4));
+			final int mdatEnd = mdatPos + file.getInt(mdatPos);
+			int p = moofPos + 8;
+			assertEquals("mfhd", typeAt(file, p + 4));
+			assertEquals(++sequence, file.getInt(p + 12));
+			p += file.getInt(p);
+			while (p < moofEnd) {
+				assertEquals("traf", typeAt(file, p + 4));
+				final int trafEnd = p + file.getInt(p);
+				int q = p + 8;
+				assertEquals("tfhd", typeAt(file, q + 4));
+				final int track = file.getInt(q + 12) - 1;
+				q += file.getInt(q);
+				assertEquals("tfdt", typeAt(file, q + 4));
+				assertEquals(1, file.get(q + 8));
+				final long baseDecodeTime = file.getLong(q + 12);
+				if (nextDecodeTime[track] >= 0) {
+					// tfdt is the sum of durations of all previous samples of the track
+					assertEquals("tfdt of track" + track, nextDecodeTime[track], baseDecodeTime);
+				}
+				q += file.getInt(q);
+				assertEquals("trun", typeAt(file, q + 4));
+				assertEquals(0x000701, file.getInt(q + 8) & 0xffffff);
+				final int count = file.getInt(q + 12);
+				int dataPos = moofPos + file.getInt(q + 16);
+				long t = baseDecodeTime;
+				int e = q + 20;
+				for (int i = 0; i < count; i++) {
+					final Sample sample = new Sample();
+					sample.decodeTime = t;
+					sample.duration = file.getInt(e);
+					sample.data = new byte[file.getInt(e + 4)];
+					sample.flags = file.getInt(e + 8);
+					e += 12;
+					assertTrue(sample.duration > 0);
+					assertTrue("sample data in mdat", (dataPos >= mdatPos + 8) && (dataPos + sample.data.length <= mdatEnd));
+					final ByteBuffer dup = file.duplicate();
+					dup.position(dataPos);
+					dup.get(sample.data);
+					dataPos += sample.data.length;
+					t += sample.duration;
+					if ((i == 0) && (track == mVideoTrack) && (fragments > 0)) {
+						assertEquals("fragment starts with key frame", SAMPLE_FLAGS_SYNC, sample.flags);
+					}
+					result.get(track).add(sample);
+				}
+				nextDecodeTime[track] = t;
+				p = trafEnd;
+			}
+			fragments++;
+			pos = mdatEnd;
+		}
+		assertTrue("fragments=" + fragments, fragments >= 5);
+		return result;
+	}
+
+	private static String typeAt(final ByteBuffer buf, final int pos) {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 4; i++) {
+			sb.append((char)buf.get(pos + i));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,145 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: FrameGovernorTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrameGovernorTest {
+	private static final long MS = 1000000L;
+	private static final long MIN_INTERVAL_NS = 40 * MS;
+	private static final long MAX_INTERVAL_NS = 1000 * MS;
+	private static final long START_NS = 1000 * MS;
+
+	private static class FakeClock implements FrameScheduler.Clock {
+		long now = START_NS;
+
+		@Override
+		public long nanoTime() {
+			return now;
+		}
+	}
+
+	private FakeClock mClock;
+	private FrameGovernor mGovernor;
+
+	@Before
+	public void setUp() {
+		mClock = new FakeClock();
+		mGovernor = new FrameGovernor(new FrameScheduler(mClock, MIN_INTERVAL_NS), MAX_INTERVAL_NS);
+	}
+
+	/**
+	 * wait as long as the governor asks like the drawing loop, then draw if it decided to
+	 * @param hasNewFrame
+	 * @return action that was decided
+	 */
+	private int step(final boolean hasNewFrame) {
+		mClock.now += mGovernor.getWaitNs(hasNewFrame);
+		final int action = mGovernor.next(hasNewFrame);
+		if (action != FrameGovernor.SKIP) {
+			mGovernor.onDrawn(action == FrameGovernor.DRAW_DUPLICATE);
+		}
+		return action;
+	}
+
+	@Test
+	public void skipsBeforeFirstFrame() {
+		// nothing to duplicate yet, so the loop just waits for first frame
+		for (int i = 0; i < 5; i++) {
+			assertEquals(MAX_INTERVAL_NS, mGovernor.getWaitNs(false));
+			assertEquals(FrameGovernor.SKIP, mGovernor.next(false));
+			mClock.now += MAX_INTERVAL_NS;
+		}
+		assertEquals(0, mGovernor.getDrawnFrames());
+		// first frame is drawn immediately
+		assertEquals(0, mGovernor.getWaitNs(true));
+		assertEquals(FrameGovernor.DRAW, step(true));
+		assertEquals(1, mGovernor.getDrawnFrames());
+	}
+
+	@Test
+	public void previousFrameIsDrawnAgainAfterMaxInterval() {
+		assertEquals(FrameGovernor.DRAW, step(true));
+		final long firstNs = mClock.now;
+		// screen content does not change
+		for (int i = 1; i <= 5; i++) {
+			assertEquals(MAX_INTERVAL_NS, mGovernor.getWaitNs(false));
+			// not due yet
+			mClock.now += MAX_INTERVAL_NS / 2;
+			assertEquals(FrameGovernor.SKIP, mGovernor.next(false));
+			mClock.now -= MAX_INTERVAL_NS / 2;
+			assertEquals(FrameGovernor.DRAW_DUPLICATE, step(false));
+			assertEquals(firstNs + i * MAX_INTERVAL_NS, mClock.now);
+		}
+		assertEquals(6, mGovernor.getDrawnFrames());
+		assertEquals(5, mGovernor.getDuplicatedFrames());
+		// new frame is drawn on the next slot of the minimum interval, not the maximum one
+		mClock.now += 5 * MS;
+		final long waitNs = mGovernor.getWaitNs(true);
+		assertTrue("wait=" + waitNs, waitNs <= MIN_INTERVAL_NS);
+		assertEquals(FrameGovernor.DRAW, step(true));
+		assertEquals(5, mGovernor.getDuplicatedFrames());
+	}
+
+	@Test
+	public void newFramesAreCappedToMaxFps() {
+		assertEquals(FrameGovernor.DRAW, step(true));
+		final long startNs = mClock.now;
+		// new frame comes every 10 ms(100 fps) but drawing is limited to every 40 ms(25 fps)
+		int drawn = 1;
+		long lastDrawnNs = startNs;
+		for (long t = 10 * MS; t <= 2000 * MS; t += 10 * MS) {
+			mClock.now = startNs + t;
+			if (mGovernor.next(true) == FrameGovernor.DRAW) {
+				mGovernor.onDrawn(false);
+				assertTrue("interval", mClock.now - lastDrawnNs >= MIN_INTERVAL_NS);
+				lastDrawnNs = mClock.now;
+				drawn++;
+			}
+		}
+		assertEquals(2000 / 40 + 1, drawn);
+		assertEquals(0, mGovernor.getDuplicatedFrames());
+	}
+
+	@Test
+	public void maxFpsCanBeLoweredWhileDrawing() {
+		assertEquals(FrameGovernor.DRAW, step(true));
+		mGovernor.setMinIntervalNs(100 * MS);
+		assertEquals(100 * MS, mGovernor.getMinIntervalNs());
+		final long prevNs = mClock.now;
+		// the slot that was already scheduled is kept, following slots use new interval
+		assertEquals(FrameGovernor.DRAW, step(true));
+		assertEquals(MIN_INTERVAL_NS, mClock.now - prevNs);
+		final long nextNs = mClock.now;
+		assertEquals(FrameGovernor.DRAW, step(true));
+		assertEquals(100 * MS, mClock.now - nextNs);
+		// minimum interval never exceeds maximum interval
+		mGovernor.setMinIntervalNs(5000 * MS);
+		assertEquals(MAX_INTERVAL_NS, mGovernor.getMinIntervalNs());
+	}
+}
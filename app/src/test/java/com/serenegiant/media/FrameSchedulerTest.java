@@ -0,0 +1,215 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: FrameSchedulerTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameSchedulerTest {
+	private static final long MS = 1000000L;
+	private static final long INTERVAL_NS = 10 * MS;
+	private static final long START_NS = 1000 * MS;
+
+	private static class FakeClock implements FrameScheduler.Clock {
+		long now = START_NS;
+
+		@Override
+		public long nanoTime() {
+			return now;
+		}
+	}
+
+	private FakeClock mClock;
+	private FrameScheduler mScheduler;
+
+	@Before
+	public void setUp() {
+		mClock = new FakeClock();
+		mScheduler = new FrameScheduler(mClock, INTERVAL_NS);
+	}
+
+	/**
+	 * wait for next slot like the pacing thread, the wait always ends later than requested by oversleepNs
+	 * @param oversleepNs
+	 * @return jitter of the frame against its deadline
+	 */
+	private long waitAndFrame(final long oversleepNs) {
+		final long deadline = mScheduler.getDeadlineNs();
+		final long wait = mScheduler.getWaitNs(deadline);
+		if (wait > 0) {
+			final long requested = mClock.now + wait;
+			mClock.now = requested + oversleepNs;
+			mScheduler.onWakeup(requested);
+		}
+		mScheduler.onFrame();
+		return mClock.now - deadline;
+	}
+
+	@Test
+	public void firstFrameDecidesPhase() {
+		assertFalse(mScheduler.isStarted());
+		assertEquals(START_NS + 3, mScheduler.alignToSlot(START_NS + 3));
+		mScheduler.onFrame();
+		assertTrue(mScheduler.isStarted());
+		assertEquals(START_NS, mScheduler.getLastFrameNs());
+		assertEquals(START_NS + INTERVAL_NS, mScheduler.getDeadlineNs());
+	}
+
+	@Test
+	public void slotsStayOnGridWithOversleep() {
+		mScheduler.onFrame();
+		long jitter = 0;
+		for (int i = 1; i <= 200; i++) {
+			jitter = waitAndFrame(2 * MS);
+			// late wakeups do not shift following slots
+			assertEquals(START_NS + i * INTERVAL_NS, mScheduler.getLastFrameNs());
+			assertEquals(START_NS + (i + 1) * INTERVAL_NS, mScheduler.getDeadlineNs());
+		}
+		// waits are shortened by the learned oversleep
+		assertTrue(mScheduler.getWakeupMarginNs() > 19 * MS / 10);
+		assertTrue(mScheduler.getWakeupMarginNs() <= 2 * MS);
+		assertTrue("jitter=" + jitter, Math.abs(jitter) < MS / 10);
+		assertEquals(200, mScheduler.getScheduledFrames());
+		assertEquals(0, mScheduler.getMissedSlots());
+		assertEquals(2 * MS, mScheduler.getMaxJitterNs());
+		assertTrue(mScheduler.getMeanJitterNs() < 2 * MS);
+	}
+
+	@Test
+	public void alignToSlot() {
+		mScheduler.onFrame();
+		final long deadline = mScheduler.getDeadlineNs();
+		assertEquals(deadline, mScheduler.alignToSlot(deadline - 5 * MS));
+		assertEquals(deadline, mScheduler.alignToSlot(deadline));
+		assertEquals(deadline + INTERVAL_NS, mScheduler.alignToSlot(deadline + 1));
+		assertEquals(deadline + 3 * INTERVAL_NS, mScheduler.alignToSlot(deadline + 3 * INTERVAL_NS));
+	}
+
+	@Test
+	public void longerInterval() {
+		mScheduler.onFrame();
+		waitAndFrame(0);
+		assertEquals(START_NS + INTERVAL_NS, mScheduler.getLastFrameNs());
+		mScheduler.setIntervalNs(2 * INTERVAL_NS);
+		// deadline that was already decided is kept
+		waitAndFrame(0);
+		assertEquals(START_NS + 2 * INTERVAL_NS, mScheduler.getLastFrameNs());
+		assertEquals(START_NS + 4 * INTERVAL_NS, mScheduler.getDeadlineNs());
+		waitAndFrame(0);
+		assertEquals(START_NS + 4 * INTERVAL_NS, mScheduler.getLastFrameNs());
+		assertEquals(0, mScheduler.getMissedSlots());
+	}
+
+	@Test
+	public void shorterInterval() {
+		mScheduler.setIntervalNs(4 * INTERVAL_NS);
+		mScheduler.onFrame();
+		mScheduler.setIntervalNs(INTERVAL_NS);
+		// frame before the old deadline starts new grid at that time
+		mClock.now += INTERVAL_NS;
+		mScheduler.onFrame();
+		assertEquals(START_NS + INTERVAL_NS, mScheduler.getLastFrameNs());
+		assertEquals(START_NS + 2 * INTERVAL_NS, mScheduler.getDeadlineNs());
+		// invalid interval is ignored
+		mScheduler.setIntervalNs(0);
+		assertEquals(INTERVAL_NS, mScheduler.getIntervalNs());
+	}
+
+	@Test
+	public void missedSlots() {
+		mScheduler.onFrame();
+		final long deadline = mScheduler.getDeadlineNs();
+		// woke up 2.5 intervals late
+		waitAndFrame(25 * MS);
+		assertEquals(2, mScheduler.getMissedSlots());
+		assertEquals(deadline + 2 * INTERVAL_NS, mScheduler.getLastFrameNs());
+		assertEquals(deadline + 3 * INTERVAL_NS, mScheduler.getDeadlineNs());
+		assertEquals(25 * MS, mScheduler.getMaxJitterNs());
+		// late by less than one interval is not a missed slot
+		waitAndFrame(9 * MS);
+		assertEquals(2, mScheduler.getMissedSlots());
+	}
+
+	@Test
+	public void framesNotPacedAreNotCounted() {
+		mScheduler.onFrame();
+		// frame came without waiting, e.g. pacing thread was busy
+		mClock.now += 35 * MS;
+		mScheduler.onFrame();
+		assertEquals(0, mScheduler.getScheduledFrames());
+		assertEquals(0, mScheduler.getMissedSlots());
+		// still assigned to the slot on the grid
+		assertEquals(START_NS + 3 * INTERVAL_NS, mScheduler.getLastFrameNs());
+	}
+
+	@Test
+	public void wakeupMarginIsLimited() {
+		mScheduler.onFrame();
+		for (int i = 0; i < 100; i++) {
+			waitAndFrame(30 * MS);
+		}
+		assertEquals(INTERVAL_NS / 2, mScheduler.getWakeupMarginNs());
+		// wakeup by notify does not change the margin
+		final long margin = mScheduler.getWakeupMarginNs();
+		final long requested = mClock.now + 3 * MS;
+		mClock.now += MS;
+		mScheduler.onWakeup(requested);
+		assertEquals(margin, mScheduler.getWakeupMarginNs());
+	}
+
+	@Test
+	public void waitNs() {
+		mScheduler.onFrame();
+		final long deadline = mScheduler.getDeadlineNs();
+		assertEquals(INTERVAL_NS, mScheduler.getWaitNs(deadline));
+		// within slack
+		mClock.now = deadline - MS / 2;
+		assertEquals(0, mScheduler.getWaitNs(deadline));
+		assertTrue(mScheduler.isDue(deadline));
+		mClock.now = deadline - MS;
+		assertFalse(mScheduler.isDue(deadline));
+		// margin larger than remaining time does not make it spin
+		for (int i = 0; i < 100; i++) {
+			waitAndFrame(4 * MS);
+		}
+		final long next = mScheduler.getDeadlineNs();
+		mClock.now = next - 2 * MS;
+		assertEquals(2 * MS - MS / 2, mScheduler.getWaitNs(next));
+	}
+
+	@Test
+	public void reset() {
+		mScheduler.onFrame();
+		waitAndFrame(25 * MS);
+		mScheduler.reset();
+		assertFalse(mScheduler.isStarted());
+		assertEquals(0, mScheduler.getScheduledFrames());
+		assertEquals(0, mScheduler.getMissedSlots());
+		assertEquals(0, mScheduler.getWakeupMarginNs());
+	}
+}
@@ -0,0 +1,229 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: MediaAudioEncoderTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+
+import android.media.MediaCodec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class MediaAudioEncoderTest {
+	private static final int BUFFER_COUNT = 4;
+	private static final int BUFFER_SIZE = 1024 * 2 * 4;
+	private static final int MAX_RECORDS = 1024;
+
+	private MediaMuxerWrapper mMuxer;
+	private final CountDownLatch mStopped = new CountDownLatch(1);
+
+	private final MediaEncoder.MediaEncoderListener mListener = new MediaEncoder.MediaEncoderListener() {
+		@Override
+		public void onPrepared(final MediaEncoder encoder) {
+		}
+
+		@Override
+		public void onStopped(final MediaEncoder encoder) {
+			mStopped.countDown();
+		}
+
+		@Override
+		public void onError(final MediaEncoder encoder, final Exception e) {
+		}
+	};
+
+	/**
+	 * encoder with fake codec input and fake audio source instead of MediaCodec and AudioRecord.
+	 * it behaves as asynchronous mode, in which the encoder task is not signaled on each input.
+	 */
+	private static class TestEncoder extends MediaAudioEncoder {
+		private final ByteBuffer[] mBuffers = new ByteBuffer[BUFFER_COUNT];
+		private final MediaAudioEncoder.AudioInput mInput;
+		private int mNextIndex;
+		// records of queued input buffers
+		private final int[] mSizes = new int[MAX_RECORDS];
+		private final int[] mFlags = new int[MAX_RECORDS];
+		private final long[] mPts = new long[MAX_RECORDS];
+		private int mQueued;
+
+		TestEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener,
+			final MediaAudioEncoder.AudioInput input) {
+
+			super(muxer, listener);
+			mInput = input;
+			for (int i = 0; i < BUFFER_COUNT; i++) {
+				mBuffers[i] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			}
+			mIsAsync = true;
+		}
+
+		@Override
+		AudioInput openAudioInput() {
+			return mInput;
+		}
+
+		@Override
+		protected synchronized int dequeueInputBuffer(final long timeoutUs) {
+			final int result = mNextIndex;
+			mNextIndex = (mNextIndex + 1) % BUFFER_COUNT;
+			return result;
+		}
+
+		@Override
+		protected ByteBuffer getInputBuffer(final int index) {
+			return mBuffers[index];
+		}
+
+		@Override
+		protected synchronized void queueInputBuffer(final int index, final int size,
+			final long presentationTimeUs, final int flags) {
+
+			if (mQueued < MAX_RECORDS) {
+				mSizes[mQueued] = size;
+				mFlags[mQueued] = flags;
+				mPts[mQueued] = presentationTimeUs;
+			}
+			mQueued++;
+		}
+	}
+
+	/**
+	 * fills requested size of PCM data without blocking
+	 */
+	private static class FakeInput implements MediaAudioEncoder.AudioInput {
+		int reads;
+
+		@Override
+		public void startRecording() {
+		}
+
+		@Override
+		public void stop() {
+		}
+
+		@Override
+		public int read(final ByteBuffer buf, final int size) {
+			for (int i = 0; i < size; i++) {
+				buf.put(i, (byte)i);
+			}
+			onRead(++reads);
+			return size;
+		}
+
+		void onRead(final int count) {
+		}
+
+		@Override
+		public void release() {
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		mMuxer = new MediaMuxerWrapper(null, ".mp4", MediaMuxerWrapper.MUXER_NONE, true);
+	}
+
+	@Test(timeout = 10000)
+	public void endOfStreamIsQueuedWithLastAudioData() throws Exception {
+		final CountDownLatch reading = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final FakeInput input = new FakeInput() {
+			@Override
+			void onRead(final int count) {
+				if (count == 5) {
+					// stop is requested while capture task is reading
+					reading.countDown();
+					try {
+						release.await();
+					} catch (final InterruptedException e) {
+						// ignore
+					}
+				}
+			}
+		};
+		final TestEncoder encoder = new TestEncoder(mMuxer, mListener, input);
+		encoder.startRecording();
+		assertTrue(reading.await(5, TimeUnit.SECONDS));
+		encoder.stopRecording();
+		// give the encoder task time to send EOS if it would do by itself
+		Thread.sleep(100);
+		release.countDown();
+		assertTrue(mStopped.await(5, TimeUnit.SECONDS));
+		synchronized (encoder) {
+			assertEquals(5, encoder.mQueued);
+			for (int i = 0; i < encoder.mQueued; i++) {
+				assertEquals("input#" + i, BUFFER_SIZE, encoder.mSizes[i]);
+				final boolean eos = (encoder.mFlags[i] & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+				// only the last buffer that has the data read while stopping has EOS
+				assertEquals("input#" + i, i == encoder.mQueued - 1, eos);
+				if (i > 0) {
+					assertTrue(encoder.mPts[i] > encoder.mPts[i - 1]);
+				}
+			}
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void noAllocationWhileCapturing() throws Exception {
+		final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+		assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+		final int warmUp = 2000;
+		final int measure = 10000;
+		final long[] allocated = new long[2];
+		final CountDownLatch measured = new CountDownLatch(1);
+		final FakeInput input = new FakeInput() {
+			@Override
+			void onRead(final int count) {
+				// this is called on the worker that runs capture task,
+				// it keeps reading as long as fake data are available
+				if (count == warmUp) {
+					allocated[0] = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+				} else if (count == warmUp + measure) {
+					allocated[1] = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+					measured.countDown();
+				}
+			}
+		};
+		final TestEncoder encoder = new TestEncoder(mMuxer, mListener, input);
+		encoder.startRecording();
+		assertTrue(measured.await(20, TimeUnit.SECONDS));
+		encoder.stopRecording();
+		assertTrue(mStopped.await(5, TimeUnit.SECONDS));
+		final long bytes = allocated[1] - allocated[0];
+		// any object per input buffer would be at least 16 bytes each
+		assertTrue("allocated " + bytes + " bytes while capturing " + measure + " buffers", bytes < measure);
+		synchronized (encoder) {
+			assertTrue(encoder.mQueued >= warmUp + measure);
+		}
+	}
+}
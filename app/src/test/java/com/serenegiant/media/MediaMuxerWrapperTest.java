@@ -0,0 +1,597 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: MediaMuxerWrapperTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * MediaMuxerWrapper with fake encoders and fake muxer backend that writes sample data to files
+ */
+public class MediaMuxerWrapperTest {
+	private static final int SAMPLE_SIZE = 100;
+	private static final long FRAME_US = 10000;
+
+	private final CountDownLatch mStopped = new CountDownLatch(2);
+
+	private final MediaEncoder.MediaEncoderListener mListener = new MediaEncoder.MediaEncoderListener() {
+		@Override
+		public void onPrepared(final MediaEncoder encoder) {
+		}
+
+		@Override
+		public void onStopped(final MediaEncoder encoder) {
+			mStopped.countDown();
+		}
+
+		@Override
+		public void onError(final MediaEncoder encoder, final Exception e) {
+		}
+	};
+
+	/**
+	 * encoder without codec, its track is added and written by the test
+	 */
+	private class TestEncoder extends MediaEncoder {
+		private final IOException mError;
+		final AtomicInteger syncFrameRequests = new AtomicInteger();
+		final AtomicInteger muxerReady = new AtomicInteger();
+
+		TestEncoder(final MediaMuxerWrapper muxer) {
+			this(muxer, null);
+		}
+
+		/**
+		 * @param error thrown from #prepare if not null
+		 */
+		TestEncoder(final MediaMuxerWrapper muxer, final IOException error) {
+			super(muxer, MediaMuxerWrapperTest.this.mListener);
+			mError = error;
+		}
+
+		@Override
+		void prepare() throws IOException {
+			if (mError != null) throw mError;
+		}
+
+		@Override
+		void requestSyncFrame() {
+			syncFrameRequests.incrementAndGet();
+		}
+
+		@Override
+		void onMuxerReady() {
+			muxerReady.incrementAndGet();
+			super.onMuxerReady();
+		}
+	}
+
+	/**
+	 * video encoder without codec that counts requests of key frame
+	 */
+	private class TestVideoEncoder extends MediaVideoEncoderBase {
+		final AtomicInteger syncFrameRequests = new AtomicInteger();
+
+		TestVideoEncoder(final MediaMuxerWrapper muxer) {
+			super(muxer, MediaMuxerWrapperTest.this.mListener, 320, 240);
+		}
+
+		@Override
+		void prepare() throws IOException {
+		}
+
+		@Override
+		void requestSyncFrame() {
+			syncFrameRequests.incrementAndGet();
+		}
+	}
+
+	/**
+	 * muxer backend that appends sample data to the file and records id of written samples
+	 */
+	private static class FakeMuxer implements MediaMuxerWrapper.IMuxer {
+		final String path;
+		// these are read while writer thread is writing
+		final List<Integer> ids = Collections.synchronizedList(new ArrayList<Integer>());
+		final List<Integer> tracks = Collections.synchronizedList(new ArrayList<Integer>());
+		private final FileOutputStream mOut;
+		private int mTrackCount;
+		boolean started, stopped, released;
+
+		FakeMuxer(final String path) throws IOException {
+			this.path = path;
+			mOut = new FileOutputStream(path);
+		}
+
+		@Override
+		public int addTrack(final MediaFormat format) {
+			return mTrackCount++;
+		}
+
+		@Override
+		public void start() {
+			started = true;
+		}
+
+		@Override
+		public void stop() {
+			stopped = true;
+		}
+
+		@Override
+		public void release() {
+			released = true;
+			try {
+				mOut.close();
+			} catch (final IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+			assertTrue(started);
+			ids.add(byteBuf.getInt(byteBuf.position()));
+			tracks.add(trackIndex);
+			final byte[] data = new byte[byteBuf.remaining()];
+			byteBuf.get(data);
+			try {
+				mOut.write(data);
+			} catch (final IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private class TestMuxer extends MediaMuxerWrapper {
+		TestMuxer() throws IOException {
+			super(null, ".mp4", MUXER_MP4, true);
+		}
+
+		@Override
+		IMuxer createMuxer(final String outputPath) throws IOException {
+			final FakeMuxer muxer = new FakeMuxer(outputPath);
+			mMuxers.add(muxer);
+			return muxer;
+		}
+
+		@Override
+		String getMime(final MediaFormat format) {
+			return mMimes.get(format);
+		}
+	}
+
+	private final List<FakeMuxer> mMuxers = new ArrayList<FakeMuxer>();
+	private final Map<MediaFormat, String> mMimes = new HashMap<MediaFormat, String>();
+	private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+	private final ByteBuffer mData = ByteBuffer.allocate(SAMPLE_SIZE);
+	private File mDir;
+	private TestMuxer mMuxer;
+
+	@Before
+	public void setUp() throws Exception {
+		mDir = File.createTempFile("muxer", "");
+		assertTrue(mDir.delete() && mDir.mkdir());
+		mMuxer = new TestMuxer();
+		mMuxer.bindOutput(new File(mDir, "rec.mp4").getAbsolutePath());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		final File[] files = mDir.listFiles();
+		if (files != null) {
+			for (final File file: files) {
+				file.delete();
+			}
+		}
+		mDir.delete();
+	}
+
+	/**
+	 * add track of the encoder and notify that it started
+	 * @return track index
+	 */
+	private int addTrack(final MediaEncoder encoder, final String mime) {
+		final MediaFormat format = new MediaFormat();
+		mMimes.put(format, mime);
+		final int trackIx = mMuxer.addTrack(encoder, format);
+		mMuxer.start();
+		return trackIx;
+	}
+
+	/**
+	 * write sample whose first 4 bytes are its id
+	 */
+	private void write(final int trackIx, final int id, final long ptsUs, final boolean keyFrame) {
+		mData.clear();
+		mData.putInt(id);
+		mData.clear();
+		// BufferInfo#set is not available on JVM
+		mInfo.offset = 0;
+		mInfo.size = SAMPLE_SIZE;
+		mInfo.presentationTimeUs = ptsUs;
+		mInfo.flags = keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+		mMuxer.writeSampleData(trackIx, mData, mInfo);
+	}
+
+	private static int id(final int trackIx, final int frame) {
+		return frame * 10 + trackIx;
+	}
+
+	/**
+	 * notify that all tracks finished, this waits until all queued samples are written
+	 */
+	private void stop(final int tracks) {
+		for (int i = 0; i < tracks; i++) {
+			mMuxer.stop();
+		}
+		for (final FakeMuxer muxer: mMuxers) {
+			assertTrue(muxer.released);
+		}
+	}
+
+	/**
+	 * prepare 3 video tracks and 1 audio track and start them, the primary video track is added neither first nor last.
+	 * each frame is 10ms, key frames of the primary video track are every 5 frames
+	 * and other video tracks have key frames between them.
+	 * @return track indices of {secondary video 1, primary video, audio, secondary video 2}
+	 */
+	private int[] startTracks() throws IOException {
+		final MediaEncoder video1 = new TestEncoder(mMuxer);
+		final MediaEncoder primary = new TestEncoder(mMuxer);
+		final MediaEncoder audio = new TestEncoder(mMuxer);
+		final MediaEncoder video2 = new TestEncoder(mMuxer);
+		mMuxer.setPrimaryVideoEncoder(primary);
+		mMuxer.prepare();
+		return new int[] {
+			addTrack(video1, MediaFormat.MIMETYPE_VIDEO_AVC),
+			addTrack(primary, MediaFormat.MIMETYPE_VIDEO_AVC),
+			addTrack(audio, MediaFormat.MIMETYPE_AUDIO_AAC),
+			addTrack(video2, MediaFormat.MIMETYPE_VIDEO_AVC),
+		};
+	}
+
+	/**
+	 * prepare audio tracks and start them
+	 * @return track indices
+	 */
+	private int[] startTracks(final int count) throws IOException {
+		final MediaEncoder[] encoders = new MediaEncoder[count];
+		for (int i = 0; i < count; i++) {
+			encoders[i] = new TestEncoder(mMuxer);
+		}
+		mMuxer.prepare();
+		final int[] tracks = new int[count];
+		for (int i = 0; i < count; i++) {
+			tracks[i] = addTrack(encoders[i], MediaFormat.MIMETYPE_AUDIO_AAC);
+		}
+		return tracks;
+	}
+
+	private void writeFrames(final int[] tracks, final int frames) {
+		for (int frame = 0; frame < frames; frame++) {
+			final long pts = frame * FRAME_US;
+			write(tracks[0], id(tracks[0], frame), pts, frame % 5 == 2);
+			write(tracks[1], id(tracks[1], frame), pts, frame % 5 == 0);
+			write(tracks[2], id(tracks[2], frame), pts, false);
+			write(tracks[3], id(tracks[3], frame), pts, frame % 5 == 3);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void segmentsStartWithKeyFrameOfPrimaryVideoTrack() throws Exception {
+		mMuxer.setSegmentation(100, 0, 0);
+		final int[] tracks = startTracks();
+		assertTrue(mMuxer.isStarted());
+		writeFrames(tracks, 40);
+		stop(tracks.length);
+		// rollover is requested on the first sample at 100ms from segment start,
+		// then done on next key frame of the primary video track
+		assertEquals(4, mMuxers.size());
+		int total = 0;
+		for (int i = 0; i < mMuxers.size(); i++) {
+			final FakeMuxer muxer = mMuxers.get(i);
+			assertTrue(muxer.stopped);
+			if (i > 0) {
+				assertEquals(new File(mDir, String.format("rec_%03d.mp4", i)).getAbsolutePath(), muxer.path);
+				assertEquals(id(tracks[1], i * 10), (int)muxer.ids.get(0));
+				// previous segment ends with the sample that requested rollover
+				final List<Integer> prev = mMuxers.get(i - 1).ids;
+				assertEquals(id(tracks[0], i * 10), (int)prev.get(prev.size() - 1));
+			}
+			total += muxer.ids.size();
+		}
+		assertEquals(40 * tracks.length, total);
+	}
+
+	@Test(timeout = 10000)
+	public void oldestSegmentsAreDeletedOverTotalLimit() throws Exception {
+		// each segment is about 10 frames of 4 tracks
+		final long segmentBytes = 10 * 4 * SAMPLE_SIZE;
+		final long maxTotalBytes = segmentBytes * 5 / 2;
+		mMuxer.setSegmentation(100, 0, maxTotalBytes);
+		final int[] tracks = startTracks();
+		assertTrue(mMuxer.isStarted());
+		writeFrames(tracks, 60);
+		stop(tracks.length);
+		assertEquals(6, mMuxers.size());
+		long total = 0;
+		boolean deleted = false;
+		for (final FakeMuxer muxer: mMuxers) {
+			final File file = new File(muxer.path);
+			if (file.exists()) {
+				total += file.length();
+			} else {
+				// only oldest segments are deleted
+				assertFalse(total > 0);
+				deleted = true;
+			}
+		}
+		assertTrue(deleted);
+		assertTrue(total <= maxTotalBytes);
+		// no more segments than needed are deleted
+		assertTrue(total > maxTotalBytes - segmentBytes - 4 * SAMPLE_SIZE);
+		// current segment is never deleted
+		assertTrue(new File(mMuxers.get(mMuxers.size() - 1).path).exists());
+	}
+
+	@Test(timeout = 10000)
+	public void failedPrepareReleasesEncodersAndOutput() throws Exception {
+		final IOException error = new IOException("no codec");
+		final TestEncoder encoder = new TestEncoder(mMuxer);
+		new TestEncoder(mMuxer, error);
+		final FakeMuxer output = mMuxers.get(0);
+		assertTrue(new File(output.path).exists());
+		try {
+			mMuxer.prepare();
+			fail("prepare should fail");
+		} catch (final IOException e) {
+			assertSame(error, e);
+		}
+		// encoder that was prepared successfully is also released
+		assertTrue(mStopped.await(5, TimeUnit.SECONDS));
+		assertTrue(output.released);
+		assertFalse(output.started);
+		assertFalse(new File(output.path).exists());
+		assertEquals(0, encoder.syncFrameRequests.get());
+	}
+
+	@Test(timeout = 10000)
+	public void encodersAreKeptAfterStopRecording() throws Exception {
+		final TestEncoder encoder1 = new TestEncoder(mMuxer);
+		final TestEncoder encoder2 = new TestEncoder(mMuxer);
+		mMuxer.prepare();
+		mMuxer.startRecording();
+		mMuxer.stopRecording();
+		// e.g. writer thread requests key frame to start next segment while encoders are draining
+		mMuxer.requestSyncFrame();
+		assertEquals(1, encoder1.syncFrameRequests.get());
+		assertEquals(1, encoder2.syncFrameRequests.get());
+		// stopping again is ignored
+		mMuxer.stopRecording();
+		assertTrue(mStopped.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test(timeout = 10000)
+	public void samplesAreInterleavedByPts() throws Exception {
+		final int[] tracks = startTracks(3);
+		assertTrue(mMuxer.isStarted());
+		// each track is written in a burst, e.g. audio comes earlier than video of the same time
+		for (final int track: new int[] {tracks[1], tracks[0], tracks[2]}) {
+			for (int frame = 0; frame < 10; frame++) {
+				write(track, id(track, frame), frame * FRAME_US, true);
+			}
+			// shorter than WRITER_MAX_WAIT_NS
+			Thread.sleep(30);
+		}
+		stop(tracks.length);
+		final List<Integer> ids = mMuxers.get(0).ids;
+		assertEquals(30, ids.size());
+		for (int i = 1; i < ids.size(); i++) {
+			// frame number is pts
+			assertTrue("not interleaved:" + ids, ids.get(i) / 10 >= ids.get(i - 1) / 10);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void silentTrackIsNotWaitedForever() throws Exception {
+		final int[] tracks = startTracks(3);
+		// last track has no sample, e.g. video of still screen
+		for (int frame = 0; frame < 10; frame++) {
+			write(tracks[0], id(tracks[0], frame), frame * FRAME_US, true);
+			write(tracks[1], id(tracks[1], frame), frame * FRAME_US, true);
+		}
+		final List<Integer> ids = mMuxers.get(0).ids;
+		final long start = System.nanoTime();
+		while (ids.size() < 20) {
+			assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+			Thread.sleep(10);
+		}
+		// samples are written in order after the silent track returned
+		write(tracks[2], id(tracks[2], 10), 10 * FRAME_US, true);
+		write(tracks[0], id(tracks[0], 10), 10 * FRAME_US, true);
+		write(tracks[1], id(tracks[1], 10), 10 * FRAME_US, true);
+		stop(tracks.length);
+		assertEquals(23, ids.size());
+	}
+
+	@Test(timeout = 10000)
+	public void nothingIsWrittenUntilAllTracksAreAdded() throws Exception {
+		final TestEncoder[] encoders = new TestEncoder[3];
+		for (int i = 0; i < encoders.length; i++) {
+			encoders[i] = new TestEncoder(mMuxer);
+		}
+		mMuxer.prepare();
+		final FakeMuxer output = mMuxers.get(0);
+		final int[] tracks = new int[encoders.length];
+		for (int i = 0; i < encoders.length - 1; i++) {
+			tracks[i] = addTrack(encoders[i], MediaFormat.MIMETYPE_AUDIO_AAC);
+			// encoders keep their output in the codec meanwhile
+			assertFalse(mMuxer.isStarted());
+			assertTrue(mMuxer.isStartPending());
+			write(tracks[i], id(tracks[i], 0), 0, true);
+		}
+		assertFalse(output.started);
+		for (final TestEncoder encoder: encoders) {
+			assertEquals(0, encoder.muxerReady.get());
+		}
+		// last track starts the muxer and releases all encoders
+		tracks[2] = addTrack(encoders[2], MediaFormat.MIMETYPE_AUDIO_AAC);
+		assertTrue(mMuxer.isStarted());
+		assertFalse(mMuxer.isStartPending());
+		assertTrue(output.started);
+		for (final TestEncoder encoder: encoders) {
+			assertEquals(1, encoder.muxerReady.get());
+		}
+		for (final int track: tracks) {
+			write(track, id(track, 1), FRAME_US, true);
+		}
+		stop(tracks.length);
+		// samples written while waiting were discarded
+		assertEquals(3, output.ids.size());
+		for (final int id: output.ids) {
+			assertEquals(1, id / 10);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void muxerStartsWithoutCanceledTrack() throws Exception {
+		final TestEncoder[] encoders = new TestEncoder[3];
+		for (int i = 0; i < encoders.length; i++) {
+			encoders[i] = new TestEncoder(mMuxer);
+		}
+		mMuxer.prepare();
+		addTrack(encoders[0], MediaFormat.MIMETYPE_AUDIO_AAC);
+		addTrack(encoders[1], MediaFormat.MIMETYPE_AUDIO_AAC);
+		assertFalse(mMuxer.isStarted());
+		// e.g. third encoder failed before adding its track
+		mMuxer.cancelTrack();
+		assertTrue(mMuxer.isStarted());
+		assertFalse(mMuxer.isStartPending());
+		for (final TestEncoder encoder: encoders) {
+			assertEquals(1, encoder.muxerReady.get());
+		}
+		stop(2);
+	}
+
+	@Test(timeout = 10000)
+	public void stopWhileWaitingReleasesEncoders() throws Exception {
+		final TestEncoder[] encoders = new TestEncoder[3];
+		for (int i = 0; i < encoders.length; i++) {
+			encoders[i] = new TestEncoder(mMuxer);
+		}
+		mMuxer.prepare();
+		addTrack(encoders[0], MediaFormat.MIMETYPE_AUDIO_AAC);
+		mMuxer.stopRecording();
+		// encoders should not keep waiting for other tracks
+		assertFalse(mMuxer.isStartPending());
+		assertFalse(mMuxer.isStarted());
+		for (final TestEncoder encoder: encoders) {
+			assertEquals(1, encoder.muxerReady.get());
+		}
+		assertFalse(mMuxers.get(0).started);
+	}
+
+	@Test(timeout = 10000)
+	public void standbyCreatesNoFileUntilBound() throws Exception {
+		final TestMuxer muxer = new TestMuxer();
+		final int created = mMuxers.size();
+		// encoders are prepared ahead of recording
+		final TestEncoder encoder = new TestEncoder(muxer);
+		muxer.prepare();
+		assertEquals(created, mMuxers.size());
+		assertNull(muxer.getOutputPath());
+		try {
+			muxer.startRecording();
+			fail("output is not bound");
+		} catch (final IllegalStateException e) {
+			// expected
+		}
+		try {
+			muxer.addTrack(encoder, new MediaFormat());
+			fail("output is not bound");
+		} catch (final IllegalStateException e) {
+			// expected
+		}
+		final File output = new File(mDir, "standby.mp4");
+		assertFalse(output.exists());
+		muxer.bindOutput(output.getAbsolutePath());
+		assertTrue(output.exists());
+		assertEquals(output.getAbsolutePath(), muxer.getOutputPath());
+		assertEquals(created + 1, mMuxers.size());
+		// output is bound only once
+		muxer.bindOutput(new File(mDir, "other.mp4").getAbsolutePath());
+		assertEquals(output.getAbsolutePath(), muxer.getOutputPath());
+		assertEquals(created + 1, mMuxers.size());
+		muxer.startRecording();
+		muxer.stopRecording();
+	}
+
+	@Test(timeout = 10000)
+	public void pauseCollapsesPtsGapAndRequestsKeyFrameOnResume() throws Exception {
+		final TestVideoEncoder encoder = new TestVideoEncoder(mMuxer);
+		mMuxer.prepare();
+		mMuxer.startRecording();
+		final long beforePause = encoder.getOutputPTSUs(mInfo);
+		mMuxer.pauseRecording();
+		assertTrue(mMuxer.isPaused());
+		Thread.sleep(300);
+		// resuming without pausing is ignored
+		mMuxer.resumeRecording();
+		mMuxer.resumeRecording();
+		assertFalse(mMuxer.isPaused());
+		final long afterResume = encoder.getOutputPTSUs(mInfo);
+		// output continues from the time when it was paused instead of jumping by 300ms
+		assertTrue(afterResume > beforePause);
+		assertTrue("gap=" + (afterResume - beforePause), afterResume - beforePause < 100000);
+		assertTrue(mMuxer.getClock().getPauseOffsetUs() >= 300000);
+		// output restarts with a key frame
+		assertEquals(1, encoder.syncFrameRequests.get());
+		mMuxer.stopRecording();
+	}
+}
@@ -0,0 +1,132 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: MediaRenditionEncoderTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * MediaRenditionEncoder without codec, fed from MediaScreenEncoder that records calls from the rendition
+ */
+public class MediaRenditionEncoderTest {
+	private static final int SOURCE_FPS = 30;
+
+	private final MediaEncoder.MediaEncoderListener mListener = new MediaEncoder.MediaEncoderListener() {
+		@Override
+		public void onPrepared(final MediaEncoder encoder) {
+		}
+
+		@Override
+		public void onStopped(final MediaEncoder encoder) {
+		}
+
+		@Override
+		public void onError(final MediaEncoder encoder, final Exception e) {
+		}
+	};
+
+	private static class TestSource extends MediaScreenEncoder {
+		int redraws;
+		final List<MediaRenditionEncoder> removed = new ArrayList<MediaRenditionEncoder>();
+
+		TestSource(final MediaMuxerWrapper muxer, final MediaEncoderListener listener, final CaptureRegion region) {
+			super(muxer, listener, null, region, 160, 0, SOURCE_FPS);
+		}
+
+		@Override
+		void requestRedraw() {
+			redraws++;
+		}
+
+		@Override
+		void removeRendition(final MediaRenditionEncoder encoder) {
+			removed.add(encoder);
+			super.removeRendition(encoder);
+		}
+	}
+
+	private TestSource mSource;
+	private MediaMuxerWrapper mMuxer;
+
+	@Before
+	public void setUp() throws Exception {
+		// rendition is written by another muxer than the source
+		mSource = new TestSource(new MediaMuxerWrapper(null, ".mp4", MediaMuxerWrapper.MUXER_NONE, true),
+			mListener, new CaptureRegion(1280, 720, 160, 0, 1120, 720, 1.0f));
+		mMuxer = new MediaMuxerWrapper(null, ".mp4", MediaMuxerWrapper.MUXER_NONE, true);
+	}
+
+	@Test
+	public void outputIsScaledCropOfSource() {
+		final MediaRenditionEncoder encoder = new MediaRenditionEncoder(mMuxer, mListener, mSource, 0.5f, 0, 2);
+		final CaptureRegion expected = new CaptureRegion(1280, 720, 160, 0, 1120, 720, 0.5f);
+		assertEquals(expected.getOutputWidth(), encoder.mWidth);
+		assertEquals(expected.getOutputHeight(), encoder.mHeight);
+		assertEquals(480, encoder.mWidth);
+		assertEquals(360, encoder.mHeight);
+	}
+
+	@Test
+	public void frameRateIsDividedFromSource() {
+		assertEquals(SOURCE_FPS / 2, new MediaRenditionEncoder(mMuxer, mListener, mSource, 1.0f, 0, 2).getFrameRate());
+		// every frame of source
+		assertEquals(SOURCE_FPS, new MediaRenditionEncoder(mMuxer, mListener, mSource, 1.0f, 0, 0).getFrameRate());
+		// at least 1 fps
+		assertEquals(1, new MediaRenditionEncoder(mMuxer, mListener, mSource, 1.0f, 0, 100).getFrameRate());
+	}
+
+	@Test
+	public void framesAreDrawnOnlyWhileCapturing() {
+		final MediaRenditionEncoder encoder = new MediaRenditionEncoder(mMuxer, mListener, mSource, 0.5f, 0, 2);
+		// nobody drains the encoder before starting
+		assertFalse(encoder.isCapturing());
+		encoder.startRecording();
+		assertTrue(encoder.isCapturing());
+		encoder.pauseRecording();
+		assertFalse(encoder.isCapturing());
+		// source may be idle while its outputs were paused
+		final int redraws = mSource.redraws;
+		encoder.resumeRecording();
+		assertTrue(encoder.isCapturing());
+		assertEquals(redraws + 1, mSource.redraws);
+		encoder.stopRecording();
+		assertFalse(encoder.isCapturing());
+	}
+
+	@Test
+	public void releaseDetachesFromSource() {
+		final MediaRenditionEncoder encoder = new MediaRenditionEncoder(mMuxer, mListener, mSource, 0.5f, 0, 2);
+		encoder.release();
+		assertEquals(1, mSource.removed.size());
+		assertSame(encoder, mSource.removed.get(0));
+	}
+}
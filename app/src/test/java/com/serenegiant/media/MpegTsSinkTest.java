@@ -0,0 +1,249 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: MpegTsSinkTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * MpegTsSink with clients on loopback interface
+ */
+public class MpegTsSinkTest {
+	private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, 0x00, 0x1f};
+	private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte)0xce, 0x3c, (byte)0x80};
+	private static final int PACKET_SIZE = 188;
+	private static final int PID_PAT = 0x0000;
+	private static final int PID_PMT = 0x1000;
+
+	private final MediaFormat mVideoFormat = new MediaFormat();
+	private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+	private int mPort;
+	private TestSink mSink;
+	private long mPts;
+
+	private class TestSink extends MpegTsSink {
+		final AtomicInteger aborts = new AtomicInteger();
+
+		TestSink() {
+			super(mPort);
+		}
+
+		@Override
+		protected String getMime(final MediaFormat format) {
+			return format == mVideoFormat ? MediaFormat.MIMETYPE_VIDEO_AVC : null;
+		}
+
+		@Override
+		protected ByteBuffer getCodecSpecificData(final MediaFormat format, final String key) {
+			if (format != mVideoFormat) return null;
+			return ByteBuffer.wrap("csd-0".equals(key) ? SPS : PPS);
+		}
+
+		@Override
+		protected boolean onAbort() {
+			final boolean result = super.onAbort();
+			aborts.incrementAndGet();
+			return result;
+		}
+	}
+
+	/**
+	 * client that reads PAT/PMT at the head of the stream,
+	 * then optionally stops reading until #resume is called and reads to the end
+	 */
+	private static class Client extends Thread {
+		final Socket socket;
+		final boolean stall;
+		final byte[] head = new byte[PACKET_SIZE * 2];
+		final CountDownLatch headReceived = new CountDownLatch(1);
+		final CountDownLatch resume = new CountDownLatch(1);
+		volatile boolean closedByServer;
+
+		Client(final Socket socket, final boolean stall) {
+			this.socket = socket;
+			this.stall = stall;
+		}
+
+		@Override
+		public void run() {
+			try {
+				final InputStream in = socket.getInputStream();
+				new DataInputStream(in).readFully(head);
+				headReceived.countDown();
+				if (stall) {
+					resume.await();
+				}
+				final byte[] buf = new byte[64 * 1024];
+				while (in.read(buf) >= 0);
+				closedByServer = true;
+			} catch (final IOException e) {
+				// connection reset by server
+				closedByServer = true;
+			} catch (final InterruptedException e) {
+				// finish
+			}
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		final ServerSocket probe = new ServerSocket(0);
+		mPort = probe.getLocalPort();
+		probe.close();
+		mSink = new TestSink();
+		mSink.start(null, new MediaFormat[] {mVideoFormat});
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		mSink.stop();
+	}
+
+	/**
+	 * connect to the sink, server socket is opened on sink thread asynchronously
+	 * @param receiveBufferSize
+	 * @return
+	 * @throws Exception
+	 */
+	private Socket connect(final int receiveBufferSize) throws Exception {
+		final long timeout = System.currentTimeMillis() + 5000;
+		for ( ; ; ) {
+			final Socket socket = new Socket();
+			socket.setReceiveBufferSize(receiveBufferSize);
+			try {
+				socket.connect(new InetSocketAddress("127.0.0.1", mPort), 1000);
+				return socket;
+			} catch (final IOException e) {
+				socket.close();
+				if (System.currentTimeMillis() > timeout) throw e;
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	private void offerKeyFrame(final int size) {
+		final ByteBuffer buf = ByteBuffer.allocate(size);
+		mInfo.offset = 0;
+		mInfo.size = size;
+		mInfo.presentationTimeUs = mPts;
+		mInfo.flags = MediaCodec.BUFFER_FLAG_KEY_FRAME;
+		mPts += 66666;
+		mSink.offer(0, buf, mInfo);
+	}
+
+	/**
+	 * offer key frames until the client received PAT/PMT
+	 * @param client
+	 * @throws Exception
+	 */
+	private void feedUntilHeadReceived(final Client client) throws Exception {
+		final long timeout = System.currentTimeMillis() + 5000;
+		while (!client.headReceived.await(10, TimeUnit.MILLISECONDS)) {
+			if (System.currentTimeMillis() > timeout) fail("nothing received");
+			offerKeyFrame(1000);
+		}
+	}
+
+	private static int pid(final byte[] packets, final int index) {
+		final int offset = index * PACKET_SIZE;
+		assertEquals(0x47, packets[offset] & 0xff);
+		return ((packets[offset + 1] & 0x1f) << 8) | (packets[offset + 2] & 0xff);
+	}
+
+	private static void assertStartsWithPsi(final byte[] head) {
+		assertEquals(PID_PAT, pid(head, 0));
+		assertEquals(PID_PMT, pid(head, 1));
+		// payload_unit_start_indicator
+		assertTrue((head[1] & 0x40) != 0);
+		assertTrue((head[PACKET_SIZE + 1] & 0x40) != 0);
+	}
+
+	@Test(timeout = 20000)
+	public void slowClientIsDroppedAndNextClientIsServed() throws Exception {
+		// first client stops reading after PAT/PMT
+		final Client slow = new Client(connect(16 * 1024), true);
+		slow.start();
+		feedUntilHeadReceived(slow);
+		assertStartsWithPsi(slow.head);
+		final long timeout = System.currentTimeMillis() + 10000;
+		while (mSink.aborts.get() == 0) {
+			if (System.currentTimeMillis() > timeout) fail("slow client was not dropped");
+			offerKeyFrame(256 * 1024);
+			Thread.sleep(2);
+		}
+		assertFalse(mSink.isClosed());
+		// the slow client was disconnected
+		slow.resume.countDown();
+		slow.join(5000);
+		assertTrue(slow.closedByServer);
+		slow.socket.close();
+
+		// sink keeps accepting connections and next client starts with fresh PAT/PMT
+		final Client next = new Client(connect(64 * 1024), false);
+		next.start();
+		feedUntilHeadReceived(next);
+		assertStartsWithPsi(next.head);
+		assertFalse(mSink.isClosed());
+		next.socket.close();
+		next.join(5000);
+	}
+
+	@Test(timeout = 10000)
+	public void newClientReplacesPreviousOne() throws Exception {
+		final Client first = new Client(connect(64 * 1024), false);
+		first.start();
+		feedUntilHeadReceived(first);
+		final Client second = new Client(connect(64 * 1024), false);
+		second.start();
+		feedUntilHeadReceived(second);
+		assertStartsWithPsi(second.head);
+		// previous client was closed when the new one was used
+		first.join(5000);
+		assertTrue(first.closedByServer);
+		first.socket.close();
+		second.socket.close();
+		second.join(5000);
+		assertEquals(0, mSink.aborts.get());
+	}
+}
@@ -0,0 +1,174 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: PreRollBufferTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PreRollBufferTest {
+	private static final int CAPACITY = 1000;
+	private static final int MAX_SIZE = 150;
+	private static final long FRAME_US = 10000;
+
+	private final ByteBuffer mSrc = ByteBuffer.allocate(CAPACITY * 2);
+
+	/**
+	 * add sample whose bytes are filled with low byte of the sequence number
+	 * @return result of PreRollBuffer#add
+	 */
+	private boolean add(final PreRollBuffer buffer, final long seq, final int size, final boolean isKeyFrame) {
+		mSrc.clear();
+		for (int i = 0; i < size; i++) {
+			mSrc.put((byte)seq);
+		}
+		mSrc.flip();
+		return buffer.add(0, mSrc, 0, size, seq * FRAME_US, isKeyFrame ? 1 : 0, isKeyFrame);
+	}
+
+	private static void assertSample(final PreRollBuffer buffer, final long seq, final int size) {
+		assertEquals(size, buffer.getSize(seq));
+		assertEquals(seq * FRAME_US, buffer.getPresentationTimeUs(seq));
+		final ByteBuffer data = buffer.getData(seq);
+		assertEquals(size, data.remaining());
+		while (data.hasRemaining()) {
+			assertEquals("sample " + seq, (byte)seq, data.get());
+		}
+	}
+
+	private static int sizeOf(final long seq) {
+		return MAX_SIZE - 90 + (int)(seq * 37 % 90);
+	}
+
+	@Test
+	public void oldestSamplesAreEvictedAtWraparound() {
+		final PreRollBuffer buffer = new PreRollBuffer(CAPACITY, 64);
+		long bytes = 0;
+		for (long seq = 0; seq < 200; seq++) {
+			assertTrue(add(buffer, seq, sizeOf(seq), false));
+			bytes += sizeOf(seq);
+			assertEquals(seq + 1, buffer.head());
+			// stored samples are intact and fit in the capacity
+			int stored = 0;
+			for (long s = buffer.tail(); s < buffer.head(); s++) {
+				assertSample(buffer, s, sizeOf(s));
+				stored += sizeOf(s);
+			}
+			assertTrue(stored <= CAPACITY);
+			// unused space is at most the gaps before the end and after the new sample
+			if (bytes > CAPACITY) {
+				assertTrue(stored >= CAPACITY - 2 * MAX_SIZE);
+			}
+		}
+		assertTrue(bytes > CAPACITY * 10);
+		assertTrue(buffer.tail() > 180);
+		assertEquals(0, buffer.getDroppedSamples());
+	}
+
+	@Test
+	public void oldestSamplesAreEvictedWhenSampleCountIsFull() {
+		final PreRollBuffer buffer = new PreRollBuffer(CAPACITY, 3);	// rounded up to 4
+		for (long seq = 0; seq < 10; seq++) {
+			assertTrue(add(buffer, seq, 10, false));
+		}
+		assertEquals(6, buffer.tail());
+		assertEquals(10, buffer.head());
+		for (long seq = 6; seq < 10; seq++) {
+			assertSample(buffer, seq, 10);
+		}
+	}
+
+	@Test
+	public void newSampleIsDroppedWhilePinned() {
+		final PreRollBuffer buffer = new PreRollBuffer(500, 64);
+		for (long seq = 0; seq < 5; seq++) {
+			assertTrue(add(buffer, seq, 100, false));
+		}
+		buffer.pin(2);
+		// samples before the pinned one can be evicted
+		assertTrue(add(buffer, 5, 100, false));
+		assertTrue(add(buffer, 6, 100, false));
+		assertEquals(2, buffer.tail());
+		// but the pinned sample can not
+		assertFalse(add(buffer, 7, 100, false));
+		assertEquals(1, buffer.getDroppedSamples());
+		assertEquals(7, buffer.head());
+		for (long seq = 2; seq < 7; seq++) {
+			assertSample(buffer, seq, 100);
+		}
+		buffer.unpin();
+		assertTrue(add(buffer, 7, 100, false));
+		assertEquals(3, buffer.tail());
+		assertSample(buffer, 7, 100);
+	}
+
+	@Test
+	public void tooLargeSampleIsDropped() {
+		final PreRollBuffer buffer = new PreRollBuffer(CAPACITY, 64);
+		assertTrue(add(buffer, 0, 100, true));
+		assertFalse(add(buffer, 1, CAPACITY + 1, true));
+		assertEquals(1, buffer.getDroppedSamples());
+		assertEquals(1, buffer.head());
+		assertSample(buffer, 0, 100);
+	}
+
+	@Test
+	public void findStartReturnsKeyFrameCoveringDuration() {
+		final PreRollBuffer buffer = new PreRollBuffer(CAPACITY, 64);
+		assertEquals(-1, buffer.findStart(0));
+		for (long seq = 0; seq < 4; seq++) {
+			add(buffer, seq, 10, false);
+		}
+		// no key frame
+		assertEquals(-1, buffer.findStart(0));
+		buffer.clear();
+		// key frame every 4 samples, newest sample is 19
+		for (long seq = 0; seq < 20; seq++) {
+			add(buffer, seq, 10, seq % 4 == 0);
+		}
+		assertEquals(16, buffer.findStart(0));
+		assertEquals(16, buffer.findStart(3 * FRAME_US));
+		assertEquals(12, buffer.findStart(4 * FRAME_US));
+		assertEquals(12, buffer.findStart(5 * FRAME_US));
+		assertEquals(0, buffer.findStart(19 * FRAME_US));
+		// stored samples are shorter than the duration
+		assertEquals(0, buffer.findStart(1000 * FRAME_US));
+	}
+
+	@Test
+	public void findStartSkipsEvictedKeyFrames() {
+		final PreRollBuffer buffer = new PreRollBuffer(CAPACITY, 64);
+		// 10 samples of 100 bytes are held, key frame every 4 samples
+		for (long seq = 0; seq < 23; seq++) {
+			add(buffer, seq, 100, seq % 4 == 0);
+		}
+		assertEquals(13, buffer.tail());
+		assertEquals(16, buffer.findStart(1000 * FRAME_US));
+		assertEquals(20, buffer.findStart(0));
+	}
+}
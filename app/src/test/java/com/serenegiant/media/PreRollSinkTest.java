@@ -0,0 +1,229 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: PreRollSinkTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PreRollSink that saves to fake muxer after the ring buffer wrapped around
+ */
+public class PreRollSinkTest {
+	private static final int CAPACITY = 1000;
+	private static final int SAMPLE_SIZE = 50;
+	private static final long FRAME_US = 10000;
+	/** video key frame every 6 samples(3 video frames) */
+	private static final int KEY_FRAME_INTERVAL = 6;
+	private static final String OUTPUT_PATH = "preroll.mp4";
+
+	/**
+	 * written sample, BufferInfo is not recorded because its #set is not available on JVM
+	 */
+	private static final class Sample {
+		final int track;
+		final byte[] data;
+
+		Sample(final int track, final byte[] data) {
+			this.track = track;
+			this.data = data;
+		}
+	}
+
+	private final MediaFormat mVideoFormat = new MediaFormat();
+	private final MediaFormat mAudioFormat = new MediaFormat();
+	private final ByteBuffer mSrc = ByteBuffer.allocate(CAPACITY);
+	private final List<Sample> mWritten = new ArrayList<Sample>();
+	private boolean mStarted, mStopped, mReleased;
+	private String mSavedPath;
+	private long mSavedDurationUs = -1;
+	private Exception mError;
+	private PreRollSink mSink;
+
+	private final MediaMuxerWrapper.IMuxer mMuxer = new MediaMuxerWrapper.IMuxer() {
+		@Override
+		public int addTrack(final MediaFormat format) {
+			return format == mVideoFormat ? 10 : 11;
+		}
+
+		@Override
+		public void start() {
+			mStarted = true;
+		}
+
+		@Override
+		public void stop() {
+			mStopped = true;
+		}
+
+		@Override
+		public void release() {
+			mReleased = true;
+		}
+
+		@Override
+		public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+			assertTrue(mStarted);
+			final byte[] data = new byte[byteBuf.remaining()];
+			byteBuf.get(data);
+			mWritten.add(new Sample(trackIndex, data));
+		}
+	};
+
+	private final PreRollSink.SaveCallback mCallback = new PreRollSink.SaveCallback() {
+		@Override
+		public void onSaved(final String outputPath, final long durationUs) {
+			mSavedPath = outputPath;
+			mSavedDurationUs = durationUs;
+		}
+
+		@Override
+		public void onError(final String outputPath, final Exception e) {
+			mError = e;
+		}
+	};
+
+	@Before
+	public void setUp() throws Exception {
+		mSink = new PreRollSink(CAPACITY) {
+			@Override
+			protected String getMime(final MediaFormat format) {
+				return format == mVideoFormat ? MediaFormat.MIMETYPE_VIDEO_AVC : MediaFormat.MIMETYPE_AUDIO_AAC;
+			}
+
+			@Override
+			MediaMuxerWrapper.IMuxer createMuxer(final String outputPath) throws IOException {
+				assertEquals(OUTPUT_PATH, outputPath);
+				return mMuxer;
+			}
+		};
+		mSink.onStart(new MediaFormat[] {mVideoFormat, mAudioFormat});
+	}
+
+	/**
+	 * feed video and audio samples alternately, bytes of each sample are low byte of the sequence number
+	 * @param seq
+	 */
+	private void feed(final long seq) throws IOException {
+		feed(seq, SAMPLE_SIZE);
+	}
+
+	private void feed(final long seq, final int size) throws IOException {
+		final int track = (int)(seq % 2);
+		final int flags = (seq % KEY_FRAME_INTERVAL == 0) ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+		mSrc.clear();
+		for (int i = 0; i < size; i++) {
+			mSrc.put((byte)seq);
+		}
+		mSrc.flip();
+		mSink.onSample(track, mSrc, size, seq * FRAME_US, flags);
+	}
+
+	/**
+	 * check that samples from first..last are written in order
+	 */
+	private void assertWritten(final long first, final long last) {
+		assertEquals(last - first + 1, mWritten.size());
+		for (int i = 0; i < mWritten.size(); i++) {
+			final long seq = first + i;
+			final Sample sample = mWritten.get(i);
+			assertEquals(seq % 2 == 0 ? 10 : 11, sample.track);
+			assertEquals(SAMPLE_SIZE, sample.data.length);
+			for (final byte b: sample.data) {
+				assertEquals("sample " + seq, (byte)seq, b);
+			}
+		}
+		assertTrue(mStopped);
+		assertTrue(mReleased);
+		assertNull(mError);
+		assertEquals(OUTPUT_PATH, mSavedPath);
+		assertEquals((last - first) * FRAME_US, mSavedDurationUs);
+	}
+
+	@Test
+	public void saveWindowAfterWraparound() throws Exception {
+		// 20 samples are held, 100 samples wrap around the ring 5 times
+		for (long seq = 0; seq < 100; seq++) {
+			feed(seq);
+		}
+		// newest sample is 99, latest key frame not after 99 - 10 is 84
+		mSink.save(OUTPUT_PATH, 10 * FRAME_US / 1000, mCallback);
+		mSink.onStop();
+		assertWritten(84, 99);
+	}
+
+	@Test
+	public void saveLongerThanBufferedStartsFromOldestKeyFrame() throws Exception {
+		for (long seq = 0; seq < 103; seq++) {
+			feed(seq);
+		}
+		// samples 83..102 are held, oldest key frame is 84
+		mSink.save(OUTPUT_PATH, 1000 * FRAME_US / 1000, mCallback);
+		mSink.onStop();
+		assertWritten(84, 102);
+	}
+
+	@Test
+	public void samplesBeingSavedAreNotEvicted() throws Exception {
+		for (long seq = 0; seq < 103; seq++) {
+			feed(seq);
+		}
+		mSink.save(OUTPUT_PATH, 1000 * FRAME_US / 1000, mCallback);
+		// save starts on next sample and only a part of the window is written
+		feed(103);
+		assertNull(mSavedPath);
+		assertTrue(mWritten.size() < 20);
+		// large sample needs the room of samples not written yet, so it is dropped instead
+		feed(104, CAPACITY);
+		// rest of the window is written between following samples
+		long seq = 105;
+		while (mSavedPath == null) {
+			assertTrue(seq < 110);
+			feed(seq++);
+		}
+		// window ends at the sample that triggered the save
+		assertWritten(84, 103);
+	}
+
+	@Test
+	public void saveFailsWithoutKeyFrame() throws Exception {
+		feed(1);
+		mSink.save(OUTPUT_PATH, 1000, mCallback);
+		feed(3);
+		assertTrue(mError instanceof IllegalStateException);
+		assertTrue(mWritten.isEmpty());
+		assertNull(mSavedPath);
+	}
+}
@@ -0,0 +1,151 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: SampleQueueTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SampleQueueTest {
+	private static final int SAMPLES = 200000;
+	private static final int MAX_SIZE = 2048;
+
+	/**
+	 * size of the sample of specific sequence number, at least 8 bytes
+	 */
+	private static int sizeOf(final int seq) {
+		return 8 + (seq * 31) % (MAX_SIZE - 8);
+	}
+
+	/**
+	 * fill the buffer with the sequence number at the beginning and at the end
+	 */
+	private static void fill(final ByteBuffer buf, final int seq) {
+		final int size = sizeOf(seq);
+		buf.clear();
+		buf.putInt(0, seq);
+		buf.putInt(size - 4, ~seq);
+		buf.limit(size);
+	}
+
+	@Test(timeout = 30000)
+	public void samplesArePassedInOrderAcrossThreads() throws Exception {
+		final SampleQueue queue = new SampleQueue(16);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					final ByteBuffer src = ByteBuffer.allocateDirect(MAX_SIZE + 16);
+					for (int seq = 0; seq < SAMPLES; seq++) {
+						fill(src, seq);
+						// position and limit should be restored
+						while (!queue.offer(src, 0, sizeOf(seq), seq, seq & 1)) {
+							Thread.yield();
+						}
+						assertEquals(0, src.position());
+						assertEquals(sizeOf(seq), src.limit());
+					}
+				} catch (final Throwable e) {
+					error.set(e);
+				}
+			}
+		}, "producer");
+		producer.start();
+		int expected = 0;
+		while (expected < SAMPLES) {
+			final SampleQueue.Sample sample = queue.peek();
+			if (sample == null) {
+				assertNull(error.get());
+				Thread.yield();
+				continue;
+			}
+			assertTrue(queue.size() > 0);
+			// contents written before the slot was published are visible
+			assertEquals(expected, sample.presentationTimeUs);
+			assertEquals(expected & 1, sample.flags);
+			assertEquals(sizeOf(expected), sample.size);
+			assertEquals(0, sample.buffer.position());
+			assertEquals(sample.size, sample.buffer.limit());
+			assertEquals(expected, sample.buffer.getInt(0));
+			assertEquals(~expected, sample.buffer.getInt(sample.size - 4));
+			queue.remove();
+			expected++;
+		}
+		producer.join();
+		assertNull(error.get());
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void buffersArePooledOnEachSlot() {
+		final SampleQueue queue = new SampleQueue(3);	// rounded up to 4
+		assertEquals(4, queue.capacity());
+		final ByteBuffer src = ByteBuffer.allocate(MAX_SIZE);
+		final ByteBuffer[] pooled = new ByteBuffer[queue.capacity()];
+		for (int lap = 0; lap < 3; lap++) {
+			for (int i = 0; i < queue.capacity(); i++) {
+				// largest sample comes first
+				final int size = lap == 0 ? MAX_SIZE : MAX_SIZE / (lap + 1);
+				assertTrue(queue.offer(src, 0, size, i, 0));
+			}
+			assertFalse(queue.offer(src, 0, 1, 0, 0));
+			assertEquals(queue.capacity(), queue.size());
+			for (int i = 0; i < queue.capacity(); i++) {
+				final SampleQueue.Sample sample = queue.peek();
+				if (lap == 0) {
+					pooled[i] = sample.buffer;
+				} else {
+					// buffer grown on first lap is reused without allocation
+					assertSame(pooled[i], sample.buffer);
+				}
+				queue.remove();
+			}
+			assertTrue(queue.isEmpty());
+			assertNull(queue.peek());
+		}
+	}
+
+	@Test
+	public void clearDiscardsQueuedSamples() {
+		final SampleQueue queue = new SampleQueue(4);
+		final ByteBuffer src = ByteBuffer.allocate(16);
+		assertTrue(queue.offer(src, 0, 16, 1, 0));
+		assertTrue(queue.offer(src, 0, 16, 2, 0));
+		queue.clear();
+		assertTrue(queue.isEmpty());
+		assertNull(queue.peek());
+		// removing from empty queue is ignored
+		queue.remove();
+		assertTrue(queue.offer(src, 0, 16, 3, 0));
+		assertEquals(3, queue.peek().presentationTimeUs);
+	}
+}
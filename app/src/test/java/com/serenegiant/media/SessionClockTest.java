@@ -0,0 +1,196 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: SessionClockTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Call SessionClock from several threads at the same time and check its invariants.
+ */
+public class SessionClockTest {
+	private static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+	private static final int STAMPS_PER_THREAD = 200000;
+	private static final long DURATION_MS = 1000;
+	private static final long PAUSE_PERIOD_NS = 100000;
+	/**
+	 * generous limit for a correction, a stamp can only be moved forward by the delay
+	 * between reading the time and swapping the state of the thread that pauses concurrently
+	 */
+	private static final long MAX_CORRECTION_US = 100000;
+
+	@Test
+	public void pauseOffsetIsRemoved() {
+		final long[] now = new long[] { 1000000L };
+		final SessionClock clock = new SessionClock(new FrameScheduler.Clock() {
+			@Override
+			public long nanoTime() {
+				return now[0] * 1000L;
+			}
+		});
+		assertEquals(1000000L, clock.nowUs());
+		assertTrue(clock.pause());
+		assertFalse(clock.pause());
+		now[0] += 500000L;
+		// session time does not advance while paused
+		assertEquals(1000000L, clock.nowUs());
+		assertTrue(clock.resume());
+		assertFalse(clock.resume());
+		now[0] += 1000L;
+		assertEquals(1001000L, clock.nowUs());
+		assertEquals(500000L, clock.getPauseOffsetUs());
+		assertEquals(1501000L - 500000L, clock.toSessionUs(now[0]));
+	}
+
+	@Test(timeout = 60000)
+	public void sharedTrackDoesNotLoseStamps() throws Exception {
+		final SessionClock clock = new SessionClock(FrameScheduler.SYSTEM_CLOCK);
+		final SessionClock.Track track = clock.newTrack();
+		run(THREADS, new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < STAMPS_PER_THREAD; i++) {
+					track.stamp(0);
+				}
+			}
+		});
+		final long n = (long)THREADS * STAMPS_PER_THREAD;
+		// first stamp is 0 and every following one is corrected to previous + 1
+		assertEquals(n - 1, track.getLastUs());
+		assertEquals(n - 1, track.getCorrections());
+		assertEquals(n - 1, clock.getCorrections());
+	}
+
+	/**
+	 * each thread stamps current session time on its own track while one thread pauses and resumes.
+	 * samples are not stamped while paused same as encoders drop them,
+	 * so only races between pausing and stamping are corrected and they should be small.
+	 */
+	@Test(timeout = 60000)
+	public void stampsIncreaseWhilePausing() throws Exception {
+		final SessionClock clock = new SessionClock(FrameScheduler.SYSTEM_CLOCK);
+		final long endNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DURATION_MS);
+		final AtomicInteger violations = new AtomicInteger();
+		final AtomicLong stamps = new AtomicLong();
+		final long startUs = System.nanoTime() / 1000L;
+		run(THREADS, new Runnable() {
+			private final AtomicInteger mIndex = new AtomicInteger();
+
+			@Override
+			public void run() {
+				if (mIndex.getAndIncrement() == 0) {
+					// pause/resume in short periods
+					while (System.nanoTime() < endNs) {
+						clock.pause();
+						LockSupport.parkNanos(PAUSE_PERIOD_NS);
+						clock.resume();
+						LockSupport.parkNanos(PAUSE_PERIOD_NS);
+					}
+					return;
+				}
+				final SessionClock.Track track = clock.newTrack();
+				long prev = Long.MIN_VALUE, prevNow = Long.MIN_VALUE, n = 0;
+				while (System.nanoTime() < endNs) {
+					if (clock.isPaused()) continue;
+					// encoders never write two samples in the same microsecond
+					final long now = clock.nowUs();
+					if (now == prevNow) continue;
+					prevNow = now;
+					final long pts = track.stamp(now);
+					if (pts <= prev) {
+						violations.incrementAndGet();
+					}
+					prev = pts;
+					n++;
+				}
+				stamps.addAndGet(n);
+			}
+		});
+		final long elapsedUs = System.nanoTime() / 1000L - startUs;
+		assertEquals(violations.get() + " stamps went backwards", 0, violations.get());
+		assertTrue(stamps.get() > 0);
+		assertFalse(clock.toString(), clock.isPaused());
+		assertTrue(clock.toString(), clock.getMaxCorrectionUs() <= MAX_CORRECTION_US);
+		assertTrue(clock.getPauseOffsetUs() + " > " + elapsedUs,
+			(clock.getPauseOffsetUs() >= 0) && (clock.getPauseOffsetUs() <= elapsedUs));
+	}
+
+	/**
+	 * all threads toggle pausing state, successful pause and resume should alternate
+	 */
+	@Test(timeout = 60000)
+	public void pauseAndResumeStayBalanced() throws Exception {
+		final SessionClock clock = new SessionClock(FrameScheduler.SYSTEM_CLOCK);
+		final AtomicLong paused = new AtomicLong();
+		final AtomicLong resumed = new AtomicLong();
+		run(THREADS, new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < STAMPS_PER_THREAD; i++) {
+					if (((i & 1) == 0) ? clock.pause() : clock.resume()) {
+						((i & 1) == 0 ? paused : resumed).incrementAndGet();
+					}
+				}
+			}
+		});
+		final long diff = paused.get() - resumed.get();
+		assertTrue("paused=" + paused.get() + ",resumed=" + resumed.get(), (diff == 0) || (diff == 1));
+		assertEquals(clock.toString(), diff == 1, clock.isPaused());
+	}
+
+	/**
+	 * run task on threads at the same time and wait for all of them
+	 */
+	private static void run(final int threads, final Runnable task) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (final InterruptedException e) {
+						return;
+					}
+					task.run();
+				}
+			}, "Stress" + i);
+			workers[i].start();
+		}
+		start.countDown();
+		for (final Thread worker: workers) {
+			worker.join();
+		}
+	}
+}
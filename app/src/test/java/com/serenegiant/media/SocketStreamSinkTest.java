@@ -0,0 +1,270 @@
+package com.serenegiant.media;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: SocketStreamSinkTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SocketStreamSink that sends to a receiver on loopback interface
+ */
+public class SocketStreamSinkTest {
+	private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, 0x00, 0x1f};
+	private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte)0xce, 0x3c, (byte)0x80};
+	private static final int QUEUE_CAPACITY = 4;
+	private static final byte MARKER = 0x55;
+	/**
+	 * large samples so that the sink thread blocks when the receiver does not read
+	 */
+	private static final int LARGE_SAMPLE_SIZE = 256 * 1024;
+
+	private final MediaFormat mVideoFormat = new MediaFormat();
+	private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+	private ServerSocket mServer;
+	private Socket mReceiver;
+	private TestSink mSink;
+
+	private class TestSink extends SocketStreamSink {
+		TestSink() {
+			super("127.0.0.1", mServer.getLocalPort(), true, QUEUE_CAPACITY);
+		}
+
+		@Override
+		protected String getMime(final MediaFormat format) {
+			return format == mVideoFormat ? MediaFormat.MIMETYPE_VIDEO_AVC : null;
+		}
+
+		@Override
+		protected ByteBuffer getCodecSpecificData(final MediaFormat format, final String key) {
+			if (format != mVideoFormat) return null;
+			return ByteBuffer.wrap("csd-0".equals(key) ? SPS : PPS);
+		}
+	}
+
+	/**
+	 * sample that was received
+	 */
+	private static class Received {
+		final int seq;
+		final boolean keyFrame;
+		final boolean afterParameterSets;
+
+		Received(final int seq, final boolean keyFrame, final boolean afterParameterSets) {
+			this.seq = seq;
+			this.keyFrame = keyFrame;
+			this.afterParameterSets = afterParameterSets;
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		mServer = new ServerSocket();
+		// small window so that the sender blocks soon when the receiver does not read
+		mServer.setReceiveBufferSize(16 * 1024);
+		mServer.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		mServer.setSoTimeout(5000);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (mSink != null) {
+			mSink.stop();
+		}
+		if (mReceiver != null) {
+			mReceiver.close();
+		}
+		mServer.close();
+	}
+
+	private void startSink() throws IOException {
+		mSink = new TestSink();
+		mSink.start(null, new MediaFormat[] {mVideoFormat});
+		mReceiver = mServer.accept();
+	}
+
+	private void offer(final int seq, final int size, final boolean keyFrame) {
+		final ByteBuffer buf = ByteBuffer.allocate(size);
+		buf.put(MARKER);
+		buf.putInt(seq);
+		buf.put((byte)(keyFrame ? 1 : 0));
+		while (buf.hasRemaining()) {
+			buf.put((byte)seq);
+		}
+		buf.flip();
+		mInfo.offset = 0;
+		mInfo.size = size;
+		mInfo.presentationTimeUs = seq * 1000L;
+		mInfo.flags = keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+		mSink.offer(0, buf, mInfo);
+	}
+
+	/**
+	 * read until the sender closes the connection
+	 */
+	private static byte[] readAll(final InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buf = new byte[64 * 1024];
+		try {
+			for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+				out.write(buf, 0, n);
+			}
+		} catch (final IOException e) {
+			// connection reset
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * parse Annex-B stream that consists of parameter sets and fixed size samples
+	 */
+	private static List<Received> parse(final byte[] stream, final int sampleSize) {
+		final List<Received> result = new ArrayList<Received>();
+		final ByteBuffer buf = ByteBuffer.wrap(stream);
+		final byte[] sps = new byte[SPS.length];
+		final byte[] pps = new byte[PPS.length];
+		while (buf.hasRemaining()) {
+			boolean parameterSets = false;
+			if (buf.get(buf.position()) != MARKER) {
+				buf.get(sps);
+				buf.get(pps);
+				assertArrayEquals(SPS, sps);
+				assertArrayEquals(PPS, pps);
+				parameterSets = true;
+			}
+			final int start = buf.position();
+			assertEquals(MARKER, buf.get());
+			final int seq = buf.getInt();
+			final boolean keyFrame = buf.get() != 0;
+			buf.position(start + sampleSize);
+			result.add(new Received(seq, keyFrame, parameterSets));
+		}
+		return result;
+	}
+
+	@Test(timeout = 10000)
+	public void samplesAreSentInOrderFromKeyFrame() throws Exception {
+		startSink();
+		// decoder can not start from this
+		offer(0, 100, false);
+		offer(1, 100, true);
+		offer(2, 100, false);
+		offer(3, 100, false);
+		offer(4, 100, true);
+		mSink.stop();
+		final List<Received> received = parse(readAll(mReceiver.getInputStream()), 100);
+		assertEquals(4, received.size());
+		for (int i = 0; i < received.size(); i++) {
+			final Received r = received.get(i);
+			assertEquals(i + 1, r.seq);
+			// parameter sets are repeated before each key frame
+			assertEquals(r.keyFrame, r.afterParameterSets);
+		}
+		assertEquals(1, mSink.getDroppedSamples());
+		mSink = null;
+	}
+
+	@Test(timeout = 20000)
+	public void slowReceiverLosesSamplesUntilKeyFrame() throws Exception {
+		startSink();
+		final int n = 64;
+		for (int i = 0; i < n; i++) {
+			// receiver does not read, queue overflows after socket buffers were filled
+			offer(i, LARGE_SAMPLE_SIZE, i % 10 == 0);
+			Thread.sleep(2);
+		}
+		assertFalse(mSink.isClosed());
+		assertTrue(mSink.getDroppedSamples() > 0);
+		final byte[][] stream = new byte[1][];
+		final Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					stream[0] = readAll(mReceiver.getInputStream());
+				} catch (final IOException e) {
+					stream[0] = new byte[0];
+				}
+			}
+		});
+		reader.start();
+		mSink.stop();
+		reader.join();
+		final List<Received> received = parse(stream[0], LARGE_SAMPLE_SIZE);
+		assertEquals(n - mSink.getDroppedSamples(), received.size());
+		assertEquals(0, received.get(0).seq);
+		for (int i = 1; i < received.size(); i++) {
+			final Received prev = received.get(i - 1);
+			final Received r = received.get(i);
+			assertTrue(r.seq > prev.seq);
+			if (r.seq != prev.seq + 1) {
+				// stream resumes from key frame after samples were dropped
+				assertTrue("seq=" + r.seq + " after " + prev.seq, r.keyFrame);
+			}
+			assertEquals(r.keyFrame, r.afterParameterSets);
+		}
+		mSink = null;
+	}
+
+	@Test(timeout = 20000)
+	public void sinkIsAbortedWhenReceiverStalls() throws Exception {
+		startSink();
+		// key frames are always tried to queue, so every overflow counts as consecutive drop
+		for (int i = 0; (i < 1000) && !mSink.isClosed(); i++) {
+			offer(i, LARGE_SAMPLE_SIZE, true);
+			Thread.sleep(1);
+		}
+		assertTrue(mSink.isClosed());
+		final long dropped = mSink.getDroppedSamples();
+		assertTrue(dropped >= QUEUE_CAPACITY * 4);
+		// samples are ignored after abort
+		offer(1000, LARGE_SAMPLE_SIZE, true);
+		assertEquals(dropped, mSink.getDroppedSamples());
+		// the socket was closed to unblock the sink thread, so stop does not block
+		mSink.stop();
+		mSink = null;
+		final byte[] stream = readAll(mReceiver.getInputStream());
+		assertTrue(stream.length > 0);
+		assertTrue(Arrays.equals(SPS, Arrays.copyOf(stream, SPS.length)));
+	}
+}
@@ -0,0 +1,137 @@
+package com.serenegiant.benchmark;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: AudioMixerBenchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import com.serenegiant.media.AudioMixer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * throughput of AudioMixer in output samples per second with synthetic signals,
+ * producer and consumer run on the same thread so only the cost of buffering,
+ * sample rate conversion, gain and mixing is measured
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AudioMixerBenchmark {
+	private static final int OUTPUT_RATE = 44100;
+	private static final int FRAME_SAMPLES = 1024;
+
+	/**
+	 * synthetic PCM source that writes as many samples as the mixer consumes
+	 */
+	private static final class Source {
+		private final AudioMixer.Input mInput;
+		private final int mSampleRate;
+		private final short[] mSignal;
+		private int mPos;
+		private long mAcc;
+
+		private Source(final AudioMixer mixer, final int sampleRate, final double frequency) {
+			mInput = mixer.addInput(sampleRate, 200, 20);
+			mInput.setGain(0.8f);
+			mSampleRate = sampleRate;
+			// one second of sine with noise, loud enough to saturate when mixed
+			mSignal = new short[sampleRate];
+			long seed = 1;
+			for (int i = 0; i < sampleRate; i++) {
+				seed = seed * 6364136223846793005L + 1442695040888963407L;
+				final double noise = ((seed >>> 40) / (double)(1L << 24) - 0.5) * 0.1;
+				mSignal[i] = (short)(Math.sin(2 * Math.PI * frequency * i / sampleRate) * 30000 + noise * 32767);
+			}
+		}
+
+		private void produce() {
+			mAcc += (long)FRAME_SAMPLES * mSampleRate;
+			int n = (int)(mAcc / OUTPUT_RATE);
+			mAcc -= (long)n * OUTPUT_RATE;
+			while (n > 0) {
+				final int m = Math.min(n, mSignal.length - mPos);
+				mInput.write(mSignal, mPos, m);
+				mPos = (mPos + m) % mSignal.length;
+				n -= m;
+			}
+		}
+	}
+
+	private AudioMixer mSameRateMixer, mMixedRateMixer;
+	private Source[] mSameRateSources, mMixedRateSources;
+	private final short[] mOutput = new short[FRAME_SAMPLES];
+
+	@Setup(Level.Trial)
+	public void setup() {
+		mSameRateMixer = new AudioMixer(OUTPUT_RATE, FRAME_SAMPLES);
+		mSameRateSources = new Source[] {
+			new Source(mSameRateMixer, 44100, 440),
+			new Source(mSameRateMixer, 44100, 1000),
+		};
+		mMixedRateMixer = new AudioMixer(OUTPUT_RATE, FRAME_SAMPLES);
+		mMixedRateSources = new Source[] {
+			new Source(mMixedRateMixer, 44100, 440),	// mic
+			new Source(mMixedRateMixer, 48000, 1000),	// app audio
+		};
+	}
+
+	/**
+	 * two inputs at output sample rate, no sample rate conversion
+	 */
+	@Benchmark
+	@OperationsPerInvocation(FRAME_SAMPLES)
+	public short mixSameRate() {
+		return mix(mSameRateMixer, mSameRateSources);
+	}
+
+	/**
+	 * 44.1kHz and 48kHz inputs, the latter is converted to 44.1kHz
+	 */
+	@Benchmark
+	@OperationsPerInvocation(FRAME_SAMPLES)
+	public short mixWithConversion() {
+		return mix(mMixedRateMixer, mMixedRateSources);
+	}
+
+	private short mix(final AudioMixer mixer, final Source[] sources) {
+		for (final Source source: sources) {
+			source.produce();
+		}
+		mixer.mix(mOutput, 0, FRAME_SAMPLES);
+		return mOutput[FRAME_SAMPLES - 1];
+	}
+}
@@ -0,0 +1,80 @@
+package com.serenegiant.benchmark;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: BitrateSimulation.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import com.serenegiant.media.BitrateController;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Replay queue trace through BitrateController to tune the control loop off-device.
+ * Each line of the trace is "timeMs,queueDepth,writeLatencyUs", lines starting with '#' are ignored.
+ * The trace can be taken from logcat of MediaScreenEncoder("trace:" lines) with DEBUG enabled.
+ * A synthetic trace with a storage stall is used when no trace file is given.
+ * The trace is replayed open-loop, i.e. the values do not react to changed bitrate.
+ */
+public class BitrateSimulation {
+	private static final int MIN_BITRATE = 200 * 1024;
+	private static final int MAX_BITRATE = 800 * 1024;
+	private static final int MIN_FPS = 5;
+	private static final int MAX_FPS = 15;
+	private static final long UPDATE_INTERVAL_MS = 500;
+
+	public static void main(final String[] args) throws IOException {
+		final BitrateController controller = new BitrateController(
+			MIN_BITRATE, MAX_BITRATE, MAX_BITRATE, MIN_FPS, MAX_FPS);
+		System.out.println("#timeMs,queueDepth,writeLatencyUs,bitrate,fps");
+		if ((args.length > 0) && (args[0].length() > 0)) {
+			final BufferedReader reader = new BufferedReader(new FileReader(args[0]));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					line = line.trim();
+					if (line.isEmpty() || line.startsWith("#")) continue;
+					final String[] values = line.split(",");
+					step(controller, Long.parseLong(values[0].trim()),
+						Integer.parseInt(values[1].trim()), Long.parseLong(values[2].trim()));
+				}
+			} finally {
+				reader.close();
+			}
+		} else {
+			// 10 seconds healthy, 20 seconds storage stall, 60 seconds recovery
+			for (long t = 0; t < 90000; t += UPDATE_INTERVAL_MS) {
+				final boolean stall = (t >= 10000) && (t < 30000);
+				step(controller, t, stall ? 24 : 1, stall ? 350000 : 8000);
+			}
+		}
+	}
+
+	private static void step(final BitrateController controller,
+		final long timeMs, final int queueDepth, final long writeLatencyUs) {
+
+		controller.update(timeMs, queueDepth, writeLatencyUs);
+		System.out.println(String.format(Locale.US, "%d,%d,%d,%d,%d",
+			timeMs, queueDepth, writeLatencyUs, controller.getBitrate(), controller.getFps()));
+	}
+}
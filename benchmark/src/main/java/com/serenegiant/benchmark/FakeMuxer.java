@@ -0,0 +1,49 @@
+package com.serenegiant.benchmark;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: FakeMuxer.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stand-in of MediaMuxer that only touches the written data
+ */
+public class FakeMuxer {
+	private long mBytes;
+	private long mChecksum;
+
+	public void writeSampleData(final int trackIndex, final ByteBuffer buf, final int size, final long presentationTimeUs) {
+		mBytes += size;
+		// read first and last byte like a real writer touches the data
+		if (size > 0) {
+			mChecksum += buf.get(buf.position()) + buf.get(buf.position() + size - 1) + trackIndex + presentationTimeUs;
+		}
+	}
+
+	public long getBytes() {
+		return mBytes;
+	}
+
+	public long getChecksum() {
+		return mChecksum;
+	}
+}
@@ -0,0 +1,135 @@
+package com.serenegiant.benchmark;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: InterleaveBenchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import com.serenegiant.media.FragmentedMp4Writer;
+import com.serenegiant.media.SampleQueue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * copying encoded samples into SampleQueue, interleaving them by presentationTimeUs
+ * and writing them with FragmentedMp4Writer on single thread
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InterleaveBenchmark {
+	private static final int VIDEO_SIZE = 16384;
+	private static final int AUDIO_SIZE = 400;
+
+	private final SampleQueue[] mQueues = new SampleQueue[] {
+		new SampleQueue(64), new SampleQueue(64),
+	};
+	private final FakeMuxer mMuxer = new FakeMuxer();
+	private ByteBuffer mVideo, mAudio;
+	private long mVideoPts, mAudioPts;
+	private FileOutputStream mOutput;
+	private FragmentedMp4Writer mWriter;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		mVideo = createAnnexB(VIDEO_SIZE);
+		mAudio = ByteBuffer.allocateDirect(AUDIO_SIZE);
+		mOutput = new FileOutputStream("/dev/null");
+		mWriter = new FragmentedMp4Writer(mOutput.getChannel(), 1000000L);
+		mWriter.addVideoTrack(1920, 1080,
+			new byte[] {0, 0, 0, 1, 0x67, 0x42, (byte)0xc0, 0x1f}, new byte[] {0, 0, 0, 1, 0x68, (byte)0xce, 0x3c, (byte)0x80});
+		mWriter.addAudioTrack(44100, 1, new byte[] {0x12, 0x08});
+		mWriter.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		mWriter.stop();
+		mOutput.close();
+	}
+
+	/**
+	 * synthetic H.264 sample with a single NAL unit
+	 */
+	private static ByteBuffer createAnnexB(final int size) {
+		final ByteBuffer buf = ByteBuffer.allocateDirect(size);
+		buf.put((byte)0).put((byte)0).put((byte)0).put((byte)1).put((byte)0x41);
+		for (int i = 5; i < size; i++) {
+			buf.put((byte)((i % 251) + 1));	// no start code emulation
+		}
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * queue one video and two audio samples then write them in order of presentationTimeUs
+	 */
+	@Benchmark
+	public long interleaveAndCopy() {
+		mQueues[0].offer(mVideo, 0, VIDEO_SIZE, mVideoPts += 33333, 0);
+		mQueues[1].offer(mAudio, 0, AUDIO_SIZE, mAudioPts += 23219, 0);
+		mQueues[1].offer(mAudio, 0, AUDIO_SIZE, mAudioPts += 23219, 0);
+		for ( ; ; ) {
+			int trackIx = -1;
+			SampleQueue.Sample oldest = null;
+			for (int i = 0; i < mQueues.length; i++) {
+				final SampleQueue.Sample sample = mQueues[i].peek();
+				if ((sample != null)
+					&& ((oldest == null) || (sample.presentationTimeUs < oldest.presentationTimeUs))) {
+					oldest = sample;
+					trackIx = i;
+				}
+			}
+			if (oldest == null) break;
+			mMuxer.writeSampleData(trackIx, oldest.buffer, oldest.size, oldest.presentationTimeUs);
+			mQueues[trackIx].remove();
+		}
+		return mMuxer.getChecksum();
+	}
+
+	/**
+	 * Annex-B to length-prefixed conversion and fragment writing
+	 */
+	@Benchmark
+	public void fragmentedMp4Write() throws IOException {
+		mVideoPts += 33333;
+		mWriter.writeSample(0, mVideo, 0, VIDEO_SIZE, mVideoPts, mVideoPts % 1000000L < 33333);
+		mWriter.writeSample(1, mAudio, 0, AUDIO_SIZE, mAudioPts += 23219, true);
+	}
+}
@@ -0,0 +1,131 @@
+package com.serenegiant.benchmark;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: MuxerWriteBenchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import com.serenegiant.media.SampleQueue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * write path from encoder threads to muxer,
+ * synchronized direct write(old MediaMuxerWrapper) vs SampleQueue and writer thread
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class MuxerWriteBenchmark {
+	/**
+	 * size of encoded sample, typical AAC frame and H.264 P-frame
+	 */
+	@Param({"400", "16384"})
+	public int sampleSize;
+
+	private final FakeMuxer mMuxer = new FakeMuxer();
+	private final SampleQueue[] mQueues = new SampleQueue[] {
+		new SampleQueue(64), new SampleQueue(64),
+	};
+	private ByteBuffer mVideo, mAudio;
+	private long mVideoPts, mAudioPts;
+
+	@Setup
+	public void setup() {
+		mVideo = ByteBuffer.allocateDirect(sampleSize);
+		mAudio = ByteBuffer.allocateDirect(sampleSize);
+		mVideo.limit(sampleSize);
+		mAudio.limit(sampleSize);
+	}
+
+	private synchronized void writeSynchronized(final int trackIndex, final ByteBuffer buf, final long pts) {
+		mMuxer.writeSampleData(trackIndex, buf, buf.remaining(), pts);
+	}
+
+	@Benchmark
+	@Group("synchronized")
+	@GroupThreads(1)
+	public void synchronizedVideo() {
+		writeSynchronized(0, mVideo, mVideoPts += 33333);
+	}
+
+	@Benchmark
+	@Group("synchronized")
+	@GroupThreads(1)
+	public void synchronizedAudio() {
+		writeSynchronized(1, mAudio, mAudioPts += 23219);
+	}
+
+	@Benchmark
+	@Group("queued")
+	@GroupThreads(1)
+	public boolean queuedVideo() {
+		return mQueues[0].offer(mVideo, 0, sampleSize, mVideoPts += 33333, 0);
+	}
+
+	@Benchmark
+	@Group("queued")
+	@GroupThreads(1)
+	public boolean queuedAudio() {
+		return mQueues[1].offer(mAudio, 0, sampleSize, mAudioPts += 23219, 0);
+	}
+
+	/**
+	 * writer thread, write oldest sample across tracks
+	 */
+	@Benchmark
+	@Group("queued")
+	@GroupThreads(1)
+	public int queuedWriter() {
+		int trackIx = -1;
+		SampleQueue.Sample oldest = null;
+		for (int i = 0; i < mQueues.length; i++) {
+			final SampleQueue.Sample sample = mQueues[i].peek();
+			if ((sample != null)
+				&& ((oldest == null) || (sample.presentationTimeUs < oldest.presentationTimeUs))) {
+				oldest = sample;
+				trackIx = i;
+			}
+		}
+		if (oldest != null) {
+			mMuxer.writeSampleData(trackIx, oldest.buffer, oldest.size, oldest.presentationTimeUs);
+			mQueues[trackIx].remove();
+		}
+		return trackIx;
+	}
+}
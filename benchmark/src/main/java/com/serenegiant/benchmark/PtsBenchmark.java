@@ -0,0 +1,80 @@
+package com.serenegiant.benchmark;
+/*
+ * ScreenRecordingSample
+ * Sample project to cature and save audio from internal and video from screen as MPEG4 file.
+ *
+ * Copyright (c) 2026 saki t_saki@serenegiant.com
+ *
+ * File name: PtsBenchmark.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import com.serenegiant.media.FrameScheduler;
+import com.serenegiant.media.SessionClock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * presentationTimeUs calculation of SessionClock that runs for every encoded sample
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PtsBenchmark {
+	private final SessionClock mClock = new SessionClock(FrameScheduler.SYSTEM_CLOCK);
+
+	/**
+	 * each benchmark thread stamps on its own track like encoders
+	 */
+	@State(Scope.Thread)
+	public static class TrackState {
+		private SessionClock.Track mTrack;
+
+		@Setup
+		public void setup(final PtsBenchmark benchmark) {
+			mTrack = benchmark.mClock.newTrack();
+		}
+	}
+
+	@Benchmark
+	public long getPTSUs(final TrackState state) {
+		return state.mTrack.stamp(mClock.nowUs());
+	}
+
+	/**
+	 * audio and video encoder threads call it at the same time
+	 */
+	@Benchmark
+	@Threads(2)
+	public long getPTSUsContended(final TrackState state) {
+		return state.mTrack.stamp(mClock.nowUs());
+	}
+}